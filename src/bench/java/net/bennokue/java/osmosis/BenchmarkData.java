@@ -0,0 +1,120 @@
+package net.bennokue.java.osmosis;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Test data for the benchmarks. The CSV lines look like
+ * {@code id,latitude,longitude,data} and have the even ids {@code 2} to
+ * {@code 2 * lines}, so odd ids are never found. The coordinates lie around
+ * Munich, the data comes from a few hundred distinct values.
+ *
+ * @author bennokue
+ */
+final class BenchmarkData {
+
+    /**
+     * How many distinct data values are there?
+     */
+    static final int DISTINCT_VALUES = 500;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Create a CSV line.
+     *
+     * @param number The number of the line, decides about the id and the
+     * contents.
+     * @param quoted Should the data field be quoted?
+     * @return The line (without line break).
+     */
+    static String line(int number, boolean quoted) {
+        long id = 2L * (number + 1);
+        String data = "value " + (number % DISTINCT_VALUES);
+        if (quoted) {
+            data = "\"" + data + ", \"\"quoted\"\"\"";
+        }
+        return id + "," + latitude(number) + "," + longitude(number) + "," + data;
+    }
+
+    /**
+     * @param number The number of the line.
+     * @return The latitude at the line.
+     */
+    static double latitude(int number) {
+        return 48.1 + (number % 1000) * 0.0001;
+    }
+
+    /**
+     * @param number The number of the line.
+     * @return The longitude at the line.
+     */
+    static double longitude(int number) {
+        return 11.5 + (number / 1000 % 1000) * 0.0001;
+    }
+
+    /**
+     * Write a temporary CSV file, see {@link #line(int, boolean)}. It is
+     * deleted when the JVM exits.
+     *
+     * @param lines The number of lines.
+     * @param sorted Sort the lines by id? Otherwise they are shuffled.
+     * @return The file.
+     * @throws IOException If the file cannot be written.
+     */
+    static File writeCSV(int lines, boolean sorted) throws IOException {
+        int[] order = new int[lines];
+        for (int i = 0; i < lines; i++) {
+            order[i] = i;
+        }
+        if (!sorted) {
+            shuffle(order, new Random(42));
+        }
+        File file = File.createTempFile("csvimport-benchmark", ".csv");
+        file.deleteOnExit();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            for (int number : order) {
+                writer.write(line(number, false));
+                writer.write('\n');
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Ids to look up, in ascending order like at an OSM file.
+     *
+     * @param lines The number of lines of the CSV file.
+     * @param found Ids that are at the file (otherwise: that are not)?
+     * @return The ids.
+     */
+    static long[] lookupIds(int lines, boolean found) {
+        long[] ids = new long[lines];
+        for (int i = 0; i < lines; i++) {
+            ids[i] = 2L * (i + 1) - (found ? 0 : 1);
+        }
+        return ids;
+    }
+
+    /**
+     * Shuffle an array (Fisher-Yates).
+     *
+     * @param values The array.
+     * @param random The random numbers.
+     */
+    static void shuffle(int[] values, Random random) {
+        for (int i = values.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+    }
+}
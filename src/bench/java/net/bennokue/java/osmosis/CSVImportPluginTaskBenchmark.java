@@ -0,0 +1,111 @@
+package net.bennokue.java.osmosis;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.task.v0_6.Sink;
+
+/**
+ * Passing nodes through {@link CSVImportPlugin_task#process(NodeContainer)}
+ * into a sink that does nothing with them, with the whole CSV file cached.
+ * Every second node is at the CSV file.
+ *
+ * @author bennokue
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CSVImportPluginTaskBenchmark {
+
+    @Param({"100000"})
+    public int lines;
+    /**
+     * Check the distance to the CSV coordinates (in meters), or {@code 0} not
+     * to check it.
+     */
+    @Param({"0", "10"})
+    public double maxDist;
+    private File file;
+    private CSVImportPlugin_task task;
+    private NodeContainer[] nodes;
+    private int next = 0;
+    /**
+     * Counted by the sink.
+     */
+    private long entitiesPassed = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.file = BenchmarkData.writeCSV(this.lines, true);
+        if (this.maxDist > 0) {
+            this.task = new CSVImportPlugin_task(this.file.getPath(), 1, 2, 3, 4, "benchmarkTag", this.maxDist, CSVImportPlugin_task.MaxDistAction.WARN, -1, -1);
+        } else {
+            this.task = new CSVImportPlugin_task(this.file.getPath(), 1, -1, -1, 4, "benchmarkTag", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1, -1);
+        }
+        this.task.setSink(new Sink() {
+            @Override
+            public void initialize(Map<String, Object> metaData) {
+            }
+
+            @Override
+            public void process(EntityContainer entityContainer) {
+                CSVImportPluginTaskBenchmark.this.entitiesPassed++;
+            }
+
+            @Override
+            public void complete() {
+            }
+
+            @Override
+            public void release() {
+            }
+        });
+        this.task.initialize(new HashMap<String, Object>());
+        // Ids 1 to 2 * lines: The even ones are found
+        this.nodes = new NodeContainer[2 * this.lines];
+        for (int i = 0; i < this.nodes.length; i++) {
+            int line = i / 2;
+            Node node = new Node(new CommonEntityData(i + 1, 1, new Date(0), OsmUser.NONE, 1, Arrays.asList(new Tag("name", "node " + i))), BenchmarkData.latitude(line), BenchmarkData.longitude(line));
+            node.makeReadOnly();
+            this.nodes[i] = new NodeContainer(node);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.task.complete();
+        this.task.release();
+        this.file.delete();
+    }
+
+    @Benchmark
+    public void process() {
+        this.task.process(this.nodes[this.next]);
+        this.next = (this.next + 1) % this.nodes.length;
+    }
+}
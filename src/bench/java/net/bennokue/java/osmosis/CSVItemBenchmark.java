@@ -0,0 +1,63 @@
+package net.bennokue.java.osmosis;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The distance checks of {@link CSVItem}: The haversine formula and the
+ * cheap check that is done before it.
+ *
+ * @author bennokue
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CSVItemBenchmark {
+
+    /**
+     * How many different points are there (a power of two)?
+     */
+    private static final int POINTS = 1024;
+    private CSVItem[] items;
+    private double[] latitudes;
+    private double[] longitudes;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        this.items = new CSVItem[POINTS];
+        this.latitudes = new double[POINTS];
+        this.longitudes = new double[POINTS];
+        for (int i = 0; i < POINTS; i++) {
+            this.items[i] = new CSVItem(i, BenchmarkData.latitude(i), BenchmarkData.longitude(i), "x");
+            // The node is a few meters away
+            this.latitudes[i] = BenchmarkData.latitude(i) + (i % 7) * 0.00001;
+            this.longitudes[i] = BenchmarkData.longitude(i) - (i % 5) * 0.00001;
+        }
+    }
+
+    @Benchmark
+    public double distFrom() {
+        int i = this.next++ & (POINTS - 1);
+        CSVItem item = this.items[i];
+        return CSVItem.distFrom(item.OSM_LAT, item.OSM_LON, this.latitudes[i], this.longitudes[i]);
+    }
+
+    @Benchmark
+    public boolean isSurelyWithin() {
+        int i = this.next++ & (POINTS - 1);
+        return this.items[i].isSurelyWithin(this.latitudes[i], this.longitudes[i], 10);
+    }
+}
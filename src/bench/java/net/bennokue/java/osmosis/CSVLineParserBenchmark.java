@@ -0,0 +1,67 @@
+package net.bennokue.java.osmosis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing a single CSV line with {@link CSVLineParser}, which is what
+ * {@link CSVLoader} does for every line it reads.
+ *
+ * @author bennokue
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CSVLineParserBenchmark {
+
+    /**
+     * How many different lines are parsed (a power of two)?
+     */
+    private static final int LINES = 1024;
+    /**
+     * Parse the coordinates, too?
+     */
+    @Param({"false", "true"})
+    public boolean coordinates;
+    /**
+     * Is the data field quoted?
+     */
+    @Param({"false", "true"})
+    public boolean quoted;
+    private byte[][] lines;
+    private CSVLineParser parser;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        this.lines = new byte[LINES][];
+        for (int i = 0; i < LINES; i++) {
+            this.lines[i] = BenchmarkData.line(i, this.quoted).getBytes(StandardCharsets.UTF_8);
+        }
+        this.parser = this.coordinates ? new CSVLineParser(1, 2, 3, 4) : new CSVLineParser(1, -1, -1, 4);
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) {
+        byte[] line = this.lines[this.next++ & (LINES - 1)];
+        blackhole.consume(this.parser.parse(line, 0, line.length, this.next));
+        blackhole.consume(this.parser.getOsmId());
+        blackhole.consume(this.parser.getFixedLatitude());
+        blackhole.consume(this.parser.getDataColumns());
+    }
+}
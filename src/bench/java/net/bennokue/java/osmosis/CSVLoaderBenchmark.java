@@ -0,0 +1,89 @@
+package net.bennokue.java.osmosis;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looking up ids with {@link CSVLoader#findItem(long)}, with ids that are at
+ * the CSV file (hits) and ids that are not (misses). The ids are looked up in
+ * ascending order like at an OSM file, over and over again; the first round
+ * (which fills the cache) is part of the warmup for the endless cache.
+ *
+ * @author bennokue
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CSVLoaderBenchmark {
+
+    /**
+     * {@code ENDLESS}: The whole file is cached. {@code BOUNDED}: A tenth of
+     * the file is cached.
+     */
+    @Param({"ENDLESS", "BOUNDED"})
+    public String cache;
+    /**
+     * Is the CSV file sorted by id? Otherwise the lines are shuffled.
+     */
+    @Param({"true", "false"})
+    public boolean sorted;
+    @Param({"100000"})
+    public int lines;
+    /**
+     * Compare others with e.g. {@code -p storageEngine=HASHMAP,MAPPED}
+     * ({@code FROZEN} only works with the endless cache).
+     */
+    @Param({"PRIMITIVE"})
+    public CSVLoader.StorageEngine storageEngine;
+    private File file;
+    private CSVLoader loader;
+    private long[] hits;
+    private long[] misses;
+    private int nextHit = 0;
+    private int nextMiss = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.file = BenchmarkData.writeCSV(this.lines, this.sorted);
+        int cacheSize = this.cache.equals("ENDLESS") ? -1 : this.lines / 10;
+        CSVImportOptions options = new CSVImportOptions().setStorageEngine(this.storageEngine);
+        this.loader = new CSVLoader(this.file, cacheSize, 1, 2, 3, 4, options);
+        this.hits = BenchmarkData.lookupIds(this.lines, true);
+        this.misses = BenchmarkData.lookupIds(this.lines, false);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.file.delete();
+    }
+
+    @Benchmark
+    public CSVItem findHit() throws IOException {
+        CSVItem item = this.loader.findItem(this.hits[this.nextHit]);
+        this.nextHit = (this.nextHit + 1) % this.hits.length;
+        return item;
+    }
+
+    @Benchmark
+    public CSVItem findMiss() throws IOException {
+        CSVItem item = this.loader.findItem(this.misses[this.nextMiss]);
+        this.nextMiss = (this.nextMiss + 1) % this.misses.length;
+        return item;
+    }
+}
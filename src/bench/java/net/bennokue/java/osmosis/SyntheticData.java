@@ -0,0 +1,364 @@
+package net.bennokue.java.osmosis;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+
+/**
+ * Synthetic OSM nodes and a matching CSV file of any size (10 million to a
+ * billion lines and more). Nothing is held in memory: Everything about the
+ * node with the index {@code i} ({@code 0 <= i < nodes}) is computed from
+ * {@code i} and the seed, and the orderings are permutations that are
+ * computed position by position as well.
+ * <p>
+ * The node {@code i} has the id {@code i + 1} and random coordinates in
+ * Central Europe. With the probability {@code matchRatio} it has a CSV line
+ * {@code id,latitude,longitude,value}: The value is one of
+ * {@code cardinality} distinct values, the coordinates are moved up to
+ * {@code jitter} meters away from the node (north-south and east-west).</p>
+ *
+ * @author bennokue
+ */
+final class SyntheticData {
+
+    /**
+     * The order of the nodes or the CSV lines.
+     */
+    static enum Ordering {
+
+        /**
+         * Ascending ids.
+         */
+        SORTED,
+        /**
+         * All ids shuffled.
+         */
+        SHUFFLED,
+        /**
+         * Ascending ids, but shuffled within windows of {@code window} ids,
+         * e.g. a file that was sorted in chunks or appended to.
+         */
+        PARTIAL
+    }
+
+    /**
+     * How many meters is a degree of latitude?
+     */
+    private static final double METERS_PER_DEGREE = 111320;
+    private static final Date TIMESTAMP = new Date(1234567890000L);
+    private long nodes = 10000000;
+    private double matchRatio = 0.5;
+    private int cardinality = 1000;
+    private double jitter = 0;
+    private long window = 10000;
+    private long seed = 42;
+
+    /**
+     * @param nodes How many nodes are there? <em>Defaults to 10
+     * million</em>.
+     * @return This object.
+     */
+    SyntheticData setNodes(long nodes) {
+        if (nodes <= 0) {
+            throw new IllegalArgumentException("Please provide more than 0 nodes");
+        }
+        this.nodes = nodes;
+        return this;
+    }
+
+    long getNodes() {
+        return this.nodes;
+    }
+
+    /**
+     * @param matchRatio Which share of the nodes has a CSV line ({@code 0}
+     * to {@code 1})? <em>Defaults to {@code 0.5}</em>.
+     * @return This object.
+     */
+    SyntheticData setMatchRatio(double matchRatio) {
+        if (matchRatio < 0 || matchRatio > 1) {
+            throw new IllegalArgumentException("The match ratio has to be between 0 and 1");
+        }
+        this.matchRatio = matchRatio;
+        return this;
+    }
+
+    /**
+     * @param cardinality How many distinct values are there at the CSV file?
+     * <em>Defaults to {@code 1000}</em>.
+     * @return This object.
+     */
+    SyntheticData setCardinality(int cardinality) {
+        if (cardinality <= 0) {
+            throw new IllegalArgumentException("The cardinality has to be greater than 0");
+        }
+        this.cardinality = cardinality;
+        return this;
+    }
+
+    /**
+     * @param jitter How far (meters, in each direction) may the CSV
+     * coordinates be away from the node? <em>Defaults to {@code 0}</em>.
+     * @return This object.
+     */
+    SyntheticData setJitter(double jitter) {
+        if (jitter < 0) {
+            throw new IllegalArgumentException("The jitter must not be negative");
+        }
+        this.jitter = jitter;
+        return this;
+    }
+
+    /**
+     * @param window The size of the shuffled windows of
+     * {@link Ordering#PARTIAL}. <em>Defaults to {@code 10000}</em>.
+     * @return This object.
+     */
+    SyntheticData setWindow(long window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("The window has to be greater than 0");
+        }
+        this.window = window;
+        return this;
+    }
+
+    /**
+     * @param seed Decides about everything random. <em>Defaults to
+     * {@code 42}</em>.
+     * @return This object.
+     */
+    SyntheticData setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Read the arguments {@code nodes}, {@code matchRatio},
+     * {@code cardinality}, {@code jitter}, {@code window} and {@code seed}
+     * (see the setters) and remove them from the map.
+     *
+     * @param arguments The arguments, see
+     * {@link #parseArguments(java.lang.String[])}.
+     * @return This object.
+     */
+    SyntheticData setArguments(Map<String, String> arguments) {
+        if (arguments.containsKey("nodes")) {
+            this.setNodes(Long.parseLong(arguments.remove("nodes")));
+        }
+        if (arguments.containsKey("matchRatio")) {
+            this.setMatchRatio(Double.parseDouble(arguments.remove("matchRatio")));
+        }
+        if (arguments.containsKey("cardinality")) {
+            this.setCardinality(Integer.parseInt(arguments.remove("cardinality")));
+        }
+        if (arguments.containsKey("jitter")) {
+            this.setJitter(Double.parseDouble(arguments.remove("jitter")));
+        }
+        if (arguments.containsKey("window")) {
+            this.setWindow(Long.parseLong(arguments.remove("window")));
+        }
+        if (arguments.containsKey("seed")) {
+            this.setSeed(Long.parseLong(arguments.remove("seed")));
+        }
+        return this;
+    }
+
+    /**
+     * Parse command line arguments of the form {@code key=value}.
+     *
+     * @param args The arguments.
+     * @return The arguments by key, in the given order.
+     */
+    static Map<String, String> parseArguments(String[] args) {
+        Map<String, String> arguments = new LinkedHashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Arguments look like key=value: " + arg);
+            }
+            arguments.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        return arguments;
+    }
+
+    /**
+     * @param index The index of the node.
+     * @return The id of the node.
+     */
+    long getId(long index) {
+        return index + 1;
+    }
+
+    /**
+     * @param index The index of the node.
+     * @return Does the node have a CSV line?
+     */
+    boolean isInCSV(long index) {
+        return this.random(index, 1) < this.matchRatio;
+    }
+
+    double getLatitude(long index) {
+        return round(45 + 10 * this.random(index, 2));
+    }
+
+    double getLongitude(long index) {
+        return round(5 + 15 * this.random(index, 3));
+    }
+
+    double getCSVLatitude(long index) {
+        double offset = this.jitter * (2 * this.random(index, 4) - 1);
+        return round(this.getLatitude(index) + offset / METERS_PER_DEGREE);
+    }
+
+    double getCSVLongitude(long index) {
+        double offset = this.jitter * (2 * this.random(index, 5) - 1);
+        double metersPerDegree = METERS_PER_DEGREE * Math.cos(Math.toRadians(this.getLatitude(index)));
+        return round(this.getLongitude(index) + offset / metersPerDegree);
+    }
+
+    /**
+     * @param index The index of the node.
+     * @return The CSV value of the node.
+     */
+    String getValue(long index) {
+        return "value-" + (mix(this.seed + 6 * 0x9E3779B97F4A7C15L + index) >>> 1) % this.cardinality;
+    }
+
+    /**
+     * Create a node.
+     *
+     * @param index The index of the node.
+     * @return The node (without tags).
+     */
+    Node createNode(long index) {
+        return new Node(new CommonEntityData(this.getId(index), 1, TIMESTAMP, OsmUser.NONE, 1, new ArrayList<Tag>(0)), this.getLatitude(index), this.getLongitude(index));
+    }
+
+    /**
+     * Which node comes at a position?
+     *
+     * @param position The position ({@code 0 <= position < nodes}).
+     * @param ordering The order of the nodes.
+     * @return The index of the node at this position.
+     */
+    long indexAt(long position, Ordering ordering) {
+        switch (ordering) {
+            case SORTED:
+                return position;
+            case SHUFFLED:
+                return permute(position, this.nodes, this.seed);
+            case PARTIAL:
+                long windowStart = position - position % this.window;
+                long windowSize = Math.min(this.window, this.nodes - windowStart);
+                return windowStart + permute(position - windowStart, windowSize, mix(this.seed + windowStart));
+            default:
+                throw new IllegalArgumentException("Unknown ordering " + ordering);
+        }
+    }
+
+    /**
+     * Write the CSV file, compressed with gzip if its name ends with
+     * {@code .gz}. Prints the progress every 10 percent.
+     *
+     * @param file The file.
+     * @param ordering The order of the lines.
+     * @return The number of lines.
+     * @throws IOException If the file cannot be written.
+     */
+    long writeCSV(File file, Ordering ordering) throws IOException {
+        long lines = 0;
+        long step = Math.max(1, this.nodes / 10);
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        if (file.getName().endsWith(".gz")) {
+            output = new GZIPOutputStream(output, 1 << 16);
+        }
+        try (Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8)) {
+            StringBuilder line = new StringBuilder(64);
+            for (long position = 0; position < this.nodes; position++) {
+                long index = this.indexAt(position, ordering);
+                if (this.isInCSV(index)) {
+                    line.setLength(0);
+                    line.append(this.getId(index)).append(',').append(this.getCSVLatitude(index)).append(',').append(this.getCSVLongitude(index)).append(',').append(this.getValue(index)).append('\n');
+                    writer.append(line);
+                    lines++;
+                }
+                if ((position + 1) % step == 0) {
+                    System.out.println("Wrote " + (position + 1) * 100 / this.nodes + " % of " + file.getPath());
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * A random number for a node.
+     *
+     * @param index The index of the node.
+     * @param purpose Gives different numbers for different things.
+     * @return A number from {@code 0} (inclusive) to {@code 1} (exclusive).
+     */
+    private double random(long index, int purpose) {
+        return (mix(this.seed + purpose * 0x9E3779B97F4A7C15L + index) >>> 11) * 0x1.0p-53;
+    }
+
+    private static double round(double coordinate) {
+        return Math.round(coordinate * 1e7) / 1e7;
+    }
+
+    /**
+     * The finalizer of SplitMix64: Every bit of the result depends on every
+     * bit of the input.
+     *
+     * @param value The input.
+     * @return The mixed bits.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    /**
+     * A random permutation of {@code 0} to {@code size - 1}: A Feistel
+     * network over the smallest even number of bits that holds {@code size},
+     * values outside are put through again (cycle walking, less than four
+     * rounds on average).
+     *
+     * @param value The value to permute ({@code 0 <= value < size}).
+     * @param size The size of the range.
+     * @param key Decides about the permutation.
+     * @return The permuted value.
+     */
+    static long permute(long value, long size, long key) {
+        if (size <= 1) {
+            return value;
+        }
+        int halfBits = (64 - Long.numberOfLeadingZeros(size - 1) + 1) / 2;
+        long mask = (1L << halfBits) - 1;
+        do {
+            long left = value >>> halfBits;
+            long right = value & mask;
+            for (int round = 0; round < 4; round++) {
+                long next = left ^ (mix(right ^ key ^ round * 0x9E3779B97F4A7C15L) & mask);
+                left = right;
+                right = next;
+            }
+            value = (left << halfBits) | right;
+        } while (value >= size);
+        return value;
+    }
+}
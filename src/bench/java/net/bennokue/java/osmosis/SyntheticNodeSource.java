@@ -0,0 +1,52 @@
+package net.bennokue.java.osmosis;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.task.v0_6.RunnableSource;
+import org.openstreetmap.osmosis.core.task.v0_6.Sink;
+
+/**
+ * Sends the nodes of {@link SyntheticData} to a sink, like a reader task of
+ * OSMOSIS does. A sorted stream is announced with
+ * {@link CSVImportPlugin_task#METADATA_SORTED}.
+ *
+ * @author bennokue
+ */
+final class SyntheticNodeSource implements RunnableSource {
+
+    private final SyntheticData data;
+    private final SyntheticData.Ordering ordering;
+    private Sink sink;
+
+    /**
+     * @param data The nodes.
+     * @param ordering The order of the nodes.
+     */
+    SyntheticNodeSource(SyntheticData data, SyntheticData.Ordering ordering) {
+        this.data = data;
+        this.ordering = ordering;
+    }
+
+    @Override
+    public void setSink(Sink sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public void run() {
+        try {
+            Map<String, Object> metaData = new HashMap<>();
+            if (this.ordering == SyntheticData.Ordering.SORTED) {
+                metaData.put(CSVImportPlugin_task.METADATA_SORTED, Boolean.TRUE);
+            }
+            this.sink.initialize(metaData);
+            for (long position = 0; position < this.data.getNodes(); position++) {
+                this.sink.process(new NodeContainer(this.data.createNode(this.data.indexAt(position, this.ordering))));
+            }
+            this.sink.complete();
+        } finally {
+            this.sink.release();
+        }
+    }
+}
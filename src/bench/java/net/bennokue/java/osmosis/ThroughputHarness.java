@@ -0,0 +1,246 @@
+package net.bennokue.java.osmosis;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Map;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.task.v0_6.Sink;
+
+/**
+ * Runs {@link CSVImportPlugin_task} end to end on {@link SyntheticData} and
+ * reports the throughput, the load time, the peak heap and the GC time, so
+ * that cache modes and storage engines can be compared on large data. Run it
+ * with {@code mvn -P benchmarks test-compile exec:exec@harness
+ * -Dharness.args="..."}. Arguments ({@code key=value}):<ul><li>The data:
+ * {@code nodes}, {@code matchRatio}, {@code cardinality}, {@code jitter},
+ * {@code window} and {@code seed}, see {@link SyntheticData}.</li><li>{@code csvOrder},
+ * {@code nodeOrder}: The order of the CSV lines and of the nodes, see
+ * {@link SyntheticData.Ordering}. <em>Default to {@code SHUFFLED} and
+ * {@code SORTED}</em>.</li><li>{@code csvFile}: Where to write the CSV file
+ * (with {@code .gz} compressed). If the file exists, it is used as it is, so
+ * it can be reused with the same data arguments. <em>Defaults to a temporary
+ * file, which is deleted afterwards</em>.</li><li>{@code cacheSize}:
+ * <em>Defaults to {@code -1}</em>.</li><li>{@code maxDist},
+ * {@code maxDistAction}: <em>Default to no distance check</em>.</li><li>{@code storageEngine},
+ * {@code workers}, {@code parseThreads}, {@code preloadCSV}, {@code csvSorted},
+ * {@code presortCSV}, {@code negativeLookupFilter}: See
+ * {@link CSVImportPlugin_task}. <em>Default to the defaults of
+ * {@link CSVImportOptions}</em>.</li></ul>The last line of the output
+ * ({@code RESULT ...}) has all arguments and results as {@code key=value}
+ * pairs.
+ *
+ * @author bennokue
+ */
+public final class ThroughputHarness {
+
+    private static final String TAG = "syntheticTag";
+
+    private ThroughputHarness() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> arguments = SyntheticData.parseArguments(args);
+        String summary = "RESULT " + join(arguments);
+        SyntheticData data = new SyntheticData().setArguments(arguments);
+        SyntheticData.Ordering csvOrder = SyntheticData.Ordering.valueOf(remove(arguments, "csvOrder", "SHUFFLED").toUpperCase());
+        SyntheticData.Ordering nodeOrder = SyntheticData.Ordering.valueOf(remove(arguments, "nodeOrder", "SORTED").toUpperCase());
+        String csvPath = remove(arguments, "csvFile", "");
+        int cacheSize = Integer.parseInt(remove(arguments, "cacheSize", "-1"));
+        double maxDist = Double.parseDouble(remove(arguments, "maxDist", "Infinity"));
+        CSVImportPlugin_task.MaxDistAction maxDistAction = CSVImportPlugin_task.MaxDistAction.valueOf(remove(arguments, "maxDistAction", "WARN").toUpperCase());
+        CSVImportOptions options = createOptions(arguments);
+        if (!arguments.isEmpty()) {
+            throw new IllegalArgumentException("Unknown arguments: " + arguments.keySet());
+        }
+
+        // The CSV file
+        File csvFile;
+        boolean deleteCSV = false;
+        if (csvPath.equals("")) {
+            csvFile = File.createTempFile("synthetic", ".csv");
+            deleteCSV = true;
+        } else {
+            csvFile = new File(csvPath);
+        }
+        long generationMillis = 0;
+        if (deleteCSV || !csvFile.exists()) {
+            long start = System.currentTimeMillis();
+            long lines = data.writeCSV(csvFile, csvOrder);
+            generationMillis = System.currentTimeMillis() - start;
+            System.out.println("Generated " + lines + " CSV lines in " + seconds(generationMillis) + " s");
+        } else {
+            System.out.println("Using the existing file " + csvFile.getPath());
+        }
+        System.out.println("CSV file: " + csvFile.length() / (1024 * 1024) + " MB");
+
+        try {
+            System.gc();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                pool.resetPeakUsage();
+            }
+            long gcCountBefore = getGarbageCollections();
+            long gcMillisBefore = getGarbageCollectionMillis();
+
+            long start = System.currentTimeMillis();
+            boolean checkDistance = !Double.isInfinite(maxDist);
+            CSVImportPlugin_task task = new CSVImportPlugin_task(csvFile.getPath(), 1, checkDistance ? 2 : -1, checkDistance ? 3 : -1, 4, TAG, maxDist, maxDistAction, cacheSize, -1, options);
+            CountingSink sink = new CountingSink();
+            task.setSink(sink);
+            SyntheticNodeSource source = new SyntheticNodeSource(data, nodeOrder);
+            source.setSink(task);
+            source.run();
+            long totalMillis = System.currentTimeMillis() - start;
+            // The CSV file is read when the first node is looked up
+            long loadMillis = sink.firstNodeMillis - start;
+
+            long peakHeap = getPeakHeap();
+            long gcCount = getGarbageCollections() - gcCountBefore;
+            long gcMillis = getGarbageCollectionMillis() - gcMillisBefore;
+            long nodesPerSecond = sink.nodes * 1000 / Math.max(1, totalMillis);
+            long nodesPerSecondAfterLoading = sink.nodes * 1000 / Math.max(1, totalMillis - loadMillis);
+            System.out.println("Load time (until the first node left the task): " + seconds(loadMillis) + " s");
+            System.out.println("Nodes: " + sink.nodes + " in " + seconds(totalMillis) + " s: " + nodesPerSecond + " nodes/s, " + nodesPerSecondAfterLoading + " nodes/s after loading");
+            System.out.println("Tagged nodes: " + sink.taggedNodes);
+            System.out.println("Peak heap: " + peakHeap / (1024 * 1024) + " MB, GC: " + gcCount + " collections, " + seconds(gcMillis) + " s");
+            System.out.println(summary
+                    + " generationMillis=" + generationMillis
+                    + " loadMillis=" + loadMillis
+                    + " totalMillis=" + totalMillis
+                    + " processedNodes=" + sink.nodes
+                    + " taggedNodes=" + sink.taggedNodes
+                    + " nodesPerSecond=" + nodesPerSecond
+                    + " nodesPerSecondAfterLoading=" + nodesPerSecondAfterLoading
+                    + " peakHeapMB=" + peakHeap / (1024 * 1024)
+                    + " gcCount=" + gcCount
+                    + " gcMillis=" + gcMillis);
+        } finally {
+            if (deleteCSV) {
+                csvFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Read the options of {@link CSVImportOptions} and remove them from the
+     * map.
+     *
+     * @param arguments The arguments.
+     * @return The options.
+     */
+    private static CSVImportOptions createOptions(Map<String, String> arguments) {
+        CSVImportOptions options = new CSVImportOptions();
+        if (arguments.containsKey("storageEngine")) {
+            options.setStorageEngine(CSVLoader.StorageEngine.valueOf(arguments.remove("storageEngine").toUpperCase()));
+        }
+        if (arguments.containsKey("workers")) {
+            options.setWorkers(Integer.parseInt(arguments.remove("workers")));
+        }
+        if (arguments.containsKey("parseThreads")) {
+            options.setParseThreads(Integer.parseInt(arguments.remove("parseThreads")));
+        }
+        if (arguments.containsKey("preloadCSV")) {
+            options.setPreloadCSV(Boolean.parseBoolean(arguments.remove("preloadCSV")));
+        }
+        if (arguments.containsKey("csvSorted")) {
+            options.setCsvSorted(Boolean.parseBoolean(arguments.remove("csvSorted")));
+        }
+        if (arguments.containsKey("presortCSV")) {
+            options.setPresortCSV(Boolean.parseBoolean(arguments.remove("presortCSV")));
+        }
+        if (arguments.containsKey("negativeLookupFilter")) {
+            options.setNegativeLookupFilter(Boolean.parseBoolean(arguments.remove("negativeLookupFilter")));
+        }
+        return options;
+    }
+
+    private static String remove(Map<String, String> arguments, String key, String defaultValue) {
+        String value = arguments.remove(key);
+        return null == value ? defaultValue : value;
+    }
+
+    private static String join(Map<String, String> arguments) {
+        StringBuilder joined = new StringBuilder();
+        for (Map.Entry<String, String> argument : arguments.entrySet()) {
+            if (joined.length() > 0) {
+                joined.append(' ');
+            }
+            joined.append(argument.getKey()).append('=').append(argument.getValue());
+        }
+        return joined.toString();
+    }
+
+    private static String seconds(long millis) {
+        return String.format("%.1f", millis / 1000.0);
+    }
+
+    /**
+     * @return The sum of the peak usages of the heap pools (the pools peak at
+     * different times, so this is an upper bound).
+     */
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static long getGarbageCollections() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long getGarbageCollectionMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * Counts the nodes leaving the task and the tagged ones among them.
+     */
+    private static final class CountingSink implements Sink {
+
+        private long nodes = 0;
+        private long taggedNodes = 0;
+        private long firstNodeMillis = 0;
+
+        @Override
+        public void initialize(Map<String, Object> metaData) {
+        }
+
+        @Override
+        public void process(EntityContainer entityContainer) {
+            if (0 == this.nodes) {
+                this.firstNodeMillis = System.currentTimeMillis();
+            }
+            this.nodes++;
+            for (Tag tag : entityContainer.getEntity().getTags()) {
+                if (tag.getKey().equals(TAG)) {
+                    this.taggedNodes++;
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public void complete() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
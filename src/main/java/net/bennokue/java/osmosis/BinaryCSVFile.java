@@ -0,0 +1,339 @@
+package net.bennokue.java.osmosis;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A CSV file converted into a compact binary format by
+ * {@link CSVBinaryConverter}, memory-mapped for lookups: Loading it takes next
+ * to no time and heap, since nothing has to be parsed.
+ * <p>
+ * File layout (all numbers little endian): A header ({@link #MAGIC},
+ * {@link #VERSION}, flags, number of lines, number of data columns, bytes per
+ * value reference, {@link #RESTART_INTERVAL}, the offsets of the blocks,
+ * followed by the column names as length and UTF-8 bytes) and these blocks:
+ * <ul><li>The value dictionary: the number of distinct values, their start
+ * offsets and their UTF-8 bytes (see {@link ValueDictionary}).</li>
+ * <li>The restart table: For every {@link #RESTART_INTERVAL} lines, the first
+ * id and where the following ids start at the id block, 8 bytes
+ * each.</li><li>The id block: the sorted, distinct ids (see
+ * {@link EntityKey}), each as varint encoded difference to the id before.
+ * A lookup searches the restart table and decodes at most
+ * {@link #RESTART_INTERVAL} varints.</li><li>The fixed-point latitudes and
+ * longitudes (see {@link FixedPointCoordinates}), 4 bytes each, if the file
+ * has coordinates.</li><li>The value references of each column, 1, 2 or 4
+ * bytes each (the highest value stands for {@code null}).</li></ul></p>
+ * <p>
+ * Every block is mapped on its own, so a file may have up to
+ * {@link #MAX_LINES} lines. Lookups only use absolute reads, so they may run
+ * concurrently.</p>
+ *
+ * @author bennokue
+ */
+final class BinaryCSVFile {
+
+    /**
+     * The first bytes of every binary file ({@code CSVBIN01}).
+     */
+    static final long MAGIC = 0x31304e4942565343L;
+    static final int VERSION = 1;
+    /**
+     * How many ids share a restart table entry?
+     */
+    static final int RESTART_INTERVAL = 64;
+    /**
+     * Every coordinate and reference block has to fit into one mapping.
+     */
+    static final int MAX_LINES = Integer.MAX_VALUE / 4;
+    /**
+     * The size of the header without the column names.
+     */
+    static final int FIXED_HEADER_SIZE = 88;
+    /**
+     * Flag: The file has coordinates.
+     */
+    static final int FLAG_COORDINATES = 1;
+    private final int lines;
+    private final boolean coordinates;
+    private final int referenceBytes;
+    /**
+     * The reference that stands for {@code null}.
+     */
+    private final int nullReference;
+    private final List<String> columnNames;
+    private final int valueCount;
+    private final ByteBuffer dictionary;
+    /**
+     * Where the value bytes start at {@link #dictionary}.
+     */
+    private final int valueBytesStart;
+    private final ByteBuffer restarts;
+    private final int restartCount;
+    private final ByteBuffer ids;
+    private final ByteBuffer latitudes;
+    private final ByteBuffer longitudes;
+    private final ByteBuffer[] data;
+
+    /**
+     * Map a binary file.
+     *
+     * @param file The file.
+     * @throws IOException If the file cannot be read or is no binary import
+     * file.
+     */
+    BinaryCSVFile(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+                FileChannel channel = randomAccessFile.getChannel()) {
+            long size = channel.size();
+            if (size < FIXED_HEADER_SIZE) {
+                throw new IOException(file.getPath() + " is no binary import file");
+            }
+            ByteBuffer header = map(channel, 0, FIXED_HEADER_SIZE);
+            if (header.getLong() != MAGIC) {
+                throw new IOException(file.getPath() + " is no binary import file");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(file.getPath() + " has the unknown version " + version);
+            }
+            int flags = header.getInt();
+            this.lines = header.getInt();
+            int columns = header.getInt();
+            this.referenceBytes = header.getInt();
+            int restartInterval = header.getInt();
+            long dictionaryOffset = header.getLong();
+            long restartOffset = header.getLong();
+            long idOffset = header.getLong();
+            long latitudeOffset = header.getLong();
+            long longitudeOffset = header.getLong();
+            long dataOffset = header.getLong();
+            long idBytes = header.getLong();
+            if (this.lines < 0 || this.lines > MAX_LINES || columns < 0 || restartInterval != RESTART_INTERVAL
+                    || (this.referenceBytes != 1 && this.referenceBytes != 2 && this.referenceBytes != 4)
+                    || idBytes < 0 || idBytes > Integer.MAX_VALUE || dataOffset + (long) columns * this.lines * this.referenceBytes > size) {
+                throw new IOException(file.getPath() + " is broken");
+            }
+            this.coordinates = (flags & FLAG_COORDINATES) != 0;
+            this.nullReference = this.referenceBytes == 4 ? ValueDictionary.NULL_REFERENCE : (1 << 8 * this.referenceBytes) - 1;
+            // Column names
+            ByteBuffer names = map(channel, FIXED_HEADER_SIZE, dictionaryOffset - FIXED_HEADER_SIZE);
+            List<String> columnNames = new ArrayList<>();
+            for (int column = 0; column < columns; column++) {
+                byte[] name = new byte[names.getInt()];
+                names.get(name);
+                columnNames.add(new String(name, StandardCharsets.UTF_8));
+            }
+            this.columnNames = Collections.unmodifiableList(columnNames);
+            // Blocks
+            this.dictionary = map(channel, dictionaryOffset, restartOffset - dictionaryOffset);
+            this.valueCount = this.dictionary.getInt(0);
+            this.valueBytesStart = 4 + 4 * (this.valueCount + 1);
+            this.restartCount = (this.lines + RESTART_INTERVAL - 1) / RESTART_INTERVAL;
+            this.restarts = map(channel, restartOffset, 16L * this.restartCount);
+            this.ids = map(channel, idOffset, idBytes);
+            this.latitudes = this.coordinates ? map(channel, latitudeOffset, 4L * this.lines) : null;
+            this.longitudes = this.coordinates ? map(channel, longitudeOffset, 4L * this.lines) : null;
+            this.data = new ByteBuffer[columns];
+            for (int column = 0; column < columns; column++) {
+                long columnBytes = (long) this.lines * this.referenceBytes;
+                this.data[column] = map(channel, dataOffset + column * columnBytes, columnBytes);
+            }
+        }
+        // The mappings stay valid after closing the channel
+    }
+
+    /**
+     * Is a file a binary import file? Checks the magic bytes only.
+     *
+     * @param file The file.
+     * @return {@code true} if it starts with {@link #MAGIC}.
+     * @throws IOException If the file cannot be read.
+     */
+    static boolean isBinaryFile(File file) throws IOException {
+        byte[] magic = new byte[8];
+        int length = 0;
+        try (InputStream input = new FileInputStream(file)) {
+            int read = input.read(magic);
+            while (read > 0) {
+                length += read;
+                read = length < magic.length ? input.read(magic, length, magic.length - length) : -1;
+            }
+        }
+        return length == magic.length && ByteBuffer.wrap(magic).order(ByteOrder.LITTLE_ENDIAN).getLong() == MAGIC;
+    }
+
+    /**
+     * @return The number of lines (distinct ids).
+     */
+    int size() {
+        return this.lines;
+    }
+
+    /**
+     * @return Does the file have coordinates?
+     */
+    boolean hasCoordinates() {
+        return this.coordinates;
+    }
+
+    /**
+     * @return The names of the data columns (usually the tag keys).
+     */
+    List<String> getColumnNames() {
+        return this.columnNames;
+    }
+
+    /**
+     * @return The number of distinct data values.
+     */
+    int getValueCount() {
+        return this.valueCount;
+    }
+
+    /**
+     * Look up a line.
+     *
+     * @param key The id (see {@link EntityKey}).
+     * @param columns Which columns to return (first = {@code 0}), in this
+     * order.
+     * @return The item or {@code null} if there is no line with this id.
+     */
+    CSVItem get(long key, int[] columns) {
+        int line = this.find(key);
+        if (line < 0) {
+            return null;
+        }
+        String[] itemData = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            itemData[i] = this.value(this.reference(columns[i], line));
+        }
+        if (!this.coordinates) {
+            return new CSVItem(key, Double.NaN, Double.NaN, itemData);
+        }
+        return new CSVItem(key, FixedPointCoordinates.toDouble(this.latitudes.getInt(4 * line)), FixedPointCoordinates.toDouble(this.longitudes.getInt(4 * line)), itemData);
+    }
+
+    /**
+     * Find the line of an id: Search the restart table, then decode the ids
+     * behind the restart entry.
+     *
+     * @param key The id.
+     * @return The line (first = {@code 0}) or {@code -1}.
+     */
+    private int find(long key) {
+        int low = 0;
+        int high = this.restartCount - 1;
+        int restart = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (this.restarts.getLong(16 * middle) <= key) {
+                restart = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (restart < 0) {
+            return -1;
+        }
+        long current = this.restarts.getLong(16 * restart);
+        int position = (int) this.restarts.getLong(16 * restart + 8);
+        int line = restart * RESTART_INTERVAL;
+        int lastLine = Math.min(this.lines, line + RESTART_INTERVAL) - 1;
+        while (current < key && line < lastLine) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = this.ids.get(position++);
+                delta |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            current += delta;
+            line++;
+        }
+        return current == key ? line : -1;
+    }
+
+    /**
+     * Read a value reference.
+     *
+     * @param column The column.
+     * @param line The line.
+     * @return The reference at the dictionary or
+     * {@link ValueDictionary#NULL_REFERENCE}.
+     */
+    private int reference(int column, int line) {
+        int reference;
+        switch (this.referenceBytes) {
+            case 1:
+                reference = this.data[column].get(line) & 0xff;
+                break;
+            case 2:
+                reference = this.data[column].getShort(2 * line) & 0xffff;
+                break;
+            default:
+                reference = this.data[column].getInt(4 * line);
+        }
+        return reference == this.nullReference ? ValueDictionary.NULL_REFERENCE : reference;
+    }
+
+    /**
+     * Decode a value of the dictionary.
+     *
+     * @param reference The reference.
+     * @return The value.
+     */
+    private String value(int reference) {
+        if (reference == ValueDictionary.NULL_REFERENCE) {
+            return null;
+        }
+        int start = this.dictionary.getInt(4 + 4 * reference);
+        byte[] bytes = new byte[this.dictionary.getInt(8 + 4 * reference) - start];
+        ByteBuffer value = this.dictionary.duplicate();
+        value.position(this.valueBytesStart + start);
+        value.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * How many bytes does a value reference need?
+     *
+     * @param valueCount The number of distinct values.
+     * @return {@code 1}, {@code 2} or {@code 4}.
+     */
+    static int referenceBytes(int valueCount) {
+        // The highest value stands for null
+        if (valueCount < 0xff) {
+            return 1;
+        }
+        return valueCount < 0xffff ? 2 : 4;
+    }
+
+    /**
+     * Map a part of a file read-only, little endian.
+     *
+     * @param channel The file.
+     * @param position Where the part starts.
+     * @param length How long it is.
+     * @return The mapped part.
+     * @throws IOException If it cannot be mapped (or does not fit into one
+     * mapping).
+     */
+    private static ByteBuffer map(FileChannel channel, long position, long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE || position < 0 || position + length > channel.size()) {
+            throw new IOException("Block out of range: " + position + " + " + length);
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,443 @@
+package net.bennokue.java.osmosis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Converts a CSV file into the binary format of {@link BinaryCSVFile}, so the
+ * import does not have to parse it again and again. Unsorted files are sorted
+ * with {@link CSVExternalSorter} first. The file is read twice: The first pass
+ * collects the values into a {@link ValueDictionary} and measures the blocks,
+ * the second pass writes them. If an id occurs several times, the last line
+ * wins, like at the import.
+ *
+ * @author bennokue
+ */
+public class CSVBinaryConverter {
+
+    private static final Logger logger = Logger.getLogger(CSVBinaryConverter.class.getName());
+    /**
+     * The size of the write buffer of each block.
+     */
+    private static final int BLOCK_BUFFER_SIZE = 64 * 1024;
+    /**
+     * The CSV file to convert.
+     */
+    private final File inputFile;
+    private final int osmIdPos;
+    private final boolean coordinates;
+    /**
+     * The names of the data columns, written to the header.
+     */
+    private final List<String> columnNames;
+    private final CSVLineParser parser;
+    private final boolean csvSorted;
+    private final boolean headerRow;
+    private final long sortMemoryBudget;
+    private final char delimiter;
+    /**
+     * Collects the data values.
+     */
+    private final ValueDictionary dictionary = new ValueDictionary();
+    /**
+     * Statistics.
+     */
+    private long linesRead = 0, linesWritten = 0;
+
+    /**
+     * Standard constructor.
+     *
+     * @param inputFile The CSV file to convert.
+     * @param osmIdPos At this position in each line we look for the OSM id
+     * (first element in a line has position {@code 1}).
+     * @param osmLatPos At this position in each line we look for the latitude,
+     * or {@code -1} to convert no coordinates.
+     * @param osmLonPos At this position in each line we look for the
+     * longitude, or {@code -1} to convert no coordinates.
+     * @param tagDataPositions The positions of the data columns to convert.
+     * @param columnNames The names of the data columns (usually the tag keys),
+     * same order as {@code tagDataPositions}.
+     * @param options Used: {@link CSVImportOptions#getDelimiter()},
+     * {@link CSVImportOptions#isHeaderRow()},
+     * {@link CSVImportOptions#isCsvSorted()} and
+     * {@link CSVImportOptions#getSortMemoryMB()}.
+     */
+    public CSVBinaryConverter(File inputFile, int osmIdPos, int osmLatPos, int osmLonPos, int[] tagDataPositions, List<String> columnNames, CSVImportOptions options) {
+        if (osmIdPos <= 0) {
+            throw new IllegalArgumentException("Please provide an idPos greater than 0");
+        }
+        if (tagDataPositions.length != columnNames.size()) {
+            throw new IllegalArgumentException("Please provide a name for every column");
+        }
+        if ((osmLatPos > 0) != (osmLonPos > 0)) {
+            throw new IllegalArgumentException("Please provide both latPos and lonPos or none of them");
+        }
+        this.inputFile = inputFile;
+        this.osmIdPos = osmIdPos;
+        this.coordinates = osmLatPos > 0;
+        this.columnNames = new ArrayList<>(columnNames);
+        this.delimiter = options.getDelimiter();
+        this.parser = new CSVLineParser(osmIdPos, osmLatPos, osmLonPos, tagDataPositions, this.delimiter, Charset.defaultCharset());
+        this.csvSorted = options.isCsvSorted();
+        this.headerRow = options.isHeaderRow();
+        this.sortMemoryBudget = options.getSortMemoryMB() * 1024L * 1024L;
+    }
+
+    /**
+     * Convert the file. The output is written to a temporary file first and
+     * then moved into place, so no other process will see a half-written
+     * file.
+     *
+     * @param outputFile Where to write the binary file.
+     * @throws IOException If anything goes wrong, or if the input is said to
+     * be sorted but is not.
+     */
+    public void convert(File outputFile) throws IOException {
+        File directory = outputFile.getAbsoluteFile().getParentFile();
+        String headerIdField = this.headerRow ? TagColumnMapping.readHeader(this.inputFile, this.delimiter).get(this.osmIdPos - 1) : null;
+        this.parser.setHeaderIdField(headerIdField);
+        File sortedFile = this.inputFile;
+        File temporaryFile = File.createTempFile(outputFile.getName(), ".tmp", directory);
+        try {
+            if (!this.csvSorted) {
+                sortedFile = File.createTempFile(outputFile.getName(), ".sorted.csv", directory);
+                logger.log(Level.INFO, "Sorting {0}", this.inputFile.getPath());
+                CSVExternalSorter sorter = new CSVExternalSorter(this.inputFile, this.osmIdPos, this.delimiter, this.sortMemoryBudget, directory);
+                sorter.setHeaderIdField(headerIdField);
+                sorter.sort(sortedFile);
+            }
+            Layout layout = this.measure(sortedFile);
+            logger.log(Level.FINER, "{0} distinct ids, {1} distinct values", new Object[]{layout.lines, this.dictionary.size()});
+            this.write(sortedFile, layout, temporaryFile);
+            Files.move(temporaryFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile.toPath());
+            if (sortedFile != this.inputFile) {
+                Files.deleteIfExists(sortedFile.toPath());
+            }
+        }
+    }
+
+    /**
+     * @return How many lines have been read (at the first pass)?
+     */
+    public long getLinesRead() {
+        return this.linesRead;
+    }
+
+    /**
+     * @return How many distinct ids have been written?
+     */
+    public long getLinesWritten() {
+        return this.linesWritten;
+    }
+
+    /**
+     * The first pass: Collect the values, check the order and work out where
+     * the blocks go.
+     *
+     * @param sortedFile The sorted CSV file.
+     * @return The layout.
+     * @throws IOException If the file cannot be read, is not sorted or is too
+     * big.
+     */
+    private Layout measure(File sortedFile) throws IOException {
+        Layout layout = new Layout();
+        long previousKey = 0;
+        long lineNumber = 0;
+        try (CSVLineReader reader = new CSVLineReader(CompressedInput.open(sortedFile))) {
+            while (reader.next()) {
+                lineNumber++;
+                if (!this.parser.parse(reader.buffer(), reader.lineStart(), reader.lineEnd(), lineNumber)) {
+                    continue;
+                }
+                this.linesRead++;
+                long key = this.parser.getOsmId();
+                if (layout.lines > 0 && key < previousKey) {
+                    throw new IOException("The CSV file is not sorted by id (line " + lineNumber + "), convert it without csvSorted");
+                }
+                for (int column = 0; column < this.parser.getDataColumnCount(); column++) {
+                    this.parser.addData(column, this.dictionary);
+                }
+                if (layout.lines > 0 && key == previousKey) {
+                    // The last line wins, it takes the place of this one
+                    continue;
+                }
+                if (layout.lines % BinaryCSVFile.RESTART_INTERVAL != 0) {
+                    layout.idBytes += varLongSize(key - previousKey);
+                }
+                layout.lines++;
+                previousKey = key;
+            }
+        }
+        if (layout.lines > BinaryCSVFile.MAX_LINES || layout.idBytes > Integer.MAX_VALUE) {
+            throw new IOException("Too many lines for a binary file: " + layout.lines);
+        }
+        // Work out the blocks
+        layout.referenceBytes = BinaryCSVFile.referenceBytes(this.dictionary.size());
+        long position = BinaryCSVFile.FIXED_HEADER_SIZE;
+        for (String name : this.columnNames) {
+            position += 4 + name.getBytes(StandardCharsets.UTF_8).length;
+        }
+        layout.dictionaryOffset = position;
+        long valueBytes = 0;
+        for (int reference = 0; reference < this.dictionary.size(); reference++) {
+            valueBytes += this.dictionary.get(reference).getBytes(StandardCharsets.UTF_8).length;
+        }
+        if (valueBytes > Integer.MAX_VALUE - 4L * (this.dictionary.size() + 2)) {
+            throw new IOException("Too many distinct values for a binary file");
+        }
+        layout.restartOffset = layout.dictionaryOffset + 4 + 4L * (this.dictionary.size() + 1) + valueBytes;
+        long restarts = (layout.lines + BinaryCSVFile.RESTART_INTERVAL - 1) / BinaryCSVFile.RESTART_INTERVAL;
+        layout.idOffset = layout.restartOffset + 16 * restarts;
+        layout.latitudeOffset = layout.idOffset + layout.idBytes;
+        layout.longitudeOffset = layout.latitudeOffset + (this.coordinates ? 4L * layout.lines : 0);
+        layout.dataOffset = layout.longitudeOffset + (this.coordinates ? 4L * layout.lines : 0);
+        return layout;
+    }
+
+    /**
+     * The second pass: Write the file.
+     *
+     * @param sortedFile The sorted CSV file.
+     * @param layout The layout from the first pass.
+     * @param outputFile Where to write.
+     * @throws IOException If anything goes wrong.
+     */
+    private void write(File sortedFile, Layout layout, File outputFile) throws IOException {
+        int columns = this.columnNames.size();
+        int nullReference = layout.referenceBytes == 4 ? ValueDictionary.NULL_REFERENCE : (1 << 8 * layout.referenceBytes) - 1;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(outputFile, "rw");
+                FileChannel channel = randomAccessFile.getChannel()) {
+            randomAccessFile.setLength(0);
+            // Header
+            BlockWriter header = new BlockWriter(channel, 0);
+            header.putLong(BinaryCSVFile.MAGIC);
+            header.putInt(BinaryCSVFile.VERSION);
+            header.putInt(this.coordinates ? BinaryCSVFile.FLAG_COORDINATES : 0);
+            header.putInt((int) layout.lines);
+            header.putInt(columns);
+            header.putInt(layout.referenceBytes);
+            header.putInt(BinaryCSVFile.RESTART_INTERVAL);
+            header.putLong(layout.dictionaryOffset);
+            header.putLong(layout.restartOffset);
+            header.putLong(layout.idOffset);
+            header.putLong(layout.latitudeOffset);
+            header.putLong(layout.longitudeOffset);
+            header.putLong(layout.dataOffset);
+            header.putLong(layout.idBytes);
+            for (String name : this.columnNames) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                header.putInt(bytes.length);
+                header.put(bytes);
+            }
+            header.flush();
+            // Dictionary
+            BlockWriter dictionaryWriter = new BlockWriter(channel, layout.dictionaryOffset);
+            dictionaryWriter.putInt(this.dictionary.size());
+            int valueStart = 0;
+            dictionaryWriter.putInt(valueStart);
+            for (int reference = 0; reference < this.dictionary.size(); reference++) {
+                valueStart += this.dictionary.get(reference).getBytes(StandardCharsets.UTF_8).length;
+                dictionaryWriter.putInt(valueStart);
+            }
+            for (int reference = 0; reference < this.dictionary.size(); reference++) {
+                dictionaryWriter.put(this.dictionary.get(reference).getBytes(StandardCharsets.UTF_8));
+            }
+            dictionaryWriter.flush();
+            // Lines
+            BlockWriter restartWriter = new BlockWriter(channel, layout.restartOffset);
+            BlockWriter idWriter = new BlockWriter(channel, layout.idOffset);
+            BlockWriter latitudeWriter = new BlockWriter(channel, layout.latitudeOffset);
+            BlockWriter longitudeWriter = new BlockWriter(channel, layout.longitudeOffset);
+            BlockWriter[] dataWriters = new BlockWriter[columns];
+            for (int column = 0; column < columns; column++) {
+                dataWriters[column] = new BlockWriter(channel, layout.dataOffset + (long) column * layout.lines * layout.referenceBytes);
+            }
+            long previousKey = 0;
+            int line = 0;
+            // The line that is written as soon as the next id comes up
+            long pendingKey = 0;
+            int pendingLatitude = 0;
+            int pendingLongitude = 0;
+            String[] pendingData = null;
+            long lineNumber = 0;
+            try (CSVLineReader reader = new CSVLineReader(CompressedInput.open(sortedFile))) {
+                boolean more = true;
+                while (more) {
+                    more = reader.next();
+                    long key = 0;
+                    if (more) {
+                        lineNumber++;
+                        if (!this.parser.parse(reader.buffer(), reader.lineStart(), reader.lineEnd(), lineNumber)) {
+                            continue;
+                        }
+                        key = this.parser.getOsmId();
+                    }
+                    if (null != pendingData && (!more || key != pendingKey)) {
+                        if (line % BinaryCSVFile.RESTART_INTERVAL == 0) {
+                            restartWriter.putLong(pendingKey);
+                            restartWriter.putLong(idWriter.getPosition() - layout.idOffset);
+                        } else {
+                            idWriter.putVarLong(pendingKey - previousKey);
+                        }
+                        if (this.coordinates) {
+                            latitudeWriter.putInt(pendingLatitude);
+                            longitudeWriter.putInt(pendingLongitude);
+                        }
+                        for (int column = 0; column < columns; column++) {
+                            String value = pendingData[column];
+                            int reference = null == value ? nullReference : this.dictionary.add(value);
+                            dataWriters[column].putReference(reference, layout.referenceBytes);
+                        }
+                        previousKey = pendingKey;
+                        line++;
+                    }
+                    if (more) {
+                        pendingKey = key;
+                        pendingLatitude = this.parser.getFixedLatitude();
+                        pendingLongitude = this.parser.getFixedLongitude();
+                        pendingData = this.parser.getDataColumns();
+                    }
+                }
+            }
+            if (line != layout.lines) {
+                throw new IOException(sortedFile.getPath() + " changed while converting it");
+            }
+            this.linesWritten = line;
+            restartWriter.flush();
+            idWriter.flush();
+            latitudeWriter.flush();
+            longitudeWriter.flush();
+            for (BlockWriter dataWriter : dataWriters) {
+                dataWriter.flush();
+            }
+        }
+    }
+
+    /**
+     * How many bytes does a varint need?
+     *
+     * @param value The value (not negative).
+     * @return The number of bytes.
+     */
+    private static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Where the blocks go, worked out by the first pass.
+     */
+    private static class Layout {
+
+        long lines = 0;
+        long idBytes = 0;
+        int referenceBytes;
+        long dictionaryOffset;
+        long restartOffset;
+        long idOffset;
+        long latitudeOffset;
+        long longitudeOffset;
+        long dataOffset;
+    }
+
+    /**
+     * Writes a block of the file through its own buffer, so all blocks can be
+     * written in one pass.
+     */
+    private static class BlockWriter {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BLOCK_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        /**
+         * Where the buffer goes at the file.
+         */
+        private long position;
+
+        BlockWriter(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        /**
+         * @return The file position of the next byte.
+         */
+        long getPosition() {
+            return this.position + this.buffer.position();
+        }
+
+        void putInt(int value) throws IOException {
+            this.ensureRemaining(4);
+            this.buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            this.ensureRemaining(8);
+            this.buffer.putLong(value);
+        }
+
+        void putVarLong(long value) throws IOException {
+            this.ensureRemaining(10);
+            while ((value & ~0x7fL) != 0) {
+                this.buffer.put((byte) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            this.buffer.put((byte) value);
+        }
+
+        void putReference(int reference, int referenceBytes) throws IOException {
+            this.ensureRemaining(4);
+            switch (referenceBytes) {
+                case 1:
+                    this.buffer.put((byte) reference);
+                    break;
+                case 2:
+                    this.buffer.putShort((short) reference);
+                    break;
+                default:
+                    this.buffer.putInt(reference);
+            }
+        }
+
+        void put(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                this.ensureRemaining(1);
+                int length = Math.min(bytes.length - offset, this.buffer.remaining());
+                this.buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        private void ensureRemaining(int bytes) throws IOException {
+            if (this.buffer.remaining() < bytes) {
+                this.flush();
+            }
+        }
+
+        void flush() throws IOException {
+            this.buffer.flip();
+            while (this.buffer.hasRemaining()) {
+                this.position += this.channel.write(this.buffer, this.position);
+            }
+            this.buffer.clear();
+        }
+    }
+}
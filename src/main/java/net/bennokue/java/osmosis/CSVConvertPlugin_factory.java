@@ -0,0 +1,66 @@
+package net.bennokue.java.osmosis;
+
+import org.openstreetmap.osmosis.core.pipeline.common.RunnableTaskManager;
+import org.openstreetmap.osmosis.core.pipeline.common.TaskConfiguration;
+import org.openstreetmap.osmosis.core.pipeline.common.TaskManager;
+import org.openstreetmap.osmosis.core.pipeline.common.TaskManagerFactory;
+import org.openstreetmap.osmosis.core.task.common.RunnableTask;
+
+/**
+ * Factory class for the CSV convert task, see {@link CSVConvertPlugin_task}.
+ *
+ * @author bennokue
+ */
+public class CSVConvertPlugin_factory extends TaskManagerFactory {
+
+    /*
+     * ARG_ variables store the argument name, DEFAULT_ variables the default
+     * value.
+     */
+    private static final String ARG_INPUT_CSV = "inputCSV";
+    private static final String DEFAULT_INPUT_CSV = "";
+    private static final String ARG_OUTPUT_FILE = "outputFile";
+    private static final String DEFAULT_OUTPUT_FILE = "";
+    private static final String ARG_ID_POSITION = "idPos";
+    private static final int DEFAULT_ID_POSITION = -1;
+    private static final String ARG_LATITUDE_POSITION = "latPos";
+    private static final int DEFAULT_LATITUDE_POSITION = -1;
+    private static final String ARG_LONGITUDE_POSITION = "lonPos";
+    private static final int DEFAULT_LONGITUDE_POSITION = -1;
+    private static final String ARG_DATA_POSITION = "tagDataPos";
+    private static final int DEFAULT_DATA_POSITION = -1;
+    private static final String ARG_OUTPUT_TAG = "outputTag";
+    private static final String DEFAULT_OUTPUT_TAG = "";
+    private static final String ARG_TAG_MAPPINGS = "tagMappings";
+    private static final String DEFAULT_TAG_MAPPINGS = "";
+    private static final String ARG_HEADER_ROW = "headerRow";
+    private static final boolean DEFAULT_HEADER_ROW = false;
+    private static final String ARG_DELIMITER = "delimiter";
+    private static final String DEFAULT_DELIMITER = "comma";
+    private static final String ARG_CSV_SORTED = "csvSorted";
+    private static final boolean DEFAULT_CSV_SORTED = false;
+    private static final String ARG_SORT_MEMORY = "sortMemoryMB";
+    private static final int DEFAULT_SORT_MEMORY = CSVImportOptions.DEFAULT_SORT_MEMORY_MB;
+
+    @Override
+    protected TaskManager createTaskManagerImpl(TaskConfiguration taskConfig) {
+        // Get command line arguments
+        String inputCSV = getStringArgument(taskConfig, ARG_INPUT_CSV, DEFAULT_INPUT_CSV);
+        String outputFile = getStringArgument(taskConfig, ARG_OUTPUT_FILE, DEFAULT_OUTPUT_FILE);
+        int idPosition = getIntegerArgument(taskConfig, ARG_ID_POSITION, DEFAULT_ID_POSITION);
+        int latPosition = getIntegerArgument(taskConfig, ARG_LATITUDE_POSITION, DEFAULT_LATITUDE_POSITION);
+        int lonPosition = getIntegerArgument(taskConfig, ARG_LONGITUDE_POSITION, DEFAULT_LONGITUDE_POSITION);
+        int dataPosition = getIntegerArgument(taskConfig, ARG_DATA_POSITION, DEFAULT_DATA_POSITION);
+        String outputTag = getStringArgument(taskConfig, ARG_OUTPUT_TAG, DEFAULT_OUTPUT_TAG);
+        CSVImportOptions options = new CSVImportOptions()
+                .setTagMappings(getStringArgument(taskConfig, ARG_TAG_MAPPINGS, DEFAULT_TAG_MAPPINGS))
+                .setHeaderRow(getBooleanArgument(taskConfig, ARG_HEADER_ROW, DEFAULT_HEADER_ROW))
+                .setDelimiter(CSVImportOptions.parseDelimiter(getStringArgument(taskConfig, ARG_DELIMITER, DEFAULT_DELIMITER)))
+                .setCsvSorted(getBooleanArgument(taskConfig, ARG_CSV_SORTED, DEFAULT_CSV_SORTED))
+                .setSortMemoryMB(getIntegerArgument(taskConfig, ARG_SORT_MEMORY, DEFAULT_SORT_MEMORY));
+
+        // Create the task
+        RunnableTask task = new CSVConvertPlugin_task(inputCSV, outputFile, idPosition, latPosition, lonPosition, dataPosition, outputTag, options);
+        return new RunnableTaskManager(taskConfig.getId(), task, taskConfig.getPipeArgs());
+    }
+}
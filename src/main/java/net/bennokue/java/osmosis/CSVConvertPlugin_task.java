@@ -0,0 +1,121 @@
+package net.bennokue.java.osmosis;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.task.common.RunnableTask;
+
+/**
+ * Converts a CSV file into a compact binary file (see {@link BinaryCSVFile}),
+ * which can be given to {@link CSVImportPlugin_task} as {@code inputCSV}
+ * instead of the CSV file: It is memory-mapped, so there is nothing to parse
+ * or to cache. Uses {@link CSVBinaryConverter}. Parameters:<ul><li>{@code inputCSV}:
+ * The path to the CSV file to convert.</li><li>{@code outputFile}: Where to
+ * write the binary file.</li><li>{@code idPos}: The position of the OSM id in
+ * each line (first field = {@code 1}).</li><li>{@code latPos},
+ * {@code lonPos}: The positions of the coordinates, needed if the import uses
+ * {@code maxDist}. <em>Default to no coordinates</em>.</li><li>{@code tagDataPos},
+ * {@code outputTag}, {@code tagMappings}, {@code headerRow}: Which columns to
+ * convert and how to name them, like at {@link CSVImportPlugin_task}. The
+ * names are stored at the binary file, so the import may refer to the columns
+ * by name (or by their position at the binary file) and imports all of them
+ * by default.</li><li>{@code delimiter}: The field delimiter, see
+ * {@link CSVImportOptions#parseDelimiter(java.lang.String)}. <em>Defaults to
+ * {@code comma}</em>.</li><li>{@code csvSorted}: Set this to {@code true} if
+ * the CSV file is sorted by id already; otherwise it is sorted into a
+ * temporary file first (see {@link CSVExternalSorter}). <em>Defaults to
+ * {@code false}</em>.</li><li>{@code sortMemoryMB}: How many megabytes may be
+ * used to sort the CSV file. <em>Defaults to
+ * {@value CSVImportOptions#DEFAULT_SORT_MEMORY_MB}</em>.</li></ul>Note: Empty
+ * lines, lines starting with a semicolon and lines without an id will be
+ * dropped. If an id occurs several times, the last line wins.
+ *
+ * @author bennokue
+ */
+public class CSVConvertPlugin_task implements RunnableTask {
+
+    private static final Logger logger = Logger.getLogger(CSVConvertPlugin_task.class.getName());
+    /**
+     * The file to convert.
+     */
+    private final File inputCSV;
+    /**
+     * The binary file.
+     */
+    private final File outputFile;
+    /**
+     * Does the conversion.
+     */
+    private final CSVBinaryConverter converter;
+
+    /**
+     * Standard constructor with some sanity checks.
+     *
+     * @param inputCSV The input CSV file.
+     * @param outputFile The binary output file.
+     * @param osmIdPos The CSV line position of the OSM id (first field =
+     * {@code 1}).
+     * @param osmLatPos The CSV line position of the latitude or {@code -1}.
+     * @param osmLonPos The CSV line position of the longitude or {@code -1}.
+     * @param dataPos The CSV line position of the tag data or {@code -1}.
+     * @param outputTagName The name of the tag data column.
+     * @param options Used: The delimiter, header row, tag mappings, sorted
+     * flag and sort memory, see {@link CSVImportOptions}.
+     */
+    public CSVConvertPlugin_task(String inputCSV, String outputFile, int osmIdPos, int osmLatPos, int osmLonPos, int dataPos, String outputTagName, CSVImportOptions options) {
+        if (inputCSV.equals("")) {
+            throw new IllegalArgumentException("You have to provide an input file!");
+        }
+        if (outputFile.equals("")) {
+            throw new IllegalArgumentException("You have to provide an output file!");
+        }
+        this.inputCSV = new File(inputCSV);
+        this.outputFile = new File(outputFile);
+        if (!this.inputCSV.isFile() || !this.inputCSV.canRead()) {
+            throw new IllegalArgumentException(this.inputCSV.getPath() + " is not a file or not readable!");
+        }
+        if (this.inputCSV.getAbsoluteFile().equals(this.outputFile.getAbsoluteFile())) {
+            throw new IllegalArgumentException("The output file must not be the input file");
+        }
+        if (osmIdPos <= 0) {
+            throw new IllegalArgumentException("Please provide an idPos greater than 0");
+        }
+        List<String> header = null;
+        if (options.isHeaderRow()) {
+            try {
+                header = TagColumnMapping.readHeader(this.inputCSV, options.getDelimiter());
+            } catch (IOException ex) {
+                throw new IllegalArgumentException("Cannot read the header row of " + this.inputCSV.getPath(), ex);
+            }
+        } else if (options.getTagMappings().trim().equals("") && dataPos <= 0) {
+            throw new IllegalArgumentException("Please provide a tagDataPos greater than 0");
+        }
+        if (dataPos > 0 && outputTagName.equals("")) {
+            throw new IllegalArgumentException("Please provide an outputTag");
+        }
+        TagColumnMapping tagColumns = TagColumnMapping.resolve(dataPos, outputTagName, options.getTagMappings(), header, osmIdPos, osmLatPos, osmLonPos);
+        if (tagColumns.size() == 0) {
+            throw new IllegalArgumentException("Please provide a tagDataPos or tagMappings");
+        }
+        List<String> columnNames = new ArrayList<>();
+        for (int column = 0; column < tagColumns.size(); column++) {
+            columnNames.add(tagColumns.getTagKey(column));
+        }
+        this.converter = new CSVBinaryConverter(this.inputCSV, osmIdPos, osmLatPos, osmLonPos, tagColumns.getPositions(), columnNames, options);
+    }
+
+    @Override
+    public void run() {
+        logger.log(Level.INFO, "Converting {0} into {1}", new Object[]{this.inputCSV.getPath(), this.outputFile.getPath()});
+        try {
+            this.converter.convert(this.outputFile);
+        } catch (IOException e) {
+            throw new OsmosisRuntimeException("Could not convert " + this.inputCSV.getPath(), e);
+        }
+        logger.log(Level.INFO, "Converted {0} lines into {1} distinct ids", new Object[]{this.converter.getLinesRead(), this.converter.getLinesWritten()});
+    }
+}
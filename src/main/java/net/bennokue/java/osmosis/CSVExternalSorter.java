@@ -0,0 +1,535 @@
+package net.bennokue.java.osmosis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sorts a CSV file by OSM id with bounded memory (external merge sort): The
+ * lines are collected until the memory budget is used up, sorted by id and
+ * written to a temporary file (a "run") in a compact binary format. At the
+ * end, the runs are merged into the sorted output file. At most
+ * {@value #MAX_FAN_IN} runs are read at once (fewer with a small budget), so
+ * if there are more, groups of them are merged into longer runs first. The
+ * result can be imported with {@link CSVLoader.StorageEngine#MERGE_JOIN}.
+ * <p>
+ * Empty lines, lines starting with {@code ;} and lines without a valid id are
+ * dropped, since the import would ignore them anyway. Lines with the same id
+ * keep their order. The input file may be compressed (see
+ * {@link CompressedInput}).</p>
+ *
+ * @author bennokue
+ */
+public class CSVExternalSorter {
+
+    private static final Logger logger = Logger.getLogger(CSVExternalSorter.class.getName());
+    /**
+     * Memory needed per line when the run is sorted, in addition to the
+     * buffers of {@link RunBuffer}: the sort permutation and the buffers of
+     * {@link LongIdSort#parallelSort(long[], int[], int)}.
+     */
+    private static final int SORT_BYTES_PER_LINE = 4 + 8 + 4;
+    /**
+     * The size of the read and write buffers of the runs.
+     */
+    private static final int RUN_BUFFER_SIZE = 1 << 16;
+    /**
+     * How many runs are merged at once at most?
+     */
+    static final int MAX_FAN_IN = 64;
+    /**
+     * The CSV file to sort.
+     */
+    private final File inputFile;
+    /**
+     * Reads the ids of the lines.
+     */
+    private final CSVLineParser parser;
+    /**
+     * How much memory may the line buffer use?
+     */
+    private final long memoryBudget;
+    /**
+     * Where to put the runs, {@code null} for the system default.
+     */
+    private final File temporaryDirectory;
+    /**
+     * How many runs are merged at once?
+     */
+    private final int fanIn;
+    /**
+     * Statistics.
+     */
+    private long linesSorted = 0, runsWritten = 0, mergePasses = 0;
+
+    /**
+     * Constructor for comma separated files.
+     *
+     * @param inputFile The CSV file to sort.
+     * @param osmIdPos At this position in each line we look for the OSM id
+     * (first element in a line has position {@code 1}).
+     * @param memoryBudget How many bytes may be used to buffer lines?
+     * @param temporaryDirectory Where to put the temporary files,
+     * {@code null} for the system default.
+     */
+    public CSVExternalSorter(File inputFile, int osmIdPos, long memoryBudget, File temporaryDirectory) {
+        this(inputFile, osmIdPos, CSVLineParser.DEFAULT_DELIMITER, memoryBudget, temporaryDirectory);
+    }
+
+    /**
+     * Standard constructor.
+     *
+     * @param inputFile The CSV file to sort.
+     * @param osmIdPos At this position in each line we look for the OSM id
+     * (first element in a line has position {@code 1}).
+     * @param delimiter The field delimiter, see
+     * {@link CSVImportOptions#setDelimiter(char)}.
+     * @param memoryBudget How many bytes may be used to buffer lines?
+     * @param temporaryDirectory Where to put the temporary files,
+     * {@code null} for the system default.
+     */
+    public CSVExternalSorter(File inputFile, int osmIdPos, char delimiter, long memoryBudget, File temporaryDirectory) {
+        if (osmIdPos <= 0) {
+            throw new IllegalArgumentException("Please provide an idPos greater than 0");
+        }
+        if (memoryBudget <= 0) {
+            throw new IllegalArgumentException("Please provide a memory budget greater than 0");
+        }
+        this.inputFile = inputFile;
+        this.parser = new CSVLineParser(osmIdPos, -1, -1, -1, delimiter, Charset.defaultCharset());
+        this.memoryBudget = memoryBudget;
+        this.temporaryDirectory = temporaryDirectory;
+        // Each run being merged needs its read buffer
+        this.fanIn = (int) Math.max(2, Math.min(MAX_FAN_IN, memoryBudget / RUN_BUFFER_SIZE));
+    }
+
+    /**
+     * Drop the header row silently instead of reporting it as mal-formed.
+     *
+     * @param headerIdField The name of the id column at the header, or
+     * {@code null} if there is no header.
+     */
+    void setHeaderIdField(String headerIdField) {
+        this.parser.setHeaderIdField(headerIdField);
+    }
+
+    /**
+     * Sort the input file.
+     *
+     * @param outputFile Where to write the sorted lines.
+     * @throws IOException If anything goes wrong.
+     */
+    public void sort(File outputFile) throws IOException {
+        logger.log(Level.FINER, "Sorting {0}", this.inputFile.getPath());
+        List<File> runs = new ArrayList<>();
+        try {
+            RunBuffer buffer = new RunBuffer(this.memoryBudget);
+            try (CSVLineReader reader = new CSVLineReader(CompressedInput.open(this.inputFile))) {
+                long lineNumber = 1;
+                while (reader.next()) {
+                    int start = reader.lineStart();
+                    int length = reader.lineEnd() - start;
+                    if (this.parser.parse(reader.buffer(), start, reader.lineEnd(), lineNumber)) {
+                        if (!buffer.add(this.parser.getOsmId(), reader.buffer(), start, length)) {
+                            runs.add(this.writeRun(buffer));
+                            buffer = new RunBuffer(this.memoryBudget);
+                            buffer.add(this.parser.getOsmId(), reader.buffer(), start, length);
+                        }
+                        this.linesSorted++;
+                    }
+                    lineNumber++;
+                }
+            }
+            if (runs.isEmpty()) {
+                // Everything fits into memory
+                try (OutputStream output = new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16)) {
+                    buffer.writeSorted(output);
+                }
+            } else {
+                if (!buffer.isEmpty()) {
+                    runs.add(this.writeRun(buffer));
+                }
+                buffer = null;
+                while (runs.size() > this.fanIn) {
+                    this.mergePass(runs);
+                }
+                try (OutputStream output = new BufferedOutputStream(new FileOutputStream(outputFile), RUN_BUFFER_SIZE)) {
+                    this.merge(runs, output, null);
+                }
+            }
+        } finally {
+            for (File run : runs) {
+                if (!run.delete()) {
+                    logger.log(Level.WARNING, "Could not delete {0}", run.getPath());
+                }
+            }
+        }
+        logger.log(Level.FINER, "Sorted {0} lines using {1} runs and {2} merge passes", new Object[]{this.linesSorted, this.runsWritten, this.mergePasses});
+    }
+
+    /**
+     * @return How many lines have been sorted?
+     */
+    public long getLinesSorted() {
+        return this.linesSorted;
+    }
+
+    /**
+     * @return How many runs have been written to temporary files?
+     */
+    public long getRunsWritten() {
+        return this.runsWritten;
+    }
+
+    /**
+     * @return How many times have groups of runs been merged into longer runs
+     * (not counting the final merge)?
+     */
+    public long getMergePasses() {
+        return this.mergePasses;
+    }
+
+    /**
+     * Sort the buffer and write it to a temporary file. Format per line: the
+     * id as zig-zag varint delta to the previous id, the length of the line as
+     * varint and the bytes of the line.
+     *
+     * @param buffer The lines.
+     * @return The temporary file.
+     * @throws IOException If writing fails.
+     */
+    private File writeRun(RunBuffer buffer) throws IOException {
+        File run = File.createTempFile("csvsort", ".run", this.temporaryDirectory);
+        run.deleteOnExit();
+        logger.log(Level.FINER, "Writing run {0} ({1} lines)", new Object[]{run.getPath(), buffer.size});
+        int[] order = buffer.sort();
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER_SIZE))) {
+            RunWriter writer = new RunWriter(output);
+            for (int i = 0; i < buffer.size; i++) {
+                int line = order[i];
+                int start = buffer.lineStarts[line];
+                writer.write(buffer.ids[i], buffer.bytes, start, buffer.lineStarts[line + 1] - start);
+            }
+        }
+        this.runsWritten++;
+        return run;
+    }
+
+    /**
+     * Merge groups of {@link #fanIn} consecutive runs into one run each (so
+     * lines with the same id keep their order) and delete them.
+     *
+     * @param runs The runs, in input order. The merged runs are replaced by
+     * the new ones.
+     * @throws IOException If anything goes wrong.
+     */
+    private void mergePass(List<File> runs) throws IOException {
+        logger.log(Level.FINER, "Merging {0} runs in groups of {1}", new Object[]{runs.size(), this.fanIn});
+        for (int first = 0; first < runs.size(); first++) {
+            List<File> group = runs.subList(first, Math.min(first + this.fanIn, runs.size()));
+            if (group.size() == 1) {
+                break;
+            }
+            File run = File.createTempFile("csvsort", ".run", this.temporaryDirectory);
+            run.deleteOnExit();
+            try {
+                try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER_SIZE))) {
+                    this.merge(group, output, new RunWriter(output));
+                }
+            } catch (IOException | RuntimeException e) {
+                run.delete();
+                throw e;
+            }
+            for (File merged : group) {
+                if (!merged.delete()) {
+                    logger.log(Level.WARNING, "Could not delete {0}", merged.getPath());
+                }
+            }
+            group.clear();
+            runs.add(first, run);
+        }
+        this.mergePasses++;
+    }
+
+    /**
+     * Merge runs.
+     *
+     * @param runs The runs, in input order.
+     * @param output Where to write the lines as text (if {@code writer} is
+     * {@code null}).
+     * @param writer Writes the lines as a run, or {@code null}.
+     * @throws IOException If anything goes wrong.
+     */
+    private void merge(List<File> runs, OutputStream output, RunWriter writer) throws IOException {
+        logger.log(Level.FINER, "Merging {0} runs", runs.size());
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(runs.size());
+        List<RunReader> readers = new ArrayList<>(runs.size());
+        try {
+            for (int i = 0; i < runs.size(); i++) {
+                RunReader reader = new RunReader(runs.get(i), i);
+                readers.add(reader);
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                if (null == writer) {
+                    output.write(reader.line, 0, reader.lineLength);
+                    output.write('\n');
+                } else {
+                    writer.write(reader.id, reader.line, 0, reader.lineLength);
+                }
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Write an unsigned varint (7 bits per byte).
+     *
+     * @param output Where to write.
+     * @param value The value (treated as unsigned).
+     * @throws IOException If writing fails.
+     */
+    private static void writeVarLong(DataOutputStream output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+    /**
+     * Read an unsigned varint, see
+     * {@link #writeVarLong(java.io.DataOutputStream, long)}.
+     *
+     * @param input Where to read.
+     * @return The value.
+     * @throws IOException If reading fails.
+     * @throws EOFException If the input is at its end before the first byte.
+     */
+    private static long readVarLong(DataInputStream input) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b = input.readUnsignedByte();
+        while ((b & 0x80) != 0) {
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+            b = input.readUnsignedByte();
+        }
+        return value | (long) b << shift;
+    }
+
+    /**
+     * Writes lines in the format of the runs, see
+     * {@link #writeRun(net.bennokue.java.osmosis.CSVExternalSorter.RunBuffer)}.
+     */
+    private static class RunWriter {
+
+        private final DataOutputStream output;
+        private long previousId = 0;
+
+        RunWriter(DataOutputStream output) {
+            this.output = output;
+        }
+
+        void write(long id, byte[] line, int offset, int length) throws IOException {
+            writeVarLong(this.output, (id - this.previousId) << 1 ^ (id - this.previousId) >> 63);
+            this.previousId = id;
+            writeVarLong(this.output, length);
+            this.output.write(line, offset, length);
+        }
+    }
+
+    /**
+     * The lines of one run: Their ids and their bytes, one after another in a
+     * single array. The arrays only grow as far as the memory budget allows,
+     * counting their capacity and what sorting them will need.
+     */
+    private static class RunBuffer {
+
+        private final long memoryBudget;
+        private long[] ids;
+        /**
+         * Line {@code i} is at {@code bytes[lineStarts[i]]} to
+         * {@code bytes[lineStarts[i + 1]]} (exclusive).
+         */
+        private int[] lineStarts;
+        private byte[] bytes;
+        private int size = 0;
+
+        RunBuffer(long memoryBudget) {
+            this.memoryBudget = memoryBudget;
+            int lines = (int) Math.max(16, Math.min(1024, memoryBudget / 64));
+            this.ids = new long[lines];
+            this.lineStarts = new int[lines + 1];
+            this.bytes = new byte[(int) Math.max(256, Math.min(64 * 1024, memoryBudget / 4))];
+        }
+
+        boolean isEmpty() {
+            return this.size == 0;
+        }
+
+        /**
+         * @param lines A number of lines.
+         * @param lineCapacity The capacity of {@link #ids}.
+         * @param byteCapacity The capacity of {@link #bytes}.
+         * @return The memory needed by the arrays and by sorting the lines.
+         */
+        private static long memoryUsage(long lines, long lineCapacity, long byteCapacity) {
+            return lineCapacity * (8 + 4) + byteCapacity + lines * SORT_BYTES_PER_LINE;
+        }
+
+        /**
+         * Add a line, unless the buffer would need more memory than the
+         * budget. The first line is always added.
+         *
+         * @param id The id of the line.
+         * @param line Holds the line.
+         * @param offset Where the line starts.
+         * @param length The length of the line.
+         * @return {@code false} if the line has not been added.
+         */
+        boolean add(long id, byte[] line, int offset, int length) {
+            int start = this.lineStarts[this.size];
+            long neededBytes = (long) start + length;
+            if (neededBytes > Integer.MAX_VALUE - 8) {
+                if (this.isEmpty()) {
+                    throw new IllegalStateException("Run buffer is full, use a smaller memory budget");
+                }
+                return false;
+            }
+            long lineCapacity = this.ids.length;
+            if (this.size + 1 == this.ids.length) {
+                // Grow as far as the budget allows, but at least by one line
+                long affordable = (this.memoryBudget - memoryUsage(this.size + 1, 0, Math.max(this.bytes.length, neededBytes))) / (8 + 4);
+                lineCapacity = Math.max(this.size + 2, Math.min(2L * this.ids.length, Math.min(affordable, Integer.MAX_VALUE - 8)));
+            }
+            long byteCapacity = this.bytes.length;
+            if (neededBytes > this.bytes.length) {
+                long affordable = this.memoryBudget - memoryUsage(this.size + 1, lineCapacity, 0);
+                byteCapacity = Math.max(neededBytes, Math.min(2L * this.bytes.length, Math.min(affordable, Integer.MAX_VALUE - 8)));
+            }
+            if (!this.isEmpty() && memoryUsage(this.size + 1, lineCapacity, byteCapacity) > this.memoryBudget) {
+                return false;
+            }
+            if (lineCapacity != this.ids.length) {
+                this.ids = Arrays.copyOf(this.ids, (int) lineCapacity);
+                this.lineStarts = Arrays.copyOf(this.lineStarts, (int) lineCapacity + 1);
+            }
+            if (byteCapacity != this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes, (int) byteCapacity);
+            }
+            System.arraycopy(line, offset, this.bytes, start, length);
+            this.ids[this.size] = id;
+            this.lineStarts[this.size + 1] = start + length;
+            this.size++;
+            return true;
+        }
+
+        /**
+         * Sort the ids (stable).
+         *
+         * @return {@code result[i]} is the original line number of
+         * {@code ids[i]}.
+         */
+        int[] sort() {
+            int[] order = LongIdSort.identity(this.size);
+            LongIdSort.parallelSort(this.ids, order, this.size);
+            return order;
+        }
+
+        /**
+         * Sort the lines and write them as text.
+         *
+         * @param output Where to write.
+         * @throws IOException If writing fails.
+         */
+        void writeSorted(OutputStream output) throws IOException {
+            int[] order = this.sort();
+            for (int i = 0; i < this.size; i++) {
+                int start = this.lineStarts[order[i]];
+                output.write(this.bytes, start, this.lineStarts[order[i] + 1] - start);
+                output.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Reads the lines of a run one after another.
+     */
+    private static class RunReader implements Comparable<RunReader>, Closeable {
+
+        private final DataInputStream input;
+        /**
+         * The position of the run in the input file, breaks ties so lines
+         * with the same id keep their order.
+         */
+        private final int runNumber;
+        private long id = 0;
+        private byte[] line = new byte[256];
+        private int lineLength;
+
+        RunReader(File run, int runNumber) throws IOException {
+            this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(run), RUN_BUFFER_SIZE));
+            this.runNumber = runNumber;
+        }
+
+        /**
+         * Read the next line.
+         *
+         * @return {@code false} at the end of the run.
+         * @throws IOException If reading fails.
+         */
+        boolean next() throws IOException {
+            long zigZagDelta;
+            try {
+                zigZagDelta = readVarLong(this.input);
+            } catch (EOFException e) {
+                return false;
+            }
+            this.id += zigZagDelta >>> 1 ^ -(zigZagDelta & 1);
+            this.lineLength = (int) readVarLong(this.input);
+            if (this.lineLength > this.line.length) {
+                this.line = new byte[Math.max(this.lineLength, this.line.length * 2)];
+            }
+            this.input.readFully(this.line, 0, this.lineLength);
+            return true;
+        }
+
+        @Override
+        public int compareTo(RunReader that) {
+            if (this.id != that.id) {
+                return this.id < that.id ? -1 : 1;
+            }
+            return Integer.compare(this.runNumber, that.runNumber);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.input.close();
+        }
+    }
+}
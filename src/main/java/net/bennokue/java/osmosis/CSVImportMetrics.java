@@ -0,0 +1,269 @@
+package net.bennokue.java.osmosis;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+
+/**
+ * The metrics of a {@link CSVImportPlugin_task}: The counters of the tagged
+ * entities (per entity type), the counters of the {@link CSVLoader} and the
+ * latency of the lookups. The counters are {@link LongAdder}s, so the pipeline thread and
+ * the workers count without locking and any thread may read them while the
+ * task runs. With {@link CSVImportOptions#setJmxMetrics(boolean)}, the
+ * metrics are registered as MBean
+ * {@code net.bennokue.java.osmosis:type=CSVImport,instance=<n>,file=<CSV file>}
+ * and the lookups are timed.
+ *
+ * @author bennokue
+ */
+public class CSVImportMetrics implements CSVImportMetricsMBean {
+
+    private static final Logger logger = Logger.getLogger(CSVImportMetrics.class.getName());
+    /**
+     * Numbers the MBeans of a JVM.
+     */
+    private static final AtomicInteger instances = new AtomicInteger();
+    final LongAdder nodesProcessed = new LongAdder();
+    final LongAdder nodesImported = new LongAdder();
+    final LongAdder nodesNotFound = new LongAdder();
+    final LongAdder nodesSkippedDueToMaxDist = new LongAdder();
+    final LongAdder waysProcessed = new LongAdder();
+    final LongAdder waysImported = new LongAdder();
+    final LongAdder waysNotFound = new LongAdder();
+    final LongAdder relationsProcessed = new LongAdder();
+    final LongAdder relationsImported = new LongAdder();
+    final LongAdder relationsNotFound = new LongAdder();
+    /**
+     * The latency of the lookups, only recorded if the metrics are
+     * registered.
+     */
+    final LatencyHistogram lookupLatency = new LatencyHistogram();
+    private final CSVLoader csvLoader;
+    /**
+     * The name of the MBean, {@code null} if it is not registered.
+     */
+    private ObjectName objectName;
+
+    /**
+     * @param csvLoader The loader of the task.
+     */
+    CSVImportMetrics(CSVLoader csvLoader) {
+        this.csvLoader = csvLoader;
+    }
+
+    /**
+     * Register the MBean at the platform MBean server.
+     *
+     * @param csvFileName The name of the CSV file, for the name of the MBean.
+     * @throws JMException If the MBean cannot be registered.
+     */
+    void register(String csvFileName) throws JMException {
+        ObjectName name = new ObjectName("net.bennokue.java.osmosis:type=CSVImport,instance=" + instances.incrementAndGet() + ",file=" + ObjectName.quote(csvFileName));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        this.objectName = name;
+        logger.log(Level.INFO, "Registered the metrics as {0}", name);
+    }
+
+    /**
+     * @return Is the MBean registered (and are the lookups timed)?
+     */
+    boolean isRegistered() {
+        return null != this.objectName;
+    }
+
+    /**
+     * Unregister the MBean, if it is registered. Failures are logged only.
+     */
+    void unregister() {
+        if (null == this.objectName) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(this.objectName);
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Could not unregister " + this.objectName, e);
+        }
+        this.objectName = null;
+    }
+
+    /**
+     * Count a tagged entity.
+     *
+     * @param type The type of the entity.
+     */
+    void countProcessed(EntityType type) {
+        this.select(type, this.nodesProcessed, this.waysProcessed, this.relationsProcessed).increment();
+    }
+
+    /**
+     * Count an entity that got at least one value.
+     *
+     * @param type The type of the entity.
+     */
+    void countImported(EntityType type) {
+        this.select(type, this.nodesImported, this.waysImported, this.relationsImported).increment();
+    }
+
+    /**
+     * Count an entity without a CSV line.
+     *
+     * @param type The type of the entity.
+     */
+    void countNotFound(EntityType type) {
+        this.select(type, this.nodesNotFound, this.waysNotFound, this.relationsNotFound).increment();
+    }
+
+    /**
+     * Pick the counter of an entity type.
+     *
+     * @param type The type of the entity.
+     * @param nodes The counter of the nodes.
+     * @param ways The counter of the ways.
+     * @param relations The counter of the relations.
+     * @return The counter of {@code type}.
+     */
+    private LongAdder select(EntityType type, LongAdder nodes, LongAdder ways, LongAdder relations) {
+        switch (type) {
+            case Node:
+                return nodes;
+            case Way:
+                return ways;
+            case Relation:
+                return relations;
+            default:
+                throw new IllegalArgumentException("Unsupported entity type: " + type);
+        }
+    }
+
+    @Override
+    public long getEntitiesProcessed() {
+        return this.getNodesProcessed() + this.getWaysProcessed() + this.getRelationsProcessed();
+    }
+
+    @Override
+    public long getNodesProcessed() {
+        return this.nodesProcessed.sum();
+    }
+
+    @Override
+    public long getNodesImported() {
+        return this.nodesImported.sum();
+    }
+
+    @Override
+    public long getNodesNotFound() {
+        return this.nodesNotFound.sum();
+    }
+
+    @Override
+    public long getNodesSkippedDueToMaxDist() {
+        return this.nodesSkippedDueToMaxDist.sum();
+    }
+
+    @Override
+    public long getWaysProcessed() {
+        return this.waysProcessed.sum();
+    }
+
+    @Override
+    public long getWaysImported() {
+        return this.waysImported.sum();
+    }
+
+    @Override
+    public long getWaysNotFound() {
+        return this.waysNotFound.sum();
+    }
+
+    @Override
+    public long getRelationsProcessed() {
+        return this.relationsProcessed.sum();
+    }
+
+    @Override
+    public long getRelationsImported() {
+        return this.relationsImported.sum();
+    }
+
+    @Override
+    public long getRelationsNotFound() {
+        return this.relationsNotFound.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return this.csvLoader.getCacheHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return this.csvLoader.getCacheMisses();
+    }
+
+    @Override
+    public int getCacheEntries() {
+        return this.csvLoader.getCacheEntries();
+    }
+
+    @Override
+    public long getFileRescans() {
+        return this.csvLoader.getFileRescans();
+    }
+
+    @Override
+    public long getLinesParsed() {
+        return this.csvLoader.getLinesParsed();
+    }
+
+    @Override
+    public long getBytesParsed() {
+        return this.csvLoader.getBytesParsed();
+    }
+
+    @Override
+    public long getFilterRejections() {
+        return this.csvLoader.getFilterRejections();
+    }
+
+    @Override
+    public long getLookups() {
+        return this.lookupLatency.getCount();
+    }
+
+    @Override
+    public double getLookupLatencyMean() {
+        return this.lookupLatency.getMean();
+    }
+
+    @Override
+    public long getLookupLatencyMedian() {
+        return this.lookupLatency.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getLookupLatency90thPercentile() {
+        return this.lookupLatency.getValueAtPercentile(90);
+    }
+
+    @Override
+    public long getLookupLatency99thPercentile() {
+        return this.lookupLatency.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getLookupLatency999thPercentile() {
+        return this.lookupLatency.getValueAtPercentile(99.9);
+    }
+
+    @Override
+    public long getLookupLatencyMax() {
+        return this.lookupLatency.getMax();
+    }
+}
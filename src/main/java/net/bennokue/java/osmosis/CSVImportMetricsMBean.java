@@ -0,0 +1,125 @@
+package net.bennokue.java.osmosis;
+
+/**
+ * The live metrics of a running {@link CSVImportPlugin_task}, see
+ * {@link CSVImportMetrics}. All counters start at {@code 0} when the task is
+ * created, the latencies are in nanoseconds. The nodes, ways and relations
+ * are counted apart; the counters of an entity type that is not tagged (see
+ * the argument {@code entityTypes}) stay at {@code 0}.
+ *
+ * @author bennokue
+ */
+public interface CSVImportMetricsMBean {
+
+    /**
+     * @return The number of tagged entities of all types.
+     */
+    long getEntitiesProcessed();
+
+    /**
+     * @return The number of tagged nodes.
+     */
+    long getNodesProcessed();
+
+    /**
+     * @return The number of nodes that got at least one value.
+     */
+    long getNodesImported();
+
+    /**
+     * @return The number of nodes without a CSV line.
+     */
+    long getNodesNotFound();
+
+    /**
+     * @return The number of nodes skipped because they are too far away from
+     * their CSV line.
+     */
+    long getNodesSkippedDueToMaxDist();
+
+    /**
+     * @return The number of tagged ways.
+     */
+    long getWaysProcessed();
+
+    /**
+     * @return The number of ways that got at least one value.
+     */
+    long getWaysImported();
+
+    /**
+     * @return The number of ways without a CSV line.
+     */
+    long getWaysNotFound();
+
+    /**
+     * @return The number of tagged relations.
+     */
+    long getRelationsProcessed();
+
+    /**
+     * @return The number of relations that got at least one value.
+     */
+    long getRelationsImported();
+
+    /**
+     * @return The number of relations without a CSV line.
+     */
+    long getRelationsNotFound();
+
+    /**
+     * @return The number of lookups answered from the cache.
+     */
+    long getCacheHits();
+
+    /**
+     * @return The number of lookups that were not in the cache (the file was
+     * read or the id is not there).
+     */
+    long getCacheMisses();
+
+    /**
+     * @return The number of lines in the cache.
+     */
+    int getCacheEntries();
+
+    /**
+     * @return How often the bounded cache has started reading the file from
+     * the top again.
+     */
+    long getFileRescans();
+
+    /**
+     * @return The number of CSV lines parsed so far (lines read several times
+     * count several times).
+     */
+    long getLinesParsed();
+
+    /**
+     * @return The number of bytes of the parsed lines (without the line
+     * breaks).
+     */
+    long getBytesParsed();
+
+    /**
+     * @return The number of lookups rejected by the id filter.
+     */
+    long getFilterRejections();
+
+    /**
+     * @return The number of timed lookups.
+     */
+    long getLookups();
+
+    double getLookupLatencyMean();
+
+    long getLookupLatencyMedian();
+
+    long getLookupLatency90thPercentile();
+
+    long getLookupLatency99thPercentile();
+
+    long getLookupLatency999thPercentile();
+
+    long getLookupLatencyMax();
+}
@@ -0,0 +1,583 @@
+package net.bennokue.java.osmosis;
+
+import java.util.EnumSet;
+import java.util.Set;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+
+/**
+ * Optional tuning parameters for {@link CSVImportPlugin_task} and
+ * {@link CSVLoader}. Everything has a sensible default: With
+ * {@code new CSVImportOptions()}, the entities are tagged exactly like the
+ * plugin did before these options existed, but the file is loaded on a
+ * background thread ({@link #setPreloadCSV(boolean)}), parsed by a pool of
+ * threads ({@link #setParseThreads(int)}) and its ids are read in an extra
+ * pass ({@link #setNegativeLookupFilter(boolean)}). Turn these off to read
+ * the file on the pipeline thread only, like before. The setters return
+ * {@code this}, so you can chain them.
+ *
+ * @author bennokue
+ */
+public class CSVImportOptions {
+
+    /**
+     * The default of {@link #setSortMemoryMB(int)}.
+     */
+    public static final int DEFAULT_SORT_MEMORY_MB = 256;
+
+    /**
+     * See {@link #setStorageEngine(CSVLoader.StorageEngine)}.
+     */
+    private CSVLoader.StorageEngine storageEngine = CSVLoader.StorageEngine.HASHMAP;
+    /**
+     * See {@link #setPersistentIndex(boolean)}.
+     */
+    private boolean persistentIndex = false;
+    /**
+     * See {@link #setCsvSorted(boolean)}.
+     */
+    private boolean csvSorted = false;
+    /**
+     * See {@link #setPresortCSV(boolean)}.
+     */
+    private boolean presortCSV = false;
+    /**
+     * See {@link #setSortMemoryMB(int)}.
+     */
+    private int sortMemoryMB = DEFAULT_SORT_MEMORY_MB;
+    /**
+     * See {@link #setParseThreads(int)}.
+     */
+    private int parseThreads = Runtime.getRuntime().availableProcessors();
+    /**
+     * See {@link #setDelimiter(char)}.
+     */
+    private char delimiter = CSVLineParser.DEFAULT_DELIMITER;
+    /**
+     * See {@link #setNegativeLookupFilter(boolean)}.
+     */
+    private boolean negativeLookupFilter = true;
+    /**
+     * See {@link #setPreloadCSV(boolean)}.
+     */
+    private boolean preloadCSV = true;
+    /**
+     * See {@link #setWorkers(int)}.
+     */
+    private int workers = 1;
+    /**
+     * See {@link #setHeaderRow(boolean)}.
+     */
+    private boolean headerRow = false;
+    /**
+     * See {@link #setTagMappings(String)}.
+     */
+    private String tagMappings = "";
+    /**
+     * See {@link #setEntityTypes(java.util.Set)}.
+     */
+    private Set<EntityType> entityTypes = EnumSet.of(EntityType.Node);
+    /**
+     * See {@link #setMatchByCoordinates(boolean)}.
+     */
+    private boolean matchByCoordinates = false;
+    /**
+     * See {@link #setGzipDirtyNodeLog(boolean)}.
+     */
+    private boolean gzipDirtyNodeLog = false;
+    /**
+     * See {@link #setJmxMetrics(boolean)}.
+     */
+    private boolean jmxMetrics = false;
+    /**
+     * See {@link #setExpectedNodes(long)}.
+     */
+    private long expectedNodes = -1;
+    /**
+     * See {@link #setProgressFile(java.lang.String)}.
+     */
+    private String progressFile = "";
+
+    /**
+     * @return The storage engine of the CSV cache.
+     */
+    public CSVLoader.StorageEngine getStorageEngine() {
+        return this.storageEngine;
+    }
+
+    /**
+     * Choose how the CSV cache stores its lines. <em>Defaults to
+     * {@link CSVLoader.StorageEngine#HASHMAP}</em>.
+     *
+     * @param storageEngine The storage engine.
+     * @return This object.
+     */
+    public CSVImportOptions setStorageEngine(CSVLoader.StorageEngine storageEngine) {
+        if (null == storageEngine) {
+            throw new IllegalArgumentException("Please provide a storage engine");
+        }
+        this.storageEngine = storageEngine;
+        return this;
+    }
+
+    /**
+     * @return Should the line index be stored next to the CSV file?
+     */
+    public boolean isPersistentIndex() {
+        return this.persistentIndex;
+    }
+
+    /**
+     * If set, the line index of {@link CSVLoader.StorageEngine#MAPPED} is
+     * written to a file next to the CSV file ({@code foo.csv.idx}) and reused
+     * at the next run, as long as the CSV file has not changed. <em>Defaults
+     * to {@code false}</em>.
+     *
+     * @param persistentIndex Should the line index be stored?
+     * @return This object.
+     */
+    public CSVImportOptions setPersistentIndex(boolean persistentIndex) {
+        this.persistentIndex = persistentIndex;
+        return this;
+    }
+
+    /**
+     * @return Is the CSV file sorted by OSM id?
+     */
+    public boolean isCsvSorted() {
+        return this.csvSorted;
+    }
+
+    /**
+     * Tell the plugin that the CSV file is sorted by OSM id ascending, like
+     * the OSM stream. The plugin then uses
+     * {@link CSVLoader.StorageEngine#MERGE_JOIN} instead of the configured
+     * storage engine (except {@link CSVLoader.StorageEngine#MAPPED} and
+     * {@link CSVLoader.StorageEngine#BINARY}), unless the OSM stream is
+     * announced to be unsorted (see
+     * {@link CSVImportPlugin_task#METADATA_SORTED}). <em>Defaults to
+     * {@code false}</em>.
+     *
+     * @param csvSorted Is the CSV file sorted?
+     * @return This object.
+     */
+    public CSVImportOptions setCsvSorted(boolean csvSorted) {
+        this.csvSorted = csvSorted;
+        return this;
+    }
+
+    /**
+     * @return Should the CSV file be sorted before a merge join?
+     */
+    public boolean isPresortCSV() {
+        return this.presortCSV;
+    }
+
+    /**
+     * If set, the CSV file is sorted into a temporary file next to it (using
+     * {@link CSVExternalSorter}) before it is merge-joined with a sorted OSM
+     * stream. Like {@link #setCsvSorted(boolean)}, this makes the plugin use
+     * {@link CSVLoader.StorageEngine#MERGE_JOIN}, but the CSV file may be in
+     * any order. <em>Defaults to
+     * {@code false}</em>.
+     *
+     * @param presortCSV Should the CSV file be sorted?
+     * @return This object.
+     */
+    public CSVImportOptions setPresortCSV(boolean presortCSV) {
+        this.presortCSV = presortCSV;
+        return this;
+    }
+
+    /**
+     * @return How many megabytes may the sorting use?
+     */
+    public int getSortMemoryMB() {
+        return this.sortMemoryMB;
+    }
+
+    /**
+     * How many megabytes may {@link CSVExternalSorter} use to buffer lines?
+     * If the file is bigger, sorted parts of it are written to temporary
+     * files and merged afterwards. <em>Defaults to
+     * {@value #DEFAULT_SORT_MEMORY_MB}</em>.
+     *
+     * @param sortMemoryMB The memory budget in megabytes.
+     * @return This object.
+     */
+    public CSVImportOptions setSortMemoryMB(int sortMemoryMB) {
+        if (sortMemoryMB < 1) {
+            throw new IllegalArgumentException("Please provide a sortMemoryMB of at least 1");
+        }
+        this.sortMemoryMB = sortMemoryMB;
+        return this;
+    }
+
+    /**
+     * @return How many threads parse the CSV file?
+     */
+    public int getParseThreads() {
+        return this.parseThreads;
+    }
+
+    /**
+     * How many threads should parse the CSV file when the endless cache
+     * ({@code csvCacheSize=-1}) is filled? With more than one thread, the file
+     * is split into chunks that are parsed in parallel (see
+     * {@link ParallelCSVReader}); {@code 1} reads it line by line. <em>Defaults
+     * to the number of processors</em>.
+     *
+     * @param parseThreads The number of threads.
+     * @return This object.
+     */
+    public CSVImportOptions setParseThreads(int parseThreads) {
+        if (parseThreads < 1) {
+            throw new IllegalArgumentException("Please provide at least one parse thread");
+        }
+        this.parseThreads = parseThreads;
+        return this;
+    }
+
+    /**
+     * @return The field delimiter of the CSV file.
+     */
+    public char getDelimiter() {
+        return this.delimiter;
+    }
+
+    /**
+     * The character that separates the fields of the CSV file, e.g.
+     * {@code '\t'} or {@code ';'}. Fields containing the delimiter can be
+     * quoted ({@code "a, b"}, quotes inside are doubled). Lines starting with
+     * {@code ;} are still comments. <em>Defaults to {@code ','}</em>.
+     *
+     * @param delimiter An ASCII character other than quotes and line breaks.
+     * @return This object.
+     */
+    public CSVImportOptions setDelimiter(char delimiter) {
+        if (delimiter == 0 || delimiter > 127 || delimiter == '"' || delimiter == '\n' || delimiter == '\r') {
+            throw new IllegalArgumentException("The delimiter has to be an ASCII character other than quotes and line breaks");
+        }
+        this.delimiter = delimiter;
+        return this;
+    }
+
+    /**
+     * @return Are the ids of the CSV file collected in a Bloom filter?
+     */
+    public boolean isNegativeLookupFilter() {
+        return this.negativeLookupFilter;
+    }
+
+    /**
+     * Collect the ids of the CSV file in a Bloom filter (see
+     * {@link IdBloomFilter}) at the first lookup, so ids that are not in the
+     * file are rejected before the cache or the file is searched. That saves
+     * a whole run through the file for each missing id if the cache is
+     * limited. Needs about 10 bits per line; not used with
+     * {@link CSVLoader.StorageEngine#MERGE_JOIN}. <em>Defaults to
+     * {@code true}</em>.
+     *
+     * @param negativeLookupFilter Use the filter?
+     * @return This object.
+     */
+    public CSVImportOptions setNegativeLookupFilter(boolean negativeLookupFilter) {
+        this.negativeLookupFilter = negativeLookupFilter;
+        return this;
+    }
+
+    /**
+     * @return Is the CSV file loaded in the background?
+     */
+    public boolean isPreloadCSV() {
+        return this.preloadCSV;
+    }
+
+    /**
+     * Start loading the CSV file on a background thread as soon as
+     * {@link CSVImportPlugin_task#initialize(java.util.Map)} is called (see
+     * {@link CSVLoader#startPreload()}), so it is loaded while the upstream
+     * tasks read the OSM file. Otherwise, it is loaded when the first node
+     * arrives, and the whole pipeline waits for it. <em>Defaults to
+     * {@code true}</em>.
+     *
+     * @param preloadCSV Load the file in the background?
+     * @return This object.
+     */
+    public CSVImportOptions setPreloadCSV(boolean preloadCSV) {
+        this.preloadCSV = preloadCSV;
+        return this;
+    }
+
+    /**
+     * @return How many threads tag the nodes?
+     */
+    public int getWorkers() {
+        return this.workers;
+    }
+
+    /**
+     * How many threads should tag the nodes? With more than one, the entities
+     * are collected in batches that are tagged by a pool of workers and passed
+     * on in their original order; only a few batches are pending at a time.
+     * The workers look up the nodes themselves if the loader allows it (see
+     * {@link CSVLoader#prepareConcurrentLookups()}), otherwise the lookups are
+     * done one after the other before a batch is submitted. <em>Defaults to
+     * {@code 1}</em>.
+     *
+     * @param workers The number of threads.
+     * @return This object.
+     */
+    public CSVImportOptions setWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Please provide at least one worker");
+        }
+        this.workers = workers;
+        return this;
+    }
+
+    /**
+     * @return Does the CSV file start with a row of column names?
+     */
+    public boolean isHeaderRow() {
+        return this.headerRow;
+    }
+
+    /**
+     * Does the CSV file start with a row of column names? The header row is
+     * recognized by the name of the id column and skipped; the names can be
+     * used in {@link #setTagMappings(String)}. <em>Defaults to
+     * {@code false}</em>.
+     *
+     * @param headerRow {@code true} if there is a header row.
+     * @return This object.
+     */
+    public CSVImportOptions setHeaderRow(boolean headerRow) {
+        this.headerRow = headerRow;
+        return this;
+    }
+
+    /**
+     * @return The additional CSV columns imported as tags.
+     */
+    public String getTagMappings() {
+        return this.tagMappings;
+    }
+
+    /**
+     * Import more CSV columns as tags, all with the same lookup per node: A
+     * comma separated list of {@code column=tagKey} entries, e.g.
+     * {@code 3=ele,5=landuse}. A column is its position (first = {@code 1})
+     * or, with {@link #setHeaderRow(boolean)}, its name; then
+     * {@code =tagKey} may be left out to use the column name. With a header
+     * row and no mappings, every column except the id and the coordinates is
+     * imported. <em>Defaults to no mappings</em>.
+     *
+     * @param tagMappings The mappings.
+     * @return This object.
+     */
+    public CSVImportOptions setTagMappings(String tagMappings) {
+        if (null == tagMappings) {
+            throw new IllegalArgumentException("Please provide tag mappings");
+        }
+        this.tagMappings = tagMappings;
+        return this;
+    }
+
+    /**
+     * @return The types of the entities that are tagged.
+     */
+    public Set<EntityType> getEntityTypes() {
+        return EnumSet.copyOf(this.entityTypes);
+    }
+
+    /**
+     * Which entities should be tagged? Ways and relations are marked by an id
+     * prefix at the CSV file, see {@link EntityKey}; they are tagged in the
+     * same pass as the nodes, but without the distance check. Entities of the
+     * other types are passed on as they are. <em>Defaults to nodes
+     * only</em>.
+     *
+     * @param entityTypes {@link EntityType#Node}, {@link EntityType#Way}
+     * and/or {@link EntityType#Relation}.
+     * @return This object.
+     */
+    public CSVImportOptions setEntityTypes(Set<EntityType> entityTypes) {
+        if (null == entityTypes || entityTypes.isEmpty()) {
+            throw new IllegalArgumentException("Please provide at least one entity type");
+        }
+        if (entityTypes.contains(EntityType.Bound)) {
+            throw new IllegalArgumentException("Cannot tag entities of type " + EntityType.Bound);
+        }
+        this.entityTypes = EnumSet.copyOf(entityTypes);
+        return this;
+    }
+
+    /**
+     * @return Are the CSV lines matched to the nodes by their coordinates?
+     */
+    public boolean isMatchByCoordinates() {
+        return this.matchByCoordinates;
+    }
+
+    /**
+     * Match the CSV lines to the nodes by their coordinates instead of their
+     * ids, for files without OSM ids: The lines are loaded into a grid (see
+     * {@link SpatialCSVIndex}), and each node gets the values of the nearest
+     * line within {@code maxDist} (several nodes may get the same line). Needs
+     * {@code latPos}, {@code lonPos} and a finite {@code maxDist}; the id
+     * column is ignored. <em>Defaults to {@code false}</em>.
+     *
+     * @param matchByCoordinates {@code true} to match by coordinates.
+     * @return This object.
+     */
+    public CSVImportOptions setMatchByCoordinates(boolean matchByCoordinates) {
+        this.matchByCoordinates = matchByCoordinates;
+        return this;
+    }
+
+    /**
+     * @return Is the log file of {@link CSVImportPlugin_task.MaxDistAction#LOG}
+     * compressed with gzip?
+     */
+    public boolean isGzipDirtyNodeLog() {
+        return this.gzipDirtyNodeLog;
+    }
+
+    /**
+     * Compress the log file of {@link CSVImportPlugin_task.MaxDistAction#LOG}
+     * with gzip ({@code foo-dirtyNodes.csv.gz}). The log is written by a
+     * background thread either way (see {@link DirtyNodeLog}), so this mainly
+     * saves disk space and I/O if many nodes are logged. <em>Defaults to
+     * {@code false}</em>.
+     *
+     * @param gzipDirtyNodeLog {@code true} to compress the log file.
+     * @return This object.
+     */
+    public CSVImportOptions setGzipDirtyNodeLog(boolean gzipDirtyNodeLog) {
+        this.gzipDirtyNodeLog = gzipDirtyNodeLog;
+        return this;
+    }
+
+    /**
+     * @return Are the metrics registered as MBean?
+     */
+    public boolean isJmxMetrics() {
+        return this.jmxMetrics;
+    }
+
+    /**
+     * Register the metrics of the import as MBean at the platform MBean
+     * server, so they can be watched with JConsole or any JMX monitoring
+     * while the import runs, see {@link CSVImportMetrics}. The lookups are
+     * timed then, which costs about two clock reads per entity. <em>Defaults
+     * to {@code false}</em>.
+     *
+     * @param jmxMetrics {@code true} to register the metrics.
+     * @return This object.
+     */
+    public CSVImportOptions setJmxMetrics(boolean jmxMetrics) {
+        this.jmxMetrics = jmxMetrics;
+        return this;
+    }
+
+    /**
+     * @return The number of entities to be tagged or {@code -1}.
+     */
+    public long getExpectedNodes() {
+        return this.expectedNodes;
+    }
+
+    /**
+     * How many entities will be tagged (of the types given by
+     * {@link #setEntityTypes(java.util.Set)})? If known, the progress records
+     * tell the percentage and an ETA, see {@link ProgressReporter}.
+     * <em>Defaults to {@code -1} (unknown)</em>.
+     *
+     * @param expectedNodes The number of entities or {@code -1}.
+     * @return This object.
+     */
+    public CSVImportOptions setExpectedNodes(long expectedNodes) {
+        if (expectedNodes < -1) {
+            throw new IllegalArgumentException("expectedNodes has to be -1 or at least 0");
+        }
+        this.expectedNodes = expectedNodes;
+        return this;
+    }
+
+    /**
+     * @return The file the progress records are appended to, {@code ""} for
+     * stdout.
+     */
+    public String getProgressFile() {
+        return this.progressFile;
+    }
+
+    /**
+     * Append the progress records (see {@link ProgressReporter}) to this file
+     * instead of printing them to stdout. <em>Defaults to {@code ""}
+     * (stdout)</em>.
+     *
+     * @param progressFile The path of the file or {@code ""}.
+     * @return This object.
+     */
+    public CSVImportOptions setProgressFile(String progressFile) {
+        this.progressFile = progressFile;
+        return this;
+    }
+
+    /**
+     * Read entity types given on the command line: A comma separated list of
+     * {@code node}, {@code way} and {@code relation} (case insensitive).
+     *
+     * @param entityTypes The types.
+     * @return The types.
+     */
+    public static Set<EntityType> parseEntityTypes(String entityTypes) {
+        Set<EntityType> types = EnumSet.noneOf(EntityType.class);
+        for (String type : entityTypes.split(",")) {
+            switch (type.trim().toLowerCase()) {
+                case "node":
+                    types.add(EntityType.Node);
+                    break;
+                case "way":
+                    types.add(EntityType.Way);
+                    break;
+                case "relation":
+                    types.add(EntityType.Relation);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown entity type: " + type);
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Read a delimiter given on the command line: Either the character itself
+     * or one of the names {@code comma}, {@code semicolon}, {@code tab} (also
+     * {@code \t}), {@code space} and {@code pipe}.
+     *
+     * @param delimiter The delimiter or its name.
+     * @return The delimiter.
+     */
+    public static char parseDelimiter(String delimiter) {
+        switch (delimiter.toLowerCase()) {
+            case "comma":
+                return ',';
+            case "semicolon":
+                return ';';
+            case "tab":
+            case "\\t":
+                return '\t';
+            case "space":
+                return ' ';
+            case "pipe":
+                return '|';
+            default:
+                if (delimiter.length() != 1) {
+                    throw new IllegalArgumentException("Unknown delimiter: " + delimiter);
+                }
+                return delimiter.charAt(0);
+        }
+    }
+}
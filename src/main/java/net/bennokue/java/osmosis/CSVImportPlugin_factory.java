@@ -40,6 +40,42 @@ public class CSVImportPlugin_factory extends TaskManagerFactory {
     private static final int DEFAULT_CSV_CACHE_SIZE = -1;
     private static final String ARG_PROGRESS_INFO_INTERVAL = "progressInfoIntervalSecs";
     private static final int DEFAULT_PROGRESS_INFO_INTERVAL = -1;
+    private static final String ARG_STORAGE_ENGINE = "storageEngine";
+    private static final String DEFAULT_STORAGE_ENGINE = CSVLoader.StorageEngine.HASHMAP.toString();
+    private static final String ARG_PERSISTENT_INDEX = "persistentIndex";
+    private static final boolean DEFAULT_PERSISTENT_INDEX = false;
+    private static final String ARG_CSV_SORTED = "csvSorted";
+    private static final boolean DEFAULT_CSV_SORTED = false;
+    private static final String ARG_PRESORT_CSV = "presortCSV";
+    private static final boolean DEFAULT_PRESORT_CSV = false;
+    private static final String ARG_SORT_MEMORY = "sortMemoryMB";
+    private static final int DEFAULT_SORT_MEMORY = CSVImportOptions.DEFAULT_SORT_MEMORY_MB;
+    private static final String ARG_PARSE_THREADS = "parseThreads";
+    private static final int DEFAULT_PARSE_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final String ARG_DELIMITER = "delimiter";
+    private static final String DEFAULT_DELIMITER = "comma";
+    private static final String ARG_NEGATIVE_LOOKUP_FILTER = "negativeLookupFilter";
+    private static final boolean DEFAULT_NEGATIVE_LOOKUP_FILTER = true;
+    private static final String ARG_PRELOAD_CSV = "preloadCSV";
+    private static final boolean DEFAULT_PRELOAD_CSV = true;
+    private static final String ARG_WORKERS = "workers";
+    private static final int DEFAULT_WORKERS = 1;
+    private static final String ARG_HEADER_ROW = "headerRow";
+    private static final boolean DEFAULT_HEADER_ROW = false;
+    private static final String ARG_TAG_MAPPINGS = "tagMappings";
+    private static final String DEFAULT_TAG_MAPPINGS = "";
+    private static final String ARG_ENTITY_TYPES = "entityTypes";
+    private static final String DEFAULT_ENTITY_TYPES = "node";
+    private static final String ARG_MATCH_BY_COORDINATES = "matchByCoordinates";
+    private static final boolean DEFAULT_MATCH_BY_COORDINATES = false;
+    private static final String ARG_GZIP_DIRTY_NODE_LOG = "gzipDirtyNodeLog";
+    private static final boolean DEFAULT_GZIP_DIRTY_NODE_LOG = false;
+    private static final String ARG_JMX_METRICS = "jmxMetrics";
+    private static final boolean DEFAULT_JMX_METRICS = false;
+    private static final String ARG_EXPECTED_NODES = "expectedNodes";
+    private static final String DEFAULT_EXPECTED_NODES = "-1";
+    private static final String ARG_PROGRESS_FILE = "progressFile";
+    private static final String DEFAULT_PROGRESS_FILE = "";
 
     @Override
     protected TaskManager createTaskManagerImpl(TaskConfiguration taskConfig) {
@@ -54,9 +90,28 @@ public class CSVImportPlugin_factory extends TaskManagerFactory {
         String inputCSV = getStringArgument(taskConfig, ARG_INPUT_CSV, DEFAULT_INPUT_CSV);
         int csvCacheSize = getIntegerArgument(taskConfig, ARG_CSV_CACHE_SIZE, DEFAULT_CSV_CACHE_SIZE);
         int progressInfoIntervalSecs = getIntegerArgument(taskConfig, ARG_PROGRESS_INFO_INTERVAL, DEFAULT_PROGRESS_INFO_INTERVAL);
+        CSVImportOptions options = new CSVImportOptions()
+                .setStorageEngine(CSVLoader.StorageEngine.valueOf(getStringArgument(taskConfig, ARG_STORAGE_ENGINE, DEFAULT_STORAGE_ENGINE).toUpperCase()))
+                .setPersistentIndex(getBooleanArgument(taskConfig, ARG_PERSISTENT_INDEX, DEFAULT_PERSISTENT_INDEX))
+                .setCsvSorted(getBooleanArgument(taskConfig, ARG_CSV_SORTED, DEFAULT_CSV_SORTED))
+                .setPresortCSV(getBooleanArgument(taskConfig, ARG_PRESORT_CSV, DEFAULT_PRESORT_CSV))
+                .setSortMemoryMB(getIntegerArgument(taskConfig, ARG_SORT_MEMORY, DEFAULT_SORT_MEMORY))
+                .setParseThreads(getIntegerArgument(taskConfig, ARG_PARSE_THREADS, DEFAULT_PARSE_THREADS))
+                .setDelimiter(CSVImportOptions.parseDelimiter(getStringArgument(taskConfig, ARG_DELIMITER, DEFAULT_DELIMITER)))
+                .setNegativeLookupFilter(getBooleanArgument(taskConfig, ARG_NEGATIVE_LOOKUP_FILTER, DEFAULT_NEGATIVE_LOOKUP_FILTER))
+                .setPreloadCSV(getBooleanArgument(taskConfig, ARG_PRELOAD_CSV, DEFAULT_PRELOAD_CSV))
+                .setWorkers(getIntegerArgument(taskConfig, ARG_WORKERS, DEFAULT_WORKERS))
+                .setHeaderRow(getBooleanArgument(taskConfig, ARG_HEADER_ROW, DEFAULT_HEADER_ROW))
+                .setTagMappings(getStringArgument(taskConfig, ARG_TAG_MAPPINGS, DEFAULT_TAG_MAPPINGS))
+                .setEntityTypes(CSVImportOptions.parseEntityTypes(getStringArgument(taskConfig, ARG_ENTITY_TYPES, DEFAULT_ENTITY_TYPES)))
+                .setMatchByCoordinates(getBooleanArgument(taskConfig, ARG_MATCH_BY_COORDINATES, DEFAULT_MATCH_BY_COORDINATES))
+                .setGzipDirtyNodeLog(getBooleanArgument(taskConfig, ARG_GZIP_DIRTY_NODE_LOG, DEFAULT_GZIP_DIRTY_NODE_LOG))
+                .setJmxMetrics(getBooleanArgument(taskConfig, ARG_JMX_METRICS, DEFAULT_JMX_METRICS))
+                .setExpectedNodes(Long.parseLong(getStringArgument(taskConfig, ARG_EXPECTED_NODES, DEFAULT_EXPECTED_NODES)))
+                .setProgressFile(getStringArgument(taskConfig, ARG_PROGRESS_FILE, DEFAULT_PROGRESS_FILE));
 
         // Create the task
-        SinkSource task = new CSVImportPlugin_task(inputCSV, idPosition, latPosition, lonPosition, dataPosition, outputTag, maxDist, maxDistAction, csvCacheSize, progressInfoIntervalSecs);
+        SinkSource task = new CSVImportPlugin_task(inputCSV, idPosition, latPosition, lonPosition, dataPosition, outputTag, maxDist, maxDistAction, csvCacheSize, progressInfoIntervalSecs, options);
         return new SinkSourceManager(taskConfig.getId(), task, taskConfig.getPipeArgs());
     }
 }
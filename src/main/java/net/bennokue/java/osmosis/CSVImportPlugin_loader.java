@@ -16,6 +16,15 @@ public class CSVImportPlugin_loader implements PluginLoader {
      * The CLI argument that tells OSMOSIS to run the CSVImportPlugin.
      */
     public static final String taskName = "import-tag-from-csv";
+    /**
+     * The CLI argument that tells OSMOSIS to sort a CSV file for the import.
+     */
+    public static final String sortTaskName = "sort-csv-for-import";
+    /**
+     * The CLI argument that tells OSMOSIS to convert a CSV file into the
+     * binary import format.
+     */
+    public static final String convertTaskName = "convert-csv-for-import";
 
     @Override
     public Map<String, TaskManagerFactory> loadTaskFactories() {
@@ -23,6 +32,8 @@ public class CSVImportPlugin_loader implements PluginLoader {
         CSVImportPlugin_factory calculatorPlugin = new CSVImportPlugin_factory();
 
         factoryMap.put(taskName, calculatorPlugin);
+        factoryMap.put(sortTaskName, new CSVSortPlugin_factory());
+        factoryMap.put(convertTaskName, new CSVConvertPlugin_factory());
 
         return factoryMap;
     }
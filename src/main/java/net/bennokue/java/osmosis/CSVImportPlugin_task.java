@@ -1,19 +1,30 @@
 package net.bennokue.java.osmosis;
 
 import java.io.*;
+import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import net.bennokue.java.osmosis.niceThings.ProgressMonitoringThread;
+import javax.management.JMException;
 import net.bennokue.java.osmosis.niceThings.ProgressTellingOsmosisTask;
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
 import org.openstreetmap.osmosis.core.container.v0_6.BoundContainer;
 import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
 import org.openstreetmap.osmosis.core.container.v0_6.EntityProcessor;
 import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
 import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
 import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
-import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
 import org.openstreetmap.osmosis.core.domain.v0_6.Node;
 import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
 import org.openstreetmap.osmosis.core.task.v0_6.Sink;
@@ -45,9 +56,70 @@ import org.openstreetmap.osmosis.core.task.v0_6.SinkSource;
  * CSV file to import.</li><li>{@code csvCacheSize}: The size of the CSV lines
  * cache. {@code -1} will deactivate the upper bound and will make things
  * <em>way</em> faster.</li><li>{@code progressInfoIntervalSecs}: If set to a
- * number {@code x > 0}, a Thread ({@link ProgressMonitoringThread}) will output
- * the current status every {@code x} seconds.</li></ul>Note: Empty lines and
+ * number {@code x > 0}, the current status is written as a line of JSON every
+ * {@code x} seconds, see {@link ProgressReporter}.</li><li>{@code storageEngine}:
+ * How the CSV cache stores its lines, see {@link CSVLoader.StorageEngine}.
+ * <em>Defaults to {@link CSVLoader.StorageEngine#HASHMAP}</em>.</li><li>{@code persistentIndex}:
+ * Store the line index of {@link CSVLoader.StorageEngine#MAPPED} next to the
+ * CSV file and reuse it at the next run, see
+ * {@link CSVImportOptions#setPersistentIndex(boolean)}. <em>Defaults to
+ * {@code false}</em>.</li><li>{@code csvSorted}: Set this to {@code true} if
+ * the CSV file and the OSM stream are sorted by id. Both are joined by
+ * reading the CSV file once from top to bottom
+ * ({@link CSVLoader.StorageEngine#MERGE_JOIN}), unless the OSM stream is
+ * announced to be unsorted (see {@link #METADATA_SORTED}). <em>Defaults to
+ * {@code false}</em>.</li><li>{@code presortCSV}: Like {@code csvSorted},
+ * but for unsorted CSV files: The file is sorted into a temporary file next
+ * to it first (see {@link CSVExternalSorter}). <em>Defaults to
+ * {@code false}</em>.</li><li>{@code sortMemoryMB}: How many megabytes may be
+ * used to sort the CSV file. <em>Defaults to
+ * {@value CSVImportOptions#DEFAULT_SORT_MEMORY_MB}</em>.</li><li>{@code parseThreads}:
+ * How many threads parse the CSV file when filling the endless cache, see
+ * {@link CSVImportOptions#setParseThreads(int)}. <em>Defaults to the number
+ * of processors</em>.</li><li>{@code delimiter}: The field delimiter, e.g.
+ * {@code semicolon} or {@code tab}, see
+ * {@link CSVImportOptions#parseDelimiter(java.lang.String)}. Fields may be
+ * quoted like {@code "a, b"}. <em>Defaults to {@code comma}</em>.</li><li>{@code negativeLookupFilter}:
+ * Reject ids that are not in the CSV file with a Bloom filter before
+ * searching the cache or the file, see
+ * {@link CSVImportOptions#setNegativeLookupFilter(boolean)}. <em>Defaults to
+ * {@code true}</em>.</li><li>{@code preloadCSV}: Load the CSV file on a
+ * background thread while the OSM file is being read, see
+ * {@link CSVImportOptions#setPreloadCSV(boolean)}. <em>Defaults to
+ * {@code true}</em>.</li><li>{@code workers}: How many threads tag the nodes,
+ * see {@link CSVImportOptions#setWorkers(int)}. The entities leave the task in
+ * the order they came in. <em>Defaults to {@code 1}</em>.</li><li>{@code tagMappings}:
+ * More CSV columns to import as tags with the same lookup, e.g.
+ * {@code 3=ele,5=landuse}, see
+ * {@link CSVImportOptions#setTagMappings(java.lang.String)}. With
+ * {@code tagMappings}, {@code tagDataPos} and {@code outputTag} may be left
+ * out. <em>Defaults to no mappings</em>.</li><li>{@code headerRow}: The CSV
+ * file starts with a row of column names, which may be used in
+ * {@code tagMappings}; without {@code tagMappings}, all columns are imported
+ * as tags named like the columns. <em>Defaults to
+ * {@code false}</em>.</li><li>{@code entityTypes}: Which entities to tag, e.g.
+ * {@code node,way,relation}. Ways and relations are marked by the id prefixes
+ * {@code w} and {@code r} at the CSV file, see {@link EntityKey}.
+ * <em>Defaults to {@code node}</em>.</li><li>{@code matchByCoordinates}:
+ * Match the CSV lines to the nodes by their coordinates instead of ids: Each
+ * node gets the values of the nearest line within {@code maxDist}, see
+ * {@link CSVImportOptions#setMatchByCoordinates(boolean)}. {@code idPos} may
+ * be left out then. <em>Defaults to {@code false}</em>.</li><li>{@code gzipDirtyNodeLog}:
+ * Compress the log file of {@link MaxDistAction#LOG} with gzip, see
+ * {@link CSVImportOptions#setGzipDirtyNodeLog(boolean)}. <em>Defaults to
+ * {@code false}</em>.</li><li>{@code jmxMetrics}: Register the live metrics
+ * (counters, cache statistics, lookup latency) as MBean, see
+ * {@link CSVImportMetrics}. <em>Defaults to {@code false}</em>.</li><li>{@code expectedNodes}:
+ * The number of entities to be tagged, for the percentage and ETA of the
+ * progress records. <em>Defaults to {@code -1} (unknown)</em>.</li><li>{@code progressFile}:
+ * Append the progress records to this file instead of printing them.
+ * <em>Defaults to stdout</em>.</li></ul>Note: Empty lines and
  * lines starting with a semicolon will be ignored.<p>
+ * {@code inputCSV} may also be a file converted by {@link CSVConvertPlugin_task}
+ * ({@link CSVLoader.StorageEngine#BINARY}): {@code idPos}, {@code latPos} and
+ * {@code lonPos} are not needed then, {@code tagDataPos} and
+ * {@code tagMappings} refer to the columns of the binary file (by position or
+ * name), and all of them are imported by default.</p><p>
  * If you want to use the plugin as a lib, you might also be interested at the
  * test classes.</p>
  *
@@ -78,15 +150,29 @@ public class CSVImportPlugin_task implements SinkSource, EntityProcessor, Progre
         LOG
     }
 
+    /**
+     * The metadata key that announces how the entity stream passed to
+     * {@link #initialize(java.util.Map)} is sorted (like the header of sorted
+     * PBF files does). The tasks of OSMOSIS 0.43 do not set it, so
+     * {@code csvSorted} and {@code presortCSV} choose the merge join without
+     * it; only a stream that is announced to be unsorted (value
+     * {@code false}) keeps them from doing so.
+     */
+    public static final String METADATA_SORTED = "Sort.Type_then_ID";
     private static final Logger logger = Logger.getLogger(CSVImportPlugin_task.class.getName());
+    /**
+     * How many entities are tagged per batch with {@code workers > 1}?
+     */
+    private static final int TAGGING_BATCH_SIZE = 1024;
     /**
      * The next stage of the OSMOSIS pipeline.
      */
     private Sink sink;
     /**
-     * The name of the tag where the output value will be stored at.
+     * The imported CSV columns and the names of the tags where their values
+     * will be stored at.
      */
-    private final String outputTag;
+    private final TagColumnMapping tagColumns;
 
     /**
      * CSV line position of the OSM id (first field = {@code 0}).
@@ -100,10 +186,6 @@ public class CSVImportPlugin_task implements SinkSource, EntityProcessor, Progre
      * CSV line position of the OSM longitude (first field = {@code 0}).
      */
     private final int osmLongitudeCSVPosition;
-    /**
-     * CSV line position of the data to import (first field = {@code 0}).
-     */
-    private final int tagDataCSVPosition;
     /**
      * See {@link CSVImportPlugin_task}.
      */
@@ -123,19 +205,63 @@ public class CSVImportPlugin_task implements SinkSource, EntityProcessor, Progre
     /**
      * The writer of the logfile (used in mode {@link MaxDistAction#LOG}).
      */
-    private PrintWriter logWriter;
+    private DirtyNodeLog dirtyNodeLog;
+    /**
+     * The dirty nodes found by the pipeline thread, not submitted to
+     * {@link #dirtyNodeLog} yet.
+     */
+    private DirtyNodeLog.RecordBuffer dirtyNodes;
     /**
-     * The path to the logfile.
+     * Statistics, see {@link CSVImportOptions#setJmxMetrics(boolean)}.
      */
-    private String logfilePath;
+    private final CSVImportMetrics metrics;
     /**
-     * Statistics.
+     * See {@link CSVImportOptions#setCsvSorted(boolean)}.
      */
-    private int numberOfNodesProcessed = 0, numberOfNodesImportedSuccessfully = 0, numberOfNodesNotFoundInCSV = 0, numberOfNodesNotImportedDueToMaxDist = 0;
+    private final boolean csvSorted;
     /**
-     * Thread to output the status information or {@code null}.
+     * See {@link CSVImportOptions#setPresortCSV(boolean)}.
      */
-    private final ProgressMonitoringThread monitoringThread;
+    private final boolean presortCSV;
+    /**
+     * See {@link CSVImportOptions#setPreloadCSV(boolean)}.
+     */
+    private final boolean preloadCSV;
+    /**
+     * Writes the progress records or {@code null}.
+     */
+    private final ProgressReporter progressReporter;
+    /**
+     * See {@link CSVImportOptions#setWorkers(int)}.
+     */
+    private final int workers;
+    /**
+     * See {@link CSVImportOptions#setEntityTypes(java.util.Set)}.
+     */
+    private final Set<EntityType> entityTypes;
+    /**
+     * See {@link CSVImportOptions#setMatchByCoordinates(boolean)}.
+     */
+    private final boolean matchByCoordinates;
+    /**
+     * Tags the batches if {@link #workers} {@code > 1}, created with the first
+     * batch.
+     */
+    private ExecutorService taggingPool;
+    /**
+     * The batches being tagged, in stream order.
+     */
+    private final Deque<Future<TaggingBatch>> pendingBatches = new ArrayDeque<>();
+    /**
+     * The batch that is being filled or {@code null}.
+     */
+    private TaggingBatch currentBatch;
+    /**
+     * May the workers look up the nodes themselves (see
+     * {@link CSVLoader#prepareConcurrentLookups()})? {@code null} until the
+     * first batch is submitted.
+     */
+    private Boolean concurrentLookups;
 
     /**
      * Standard constructor with some sanity checks.
@@ -156,10 +282,37 @@ public class CSVImportPlugin_task implements SinkSource, EntityProcessor, Progre
      * {@link CSVLoader#CSVLoader(java.io.File, int, int, int, int, int)}.
      * @param progressInformationIntervalSeconds If set to {@code -1}, nothing
      * is changed. If set to something higher than {@code 0}, at this interval,
-     * an extra Thread ({@link ProgressMonitoringThread} will print progress
-     * information onto the screen.
+     * a {@link ProgressReporter} will print progress information as JSON
+     * lines.
      */
     public CSVImportPlugin_task(String inputCSV, int osmIdPos, int osmLatPos, int osmLonPos, int dataPos, String outputTagName, double maxDist, MaxDistAction maxDistAction, int csvCacheSize, int progressInformationIntervalSeconds) {
+        this(inputCSV, osmIdPos, osmLatPos, osmLonPos, dataPos, outputTagName, maxDist, maxDistAction, csvCacheSize, progressInformationIntervalSeconds, new CSVImportOptions());
+    }
+
+    /**
+     * Constructor with some sanity checks and additional options.
+     *
+     * @param inputCSV The input CSV file.
+     * @param osmIdPos The CSV line position of the OSM id (first field =
+     * {@code 0}).
+     * @param osmLatPos The CSV line position of the OSM latitude (first field =
+     * {@code 0}).
+     * @param osmLonPos The CSV line position of the OSM longitude (first field
+     * = {@code 0}).
+     * @param dataPos The CSV line position of the data to be imported (first
+     * field = {@code 0}).
+     * @param outputTagName The name of the output tag.
+     * @param maxDist See {@link CSVImportPlugin_task}.
+     * @param maxDistAction See {@link CSVImportPlugin_task}.
+     * @param csvCacheSize The line reading cache size, see
+     * {@link CSVLoader#CSVLoader(java.io.File, int, int, int, int, int)}.
+     * @param progressInformationIntervalSeconds If set to {@code -1}, nothing
+     * is changed. If set to something higher than {@code 0}, at this interval,
+     * a {@link ProgressReporter} will print progress information as JSON
+     * lines.
+     * @param options Additional options, see {@link CSVImportOptions}.
+     */
+    public CSVImportPlugin_task(String inputCSV, int osmIdPos, int osmLatPos, int osmLonPos, int dataPos, String outputTagName, double maxDist, MaxDistAction maxDistAction, int csvCacheSize, int progressInformationIntervalSeconds, CSVImportOptions options) {
         if (inputCSV.equals("")) {
             throw new IllegalArgumentException("You have to provide an input file!");
         }
@@ -167,56 +320,116 @@ public class CSVImportPlugin_task implements SinkSource, EntityProcessor, Progre
         this.osmIdCSVPosition = osmIdPos;
         this.osmLatitudeCSVPosition = osmLatPos;
         this.osmLongitudeCSVPosition = osmLonPos;
-        this.tagDataCSVPosition = dataPos;
-        this.outputTag = outputTagName;
         this.maxNodeDistance = maxDist;
         this.maxDistAction = maxDistAction;
+        this.csvSorted = options.isCsvSorted();
+        this.presortCSV = options.isPresortCSV();
+        this.preloadCSV = options.isPreloadCSV();
+        this.workers = options.getWorkers();
+        this.entityTypes = options.getEntityTypes();
+        this.matchByCoordinates = options.isMatchByCoordinates();
 
         // Sanity checks
         if (!this.inputCSV.isFile() || !this.inputCSV.canRead()) {
             throw new IllegalArgumentException(this.inputCSV.getPath() + " is not a file or not readable!");
         }
 
-        if (this.osmIdCSVPosition <= 0) {
+        // Files converted by convert-csv-for-import bring their column names
+        List<String> binaryColumnNames = null;
+        boolean binaryCoordinates = false;
+        try {
+            if (BinaryCSVFile.isBinaryFile(this.inputCSV)) {
+                BinaryCSVFile binaryFile = new BinaryCSVFile(this.inputCSV);
+                binaryColumnNames = binaryFile.getColumnNames();
+                binaryCoordinates = binaryFile.hasCoordinates();
+            }
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Cannot read " + this.inputCSV.getPath(), ex);
+        }
+        boolean binaryInput = null != binaryColumnNames;
+
+        if (this.osmIdCSVPosition <= 0 && !this.matchByCoordinates && !binaryInput) {
             throw new IllegalArgumentException("Please provide an idPos greater than 0");
         }
-        if (this.tagDataCSVPosition <= 0) {
+        List<String> header = null;
+        if (binaryInput) {
+            header = binaryColumnNames;
+        } else if (options.isHeaderRow()) {
+            try {
+                header = TagColumnMapping.readHeader(this.inputCSV, options.getDelimiter());
+            } catch (IOException ex) {
+                throw new IllegalArgumentException("Cannot read the header row of " + this.inputCSV.getPath(), ex);
+            }
+        } else if (options.getTagMappings().trim().equals("") && dataPos <= 0) {
             throw new IllegalArgumentException("Please provide a tagDataPos greater than 0");
         }
-        if (this.outputTag.equals("")) {
+        if (dataPos > 0 && outputTagName.equals("")) {
             throw new IllegalArgumentException("Please provide an outputTag");
         }
+        if (binaryInput) {
+            // The binary file holds the data columns only
+            this.tagColumns = TagColumnMapping.resolve(dataPos, outputTagName, options.getTagMappings(), header, -1, -1, -1);
+        } else {
+            this.tagColumns = TagColumnMapping.resolve(dataPos, outputTagName, options.getTagMappings(), header, osmIdPos, osmLatPos, osmLonPos);
+        }
+        if (this.tagColumns.size() == 0) {
+            throw new IllegalArgumentException("Please provide a tagDataPos or tagMappings");
+        }
 
-        if (this.maxNodeDistance < Double.POSITIVE_INFINITY && (this.osmLatitudeCSVPosition < 0 || this.osmLongitudeCSVPosition < 0)) {
+        if (binaryInput) {
+            if (this.maxNodeDistance < Double.POSITIVE_INFINITY && !binaryCoordinates) {
+                throw new IllegalArgumentException("The binary file has no coordinates, convert it with latPos and lonPos to use maxDist");
+            }
+            if (this.matchByCoordinates) {
+                throw new IllegalArgumentException("Binary files cannot be matched by coordinates");
+            }
+        } else if (this.maxNodeDistance < Double.POSITIVE_INFINITY && (this.osmLatitudeCSVPosition < 0 || this.osmLongitudeCSVPosition < 0)) {
             throw new IllegalArgumentException("Provide latPos and lonPos when using maxDist");
         }
+        if (this.matchByCoordinates && (this.osmLatitudeCSVPosition <= 0 || this.osmLongitudeCSVPosition <= 0)) {
+            throw new IllegalArgumentException("Provide latPos and lonPos when matching by coordinates");
+        }
+        if (this.matchByCoordinates && Double.isInfinite(this.maxNodeDistance)) {
+            throw new IllegalArgumentException("Please provide a finite maxDist to match by coordinates");
+        }
 
         try {
-            this.csvLoader = new CSVLoader(this.inputCSV, csvCacheSize, osmIdPos, osmLatPos, osmLonPos, dataPos);
+            this.csvLoader = new CSVLoader(this.inputCSV, csvCacheSize, osmIdPos, osmLatPos, osmLonPos, this.tagColumns.getPositions(), options);
+            if (this.matchByCoordinates) {
+                this.csvLoader.useSpatialMatching(this.maxNodeDistance);
+            }
             if (this.maxDistAction == MaxDistAction.LOG) {
-                File logFileFile = new File(this.inputCSV.getParent(), stripExtension(this.inputCSV.getName()) + "-dirtyNodes.csv");
-                this.logWriter = new PrintWriter(logFileFile);
-                this.logfilePath = logFileFile.getPath();
+                File logFileFile = new File(this.inputCSV.getParent(), stripExtension(this.inputCSV.getName()) + "-dirtyNodes.csv" + (options.isGzipDirtyNodeLog() ? ".gz" : ""));
+                this.dirtyNodeLog = new DirtyNodeLog(logFileFile, options.isGzipDirtyNodeLog());
+                this.dirtyNodes = this.dirtyNodeLog.acquire();
                 this.initLogfile();
             }
-        } catch (FileNotFoundException ex) {
+        } catch (IOException ex) {
             this.csvLoader = null;
             logger.log(Level.SEVERE, null, ex);
             System.exit(1);
         }
+        this.metrics = new CSVImportMetrics(this.csvLoader);
+        if (options.isJmxMetrics()) {
+            try {
+                this.metrics.register(this.inputCSV.getName());
+            } catch (JMException e) {
+                logger.log(Level.WARNING, "Could not register the metrics", e);
+            }
+        }
 
-        // Initializes monitoring thread
+        // Initializes progress reporting
         if (progressInformationIntervalSeconds > 0) {
-            this.monitoringThread = new ProgressMonitoringThread(this, progressInformationIntervalSeconds);
-            this.monitoringThread.start();
+            this.progressReporter = this.createProgressReporter(progressInformationIntervalSeconds, options);
+            this.progressReporter.start();
         } else {
-            this.monitoringThread = null;
+            this.progressReporter = null;
         }
     }
 
     /**
      * Standard constructor with some sanity checks, but without
-     * {@link ProgressMonitoringThread}.
+     * {@link ProgressReporter}.
      *
      * @param inputCSV The input CSV file.
      * @param osmIdPos The CSV line position of the OSM id (first field =
@@ -237,14 +450,57 @@ public class CSVImportPlugin_task implements SinkSource, EntityProcessor, Progre
         this(inputCSV, osmIdPos, osmLatPos, osmLonPos, dataPos, outputTagName, maxDist, maxDistAction, csvCacheSize, -1);
     }
 
+    /**
+     * Create the {@link ProgressReporter}. The parsed bytes are only compared
+     * to the size of the CSV file if they are parsed from it, not from a
+     * compressed or binary file.
+     *
+     * @param intervalSeconds The time between the records.
+     * @param options The options, see
+     * {@link CSVImportOptions#setExpectedNodes(long)} and
+     * {@link CSVImportOptions#setProgressFile(java.lang.String)}.
+     * @return The reporter, not started yet.
+     */
+    private ProgressReporter createProgressReporter(int intervalSeconds, CSVImportOptions options) {
+        long csvBytesTotal = -1;
+        try {
+            if (this.csvLoader.getStorageEngine() != CSVLoader.StorageEngine.BINARY && !CompressedInput.isCompressed(this.inputCSV)) {
+                csvBytesTotal = this.inputCSV.length();
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Cannot tell the size of the CSV file", ex);
+        }
+        if (options.getProgressFile().equals("")) {
+            return new ProgressReporter(this.metrics, this.csvLoader, csvBytesTotal, options.getExpectedNodes(), intervalSeconds, System.out, false);
+        }
+        try {
+            PrintStream output = new PrintStream(new FileOutputStream(options.getProgressFile(), true), true, "UTF-8");
+            return new ProgressReporter(this.metrics, this.csvLoader, csvBytesTotal, options.getExpectedNodes(), intervalSeconds, output, true);
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Cannot write " + options.getProgressFile(), ex);
+        }
+    }
+
     /**
      * Prints statistics with sysout.
      */
     private void printStatistics() {
-        System.out.println("CSV import finished. Processed nodes: " + this.numberOfNodesProcessed + "; Successful imorts: " + this.numberOfNodesImportedSuccessfully + "; Errors: " + (this.numberOfNodesProcessed - this.numberOfNodesImportedSuccessfully));
+        long nodesProcessed = this.metrics.getNodesProcessed();
+        long nodesImported = this.metrics.getNodesImported();
+        System.out.println("CSV import finished. Processed nodes: " + nodesProcessed + "; Successful imorts: " + nodesImported + "; Errors: " + (nodesProcessed - nodesImported));
+        if (this.entityTypes.contains(EntityType.Way)) {
+            long waysProcessed = this.metrics.getWaysProcessed();
+            long waysImported = this.metrics.getWaysImported();
+            System.out.println("Processed ways: " + waysProcessed + "; Successful imports: " + waysImported + "; Errors: " + (waysProcessed - waysImported));
+        }
+        if (this.entityTypes.contains(EntityType.Relation)) {
+            long relationsProcessed = this.metrics.getRelationsProcessed();
+            long relationsImported = this.metrics.getRelationsImported();
+            System.out.println("Processed relations: " + relationsProcessed + "; Successful imports: " + relationsImported + "; Errors: " + (relationsProcessed - relationsImported));
+        }
         System.out.println("More detailed:" + this.getProgressMessage());
-        if (null != this.logWriter) {
-            System.out.println("Log file written to: " + this.logfilePath);
+        if (null != this.dirtyNodeLog) {
+            System.out.println("Log file written to: " + this.dirtyNodeLog.getFile().getPath());
         }
     }
 
@@ -255,108 +511,225 @@ public class CSVImportPlugin_task implements SinkSource, EntityProcessor, Progre
 
     @Override
     public void process(BoundContainer boundContainer) {
+        if (this.isBatching()) {
+            this.addToBatch(boundContainer);
+            return;
+        }
         sink.process(boundContainer);
     }
 
     @Override
     public void process(NodeContainer container) {
-        // Backup existing node entity
-        Node node = container.getEntity();
-        // Backup id, lat and lon of node entity
-        long osmId = node.getId();
-        double lat = node.getLatitude();
-        double lon = node.getLongitude();
-
-        // Get all the tags from the node
-        Collection<Tag> nodeTags = node.getTags();
-        /*
-         * Remove the output attribute.
-         */
-        for (Tag tag : nodeTags) {
-            if (tag.getKey().equalsIgnoreCase(this.outputTag)) {
-                nodeTags.remove(tag);
-                break;
+        this.processEntity(container);
+    }
+
+    /**
+     * Tag an entity if its type is in {@link #entityTypes} and pass it on.
+     *
+     * @param container The entity.
+     */
+    private void processEntity(EntityContainer container) {
+        boolean tagged = this.isTagged(container);
+        if (this.workers > 1 && (tagged || this.isBatching())) {
+            this.addToBatch(container);
+            return;
+        }
+        // Distribute the (new) container to the following sink
+        sink.process(tagged ? this.tagEntity(container, this.findItem(container.getEntity()), this.dirtyNodes) : container);
+        if (null != this.dirtyNodes && this.dirtyNodes.size() >= DirtyNodeLog.SUBMIT_SIZE) {
+            this.submitDirtyNodes();
+        }
+    }
+
+    /**
+     * Should an entity be tagged?
+     *
+     * @param container The entity.
+     * @return {@code true} if its type is in {@link #entityTypes}.
+     */
+    private boolean isTagged(EntityContainer container) {
+        return this.entityTypes.contains(container.getEntity().getType());
+    }
+
+    /**
+     * Look up an entity at the CSV file. The lookup is timed if the metrics
+     * are registered.
+     *
+     * @param entity The OSM node, way or relation.
+     * @return The item or {@code null} if it is not there (or the lookup
+     * failed).
+     */
+    private CSVItem findItem(Entity entity) {
+        if (!this.metrics.isRegistered()) {
+            return this.lookUp(entity);
+        }
+        long start = System.nanoTime();
+        CSVItem item = this.lookUp(entity);
+        this.metrics.lookupLatency.record(System.nanoTime() - start);
+        return item;
+    }
+
+    /**
+     * See {@link #findItem(Entity)}.
+     *
+     * @param entity The OSM node, way or relation.
+     * @return The item or {@code null}.
+     */
+    private CSVItem lookUp(Entity entity) {
+        try {
+            if (this.matchByCoordinates) {
+                // Only nodes have coordinates
+                return entity instanceof Node ? this.csvLoader.findNearestItem(((Node) entity).getLatitude(), ((Node) entity).getLongitude()) : null;
             }
+            return this.csvLoader.findItem(entity.getType(), entity.getId());
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, null, ex);
+            return null;
         }
+    }
 
-        // Get the output value 
-        String outputTagValue = this.getNodeTagValue(osmId, lat, lon);
+    /**
+     * Tag an entity. May be called by several threads at once. Entities that
+     * do not change are passed on as they are; otherwise, the tags are changed
+     * at the writeable instance of the entity (see
+     * {@link EntityContainer#getWriteableInstance()}), so everything else,
+     * including the meta tags, is kept.
+     *
+     * @param container The node, way or relation.
+     * @param item The CSV item of the entity, may be {@code null}.
+     * @param dirtyNodeLog Where to log nodes exceeding {@link #maxNodeDistance}
+     * in mode {@link MaxDistAction#LOG}.
+     * @return The tagged entity, {@code container} if nothing changed.
+     */
+    private EntityContainer tagEntity(EntityContainer container, CSVItem item, DirtyNodeLog.RecordBuffer dirtyNodeLog) {
+        Entity entity = container.getEntity();
+        this.metrics.countProcessed(entity.getType());
 
-        // Add new output tag if it is there
-        if (null != outputTagValue && !outputTagValue.equals("")) {
-            nodeTags.add(new Tag(this.outputTag, outputTagValue));
-            this.numberOfNodesImportedSuccessfully++;
+        // Get the output values, one lookup for all of them
+        CSVItem acceptedItem = this.acceptItem(entity, item, dirtyNodeLog);
+        String[] outputTagValues = new String[this.tagColumns.size()];
+        boolean hasOutputValue = false;
+        for (int column = 0; column < outputTagValues.length; column++) {
+            outputTagValues[column] = null == acceptedItem ? null : acceptedItem.getData(column);
+            if (null != outputTagValues[column] && !outputTagValues[column].equals("")) {
+                hasOutputValue = true;
+            }
+        }
+        if (hasOutputValue) {
+            this.metrics.countImported(entity.getType());
         }
 
-        // Create new node entity with adjusted attributes
-        CommonEntityData ced = new CommonEntityData(
-                node.getId(),
-                node.getVersion(),
-                node.getTimestamp(),
-                node.getUser(),
-                node.getChangesetId(),
-                nodeTags);
+        boolean unchanged = true;
+        for (int column = 0; unchanged && column < outputTagValues.length; column++) {
+            unchanged = isTagUnchanged(entity, this.tagColumns.getTagKey(column), outputTagValues[column]);
+        }
+        if (unchanged) {
+            // Nothing to do
+            return container;
+        }
 
-        this.numberOfNodesProcessed++;
+        // Replace the output attributes
+        EntityContainer writeableContainer = container.getWriteableInstance();
+        Entity writeableEntity = writeableContainer.getEntity();
+        if (writeableEntity != entity) {
+            // The copy of a read-only entity does not get the meta tags
+            writeableEntity.getMetaTags().putAll(entity.getMetaTags());
+        }
+        Collection<Tag> entityTags = writeableEntity.getTags();
+        for (int column = 0; column < outputTagValues.length; column++) {
+            String outputTag = this.tagColumns.getTagKey(column);
+            Tag existingTag = findTag(writeableEntity, outputTag);
+            if (null != existingTag) {
+                entityTags.remove(existingTag);
+            }
+            if (null != outputTagValues[column] && !outputTagValues[column].equals("")) {
+                entityTags.add(new Tag(outputTag, outputTagValues[column]));
+            }
+        }
+        return writeableContainer;
+    }
 
-        // Distribute the new nodecontainer to the following sink
-        sink.process(new NodeContainer(new Node(ced, lat, lon)));
+    /**
+     * Find an existing tag, ignoring the case of its key.
+     *
+     * @param entity The entity.
+     * @param key The key of the tag.
+     * @return The tag or {@code null}.
+     */
+    private static Tag findTag(Entity entity, String key) {
+        for (Tag tag : entity.getTags()) {
+            if (tag.getKey().equalsIgnoreCase(key)) {
+                return tag;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Would importing a value leave the entity as it is?
+     *
+     * @param entity The entity.
+     * @param key The key of the output tag.
+     * @param value The value to import, {@code null} or empty if there is none.
+     * @return {@code true} if the entity already has exactly this tag or has
+     * neither the tag nor a value to import.
+     */
+    private static boolean isTagUnchanged(Entity entity, String key, String value) {
+        boolean hasValue = null != value && !value.equals("");
+        Tag existingTag = findTag(entity, key);
+        return null == existingTag ? !hasValue
+                : hasValue && existingTag.getKey().equals(key) && existingTag.getValue().equals(value);
     }
 
     /**
-     * Look for the current node at the cache and check the distance if found.
+     * Check the distance of a node to its CSV item. Ways and relations have
+     * no position, so their items are always accepted.
      *
-     * @param osmId The OSM node ID.
-     * @param lat The OSM node latitude.
-     * @param lon The OSM node longitude.
-     * @return The value to be imported or {@code null} if there is no such
-     * element at the CSV or the distance is larger than
+     * @param entity The OSM node, way or relation.
+     * @param item The CSV item of the entity, may be {@code null}.
+     * @param dirtyNodeLog Where to log nodes exceeding {@link #maxNodeDistance}
+     * in mode {@link MaxDistAction#LOG}.
+     * @return The item whose values are to be imported or {@code null} if
+     * there is no such element at the CSV or the distance is larger than
      * {@link #maxNodeDistance} and we are in {@link MaxDistAction#DELETE} mode.
      */
-    private String getNodeTagValue(long osmId, double lat, double lon) {
-        // Look for the item
-        CSVItem item = null;
-        try {
-            item = this.csvLoader.findItem(osmId);
-        } catch (IOException ex) {
-            logger.log(Level.SEVERE, null, ex);
-        }
+    private CSVItem acceptItem(Entity entity, CSVItem item, DirtyNodeLog.RecordBuffer dirtyNodeLog) {
         if (null == item) {
-            this.numberOfNodesNotFoundInCSV++;
-            return "";
+            this.metrics.countNotFound(entity.getType());
+            return null;
+        }
+        if (!(entity instanceof Node)) {
+            return item;
+        }
+        long osmId = entity.getId();
+        double lat = ((Node) entity).getLatitude();
+        double lon = ((Node) entity).getLongitude();
+        // Check the distance, but skip the haversine formula if the node is surely close enough
+        if (this.maxNodeDistance == Double.POSITIVE_INFINITY || item.isSurelyWithin(lat, lon, this.maxNodeDistance)) {
+            return item;
         }
-        // Check the distance
         double distance = item.getDistance(lat, lon);
         if (distance > this.maxNodeDistance) {
             if (this.maxDistAction == MaxDistAction.DELETE) {
                 logger.log(Level.WARNING, "Node {0} has distance {1} to the point where it should be! We do not import it.", new Object[]{osmId, distance});
-                this.numberOfNodesNotImportedDueToMaxDist++;
-                return "";
+                this.metrics.nodesSkippedDueToMaxDist.increment();
+                return null;
             } else if (this.maxDistAction == MaxDistAction.WARN) {
                 logger.log(Level.WARNING, "Node {0} has distance {1} to the point where it should be!", new Object[]{osmId, distance});
-                return item.DATA;
+                return item;
             } else if (this.maxDistAction == MaxDistAction.LOG) {
-                logger.log(Level.WARNING, "Node {0} has distance {1} to the point where it should be! We do not import it.", new Object[]{osmId, distance});
-                this.logWriter.print(osmId);
-                this.logWriter.print(",");
-                this.logWriter.print(lat);
-                this.logWriter.print(",");
-                this.logWriter.print(lon);
-                this.logWriter.print(",");
-                this.logWriter.print(item.OSM_LAT);
-                this.logWriter.print(",");
-                this.logWriter.print(item.OSM_LON);
-                this.logWriter.print(",");
-                this.logWriter.print(item.DATA);
-                this.logWriter.print(",");
-                this.logWriter.println(distance);
-                this.numberOfNodesNotImportedDueToMaxDist++;
-                return "";
+                // The log file has the details, so do not flood the console
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.log(Level.FINE, "Node {0} has distance {1} to the point where it should be! We do not import it.", new Object[]{osmId, distance});
+                }
+                dirtyNodeLog.addRecord(osmId, lat, lon, item.OSM_LAT, item.OSM_LON, item.DATA, distance);
+                this.metrics.nodesSkippedDueToMaxDist.increment();
+                return null;
             } else {
                 throw new IllegalArgumentException("Unknown action: " + this.maxDistAction.toString());
             }
         }
-        return item.DATA;
+        return item;
     }
 
     /**
@@ -365,45 +738,197 @@ public class CSVImportPlugin_task implements SinkSource, EntityProcessor, Progre
      * @throws NullPointerException If there is no log file.
      */
     private void initLogfile() {
-        this.logWriter.println("; Input file: " + this.inputCSV.getPath());
-        this.logWriter.println("; osmId,lat,lon,csvLat,csvLon,csvData,deviation");
+        this.dirtyNodes.addLine("; Input file: " + this.inputCSV.getPath());
+        this.dirtyNodes.addLine("; osmId,lat,lon,csvLat,csvLon,csvData,deviation");
     }
 
     /**
-     * Closes the log file if needed.
+     * Hand the dirty nodes found by the pipeline thread over to the log
+     * writer.
+     */
+    private void submitDirtyNodes() {
+        this.submitDirtyNodes(this.dirtyNodes);
+        this.dirtyNodes = this.dirtyNodeLog.acquire();
+    }
+
+    /**
+     * Hand dirty nodes over to the log writer.
+     *
+     * @param buffer The dirty nodes.
+     */
+    private void submitDirtyNodes(DirtyNodeLog.RecordBuffer buffer) {
+        try {
+            this.dirtyNodeLog.submit(buffer);
+        } catch (IOException e) {
+            throw new OsmosisRuntimeException("Could not write the log file", e);
+        }
+    }
+
+    /**
+     * Writes the rest of the log file and closes it if needed.
      */
     private void finishLogfile() {
-        if (null != this.logWriter) {
-            this.logWriter.close();
+        if (null != this.dirtyNodeLog) {
+            this.submitDirtyNodes(this.dirtyNodes);
+            this.dirtyNodes = null;
+            try {
+                this.dirtyNodeLog.close();
+            } catch (IOException e) {
+                throw new OsmosisRuntimeException("Could not write the log file", e);
+            }
         }
     }
 
     @Override
     public void process(WayContainer container) {
-        sink.process(container);
+        this.processEntity(container);
     }
 
     @Override
     public void process(RelationContainer container) {
-        sink.process(container);
+        this.processEntity(container);
+    }
+
+    /**
+     * Are there nodes being tagged by the workers? Then other entities have to
+     * wait for them, too.
+     *
+     * @return {@code true} if entities have to be added to the batches.
+     */
+    private boolean isBatching() {
+        return null != this.currentBatch || !this.pendingBatches.isEmpty();
+    }
+
+    /**
+     * Add an entity to {@link #currentBatch} and submit the batch if it is
+     * full.
+     *
+     * @param container The entity.
+     */
+    private void addToBatch(EntityContainer container) {
+        if (null == this.currentBatch) {
+            this.currentBatch = new TaggingBatch();
+        }
+        this.currentBatch.add(container);
+        if (this.currentBatch.isFull()) {
+            this.submitBatch();
+        }
+    }
+
+    /**
+     * Hand {@link #currentBatch} over to the workers. If too many batches are
+     * pending, wait for the oldest one first, so the memory stays bounded.
+     */
+    private void submitBatch() {
+        if (null == this.taggingPool) {
+            try {
+                this.concurrentLookups = this.csvLoader.prepareConcurrentLookups();
+            } catch (IOException ex) {
+                logger.log(Level.SEVERE, null, ex);
+                this.concurrentLookups = false;
+            }
+            logger.log(Level.FINER, "Tagging nodes with {0} workers, concurrent lookups: {1}", new Object[]{this.workers, this.concurrentLookups});
+            this.taggingPool = Executors.newFixedThreadPool(this.workers, new DaemonThreadFactory("csv-tagger"));
+        }
+        TaggingBatch batch = this.currentBatch;
+        this.currentBatch = null;
+        if (!this.concurrentLookups) {
+            // The loader has to be used by one thread, in stream order
+            batch.lookUpItems();
+        }
+        while (this.pendingBatches.size() >= 2 * this.workers) {
+            this.emitOldestBatch();
+        }
+        this.pendingBatches.add(this.taggingPool.submit(batch));
+    }
+
+    /**
+     * Wait for the oldest pending batch and pass its entities to the sink.
+     */
+    private void emitOldestBatch() {
+        TaggingBatch batch;
+        try {
+            batch = this.pendingBatches.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OsmosisRuntimeException("Interrupted while tagging nodes", e);
+        } catch (ExecutionException e) {
+            throw new OsmosisRuntimeException("Could not tag nodes", e.getCause());
+        }
+        for (int i = 0; i < batch.size; i++) {
+            sink.process(batch.containers[i]);
+        }
+        if (null != batch.dirtyNodes) {
+            // Keep the order: The nodes before the batch first
+            if (!this.dirtyNodes.isEmpty()) {
+                this.submitDirtyNodes();
+            }
+            this.submitDirtyNodes(batch.dirtyNodes);
+        }
+    }
+
+    /**
+     * Submit {@link #currentBatch} and pass all pending batches to the sink.
+     */
+    private void flushBatches() {
+        if (null != this.currentBatch) {
+            this.submitBatch();
+        }
+        while (!this.pendingBatches.isEmpty()) {
+            this.emitOldestBatch();
+        }
+    }
+
+    /**
+     * Stop the workers.
+     */
+    private void shutdownTaggingPool() {
+        if (null != this.taggingPool) {
+            this.taggingPool.shutdownNow();
+            this.taggingPool = null;
+        }
     }
 
     @Override
     public void complete() {
-        if (null != this.monitoringThread) {
-            this.monitoringThread.taskFinished();
-            this.monitoringThread.interrupt();
+        this.flushBatches();
+        this.shutdownTaggingPool();
+        if (null != this.progressReporter) {
+            this.progressReporter.close();
         }
-        this.printStatistics();
         this.finishLogfile();
+        this.printStatistics();
         sink.complete();
     }
 
     @Override
     public void release() {
+        this.shutdownTaggingPool();
+        if (null != this.dirtyNodeLog) {
+            // Only does something if complete() has not been called
+            try {
+                this.dirtyNodeLog.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not write the log file", e);
+            }
+        }
+        if (null != this.progressReporter) {
+            // Only does something if complete() has not been called
+            this.progressReporter.close();
+        }
+        this.csvLoader.close();
+        this.metrics.unregister();
         sink.release();
     }
 
+    /**
+     * @return The metrics of the import. They may be read by any thread while
+     * the task runs.
+     */
+    public CSVImportMetrics getMetrics() {
+        return this.metrics;
+    }
+
     @Override
     public void setSink(Sink sink) {
         this.sink = sink;
@@ -412,6 +937,34 @@ public class CSVImportPlugin_task implements SinkSource, EntityProcessor, Progre
     @Override
     public void initialize(Map<String, Object> metaData) {
         // added in osmosis 0.41
+        if ((this.csvSorted || this.presortCSV) && this.csvLoader.getStorageEngine() != CSVLoader.StorageEngine.MAPPED && this.csvLoader.getStorageEngine() != CSVLoader.StorageEngine.BINARY && !this.matchByCoordinates) {
+            if (isUnsortedStream(metaData)) {
+                logger.log(Level.WARNING, "The OSM stream is announced to be unsorted, not using a merge join");
+            } else {
+                logger.log(Level.INFO, "CSV file is sorted, using a merge join");
+                this.csvLoader.useMergeJoin();
+            }
+        }
+        if (this.preloadCSV) {
+            this.csvLoader.startPreload();
+        }
+        sink.initialize(metaData);
+    }
+
+    /**
+     * Is the entity stream announced to be unsorted? See
+     * {@link #METADATA_SORTED}.
+     *
+     * @param metaData The metadata passed to {@link #initialize(java.util.Map)}.
+     * @return {@code true} if the stream is announced to be unsorted,
+     * {@code false} if it is announced to be sorted or not announced at all.
+     */
+    private static boolean isUnsortedStream(Map<String, Object> metaData) {
+        if (null == metaData || !metaData.containsKey(METADATA_SORTED)) {
+            return false;
+        }
+        Object value = metaData.get(METADATA_SORTED);
+        return Boolean.FALSE.equals(value) || "false".equalsIgnoreCase(String.valueOf(value));
     }
 
     @Override
@@ -421,10 +974,22 @@ public class CSVImportPlugin_task implements SinkSource, EntityProcessor, Progre
 
     @Override
     public String getProgressMessage() {
-        return " Cache entries: " + this.csvLoader.getCacheEntries() + " Processed nodes: " + this.numberOfNodesProcessed
-                + ", Imported values: " + this.numberOfNodesImportedSuccessfully
-                + ", Nodes not found: " + this.numberOfNodesNotFoundInCSV
-                + ", Nodes skipped due to maxDist: " + this.numberOfNodesNotImportedDueToMaxDist;
+        return " Cache entries: " + this.csvLoader.getCacheEntries()
+                + " (distinct values: " + this.csvLoader.getValueDictionarySize()
+                + ", bytes saved: " + this.csvLoader.getValueDictionaryBytesSaved() + ")"
+                + " Processed nodes: " + this.metrics.getNodesProcessed()
+                + ", Imported values: " + this.metrics.getNodesImported()
+                + ", Nodes not found: " + this.metrics.getNodesNotFound()
+                + ", Nodes skipped due to maxDist: " + this.metrics.getNodesSkippedDueToMaxDist()
+                + (this.entityTypes.contains(EntityType.Way) ? ", Processed ways: " + this.metrics.getWaysProcessed()
+                        + ", Imported values: " + this.metrics.getWaysImported()
+                        + ", Ways not found: " + this.metrics.getWaysNotFound() : "")
+                + (this.entityTypes.contains(EntityType.Relation) ? ", Processed relations: " + this.metrics.getRelationsProcessed()
+                        + ", Imported values: " + this.metrics.getRelationsImported()
+                        + ", Relations not found: " + this.metrics.getRelationsNotFound() : "")
+                + ", Rejected by id filter: " + this.csvLoader.getFilterRejections()
+                + ", Id filter false positives: " + this.csvLoader.getFilterFalsePositives()
+                + String.format(" (rate %.4f)", this.csvLoader.getFilterFalsePositiveRate());
     }
 
     /**
@@ -440,4 +1005,60 @@ public class CSVImportPlugin_task implements SinkSource, EntityProcessor, Progre
         }
         return filename;
     }
+
+    /**
+     * A batch of entities in stream order, tagged by a worker. Only the
+     * entities of {@link #entityTypes} are changed, the other entities just
+     * keep their place. The dirty nodes are collected per batch and submitted
+     * when the batch is passed to the sink, so they are in stream order, too.
+     */
+    private class TaggingBatch implements Callable<TaggingBatch> {
+
+        private final EntityContainer[] containers = new EntityContainer[TAGGING_BATCH_SIZE];
+        /**
+         * The CSV items of the entities if they have been looked up before the
+         * batch was submitted (see {@link #lookUpItems()}), otherwise
+         * {@code null}.
+         */
+        private CSVItem[] items;
+        private int size = 0;
+        /**
+         * The dirty nodes of the batch, if there is a log file.
+         */
+        private DirtyNodeLog.RecordBuffer dirtyNodes;
+
+        void add(EntityContainer container) {
+            this.containers[this.size++] = container;
+        }
+
+        boolean isFull() {
+            return this.size == this.containers.length;
+        }
+
+        /**
+         * Look up the items of the entities on the calling thread.
+         */
+        void lookUpItems() {
+            this.items = new CSVItem[this.size];
+            for (int i = 0; i < this.size; i++) {
+                if (CSVImportPlugin_task.this.isTagged(this.containers[i])) {
+                    this.items[i] = CSVImportPlugin_task.this.findItem(this.containers[i].getEntity());
+                }
+            }
+        }
+
+        @Override
+        public TaggingBatch call() {
+            DirtyNodeLog dirtyNodeLog = CSVImportPlugin_task.this.dirtyNodeLog;
+            this.dirtyNodes = null == dirtyNodeLog ? null : dirtyNodeLog.acquire();
+            for (int i = 0; i < this.size; i++) {
+                if (CSVImportPlugin_task.this.isTagged(this.containers[i])) {
+                    EntityContainer container = this.containers[i];
+                    CSVItem item = null == this.items ? CSVImportPlugin_task.this.findItem(container.getEntity()) : this.items[i];
+                    this.containers[i] = CSVImportPlugin_task.this.tagEntity(container, item, this.dirtyNodes);
+                }
+            }
+            return this;
+        }
+    }
 }
@@ -4,7 +4,7 @@ package net.bennokue.java.osmosis;
  * This class lets the CSVImportPlugin store lines from the CSV file to input at
  * a cache. Only relevant information will be stored: <ul><li>The OSM
  * id</li><li>The OSM latitude</li><li>The OSM longitude</li><li>The data to
- * import to a tag</li></ul>
+ * import to a tag (or several, see {@link #getData(int)})</li></ul>
  *
  * The fields are all public to keeps things (and expectations) as simple as
  * possible.
@@ -14,7 +14,7 @@ package net.bennokue.java.osmosis;
 public class CSVItem {
 
     /**
-     * The OSM ID of the line.
+     * The OSM ID of the line (for ways and relations, see {@link EntityKey}).
      */
     public final long OSM_ID;
     /**
@@ -26,9 +26,44 @@ public class CSVItem {
      */
     public final double OSM_LON;
     /**
-     * The data element that should be imported to a tag.
+     * The data element that should be imported to a tag (the first one if
+     * there are several).
      */
     public final String DATA;
+    /**
+     * All data elements, one per imported column.
+     */
+    private final String[] dataColumns;
+    /**
+     * The earth radius used by {@link #distFrom(double, double, double, double)}
+     * (meters).
+     */
+    private static final double EARTH_RADIUS = 6371000;
+    /**
+     * How much smaller than the maximum distance the bound of
+     * {@link #isSurelyWithin(double, double, double)} has to be. Covers the
+     * rounding of the haversine distance to {@code float} (and all other
+     * rounding errors) by a wide margin.
+     */
+    private static final double SURELY_WITHIN_TOLERANCE = 1e-6;
+    /**
+     * Steps of {@link #COSINE_BOUNDS} per degree of latitude.
+     */
+    private static final int COSINE_STEPS_PER_DEGREE = 100;
+    /**
+     * The cosine of every {@code 1/COSINE_STEPS_PER_DEGREE} degree of latitude
+     * from {@code 0} to {@code 90}. As the cosine falls towards the poles,
+     * {@code COSINE_BOUNDS[(int) (|lat| * COSINE_STEPS_PER_DEGREE)]} is never
+     * smaller than {@code cos(lat)}.
+     */
+    private static final double[] COSINE_BOUNDS = new double[90 * COSINE_STEPS_PER_DEGREE + 1];
+
+    static {
+        for (int i = 0; i < COSINE_BOUNDS.length; i++) {
+            COSINE_BOUNDS[i] = Math.cos(Math.toRadians((double) i / COSINE_STEPS_PER_DEGREE));
+        }
+        COSINE_BOUNDS[COSINE_BOUNDS.length - 1] = 0;
+    }
 
     /**
      * Simple standard constructor.
@@ -39,10 +74,41 @@ public class CSVItem {
      * @param data The data element that should be imported to a tag.
      */
     public CSVItem(long osmId, double osmLat, double osmLon, String data) {
+        this(osmId, osmLat, osmLon, new String[]{data});
+    }
+
+    /**
+     * Constructor for several data elements.
+     *
+     * @param osmId The OSM ID of the line.
+     * @param osmLat The OSM latitude of the line.
+     * @param osmLon The OSM longitude of the line.
+     * @param dataColumns The data elements that should be imported to tags,
+     * one per imported column (the array is not copied).
+     */
+    public CSVItem(long osmId, double osmLat, double osmLon, String[] dataColumns) {
         this.OSM_ID = osmId;
         this.OSM_LAT = osmLat;
         this.OSM_LON = osmLon;
-        this.DATA = data;
+        this.dataColumns = dataColumns;
+        this.DATA = dataColumns.length > 0 ? dataColumns[0] : null;
+    }
+
+    /**
+     * Get a data element.
+     *
+     * @param column The number of the imported column (first = {@code 0}).
+     * @return The data element, may be {@code null}.
+     */
+    public String getData(int column) {
+        return this.dataColumns[column];
+    }
+
+    /**
+     * @return The number of data elements.
+     */
+    public int getDataColumnCount() {
+        return this.dataColumns.length;
     }
 
     /**
@@ -58,6 +124,42 @@ public class CSVItem {
         return distFrom(this.OSM_LAT, this.OSM_LON, latitude, longitude);
     }
 
+    /**
+     * Cheap check whether a point is close to the OSM node stored at this
+     * object. It never computes a haversine distance: The great circle is not
+     * longer than any other path between the points, e.g. going along the
+     * parallel of this node to the longitude of the other point
+     * ({@code R * cos(lat) * |dLon|}, {@code lat} being the latitude of this
+     * node) and then along that meridian to the other point
+     * ({@code R * |dLat|}). So {@code R * (|dLat| + cos(lat) * |dLon|)} is an
+     * upper bound of the distance. {@code cos(lat)} comes from a table whose
+     * values are never smaller.
+     * <p>
+     * If the result is {@code true}, {@link #getDistance(double, double)} is
+     * not greater than {@code maxDistance}. If it is {@code false}, the
+     * distance has to be computed.</p>
+     *
+     * @param latitude Latitude of the other point.
+     * @param longitude Longitude of the other point.
+     * @param maxDistance The maximum distance in meters.
+     * @return {@code true} if the point is surely within {@code maxDistance}.
+     */
+    public boolean isSurelyWithin(double latitude, double longitude, double maxDistance) {
+        double dLat = Math.abs(latitude - this.OSM_LAT);
+        double dLon = Math.abs(longitude - this.OSM_LON);
+        if (dLon > 180) {
+            dLon = 360 - dLon;
+        }
+        double absLat = Math.abs(this.OSM_LAT);
+        if (!(absLat <= 90)) {
+            // NaN (no coordinates) or broken coordinates
+            return false;
+        }
+        double cosine = COSINE_BOUNDS[(int) (absLat * COSINE_STEPS_PER_DEGREE)];
+        double bound = EARTH_RADIUS * Math.toRadians(dLat + cosine * dLon);
+        return bound <= maxDistance * (1 - SURELY_WITHIN_TOLERANCE);
+    }
+
     /**
      * Distance funciton from
      * <a href="http://stackoverflow.com/questions/837872/calculate-distance-in-meters-when-you-know-longitude-and-latitude-in-java">here</a>,
@@ -70,7 +172,7 @@ public class CSVItem {
      * @return The distance between the two points in meters.
      */
     public static double distFrom(double lat1, double lng1, double lat2, double lng2) {
-        double earthRadius = 6371000; //meters
+        double earthRadius = EARTH_RADIUS; //meters
         double dLat = Math.toRadians(lat2 - lat1);
         double dLng = Math.toRadians(lng2 - lng1);
         double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
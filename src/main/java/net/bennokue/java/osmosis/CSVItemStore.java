@@ -0,0 +1,53 @@
+package net.bennokue.java.osmosis;
+
+/**
+ * Storage engine behind the {@link CSVLoader} cache. Implementations keep the
+ * parsed CSV lines and let the loader look them up by OSM id. See
+ * {@link CSVLoader.StorageEngine} for the available implementations. The data
+ * values are kept in a {@link ValueDictionary}, so each distinct value is
+ * stored only once.
+ *
+ * @author bennokue
+ */
+interface CSVItemStore {
+
+    /**
+     * Store a parsed CSV line. If there already is a line with the same OSM id,
+     * it will be replaced (like {@link java.util.Map#put(Object, Object)}).
+     *
+     * @param osmId The OSM id of the line.
+     * @param osmLat The OSM latitude of the line, fixed-point (see
+     * {@link FixedPointCoordinates}).
+     * @param osmLon The OSM longitude of the line, fixed-point.
+     * @param data The references of the data elements that should be
+     * imported to tags at {@link #getValueDictionary()}, one per imported
+     * column. All lines have the same number of columns. The references are
+     * copied, so the array may be reused for the next line.
+     */
+    void put(long osmId, int osmLat, int osmLon, int[] data);
+
+    /**
+     * Look up a line by its OSM id.
+     *
+     * @param osmId The OSM id to look for.
+     * @return The matching {@link CSVItem} or {@code null} if there is none.
+     */
+    CSVItem get(long osmId);
+
+    /**
+     * How many lines are stored?
+     *
+     * @return The number of stored lines.
+     */
+    int size();
+
+    /**
+     * Remove all stored lines.
+     */
+    void clear();
+
+    /**
+     * @return The dictionary that stores the distinct data values.
+     */
+    ValueDictionary getValueDictionary();
+}
@@ -0,0 +1,836 @@
+package net.bennokue.java.osmosis;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+
+/**
+ * Parses the lines of the CSV input file. The lines are scanned as bytes and
+ * only the configured columns are looked at: The id is parsed directly into a
+ * {@code long}, the coordinates into fixed-point {@code int}s (see
+ * {@link FixedPointCoordinates}). The tag data columns are only decoded into
+ * {@link String}s when they are asked for; {@link #addData(int, ValueDictionary)}
+ * hands their bytes to a {@link ValueDictionary} directly, so storing a line
+ * allocates nothing but the values that are new. The results of the last
+ * successfully parsed line can be read with the getters. Not thread-safe:
+ * Every thread needs its own parser.
+ * <p>
+ * Fields may be quoted as in RFC 4180 ({@code "a, b"}, {@code "say ""hi"""}),
+ * but must not contain line breaks. The delimiter is configurable, the
+ * charset has to encode it, quotes and line breaks as single bytes like ASCII
+ * does (UTF-8 and the ISO-8859 family do). Lines starting with {@code ;} are
+ * comments, whatever the delimiter is. Ids of ways and relations are
+ * prefixed with {@code w} or {@code r} and read as {@link EntityKey}s.</p>
+ * <p>
+ * Problems (mal-formed lines etc.) are logged with their line number. A parser
+ * that works on a part of the file does not know the real line numbers yet,
+ * so it can collect the problems instead (see {@link #setDeferProblems(boolean)})
+ * and let them be logged later, with corrected line numbers.</p>
+ *
+ * @author bennokue
+ */
+class CSVLineParser {
+
+    private static final Logger logger = Logger.getLogger(CSVLineParser.class.getName());
+    /**
+     * The default field delimiter.
+     */
+    static final char DEFAULT_DELIMITER = ',';
+    /**
+     * {@code POWERS_OF_TEN[i]} is 10 to the power of {@code i}, up to
+     * {@link FixedPointCoordinates#PRECISION}.
+     */
+    private static final int[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000};
+    /**
+     * At this position in each line we look for the OSM id (first element in
+     * a line has position {@code 1}).
+     */
+    private final int osmIdPos;
+    /**
+     * At this position in each line we look for the OSM latitude (first
+     * element in a line has position {@code 1}).
+     */
+    private final int osmLatPos;
+    /**
+     * At this position in each line we look for the OSM longitude (first
+     * element in a line has position {@code 1}).
+     */
+    private final int osmLonPos;
+    /**
+     * At these positions in each line we look for the tag data (first element
+     * in a line has position {@code 1}), empty if the tag data is not needed.
+     */
+    private final int[] tagDataPositions;
+    /**
+     * Lines with this in the id field are header lines and are skipped
+     * silently, {@code null} if there is no header.
+     */
+    private byte[] headerIdField;
+    /**
+     * The field delimiter.
+     */
+    private final byte delimiter;
+    /**
+     * The charset of the tag data.
+     */
+    private final Charset charset;
+    /**
+     * Is {@link #charset} UTF-8, so the bytes of the tag data can be stored
+     * as they are?
+     */
+    private final boolean utf8;
+    /**
+     * A line needs at least this many fields.
+     */
+    private final int minimumFields;
+    /**
+     * The bounds of the fields of the current line: Field {@code i} (first =
+     * {@code 1}) reaches from {@code fieldStarts[i]} to {@code fieldEnds[i]}
+     * (exclusive, without the quotes). {@code fieldEscaped[i]} tells if it
+     * contains doubled quotes. Only the first {@link #minimumFields} fields
+     * are scanned.
+     */
+    private final int[] fieldStarts;
+    private final int[] fieldEnds;
+    private final boolean[] fieldEscaped;
+    /**
+     * Quoted fields with escaped quotes are copied here without the escaping.
+     */
+    private byte[] unescapeBuffer = new byte[256];
+    /**
+     * The collected problems or {@code null} if problems are logged
+     * immediately. The first parameter of each record is the line number.
+     */
+    private List<LogRecord> deferredProblems;
+    /**
+     * Only check the lines and read the ids and coordinates, without decoding
+     * the tag data?
+     */
+    private boolean skipData = false;
+    /**
+     * The number of lines and bytes (without line breaks) given to
+     * {@link #parse(byte[], int, int, long)}, shared with the copies of the
+     * parser (see {@link #shareCounters(CSVLineParser)}).
+     */
+    private LongAdder linesParsed = new LongAdder();
+    private LongAdder bytesParsed = new LongAdder();
+    /**
+     * The results of the last successful parse.
+     */
+    private long osmId;
+    private int latitude;
+    private int longitude;
+    /**
+     * The bytes of the last successfully parsed line, {@code null} if its tag
+     * data is not needed.
+     */
+    private byte[] line;
+    /**
+     * The decoded tag data of the last parsed line, {@code null} until it is
+     * asked for.
+     */
+    private String[] data;
+    /**
+     * Where the value found by {@link #locateData(int)} is.
+     */
+    private int valueStart;
+    private int valueEnd;
+
+    /**
+     * Constructor for comma separated files in the default charset.
+     *
+     * @param osmIdPos At this position in each line we look for the OSM id
+     * (first element in a line has position {@code 1}).
+     * @param osmLatPos At this position in each line we look for the OSM
+     * latitude, or {@code -1}.
+     * @param osmLonPos At this position in each line we look for the OSM
+     * longitude, or {@code -1}.
+     * @param tagDataPos At this position in each line we look for the tag
+     * data, or {@code -1}.
+     */
+    CSVLineParser(int osmIdPos, int osmLatPos, int osmLonPos, int tagDataPos) {
+        this(osmIdPos, osmLatPos, osmLonPos, tagDataPos, DEFAULT_DELIMITER, Charset.defaultCharset());
+    }
+
+    /**
+     * Standard constructor.
+     *
+     * @param osmIdPos At this position in each line we look for the OSM id
+     * (first element in a line has position {@code 1}).
+     * @param osmLatPos At this position in each line we look for the OSM
+     * latitude, or {@code -1}.
+     * @param osmLonPos At this position in each line we look for the OSM
+     * longitude, or {@code -1}.
+     * @param tagDataPos At this position in each line we look for the tag
+     * data, or {@code -1}.
+     * @param delimiter The field delimiter, an ASCII character.
+     * @param charset The charset of the file.
+     */
+    CSVLineParser(int osmIdPos, int osmLatPos, int osmLonPos, int tagDataPos, char delimiter, Charset charset) {
+        this(osmIdPos, osmLatPos, osmLonPos, tagDataPos > 0 ? new int[]{tagDataPos} : new int[0], delimiter, charset);
+    }
+
+    /**
+     * Constructor for several tag data columns.
+     *
+     * @param osmIdPos At this position in each line we look for the OSM id
+     * (first element in a line has position {@code 1}), or {@code -1} if the
+     * lines have no ids (the id is {@code 0} then).
+     * @param osmLatPos At this position in each line we look for the OSM
+     * latitude, or {@code -1}.
+     * @param osmLonPos At this position in each line we look for the OSM
+     * longitude, or {@code -1}.
+     * @param tagDataPositions At these positions in each line we look for the
+     * tag data, may be empty.
+     * @param delimiter The field delimiter, an ASCII character.
+     * @param charset The charset of the file.
+     */
+    CSVLineParser(int osmIdPos, int osmLatPos, int osmLonPos, int[] tagDataPositions, char delimiter, Charset charset) {
+        if (delimiter == 0 || delimiter > 127 || delimiter == '"' || delimiter == '\n' || delimiter == '\r') {
+            throw new IllegalArgumentException("The delimiter has to be an ASCII character other than quotes and line breaks");
+        }
+        this.osmIdPos = osmIdPos;
+        this.osmLatPos = osmLatPos;
+        this.osmLonPos = osmLonPos;
+        this.tagDataPositions = tagDataPositions.clone();
+        this.delimiter = (byte) delimiter;
+        this.charset = charset;
+        this.utf8 = StandardCharsets.UTF_8.equals(charset);
+        int fields = Math.max(Math.max(osmIdPos, osmLatPos), osmLonPos);
+        for (int tagDataPos : tagDataPositions) {
+            if (tagDataPos <= 0) {
+                throw new IllegalArgumentException("Please provide tag data positions greater than 0");
+            }
+            fields = Math.max(fields, tagDataPos);
+        }
+        this.minimumFields = fields;
+        this.fieldStarts = new int[this.minimumFields + 1];
+        this.fieldEnds = new int[this.minimumFields + 1];
+        this.fieldEscaped = new boolean[this.minimumFields + 1];
+    }
+
+    /**
+     * Create a parser for the same columns.
+     *
+     * @return The new parser.
+     */
+    CSVLineParser copy() {
+        CSVLineParser copy = new CSVLineParser(this.osmIdPos, this.osmLatPos, this.osmLonPos, this.tagDataPositions, (char) this.delimiter, this.charset);
+        copy.headerIdField = this.headerIdField;
+        copy.shareCounters(this);
+        return copy;
+    }
+
+    /**
+     * Count the parsed lines and bytes together with another parser, e.g. one
+     * for other columns of the same file.
+     *
+     * @param other The other parser.
+     */
+    void shareCounters(CSVLineParser other) {
+        this.linesParsed = other.linesParsed;
+        this.bytesParsed = other.bytesParsed;
+    }
+
+    /**
+     * Skip header lines silently: Lines with this in the id field are not
+     * reported as mal-formed.
+     *
+     * @param headerIdField The name of the id column at the header, or
+     * {@code null} if there is no header.
+     */
+    void setHeaderIdField(String headerIdField) {
+        this.headerIdField = null == headerIdField ? null : headerIdField.getBytes(this.charset);
+    }
+
+    /**
+     * Only check the lines and read the ids and coordinates, e.g. to index
+     * the file: The tag data columns are not decoded, {@link #getData()} and
+     * {@link #getDataColumns()} return nothing then.
+     *
+     * @param skipData {@code true} to skip the tag data.
+     */
+    void setSkipData(boolean skipData) {
+        this.skipData = skipData;
+    }
+
+    /**
+     * Parse a line given as {@link String}. This is a convenience method, it
+     * has to encode the line first.
+     *
+     * @param line The line to parse.
+     * @param lineNumber The number of the line, for the log.
+     * @return {@code true} if the line contained an item.
+     */
+    boolean parse(String line, long lineNumber) {
+        byte[] bytes = line.getBytes(this.charset);
+        return this.parse(bytes, 0, bytes.length, lineNumber);
+    }
+
+    /**
+     * Parse a line. Empty lines or lines starting with {@code ;} will be
+     * ignored.
+     *
+     * @param line The bytes of the line.
+     * @param start Where the line starts at {@code line}.
+     * @param end Where the line ends at {@code line} (exclusive, without the
+     * line break).
+     * @param lineNumber The number of the line, for the log.
+     * @return {@code true} if the line contained an item. The item can be read
+     * with the getters then.
+     */
+    boolean parse(byte[] line, int start, int end, long lineNumber) {
+        this.linesParsed.increment();
+        this.bytesParsed.add(end - start);
+        // The field bounds of the last line are overwritten
+        this.line = null;
+        if (start == end || line[start] == ';') {
+            this.report(Level.FINE, "Empty line (or starting with >;<): {0,number,#}", lineNumber, null);
+            return false;
+        }
+        // Find the fields and check if there are enough of them
+        int fields = this.scanFields(line, start, end);
+        if (fields < 0) {
+            this.report(Level.WARNING, "Unterminated quote ({0,number,#}): {1}", lineNumber, new String(line, start, end - start, this.charset));
+            return false;
+        }
+        if (fields < this.minimumFields) {
+            this.report(Level.WARNING, "Line is too short ({0,number,#}): {1}", lineNumber, new String(line, start, end - start, this.charset));
+            return false;
+        }
+        // Read the id, ways and relations are marked by a prefix
+        if (this.osmIdPos <= 0) {
+            // Lines without ids, matched by their coordinates
+            this.osmId = 0;
+        } else if (!this.parseEntityKey(line, lineNumber)) {
+            return false;
+        }
+        // Read lon and lat
+        int lat = FixedPointCoordinates.NONE;
+        int lon = FixedPointCoordinates.NONE;
+        if (this.osmLatPos > 0 && this.osmLonPos > 0) {
+            lat = parseCoordinate(line, this.fieldStarts[this.osmLatPos], this.fieldEnds[this.osmLatPos]);
+            lon = parseCoordinate(line, this.fieldStarts[this.osmLonPos], this.fieldEnds[this.osmLonPos]);
+            if (lat == FixedPointCoordinates.NONE || lon == FixedPointCoordinates.NONE) {
+                this.report(Level.WARNING, "Mal-formed line (lat/lon): {0,number,#}", lineNumber, null);
+                lat = FixedPointCoordinates.NONE;
+                lon = FixedPointCoordinates.NONE;
+            }
+        }
+        this.latitude = lat;
+        this.longitude = lon;
+        // The tag data is decoded (or stored) when it is asked for
+        this.line = this.tagDataPositions.length > 0 && !this.skipData ? line : null;
+        this.data = null;
+        return true;
+    }
+
+    /**
+     * @return The number of lines parsed by this parser and its copies so
+     * far. May be called by any thread.
+     */
+    long getLinesParsed() {
+        return this.linesParsed.sum();
+    }
+
+    /**
+     * @return The number of bytes (without line breaks) parsed by this parser
+     * and its copies so far. May be called by any thread.
+     */
+    long getBytesParsed() {
+        return this.bytesParsed.sum();
+    }
+
+    /**
+     * @return The OSM id of the last parsed line, as {@link EntityKey} if it
+     * belongs to a way or relation.
+     */
+    long getOsmId() {
+        return this.osmId;
+    }
+
+    /**
+     * @return The latitude of the last parsed line or {@code NaN}.
+     */
+    double getLatitude() {
+        return FixedPointCoordinates.toDouble(this.latitude);
+    }
+
+    /**
+     * @return The longitude of the last parsed line or {@code NaN}.
+     */
+    double getLongitude() {
+        return FixedPointCoordinates.toDouble(this.longitude);
+    }
+
+    /**
+     * @return The fixed-point latitude of the last parsed line or
+     * {@link FixedPointCoordinates#NONE}.
+     */
+    int getFixedLatitude() {
+        return this.latitude;
+    }
+
+    /**
+     * @return The fixed-point longitude of the last parsed line or
+     * {@link FixedPointCoordinates#NONE}.
+     */
+    int getFixedLongitude() {
+        return this.longitude;
+    }
+
+    /**
+     * @return The tag data of the last parsed line ({@code null} if the parser
+     * has no tag data position), the first column if there are several.
+     */
+    String getData() {
+        return null == this.line ? null : this.getDataColumns()[0];
+    }
+
+    /**
+     * Decode the tag data of the last parsed line. Call this before the bytes
+     * of the line are changed.
+     *
+     * @return All tag data columns of the last parsed line (a new array per
+     * line), an empty array if the parser has no tag data positions.
+     */
+    String[] getDataColumns() {
+        if (null == this.line) {
+            return new String[0];
+        }
+        if (null == this.data) {
+            this.data = new String[this.tagDataPositions.length];
+            for (int i = 0; i < this.tagDataPositions.length; i++) {
+                this.data[i] = this.fieldToString(this.line, this.tagDataPositions[i]);
+            }
+        }
+        return this.data;
+    }
+
+    /**
+     * @return The number of tag data columns of each line, {@code 0} if the
+     * tag data is skipped.
+     */
+    int getDataColumnCount() {
+        return this.skipData ? 0 : this.tagDataPositions.length;
+    }
+
+    /**
+     * Add a tag data column of the last parsed line to a dictionary, without
+     * decoding it. Call this before the bytes of the line are changed.
+     *
+     * @param column The column (first = {@code 0}).
+     * @param dictionary The dictionary.
+     * @return The reference of the value at the dictionary.
+     */
+    int addData(int column, ValueDictionary dictionary) {
+        byte[] buffer = this.locateData(column);
+        return dictionary.add(buffer, this.valueStart, this.valueEnd);
+    }
+
+    /**
+     * Find the UTF-8 bytes of a tag data column of the last parsed line,
+     * without the quoting. Call this before the bytes of the line are
+     * changed.
+     *
+     * @param column The column (first = {@code 0}).
+     * @return The buffer that holds the value from {@link #getValueStart()}
+     * to {@link #getValueEnd()}: The line itself or, if the value had to be
+     * unescaped or re-encoded, a buffer that is only valid until the next
+     * call.
+     */
+    byte[] locateData(int column) {
+        int field = this.tagDataPositions[column];
+        int start = this.fieldStarts[field];
+        int end = this.fieldEnds[field];
+        if (!this.utf8) {
+            byte[] encoded = this.fieldToString(this.line, field).getBytes(StandardCharsets.UTF_8);
+            this.valueStart = 0;
+            this.valueEnd = encoded.length;
+            return encoded;
+        }
+        if (!this.fieldEscaped[field]) {
+            this.valueStart = start;
+            this.valueEnd = end;
+            return this.line;
+        }
+        this.valueStart = 0;
+        this.valueEnd = this.unescape(this.line, start, end);
+        return this.unescapeBuffer;
+    }
+
+    /**
+     * @return Where the value found by {@link #locateData(int)} starts.
+     */
+    int getValueStart() {
+        return this.valueStart;
+    }
+
+    /**
+     * @return Where the value found by {@link #locateData(int)} ends
+     * (exclusive).
+     */
+    int getValueEnd() {
+        return this.valueEnd;
+    }
+
+    /**
+     * Should problems be collected instead of logged? See
+     * {@link #logDeferredProblems(long)}.
+     *
+     * @param deferProblems {@code true} to collect them.
+     */
+    void setDeferProblems(boolean deferProblems) {
+        this.deferredProblems = deferProblems ? new ArrayList<LogRecord>() : null;
+    }
+
+    /**
+     * Log the collected problems and forget them.
+     *
+     * @param lineNumberOffset This is added to the line numbers the problems
+     * were reported with.
+     */
+    void logDeferredProblems(long lineNumberOffset) {
+        if (null == this.deferredProblems) {
+            return;
+        }
+        for (LogRecord problem : this.deferredProblems) {
+            Object[] parameters = problem.getParameters();
+            parameters[0] = (Long) parameters[0] + lineNumberOffset;
+            logger.log(problem);
+        }
+        this.deferredProblems.clear();
+    }
+
+    /**
+     * Find the bounds of the first {@link #minimumFields} fields.
+     *
+     * @param line The bytes of the line.
+     * @param start Where the line starts.
+     * @param end Where the line ends (exclusive).
+     * @return The number of fields found (at most {@link #minimumFields}) or
+     * {@code -1} if a quote is not closed.
+     */
+    private int scanFields(byte[] line, int start, int end) {
+        int position = start;
+        for (int field = 1; field <= this.minimumFields; field++) {
+            boolean escaped = false;
+            int fieldStart;
+            int fieldEnd;
+            if (position < end && line[position] == '"') {
+                // Quoted field: Runs to the next single quote
+                fieldStart = position + 1;
+                fieldEnd = -1;
+                for (int i = fieldStart; i < end; i++) {
+                    if (line[i] == '"') {
+                        if (i + 1 < end && line[i + 1] == '"') {
+                            escaped = true;
+                            i++;
+                        } else {
+                            fieldEnd = i;
+                            break;
+                        }
+                    }
+                }
+                if (fieldEnd < 0) {
+                    return -1;
+                }
+                // Be lenient with garbage between the closing quote and the delimiter
+                position = fieldEnd + 1;
+                while (position < end && line[position] != this.delimiter) {
+                    position++;
+                }
+            } else {
+                fieldStart = position;
+                while (position < end && line[position] != this.delimiter) {
+                    position++;
+                }
+                fieldEnd = position;
+            }
+            this.fieldStarts[field] = fieldStart;
+            this.fieldEnds[field] = fieldEnd;
+            this.fieldEscaped[field] = escaped;
+            if (position >= end) {
+                return field;
+            }
+            // Skip the delimiter
+            position++;
+        }
+        return this.minimumFields;
+    }
+
+    /**
+     * Is a field the id field of the header?
+     *
+     * @param line The bytes.
+     * @param start The first byte of the field.
+     * @param end Behind the last byte of the field.
+     * @return {@code true} if it is equal to {@link #headerIdField}.
+     */
+    private boolean isHeaderIdField(byte[] line, int start, int end) {
+        if (null == this.headerIdField || end - start != this.headerIdField.length) {
+            return false;
+        }
+        for (int i = 0; i < this.headerIdField.length; i++) {
+            if (line[start + i] != this.headerIdField[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Split a whole line into its fields, e.g. the header. Slow, but handles
+     * quotes like {@link #parse(byte[], int, int, long)}.
+     *
+     * @param line The line.
+     * @param delimiter The field delimiter.
+     * @return The fields.
+     */
+    static List<String> splitLine(String line, char delimiter) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"' && field.length() == 0) {
+                quoted = true;
+            } else if (c == delimiter) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * Read the id field of the current line into {@link #osmId}, as
+     * {@link EntityKey} if it has a type prefix.
+     *
+     * @param line The bytes of the line.
+     * @param lineNumber The number of the line, for the log.
+     * @return {@code false} if the line has no valid id (problems are
+     * reported).
+     */
+    private boolean parseEntityKey(byte[] line, long lineNumber) {
+        int idStart = this.fieldStarts[this.osmIdPos];
+        EntityType type = idStart < this.fieldEnds[this.osmIdPos] ? EntityKey.typeOfPrefix(line[idStart]) : null;
+        if (null != type) {
+            idStart++;
+        } else {
+            type = EntityType.Node;
+        }
+        if (!this.parseId(line, idStart, this.fieldEnds[this.osmIdPos]) || !EntityKey.isValidId(this.osmId)) {
+            if (this.isHeaderIdField(line, this.fieldStarts[this.osmIdPos], this.fieldEnds[this.osmIdPos])) {
+                this.report(Level.FINE, "Header line: {0,number,#}", lineNumber, null);
+                return false;
+            }
+            this.report(Level.WARNING, "Mal-formed line (id): {0,number,#}", lineNumber, null);
+            return false;
+        }
+        this.osmId = EntityKey.of(type, this.osmId);
+        return true;
+    }
+
+    /**
+     * Parse a decimal {@code long} into {@link #osmId}, as strict as
+     * {@link Long#parseLong(java.lang.String)}.
+     *
+     * @param line The bytes.
+     * @param start The first byte of the number.
+     * @param end Behind the last byte of the number.
+     * @return {@code false} if it is not a valid {@code long}.
+     */
+    private boolean parseId(byte[] line, int start, int end) {
+        if (start >= end) {
+            return false;
+        }
+        boolean negative = false;
+        int position = start;
+        if (line[position] == '-' || line[position] == '+') {
+            negative = line[position] == '-';
+            position++;
+            if (position == end) {
+                return false;
+            }
+        }
+        // Accumulate negatively, like Long.parseLong, so Long.MIN_VALUE fits
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long minimumBeforeMultiplying = limit / 10;
+        long result = 0;
+        for (; position < end; position++) {
+            int digit = line[position] - '0';
+            if (digit < 0 || digit > 9 || result < minimumBeforeMultiplying) {
+                return false;
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                return false;
+            }
+            result -= digit;
+        }
+        this.osmId = negative ? result : -result;
+        return true;
+    }
+
+    /**
+     * Parse a coordinate into a fixed-point {@code int} with
+     * {@link FixedPointCoordinates#PRECISION} decimals. Plain decimal numbers
+     * ({@code -12.345}) are converted digit by digit, further decimals are
+     * rounded (half away from zero). Everything else (exponents,
+     * whitespace, ...) is left to {@link Double#parseDouble(java.lang.String)}.
+     *
+     * @param line The bytes.
+     * @param start The first byte of the number.
+     * @param end Behind the last byte of the number.
+     * @return The coordinate or {@link FixedPointCoordinates#NONE} if it is
+     * mal-formed or out of range.
+     */
+    private static int parseCoordinate(byte[] line, int start, int end) {
+        int position = start;
+        boolean negative = false;
+        if (position < end && (line[position] == '-' || line[position] == '+')) {
+            negative = line[position] == '-';
+            position++;
+        }
+        long value = 0;
+        int fractionDigits = 0;
+        boolean digits = false;
+        boolean point = false;
+        boolean roundUp = false;
+        for (; position < end; position++) {
+            byte b = line[position];
+            if (b >= '0' && b <= '9') {
+                digits = true;
+                if (!point) {
+                    value = value * 10 + (b - '0');
+                    if (value > Integer.MAX_VALUE) {
+                        return FixedPointCoordinates.NONE;
+                    }
+                } else if (fractionDigits < FixedPointCoordinates.PRECISION) {
+                    value = value * 10 + (b - '0');
+                    fractionDigits++;
+                } else if (fractionDigits == FixedPointCoordinates.PRECISION) {
+                    // The first digit we cannot keep decides the rounding
+                    roundUp = b >= '5';
+                    fractionDigits++;
+                }
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                return parseCoordinateSlowly(line, start, end);
+            }
+        }
+        if (!digits) {
+            return parseCoordinateSlowly(line, start, end);
+        }
+        if (fractionDigits < FixedPointCoordinates.PRECISION) {
+            value *= POWERS_OF_TEN[FixedPointCoordinates.PRECISION - fractionDigits];
+        }
+        if (roundUp) {
+            value++;
+        }
+        if (value > Integer.MAX_VALUE) {
+            return FixedPointCoordinates.NONE;
+        }
+        return negative ? (int) -value : (int) value;
+    }
+
+    /**
+     * Parse a coordinate with {@link Double#parseDouble(java.lang.String)}.
+     *
+     * @param line The bytes.
+     * @param start The first byte of the number.
+     * @param end Behind the last byte of the number.
+     * @return The coordinate or {@link FixedPointCoordinates#NONE} if it is
+     * mal-formed or out of range.
+     */
+    private static int parseCoordinateSlowly(byte[] line, int start, int end) {
+        try {
+            return FixedPointCoordinates.toFixed(Double.parseDouble(new String(line, start, end - start, StandardCharsets.ISO_8859_1)));
+        } catch (NumberFormatException e) {
+            return FixedPointCoordinates.NONE;
+        }
+    }
+
+    /**
+     * Decode a field, removing the escaping of quotes.
+     *
+     * @param line The bytes of the line.
+     * @param field The field (first = {@code 1}).
+     * @return The field's content.
+     */
+    private String fieldToString(byte[] line, int field) {
+        int start = this.fieldStarts[field];
+        int end = this.fieldEnds[field];
+        if (!this.fieldEscaped[field]) {
+            return new String(line, start, end - start, this.charset);
+        }
+        return new String(this.unescapeBuffer, 0, this.unescape(line, start, end), this.charset);
+    }
+
+    /**
+     * Copy a field to the start of {@link #unescapeBuffer}, removing the
+     * escaping of quotes.
+     *
+     * @param line The bytes of the line.
+     * @param start Where the field starts (behind the opening quote).
+     * @param end Where the field ends (at the closing quote).
+     * @return The length of the unescaped field.
+     */
+    private int unescape(byte[] line, int start, int end) {
+        if (end - start > this.unescapeBuffer.length) {
+            this.unescapeBuffer = new byte[Math.max(end - start, 2 * this.unescapeBuffer.length)];
+        }
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            this.unescapeBuffer[length++] = line[i];
+            if (line[i] == '"') {
+                // Skip the second quote
+                i++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Log a problem or collect it, see {@link #deferredProblems}.
+     *
+     * @param level The log level.
+     * @param message The message, {@code {0}} is the line number and
+     * {@code {1}} the parameter.
+     * @param lineNumber The line number.
+     * @param parameter Another parameter or {@code null}.
+     */
+    private void report(Level level, String message, long lineNumber, Object parameter) {
+        if (!logger.isLoggable(level)) {
+            return;
+        }
+        LogRecord problem = new LogRecord(level, message);
+        problem.setLoggerName(logger.getName());
+        problem.setParameters(new Object[]{lineNumber, parameter});
+        if (null == this.deferredProblems) {
+            logger.log(problem);
+        } else {
+            this.deferredProblems.add(problem);
+        }
+    }
+}
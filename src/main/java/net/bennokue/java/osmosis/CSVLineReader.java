@@ -0,0 +1,141 @@
+package net.bennokue.java.osmosis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads the lines of a file as bytes, without creating a {@link String} per
+ * line like {@link java.io.BufferedReader} does. After {@link #next()}, the
+ * current line is at {@link #buffer()} from {@link #lineStart()} to
+ * {@link #lineEnd()}. Lines end with {@code \n}, a {@code \r} in front of it
+ * is dropped.
+ *
+ * @author bennokue
+ */
+class CSVLineReader implements Closeable {
+
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private final InputStream input;
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    /**
+     * The bytes from {@link #position} to {@link #limit} have been read, but
+     * not returned as line yet.
+     */
+    private int position = 0;
+    private int limit = 0;
+    /**
+     * The number of bytes of the input that have been dropped from the
+     * buffer.
+     */
+    private long bytesBeforeBuffer = 0;
+    private boolean endOfInput = false;
+    private int lineStart;
+    private int lineEnd;
+
+    /**
+     * Standard constructor.
+     *
+     * @param input Where to read the lines (closed by {@link #close()}).
+     */
+    CSVLineReader(InputStream input) {
+        this.input = input;
+    }
+
+    /**
+     * Read the next line.
+     *
+     * @return {@code false} if there are no more lines.
+     * @throws IOException If reading fails.
+     */
+    boolean next() throws IOException {
+        int searchFrom = this.position;
+        while (true) {
+            for (int i = searchFrom; i < this.limit; i++) {
+                if (this.buffer[i] == '\n') {
+                    this.setLine(this.position, i);
+                    this.position = i + 1;
+                    return true;
+                }
+            }
+            if (this.endOfInput) {
+                if (this.position < this.limit) {
+                    this.setLine(this.position, this.limit);
+                    this.position = this.limit;
+                    return true;
+                }
+                return false;
+            }
+            searchFrom = this.limit - this.position;
+            this.fill();
+        }
+    }
+
+    /**
+     * @return The buffer that holds the current line.
+     */
+    byte[] buffer() {
+        return this.buffer;
+    }
+
+    /**
+     * @return Where the current line starts at {@link #buffer()}.
+     */
+    int lineStart() {
+        return this.lineStart;
+    }
+
+    /**
+     * @return Where the current line ends at {@link #buffer()} (exclusive,
+     * without the line break).
+     */
+    int lineEnd() {
+        return this.lineEnd;
+    }
+
+    /**
+     * @return The number of bytes of the input up to the end of the current
+     * line, including its line break.
+     */
+    long position() {
+        return this.bytesBeforeBuffer + this.position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.input.close();
+    }
+
+    private void setLine(int start, int end) {
+        if (end > start && this.buffer[end - 1] == '\r') {
+            end--;
+        }
+        this.lineStart = start;
+        this.lineEnd = end;
+    }
+
+    /**
+     * Move the unread bytes to the beginning of the buffer (growing it if they
+     * fill it completely) and read more.
+     *
+     * @throws IOException If reading fails.
+     */
+    private void fill() throws IOException {
+        int remaining = this.limit - this.position;
+        if (remaining == this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+        } else if (this.position > 0) {
+            System.arraycopy(this.buffer, this.position, this.buffer, 0, remaining);
+        }
+        this.bytesBeforeBuffer += this.position;
+        this.position = 0;
+        this.limit = remaining;
+        int read = this.input.read(this.buffer, this.limit, this.buffer.length - this.limit);
+        if (read < 0) {
+            this.endOfInput = true;
+        } else {
+            this.limit += read;
+        }
+    }
+}
@@ -1,34 +1,149 @@
 package net.bennokue.java.osmosis;
 
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
 
 /**
  * This class reads a CSV file over and over and lets you query for OSM ids. To
  * speed things up, it uses a cache to store the last read lines. Empty lines
- * and <strong>lines starting with {@code ;} will be ignored</strong>.
+ * and <strong>lines starting with {@code ;} will be ignored</strong>. The file
+ * may be compressed with gzip or bzip2 (see {@link CompressedInput}), except
+ * for {@link StorageEngine#MAPPED}. Files converted by
+ * {@link CSVBinaryConverter} are recognized and read with
+ * {@link StorageEngine#BINARY}.
+ * <p>
+ * The file is loaded at the first lookup, or in the background after
+ * {@link #startPreload()}. Apart from that, the loader is not thread-safe,
+ * unless {@link #prepareConcurrentLookups()} says so. {@link #close()} the
+ * loader when it is not needed any more.</p>
  *
  * @author bennokue
  */
-public class CSVLoader {
+public class CSVLoader implements Closeable {
+
+    /**
+     * How should the cache store the parsed lines?
+     */
+    public static enum StorageEngine {
+
+        /**
+         * A {@link java.util.HashMap} of {@link CSVItem} objects. Simple, but
+         * memory hungry.
+         */
+        HASHMAP,
+        /**
+         * A primitive open-addressing hash index over flat arrays. Needs much
+         * less memory and does not box the OSM ids.
+         */
+        PRIMITIVE,
+        /**
+         * A read-only index: After the whole file has been read, the ids are
+         * sorted into a {@code long[]} and the other columns are arranged in
+         * the same order. The most compact engine, and lookups of ascending
+         * ids are very fast. Only works with the endless cache.
+         */
+        FROZEN,
+        /**
+         * No cache at all: The file is mapped into memory and indexed once
+         * (OSM id to byte offset of the line, 16 bytes per line). Each lookup
+         * parses the one line it needs straight from the mapped file. Keeps
+         * the heap small even for huge CSV files, {@code csvCacheSize} is
+         * ignored.
+         */
+        MAPPED,
+        /**
+         * No cache at all: The file is read once from top to bottom, in step
+         * with the OSM nodes. Needs (next to) no memory, but both the CSV
+         * file and the OSM nodes have to be sorted by id ascending.
+         * {@code csvCacheSize} is ignored.
+         */
+        MERGE_JOIN,
+        /**
+         * No cache at all: The file has been converted by
+         * {@link CSVBinaryConverter} and is mapped into memory (see
+         * {@link BinaryCSVFile}), so there is nothing to parse or to index.
+         * Chosen automatically for such files; the positions are the columns
+         * of the binary file then. {@code csvCacheSize} is ignored.
+         */
+        BINARY
+    }
 
     private static final Logger logger = Logger.getLogger(CSVLoader.class.getName());
+    /**
+     * How many bytes of the input file are read to guess the number of lines
+     * in it?
+     */
+    private static final int LINE_COUNT_SAMPLE_BYTES = 64 * 1024;
+    /**
+     * How many decompressed bytes of a compressed input file are read to
+     * guess the number of lines in it? More than for plain files, since a
+     * bzip2 block has to be decompressed as a whole.
+     */
+    private static final int COMPRESSED_LINE_COUNT_SAMPLE_BYTES = 4 * 1024 * 1024;
+    /**
+     * The false positive rate {@link #idFilter} is sized for.
+     */
+    private static final double ID_FILTER_FALSE_POSITIVE_RATE = 0.01;
 
     /**
      * The CSV input file.
      */
     private final File csvInputFile;
     /**
-     * Here we store the read and parsed lines.
+     * Here we store the read and parsed lines. Created at the first lookup,
+     * stays {@code null} with {@link StorageEngine#MAPPED} and
+     * {@link StorageEngine#MERGE_JOIN}.
+     */
+    private CSVItemStore cache;
+    /**
+     * How the lines are stored.
+     */
+    private StorageEngine storageEngine;
+    /**
+     * The mapped input file, only used with {@link StorageEngine#MAPPED}.
      */
-    private final HashMap<Long, CSVItem> cache;
+    private MappedCSVFile mappedFile;
+    /**
+     * Where to find the lines at {@link #mappedFile}, only used with
+     * {@link StorageEngine#MAPPED}.
+     */
+    private LineOffsetIndex lineOffsetIndex;
+    /**
+     * The mapped binary file, only used with {@link StorageEngine#BINARY}.
+     */
+    private BinaryCSVFile binaryFile;
+    /**
+     * The columns of {@link #binaryFile} to return (first = {@code 0}).
+     */
+    private int[] binaryColumns;
+    /**
+     * Should {@link #lineOffsetIndex} be stored at a file? See
+     * {@link CSVImportOptions#setPersistentIndex(boolean)}.
+     */
+    private final boolean persistentIndex;
+    /**
+     * See {@link CSVImportOptions#setPresortCSV(boolean)}.
+     */
+    private final boolean presortCSV;
+    /**
+     * See {@link CSVImportOptions#setSortMemoryMB(int)}.
+     */
+    private final int sortMemoryMB;
     /**
      * Don't let the cache get bigger than this. If this is {@code -1}, the csv
      * file will only be read once.
@@ -50,14 +165,28 @@ public class CSVLoader {
      */
     private final int osmLonPos;
     /**
-     * At this position in each line we look for the String that we want to
-     * import as a new Node tag (first element in a line has position
+     * At these positions in each line we look for the Strings that we want to
+     * import as new Node tags (first element in a line has position
      * {@code 1}).
      */
-    private final int tagDataPos;
-    private FileInputStream fileInputStream;
-    private InputStreamReader inputStreamReader;
-    private BufferedReader bufferedReader;
+    private final int[] tagDataPositions;
+    /**
+     * The name of the id column if the file starts with a header row,
+     * otherwise {@code null}.
+     */
+    private final String headerIdField;
+    /**
+     * See {@link CSVImportOptions#setDelimiter(char)}.
+     */
+    private final char delimiter;
+    /**
+     * How the input file is compressed (see {@link CompressedInput}).
+     */
+    private final CompressedInput.Compression compression;
+    /**
+     * Reads the lines of the file (not used with {@link StorageEngine#MAPPED}).
+     */
+    private CSVLineReader lineReader;
     /**
      * Our current line position at the {@link #csvInputFile}.
      */
@@ -88,6 +217,98 @@ public class CSVLoader {
      * keep this working.
      */
     private boolean passedMark;
+    /**
+     * Parses the lines, see {@link #parseLine(byte[], int, int)}.
+     */
+    private final CSVLineParser parser;
+    /**
+     * The references of the data of the line that is stored, see
+     * {@link #addDataColumns(ValueDictionary)}.
+     */
+    private final int[] dataReferences;
+    /**
+     * See {@link CSVImportOptions#setParseThreads(int)}.
+     */
+    private final int parseThreads;
+    /**
+     * Has the endless cache been filled?
+     */
+    private boolean endlessCacheFilled = false;
+    /**
+     * See {@link CSVImportOptions#setNegativeLookupFilter(boolean)}.
+     */
+    private final boolean negativeLookupFilter;
+    /**
+     * The ids of the file, built at the first lookup if
+     * {@link #negativeLookupFilter} is set.
+     */
+    private IdBloomFilter idFilter;
+    /**
+     * How many lookups did {@link #idFilter} reject?
+     */
+    private final LongAdder filterRejections = new LongAdder();
+    /**
+     * How many ids did {@link #idFilter} let through that were not found?
+     */
+    private final LongAdder filterFalsePositives = new LongAdder();
+    /**
+     * How many lookups were answered from {@link #cache}, how many were not
+     * (the file was read or the id is not there)?
+     */
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    /**
+     * How often did the bounded cache start reading the file from the top
+     * again (see {@link #runsThroughFile})?
+     */
+    private final LongAdder fileRescans = new LongAdder();
+    /**
+     * How far has the file been read on the first pass that loads it (see
+     * {@link #getLoadedBytes()})?
+     */
+    private final AtomicLong loadedBytes = new AtomicLong();
+    /**
+     * Loads the file in the background, see {@link #startPreload()}.
+     * {@code null} if there is no preload or it has been waited for.
+     */
+    private FutureTask<Void> preload;
+    /**
+     * The last id looked up with {@link StorageEngine#MERGE_JOIN}.
+     */
+    private long mergeLastId = Long.MIN_VALUE;
+    /**
+     * The result of the last lookup with {@link StorageEngine#MERGE_JOIN}
+     * (may be {@code null}).
+     */
+    private CSVItem mergeLastItem;
+    /**
+     * The next item of the file with {@link StorageEngine#MERGE_JOIN} or
+     * {@code null} at EOF.
+     */
+    private CSVItem mergeNextItem;
+    /**
+     * The search radius (meters) if the lines are matched by coordinates (see
+     * {@link #useSpatialMatching(double)}), otherwise {@code NaN}.
+     */
+    private double spatialRadius = Double.NaN;
+    /**
+     * The lines by coordinates, built at the first lookup if
+     * {@link #spatialRadius} is set.
+     */
+    private SpatialCSVIndex spatialIndex;
+    /**
+     * See {@link CSVImportOptions#setHeaderRow(boolean)}.
+     */
+    private final boolean headerRow;
+    /**
+     * Has the merge join started reading the file?
+     */
+    private boolean mergeStarted = false;
+    /**
+     * The sorted copy of the file written for {@link #presortCSV}, next to the
+     * file; {@code null} if there is none (any more).
+     */
+    private volatile File sortedCSVFile;
 
     /**
      * Standard constructor.
@@ -107,18 +328,457 @@ public class CSVLoader {
      * @throws FileNotFoundException If anything goes wrong.
      */
     public CSVLoader(File csvInputFile, int cacheSize, int osmIdPos, int osmLatPos, int osmLonPos, int tagDataPos) throws FileNotFoundException {
+        this(csvInputFile, cacheSize, osmIdPos, osmLatPos, osmLonPos, tagDataPos, new CSVImportOptions());
+    }
+
+    /**
+     * Constructor with additional options.
+     *
+     * @param csvInputFile The CSV file to import.
+     * @param cacheSize The cache will not exceed the number of slots specified
+     * here. If this is {@code -1}, the csv file will only be read once.
+     * @param osmIdPos At this position in each line we look for the OSM id
+     * (first element in a line has position {@code 1}).
+     * @param osmLatPos At this position in each line we look for the OSM
+     * latitude (first element in a line has position {@code 1}).
+     * @param osmLonPos At this position in each line we look for the OSM
+     * longitude (first element in a line has position {@code 1}).
+     * @param tagDataPos At this position in each line we look for the String
+     * that we want to import as a new Node tag (first element in a line has
+     * position {@code 1}).
+     * @param options Additional options, see {@link CSVImportOptions}.
+     * @throws FileNotFoundException If anything goes wrong.
+     */
+    public CSVLoader(File csvInputFile, int cacheSize, int osmIdPos, int osmLatPos, int osmLonPos, int tagDataPos, CSVImportOptions options) throws FileNotFoundException {
+        this(csvInputFile, cacheSize, osmIdPos, osmLatPos, osmLonPos, tagDataPos > 0 ? new int[]{tagDataPos} : new int[0], options);
+    }
+
+    /**
+     * Constructor for importing several columns at once: All columns are
+     * stored in the same cache or index, so one lookup per node returns all
+     * of them (see {@link CSVItem#getData(int)}).
+     *
+     * @param csvInputFile The CSV file to import.
+     * @param cacheSize The cache will not exceed the number of slots specified
+     * here. If this is {@code -1}, the csv file will only be read once.
+     * @param osmIdPos At this position in each line we look for the OSM id
+     * (first element in a line has position {@code 1}).
+     * @param osmLatPos At this position in each line we look for the OSM
+     * latitude (first element in a line has position {@code 1}).
+     * @param osmLonPos At this position in each line we look for the OSM
+     * longitude (first element in a line has position {@code 1}).
+     * @param tagDataPositions At these positions in each line we look for the
+     * Strings that we want to import as new Node tags (first element in a line
+     * has position {@code 1}).
+     * @param options Additional options, see {@link CSVImportOptions}.
+     * @throws FileNotFoundException If anything goes wrong.
+     */
+    public CSVLoader(File csvInputFile, int cacheSize, int osmIdPos, int osmLatPos, int osmLonPos, int[] tagDataPositions, CSVImportOptions options) throws FileNotFoundException {
+        boolean binary = isBinaryFile(csvInputFile);
+        if (!binary && options.getStorageEngine() == StorageEngine.BINARY) {
+            throw new IllegalArgumentException(csvInputFile.getPath() + " is no binary file, convert it with " + CSVImportPlugin_loader.convertTaskName + " first");
+        }
+        if (!binary && options.getStorageEngine() == StorageEngine.FROZEN && -1 != cacheSize) {
+            throw new IllegalArgumentException("The FROZEN storage engine only works with csvCacheSize=-1");
+        }
+        if (options.isPersistentIndex() && (binary || options.getStorageEngine() != StorageEngine.MAPPED)) {
+            throw new IllegalArgumentException("persistentIndex only works with storageEngine=MAPPED");
+        }
         this.csvInputFile = csvInputFile;
         this.cacheSize = cacheSize;
-        this.cache = new HashMap<>();
+        this.storageEngine = binary ? StorageEngine.BINARY : options.getStorageEngine();
+        this.persistentIndex = options.isPersistentIndex();
+        this.presortCSV = options.isPresortCSV();
+        this.sortMemoryMB = options.getSortMemoryMB();
         this.osmIdPos = osmIdPos;
         this.osmLatPos = osmLatPos;
         this.osmLonPos = osmLonPos;
-        this.tagDataPos = tagDataPos;
+        this.tagDataPositions = tagDataPositions.clone();
+        this.delimiter = options.getDelimiter();
+        this.parser = new CSVLineParser(osmIdPos, osmLatPos, osmLonPos, this.tagDataPositions, this.delimiter, Charset.defaultCharset());
+        this.dataReferences = new int[this.parser.getDataColumnCount()];
+        this.headerRow = options.isHeaderRow();
+        if (this.headerRow && osmIdPos > 0 && !binary) {
+            try {
+                this.headerIdField = TagColumnMapping.readHeader(csvInputFile, this.delimiter).get(osmIdPos - 1);
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException | IndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Cannot read the id column from the header row of " + csvInputFile.getPath(), e);
+            }
+            this.parser.setHeaderIdField(this.headerIdField);
+        } else {
+            this.headerIdField = null;
+        }
+        this.parseThreads = options.getParseThreads();
+        this.negativeLookupFilter = options.isNegativeLookupFilter();
+
+        try {
+            this.compression = CompressedInput.detect(this.csvInputFile);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read " + csvInputFile.getPath(), e);
+        }
+
+        if (this.storageEngine == StorageEngine.BINARY) {
+            this.openBinaryFile();
+            return;
+        }
+        if (this.storageEngine == StorageEngine.MAPPED) {
+            if (this.compression != CompressedInput.Compression.NONE) {
+                throw new IllegalArgumentException("The MAPPED storage engine cannot read compressed files");
+            }
+            // No readers, the file will be mapped at the first lookup
+            if (!this.csvInputFile.isFile()) {
+                throw new FileNotFoundException(this.csvInputFile.getPath());
+            }
+            return;
+        }
 
         // Initialize the readers
-        this.fileInputStream = new FileInputStream(this.csvInputFile);
-        this.inputStreamReader = new InputStreamReader(this.fileInputStream);
-        this.bufferedReader = new BufferedReader(this.inputStreamReader);
+        try {
+            this.lineReader = new CSVLineReader(this.openInputFile());
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot decompress " + csvInputFile.getPath(), e);
+        }
+    }
+
+    /**
+     * Is a file a binary file (see {@link BinaryCSVFile})?
+     *
+     * @param file The file.
+     * @return {@code true} if it is.
+     * @throws FileNotFoundException If the file does not exist.
+     */
+    private static boolean isBinaryFile(File file) throws FileNotFoundException {
+        try {
+            return BinaryCSVFile.isBinaryFile(file);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read " + file.getPath(), e);
+        }
+    }
+
+    /**
+     * Map the binary file for {@link StorageEngine#BINARY} and check the
+     * columns.
+     */
+    private void openBinaryFile() {
+        try {
+            this.binaryFile = new BinaryCSVFile(this.csvInputFile);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read " + this.csvInputFile.getPath(), e);
+        }
+        this.binaryColumns = new int[this.tagDataPositions.length];
+        for (int i = 0; i < this.binaryColumns.length; i++) {
+            if (this.tagDataPositions[i] > this.binaryFile.getColumnNames().size()) {
+                throw new IllegalArgumentException(this.csvInputFile.getPath() + " has no column " + this.tagDataPositions[i]);
+            }
+            this.binaryColumns[i] = this.tagDataPositions[i] - 1;
+        }
+        logger.log(Level.FINER, "Mapped the binary file: {0} lines, columns {1}", new Object[]{this.binaryFile.size(), this.binaryFile.getColumnNames()});
+    }
+
+    /**
+     * @return The column names of a binary file (see
+     * {@link StorageEngine#BINARY}), or {@code null} for other files.
+     */
+    public List<String> getBinaryColumnNames() {
+        return null == this.binaryFile ? null : this.binaryFile.getColumnNames();
+    }
+
+    /**
+     * @return Does the file have coordinates? Always {@code true} unless it is
+     * a binary file without them (see {@link StorageEngine#BINARY}).
+     */
+    public boolean hasCoordinates() {
+        return null == this.binaryFile || this.binaryFile.hasCoordinates();
+    }
+
+    /**
+     * Switch to {@link StorageEngine#MERGE_JOIN}. Only possible before the
+     * first lookup, and only if the file is read by readers (so not for
+     * {@link StorageEngine#MAPPED} and {@link StorageEngine#BINARY}).
+     *
+     * @throws IllegalStateException If it is too late to switch.
+     */
+    public void useMergeJoin() {
+        if (this.storageEngine == StorageEngine.MERGE_JOIN) {
+            return;
+        }
+        if (null != this.cache || null != this.preload || this.storageEngine == StorageEngine.MAPPED || this.storageEngine == StorageEngine.BINARY || this.isSpatialMatching()) {
+            throw new IllegalStateException("Cannot switch from " + this.storageEngine + " to MERGE_JOIN");
+        }
+        logger.log(Level.FINER, "Switching to merge join");
+        this.storageEngine = StorageEngine.MERGE_JOIN;
+    }
+
+    /**
+     * Match the lines by their coordinates instead of their ids: The file is
+     * loaded into a {@link SpatialCSVIndex}, and
+     * {@link #findNearestItem(double, double)} finds the nearest line within
+     * the radius. Only possible before the first lookup; the id lookups do
+     * not work then.
+     *
+     * @param radius The search radius (meters).
+     * @throws IllegalStateException If it is too late to switch.
+     */
+    public void useSpatialMatching(double radius) {
+        if (null != this.cache || null != this.preload || null != this.lineOffsetIndex || this.storageEngine == StorageEngine.MERGE_JOIN || this.storageEngine == StorageEngine.BINARY) {
+            throw new IllegalStateException("Cannot switch from " + this.storageEngine + " to matching by coordinates");
+        }
+        if (!(radius >= 0) || Double.isInfinite(radius)) {
+            throw new IllegalArgumentException("Please provide a finite maxDist to match by coordinates");
+        }
+        logger.log(Level.FINER, "Matching by coordinates within {0} m", radius);
+        this.spatialRadius = radius;
+    }
+
+    /**
+     * @return Are the lines matched by coordinates (see
+     * {@link #useSpatialMatching(double)})?
+     */
+    public boolean isSpatialMatching() {
+        return !Double.isNaN(this.spatialRadius);
+    }
+
+    /**
+     * @return How the lines are stored.
+     */
+    public StorageEngine getStorageEngine() {
+        return this.storageEngine;
+    }
+
+    /**
+     * Start loading the file on a background thread: Fill the endless cache,
+     * build the index of {@link StorageEngine#MAPPED}, the id filter or sort
+     * the file for {@link StorageEngine#MERGE_JOIN}, whatever the first lookup
+     * would have done. The first lookup then only waits until that is done.
+     * Call this after {@link #useMergeJoin()}; does nothing if the loading has
+     * started already.
+     */
+    public void startPreload() {
+        if (null != this.preload || null != this.cache || null != this.lineOffsetIndex || this.mergeStarted || null != this.spatialIndex || null != this.binaryFile) {
+            return;
+        }
+        logger.log(Level.FINER, "Preloading the CSV file");
+        this.preload = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                CSVLoader.this.prepareLookups();
+                return null;
+            }
+        });
+        Thread thread = new Thread(this.preload, "csv-preload");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Wait until the background loading (see {@link #startPreload()}) is done,
+     * if there is one.
+     *
+     * @throws IOException If the loading failed.
+     */
+    private void awaitPreload() throws IOException {
+        if (null == this.preload) {
+            return;
+        }
+        FutureTask<Void> pending = this.preload;
+        this.preload = null;
+        try {
+            pending.get();
+            logger.log(Level.FINER, "Preloading finished");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the CSV file to be loaded", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Load the file (if that has not happened yet) and tell if
+     * {@link #findItem(long)} may be called by several threads at once from
+     * now on. That is the case for the endless cache with the
+     * {@link StorageEngine#HASHMAP}, {@link StorageEngine#PRIMITIVE} and
+     * {@link StorageEngine#FROZEN} engines, since the cache is only read after
+     * it has been filled, for {@link StorageEngine#BINARY} and for matching by
+     * coordinates. Other engines have
+     * to be used by one thread at a time.
+     *
+     * @return {@code true} if lookups may run concurrently.
+     * @throws IOException If the file cannot be loaded.
+     */
+    public boolean prepareConcurrentLookups() throws IOException {
+        this.awaitPreload();
+        if (this.isSpatialMatching()) {
+            this.buildSpatialIndex();
+            return true;
+        }
+        if (this.storageEngine == StorageEngine.BINARY) {
+            return true;
+        }
+        if (-1 != this.cacheSize || this.storageEngine == StorageEngine.MAPPED || this.storageEngine == StorageEngine.MERGE_JOIN) {
+            return false;
+        }
+        if (this.negativeLookupFilter && null == this.idFilter) {
+            this.buildIdFilter();
+        }
+        this.createCache();
+        this.fillCacheWithoutMaxSize();
+        // The first lookup freezes the FROZEN store, so do it here
+        this.cache.get(0);
+        return true;
+    }
+
+    /**
+     * Do everything the first lookup needs, so it does not have to.
+     *
+     * @throws IOException If something goes wrong.
+     */
+    private void prepareLookups() throws IOException {
+        if (this.isSpatialMatching()) {
+            this.buildSpatialIndex();
+            return;
+        }
+        if (this.storageEngine == StorageEngine.MERGE_JOIN) {
+            this.startMergeJoin();
+            return;
+        }
+        if (this.negativeLookupFilter) {
+            this.buildIdFilter();
+        }
+        if (this.storageEngine == StorageEngine.MAPPED) {
+            if (null == this.lineOffsetIndex) {
+                this.buildLineOffsetIndex();
+            }
+            return;
+        }
+        this.createCache();
+        if (-1 == this.cacheSize) {
+            this.fillCacheWithoutMaxSize();
+        } else if (null == this.idFilter || this.idFilter.getInsertions() > 0) {
+            // (Filling the cache from a file without ids would fail)
+            this.fillCacheWithMaxSize();
+        }
+    }
+
+    /**
+     * Load the whole file into {@link #spatialIndex} if it does not exist
+     * yet.
+     *
+     * @throws IOException If the file cannot be read.
+     */
+    private void buildSpatialIndex() throws IOException {
+        if (null != this.spatialIndex) {
+            return;
+        }
+        logger.log(Level.FINER, "Building the spatial index");
+        SpatialCSVIndex index = new SpatialCSVIndex(this.spatialRadius, this.estimateLineCount());
+        try (CSVLineReader reader = new CSVLineReader(this.openInputFile())) {
+            long spatialLineNumber = 0;
+            if (this.headerRow && reader.next()) {
+                spatialLineNumber++;
+            }
+            while (reader.next()) {
+                spatialLineNumber++;
+                if (this.parser.parse(reader.buffer(), reader.lineStart(), reader.lineEnd(), spatialLineNumber)
+                        && this.parser.getFixedLatitude() != FixedPointCoordinates.NONE && this.parser.getFixedLongitude() != FixedPointCoordinates.NONE) {
+                    index.add(this.parser.getFixedLatitude(), this.parser.getFixedLongitude(), this.addDataColumns(index.getValueDictionary()));
+                }
+                this.loadedBytes.lazySet(reader.position());
+            }
+        }
+        index.build();
+        logger.log(Level.FINER, "Spatial index built: {0} lines", index.size());
+        this.spatialIndex = index;
+    }
+
+    /**
+     * Create {@link #cache} if it does not exist yet.
+     */
+    private void createCache() {
+        if (null == this.cache) {
+            this.cache = createStore(this.storageEngine, -1 == this.cacheSize ? this.estimateLineCount() : this.cacheSize + 1);
+        }
+    }
+
+    /**
+     * Create the {@link CSVItemStore} for a {@link StorageEngine}.
+     *
+     * @param storageEngine The storage engine.
+     * @param expectedSize How many lines we expect to store.
+     * @return The new, empty store.
+     */
+    private static CSVItemStore createStore(StorageEngine storageEngine, int expectedSize) {
+        switch (storageEngine) {
+            case HASHMAP:
+                return new HashMapCSVItemStore(expectedSize);
+            case PRIMITIVE:
+                return new PrimitiveCSVItemStore(expectedSize);
+            case FROZEN:
+                return new FrozenCSVItemStore(expectedSize);
+            case MAPPED:
+            case MERGE_JOIN:
+            case BINARY:
+                throw new IllegalArgumentException(storageEngine + " does not use a store");
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + storageEngine);
+        }
+    }
+
+    /**
+     * Guess how many lines the input file has by looking at the average line
+     * length at its beginning. Used to pre-size the cache.
+     *
+     * @return The estimated number of lines (at least {@code 1}).
+     */
+    private int estimateLineCount() {
+        long fileLength = this.csvInputFile.length();
+        boolean compressed = this.compression != CompressedInput.Compression.NONE;
+        byte[] sample = new byte[(int) (compressed ? COMPRESSED_LINE_COUNT_SAMPLE_BYTES : Math.min(LINE_COUNT_SAMPLE_BYTES, fileLength))];
+        int sampleLength = 0;
+        // How many bytes of the file have been read for the sample?
+        long sampleFileLength = 0;
+        try (FileInputStream fileStream = new FileInputStream(this.csvInputFile);
+                InputStream sampleStream = CompressedInput.decompress(fileStream, this.compression)) {
+            int read = sampleStream.read(sample);
+            while (read > 0 && sampleLength + read < sample.length) {
+                sampleLength += read;
+                read = sampleStream.read(sample, sampleLength, sample.length - sampleLength);
+            }
+            sampleLength += Math.max(read, 0);
+            sampleFileLength = compressed ? fileStream.getChannel().position() : sampleLength;
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Could not sample the input file", e);
+        }
+        int sampleLines = 0;
+        for (int i = 0; i < sampleLength; i++) {
+            if (sample[i] == '\n') {
+                sampleLines++;
+            }
+        }
+        if (sampleLines == 0) {
+            return 1;
+        }
+        // Add 10 % to make growing the store unlikely
+        double estimate = 1.1 * fileLength * sampleLines / Math.max(1, sampleFileLength);
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE - 8, estimate));
     }
 
     /**
@@ -146,31 +806,33 @@ public class CSVLoader {
     private void fillCacheWithMaxSize() throws IOException {
         logger.log(Level.FINER, "Filling cache");
         for (int i = 0; i <= (this.cacheSize - this.cache.size()); i++) {
-            String line = this.readLine();
-            CSVItem currentItem = this.parseCSVItem(line);
-            if (null != currentItem) {
-                this.cache.put(currentItem.OSM_ID, currentItem);
-            }
+            this.readLine();
+            this.parseIntoCache();
         }
     }
 
     /**
      * Read lines and store them into the cache, until the input file is at EOF
-     * (or the memory is full and the whole thing breaks down).
+     * (or the memory is full and the whole thing breaks down). With more than
+     * one parse thread, the file is read by a {@link ParallelCSVReader}.
      *
      * @throws IOException
      */
     private void fillCacheWithoutMaxSize() throws IOException {
-        if (this.cache.isEmpty()) {
+        if (!this.endlessCacheFilled) {
             logger.log(Level.FINER, "Filling endless cache");
-            String line = this.readLine();
-            while (null != line) {
-                CSVItem currentItem = this.parseCSVItem(line);
-                if (null != currentItem) {
-                    this.cache.put(currentItem.OSM_ID, currentItem);
+            if (this.parseThreads > 1) {
+                ParallelCSVReader reader = new ParallelCSVReader(this.csvInputFile, this.parser, this.parseThreads);
+                this.lineNumber = reader.read(this.cache, this.idFilter, this.loadedBytes);
+            } else {
+                while (this.readLine()) {
+                    this.lineNumber++;
+                    if (this.parseIntoCache() && null != this.idFilter) {
+                        this.idFilter.add(this.parser.getOsmId());
+                    }
                 }
-                line = this.readLine();
             }
+            this.endlessCacheFilled = true;
             logger.log(Level.FINER, "Cache size: {0}", this.cache.size());
             logger.log(Level.FINER, "Endless cache filled");
         }
@@ -201,15 +863,16 @@ public class CSVLoader {
     }
 
     /**
-     * Reads a line from the input CSV. If the cache has no limit, it just reads
-     * a line or {@code null} if we are at EOF: {@link #readLineDumb() }). If
-     * the cache has a limit, it will start at the input file's beginning if it
-     * reached the bottom ({@link #readLineIntelligent() }).
+     * Reads a line from the input CSV into {@link #lineReader}. If the cache
+     * has no limit, it just reads a line or returns {@code false} if we are at
+     * EOF: {@link #readLineDumb() }). If the cache has a limit, it will start
+     * at the input file's beginning if it reached the bottom
+     * ({@link #readLineIntelligent() }).
      *
-     * @return A line.
+     * @return {@code true} if a line has been read.
      * @throws IOException
      */
-    private String readLine() throws IOException {
+    private boolean readLine() throws IOException {
         if (-1 == this.cacheSize) {
             return this.readLineDumb();
         } else {
@@ -221,32 +884,40 @@ public class CSVLoader {
      * Reads a line from the input CSV and starts all over when reaching the
      * bottom.
      *
-     * @return A line.
+     * @return Always {@code true}.
      * @throws IOException If the file contains no lines at all.
      */
-    private String readLineIntelligent() throws IOException {
-        String line = this.bufferedReader.readLine();
-        if (null == line) {
+    private boolean readLineIntelligent() throws IOException {
+        boolean read = this.lineReader.next();
+        if (read && this.runsThroughFile == 1) {
+            this.loadedBytes.lazySet(this.lineReader.position());
+        }
+        if (!read) {
             this.resetReaders();
-            line = this.bufferedReader.readLine();
+            read = this.lineReader.next();
             this.runsThroughFile++;
+            this.fileRescans.increment();
         }
-        // Still null? File seems to be empty
-        if (null == line) {
+        // Still nothing? File seems to be empty
+        if (!read) {
             throw new IOException("CSV file seems to be empty");
         }
         this.lineNumber++;
         this.updateMark();
-        return line;
+        return true;
     }
 
     /**
      * Reads a line from the input file without starting all over.
-     * @return A line or {@code null} if we are at EOF.
+     * @return {@code false} if we are at EOF.
      * @throws IOException 
      */
-    private String readLineDumb() throws IOException {
-        return this.bufferedReader.readLine();
+    private boolean readLineDumb() throws IOException {
+        if (!this.lineReader.next()) {
+            return false;
+        }
+        this.loadedBytes.lazySet(this.lineReader.position());
+        return true;
     }
 
     /**
@@ -256,89 +927,481 @@ public class CSVLoader {
      */
     private void resetReaders() throws IOException {
         logger.log(Level.FINER, "Resetting readers");
-        // Close
-        this.bufferedReader.close();
-        this.inputStreamReader.close();
-        this.fileInputStream.close();
-        // Reset
-        this.fileInputStream = new FileInputStream(this.csvInputFile);
-        this.inputStreamReader = new InputStreamReader(this.fileInputStream);
-        this.bufferedReader = new BufferedReader(this.inputStreamReader);
-        this.lineNumber = 1;
+        this.lineReader.close();
+        this.lineReader = new CSVLineReader(this.openInputFile());
+        this.lineNumber = 0;
     }
 
     /**
-     * Parse a line into a {@link CSVItem}. Empty lines or lines starting with
-     * {@code ;} will be ignored.
+     * Open the input file, decompressing it with {@link #parseThreads} threads
+     * if it is compressed.
      *
-     * @param line The line to parse.
-     * @return A {@link CSVItem}.
+     * @return The (decompressed) content of the file.
+     * @throws IOException If the file cannot be opened.
      */
-    private CSVItem parseCSVItem(String line) {
-        if (line.equals("") || line.startsWith(";")) {
-            logger.log(Level.FINE, "Empty line (or starting with >;<): {0}", this.lineNumber);
-            return null;
+    private InputStream openInputFile() throws IOException {
+        return CompressedInput.open(this.csvInputFile, this.parseThreads);
+    }
+
+    /**
+     * Parse the current line of {@link #lineReader} and store it at the cache.
+     * Empty lines or lines starting with {@code ;} will be ignored.
+     *
+     * @return {@code true} if the line has been stored.
+     */
+    private boolean parseIntoCache() {
+        if (!this.parseLine(this.lineReader.buffer(), this.lineReader.lineStart(), this.lineReader.lineEnd())) {
+            return false;
         }
-        // Split the line and check if there are enough parts
-        String[] lineChunks = line.split(",");
-        if (lineChunks.length < Math.max(Math.max(this.osmIdPos, this.osmLatPos), Math.max(this.osmLonPos, this.tagDataPos))) {
-            logger.log(Level.WARNING, "Line is too short: {0}", line);
-            return null;
+        this.cache.put(this.parser.getOsmId(), this.parser.getFixedLatitude(), this.parser.getFixedLongitude(), this.addDataColumns(this.cache.getValueDictionary()));
+        return true;
+    }
+
+    /**
+     * Add the data of the line just parsed by {@link #parser} to a
+     * dictionary, without decoding it.
+     *
+     * @param dictionary The dictionary.
+     * @return The references of the data, one per column (the same array for
+     * every line).
+     */
+    private int[] addDataColumns(ValueDictionary dictionary) {
+        for (int column = 0; column < this.dataReferences.length; column++) {
+            this.dataReferences[column] = this.parser.addData(column, dictionary);
+        }
+        return this.dataReferences;
+    }
+
+    /**
+     * Parse a line with {@link #parser}, the results can be read from it.
+     * Empty lines or lines starting with {@code ;} will be ignored.
+     *
+     * @param line The bytes of the line.
+     * @param start Where the line starts at {@code line}.
+     * @param end Where the line ends at {@code line} (exclusive).
+     * @return {@code true} if the line contained an item.
+     */
+    private boolean parseLine(byte[] line, int start, int end) {
+        return this.parser.parse(line, start, end, this.lineNumber);
+    }
+
+    /**
+     * Build {@link #idFilter}. The endless cache and
+     * {@link StorageEngine#MAPPED} collect the ids anyway while reading the
+     * file; with a limited cache, the ids are read in a pass of their own.
+     *
+     * @throws IOException If something goes wrong.
+     */
+    private void buildIdFilter() throws IOException {
+        logger.log(Level.FINER, "Building the id filter");
+        if (this.storageEngine == StorageEngine.MAPPED) {
+            if (null == this.lineOffsetIndex) {
+                this.buildLineOffsetIndex();
+            }
+            this.idFilter = new IdBloomFilter(this.lineOffsetIndex.size(), ID_FILTER_FALSE_POSITIVE_RATE);
+            LongSegments ids = this.lineOffsetIndex.ids();
+            for (int i = 0; i < ids.size(); i++) {
+                this.idFilter.add(ids.get(i));
+            }
+        } else if (-1 == this.cacheSize) {
+            this.idFilter = new IdBloomFilter(this.estimateLineCount(), ID_FILTER_FALSE_POSITIVE_RATE);
+            this.createCache();
+            this.fillCacheWithoutMaxSize();
+        } else {
+            this.idFilter = new IdBloomFilter(this.estimateLineCount(), ID_FILTER_FALSE_POSITIVE_RATE);
+            // Only the ids are needed, so don't decode the data
+            CSVLineParser idParser = new CSVLineParser(this.osmIdPos, -1, -1, -1, this.delimiter, Charset.defaultCharset());
+            idParser.setHeaderIdField(this.headerIdField);
+            idParser.shareCounters(this.parser);
+            try (CSVLineReader idReader = new CSVLineReader(this.openInputFile())) {
+                long idLineNumber = 0;
+                while (idReader.next()) {
+                    idLineNumber++;
+                    if (idParser.parse(idReader.buffer(), idReader.lineStart(), idReader.lineEnd(), idLineNumber)) {
+                        this.idFilter.add(idParser.getOsmId());
+                    }
+                }
+            }
         }
-        // Read the id
-        long osmId;
+        logger.log(Level.FINER, "Id filter: {0} ids, {1} bytes", new Object[]{this.idFilter.getInsertions(), this.idFilter.getSizeInBytes()});
+    }
+
+    /**
+     * Map the input file into memory and build {@link #lineOffsetIndex}.
+     *
+     * @throws IOException If the file cannot be mapped.
+     */
+    private void buildLineOffsetIndex() throws IOException {
+        this.mappedFile = new MappedCSVFile(this.csvInputFile);
+        File indexFile = LineOffsetIndexFile.indexFileFor(this.csvInputFile);
+        if (this.persistentIndex) {
+            try {
+                this.lineOffsetIndex = LineOffsetIndexFile.read(indexFile, this.csvInputFile, this.getLayout());
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not read index file " + indexFile.getPath(), e);
+            }
+            if (null != this.lineOffsetIndex) {
+                logger.log(Level.FINER, "Using index file {0}", indexFile.getPath());
+                this.loadedBytes.set(this.mappedFile.size());
+                return;
+            }
+        }
+        logger.log(Level.FINER, "Indexing mapped CSV file");
+        LineOffsetIndex.Builder builder = new LineOffsetIndex.Builder(this.estimateLineCount());
+        // Stream the file and read only the ids, the data is parsed at the lookups
+        CSVLineParser indexParser = this.parser.copy();
+        indexParser.setSkipData(true);
+        try (CSVLineReader reader = new CSVLineReader(new FileInputStream(this.csvInputFile))) {
+            long offset = 0;
+            this.lineNumber = 0;
+            while (reader.next()) {
+                this.lineNumber++;
+                if (indexParser.parse(reader.buffer(), reader.lineStart(), reader.lineEnd(), this.lineNumber)) {
+                    builder.add(indexParser.getOsmId(), offset);
+                }
+                offset = reader.position();
+                this.loadedBytes.lazySet(offset);
+            }
+        }
+        this.lineOffsetIndex = builder.build();
+        logger.log(Level.FINER, "Index size: {0}", this.lineOffsetIndex.size());
+        if (this.persistentIndex) {
+            try {
+                LineOffsetIndexFile.write(this.lineOffsetIndex, indexFile, this.csvInputFile, this.getLayout());
+                logger.log(Level.FINER, "Index written to {0}", indexFile.getPath());
+            } catch (IOException e) {
+                // Not fatal, we just have to index again next time
+                logger.log(Level.WARNING, "Could not write index file " + indexFile.getPath(), e);
+            }
+        }
+    }
+
+    /**
+     * Look up an item with {@link StorageEngine#MERGE_JOIN}: Read forward until
+     * we reach the id. Ids have to be looked up in ascending order.
+     *
+     * @param id The OSM id of the element to find.
+     * @return The {@link CSVItem} with the matching id or {@code null} if it
+     * isn't present at the file.
+     * @throws IOException If something goes wrong.
+     * @throws IllegalStateException If the ids are not looked up in ascending
+     * order or the file is not sorted.
+     */
+    private CSVItem findMergedItem(long id) throws IOException {
+        if (id == this.mergeLastId) {
+            return this.mergeLastItem;
+        }
+        if (id < this.mergeLastId) {
+            throw new IllegalStateException("The OSM nodes are not sorted by id (" + id + " after " + this.mergeLastId + "), the merge join needs sorted input");
+        }
+        this.mergeLastId = id;
+        if (!this.mergeStarted) {
+            this.startMergeJoin();
+        }
+        while (null != this.mergeNextItem && this.mergeNextItem.OSM_ID < id) {
+            this.advanceMergeCursor();
+        }
+        this.mergeLastItem = null;
+        // Of several lines with the same id, the last one wins (like at the cache)
+        while (null != this.mergeNextItem && this.mergeNextItem.OSM_ID == id) {
+            this.mergeLastItem = this.mergeNextItem;
+            this.advanceMergeCursor();
+        }
+        if (null == this.mergeLastItem && logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "Could not find osm id {0}", id);
+        }
+        return this.mergeLastItem;
+    }
+
+    /**
+     * Start reading for {@link StorageEngine#MERGE_JOIN}: Sort the file if
+     * {@link #presortCSV} is set and read the first item.
+     *
+     * @throws IOException If something goes wrong.
+     */
+    private void startMergeJoin() throws IOException {
+        this.mergeStarted = true;
+        if (this.presortCSV) {
+            this.sortInputFile();
+        }
+        this.advanceMergeCursor();
+    }
+
+    /**
+     * Sort the input file into a temporary file with
+     * {@link CSVExternalSorter} and read that one from now on. Used by
+     * {@link StorageEngine#MERGE_JOIN} if {@link #presortCSV} is set. The
+     * sorted file and the runs of the sorter are put next to the input file
+     * (like {@link CSVSortPlugin_task} puts them next to its output), since
+     * they are as large as the input; the sorted file is deleted at EOF or by
+     * {@link #close()}.
+     *
+     * @throws IOException If something goes wrong.
+     */
+    private void sortInputFile() throws IOException {
+        File directory = this.csvInputFile.getAbsoluteFile().getParentFile();
+        this.sortedCSVFile = File.createTempFile(this.csvInputFile.getName(), ".sorted.csv", directory);
         try {
-            osmId = Long.parseLong(lineChunks[this.osmIdPos - 1]);
-        } catch (NumberFormatException e) {
-            logger.log(Level.WARNING, "Mal-formed line (id): " + this.lineNumber, e);
-            return null;
+            logger.log(Level.INFO, "Sorting {0} for the merge join", this.csvInputFile.getPath());
+            CSVExternalSorter sorter = new CSVExternalSorter(this.csvInputFile, this.osmIdPos, this.delimiter, this.sortMemoryMB * 1024L * 1024L, directory);
+            sorter.setHeaderIdField(this.headerIdField);
+            sorter.sort(this.sortedCSVFile);
+            this.lineReader.close();
+            this.lineReader = new CSVLineReader(new FileInputStream(this.sortedCSVFile));
+        } catch (IOException | RuntimeException e) {
+            this.deleteSortedFile();
+            throw e;
+        }
+        this.lineNumber = 0;
+    }
+
+    /**
+     * Delete the sorted copy of {@link #sortInputFile()}, if there is one.
+     * Failures are logged only.
+     */
+    private void deleteSortedFile() {
+        File sortedFile = this.sortedCSVFile;
+        if (null == sortedFile) {
+            return;
         }
-        // Read the data
-        String tagData = lineChunks[this.tagDataPos - 1];
-        // Read lon and lat
-        double longitude = Double.NaN;
-        double latitude = Double.NaN;
-        if (this.osmLatPos > 0 && this.osmLonPos > 0) {
+        this.sortedCSVFile = null;
+        try {
+            Files.deleteIfExists(sortedFile.toPath());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not delete " + sortedFile.getPath(), e);
+        }
+    }
+
+    /**
+     * Read the next item for {@link #findMergedItem(long)} into
+     * {@link #mergeNextItem}.
+     *
+     * @throws IOException If something goes wrong.
+     * @throws IllegalStateException If the file is not sorted.
+     */
+    private void advanceMergeCursor() throws IOException {
+        while (this.readLineDumb()) {
+            this.lineNumber++;
+            if (this.parseLine(this.lineReader.buffer(), this.lineReader.lineStart(), this.lineReader.lineEnd())) {
+                if (null != this.mergeNextItem && this.parser.getOsmId() < this.mergeNextItem.OSM_ID) {
+                    throw new IllegalStateException("The CSV file is not sorted by id (line " + this.lineNumber + "), the merge join needs sorted input");
+                }
+                this.mergeNextItem = new CSVItem(this.parser.getOsmId(), this.parser.getLatitude(), this.parser.getLongitude(), this.parser.getDataColumns());
+                return;
+            }
+        }
+        this.mergeNextItem = null;
+        if (null != this.sortedCSVFile) {
+            // The rest of the lookups do not need it any more
+            this.lineReader.close();
+            this.deleteSortedFile();
+        }
+    }
+
+    /**
+     * Stop the background loading, close the file and delete the sorted copy
+     * of {@link #presortCSV}. The loader must not be used any more
+     * afterwards. Failures are logged only.
+     */
+    @Override
+    public void close() {
+        FutureTask<Void> pending = this.preload;
+        if (null != pending) {
+            pending.cancel(true);
+        }
+        if (null != this.lineReader) {
             try {
-                latitude = Double.parseDouble(lineChunks[this.osmLatPos - 1]);
-                longitude = Double.parseDouble(lineChunks[this.osmLonPos - 1]);
-            } catch (NumberFormatException e) {
-                logger.log(Level.WARNING, "Mal-formed line (lat/lon): " + this.lineNumber, e);
+                this.lineReader.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not close " + this.csvInputFile.getPath(), e);
             }
         }
-        CSVItem item = new CSVItem(osmId, latitude, longitude, tagData);
-        return item;
+        this.deleteSortedFile();
+    }
+
+    /**
+     * Describe everything that decides which lines make it into the index, so
+     * {@link LineOffsetIndexFile} can tell if an index file fits.
+     *
+     * @return The layout description.
+     */
+    private String getLayout() {
+        return "idPos=" + this.osmIdPos + ";latPos=" + this.osmLatPos + ";lonPos=" + this.osmLonPos
+                + ";tagDataPos=" + joinPositions(this.tagDataPositions) + ";delimiter=" + (int) this.delimiter + ";charset=" + Charset.defaultCharset().name();
+    }
+
+    /**
+     * Join column positions with {@code +}.
+     *
+     * @param positions The positions.
+     * @return E.g. {@code 2+5}.
+     */
+    private static String joinPositions(int[] positions) {
+        StringBuilder joined = new StringBuilder();
+        for (int i = 0; i < positions.length; i++) {
+            if (i > 0) {
+                joined.append('+');
+            }
+            joined.append(positions[i]);
+        }
+        return joined.toString();
+    }
+
+    /**
+     * Look up an item with {@link StorageEngine#MAPPED}: Find its line using
+     * {@link #lineOffsetIndex} and parse it.
+     *
+     * @param id The OSM id of the element to find.
+     * @return The {@link CSVItem} with the matching id or {@code null} if it
+     * isn't present at the file.
+     * @throws IOException If the file cannot be mapped.
+     */
+    private CSVItem findMappedItem(long id) throws IOException {
+        if (null == this.lineOffsetIndex) {
+            this.buildLineOffsetIndex();
+        }
+        long offset = this.lineOffsetIndex.find(id);
+        if (offset < 0 || !this.parseLine(this.mappedFile.lineBuffer(), 0, this.mappedFile.readLine(offset))) {
+            if (logger.isLoggable(Level.FINE)) {
+                logger.log(Level.FINE, "Could not find osm id {0}", id);
+            }
+            return null;
+        }
+        return new CSVItem(this.parser.getOsmId(), this.parser.getLatitude(), this.parser.getLongitude(), this.parser.getDataColumns());
     }
 
     /**
      * Try to find a {@link CSVItem} at the cache (cache-hit) and if it isn't
      * there, seek through the whole file. The cache will be cleared and
-     * re-filled when seeking (only if its size is limited!).
+     * re-filled when seeking (only if its size is limited!). If there is an
+     * id filter (see
+     * {@link CSVImportOptions#setNegativeLookupFilter(boolean)}), ids that are
+     * not in the file are rejected before all that.
      *
-     * @param id The OSM id of the element to find.
+     * @param id The OSM id of the node to find (or the {@link EntityKey} of
+     * any entity).
      * @return The {@link CSVItem} with the matching id or {@code null} if it
      * isn't present at the file.
      * @throws IOException If something goes wrong.
      */
     public CSVItem findItem(long id) throws IOException {
+        if (this.isSpatialMatching()) {
+            throw new IllegalStateException("The lines are matched by coordinates, not by ids");
+        }
+        this.awaitPreload();
+        if (this.storageEngine == StorageEngine.MERGE_JOIN) {
+            return this.findMergedItem(id);
+        }
+        if (this.storageEngine == StorageEngine.BINARY) {
+            // Searching the file is about as fast as the id filter
+            return this.binaryFile.get(id, this.binaryColumns);
+        }
+        if (!this.negativeLookupFilter) {
+            return this.findUnfilteredItem(id);
+        }
+        if (null == this.idFilter) {
+            this.buildIdFilter();
+        }
+        if (!this.idFilter.mightContain(id)) {
+            this.filterRejections.increment();
+            if (logger.isLoggable(Level.FINE)) {
+                logger.log(Level.FINE, "Could not find osm id {0} (rejected by the id filter)", id);
+            }
+            return null;
+        }
+        CSVItem item = this.findUnfilteredItem(id);
+        if (null == item) {
+            this.filterFalsePositives.increment();
+        }
+        return item;
+    }
+
+    /**
+     * Find the nearest line to a point, see
+     * {@link #useSpatialMatching(double)}. May be called by several threads
+     * at once after {@link #prepareConcurrentLookups()}.
+     *
+     * @param latitude The latitude of the point.
+     * @param longitude The longitude of the point.
+     * @return The {@link CSVItem} of the nearest line within the radius
+     * (with {@link CSVItem#OSM_ID} {@code 0}) or {@code null} if there is
+     * none.
+     * @throws IOException If something goes wrong.
+     * @throws IllegalStateException If the lines are not matched by
+     * coordinates.
+     */
+    public CSVItem findNearestItem(double latitude, double longitude) throws IOException {
+        if (!this.isSpatialMatching()) {
+            throw new IllegalStateException("The lines are not matched by coordinates");
+        }
+        this.awaitPreload();
+        if (null == this.spatialIndex) {
+            this.buildSpatialIndex();
+        }
+        return this.spatialIndex.findNearest(latitude, longitude);
+    }
+
+    /**
+     * Find the item of any entity, see {@link #findItem(long)}.
+     *
+     * @param type The type of the entity (node, way or relation).
+     * @param id The OSM id of the entity.
+     * @return The {@link CSVItem} with the matching type and id or
+     * {@code null} if it isn't present at the file.
+     * @throws IOException If something goes wrong.
+     */
+    public CSVItem findItem(EntityType type, long id) throws IOException {
+        if (!EntityKey.isValidId(id)) {
+            return null;
+        }
+        return this.findItem(EntityKey.of(type, id));
+    }
+
+    /**
+     * Find an item at the mapped file or the cache, see
+     * {@link #findItem(long)}.
+     *
+     * @param id The OSM id of the element to find.
+     * @return The {@link CSVItem} with the matching id or {@code null} if it
+     * isn't present at the file.
+     * @throws IOException If something goes wrong.
+     */
+    private CSVItem findUnfilteredItem(long id) throws IOException {
+        if (this.storageEngine == StorageEngine.MAPPED) {
+            return this.findMappedItem(id);
+        }
+        this.createCache();
         // Lookup in the cache
         CSVItem item = this.cache.get(id);
         if (null != item) {
             logger.log(Level.FINEST, "Cache hit");
+            this.cacheHits.increment();
             return item;
         }
-        // Search the item
-        logger.log(Level.FINEST, "Cache miss {0}", id);
+        this.cacheMisses.increment();
+        // Search the item (check the level first, the parameter would be boxed)
+        if (logger.isLoggable(Level.FINEST)) {
+            logger.log(Level.FINEST, "Cache miss {0}", id);
+        }
+        if (-1 == this.cacheSize && this.endlessCacheFilled) {
+            // The whole file is in the cache already
+            if (logger.isLoggable(Level.FINE)) {
+                logger.log(Level.FINE, "Could not find osm id {0}", id);
+            }
+            return null;
+        }
         this.markLine();
         // Only re-fill cache if it has a max size.
         // But at the first time it will not be filled already.
-        while (null == item && !this.passedMark && (this.cacheSize != -1 || this.cache.isEmpty())) {
+        while (null == item && !this.passedMark && (this.cacheSize != -1 || !this.endlessCacheFilled)) {
             this.cache.clear();
             this.fillCache();
             item = this.cache.get(id);
         }
         if (null == item) {
-            logger.log(Level.FINE, "Could not find osm id {0}", id);
+            if (logger.isLoggable(Level.FINE)) {
+                logger.log(Level.FINE, "Could not find osm id {0}", id);
+            }
         } else {
             logger.log(Level.FINEST, "Cache hit");
         }
@@ -350,6 +1413,132 @@ public class CSVLoader {
      * @return The elements in the cache.
      */
     public int getCacheEntries() {
-        return this.cache.size();
+        if (this.isSpatialMatching()) {
+            return null == this.spatialIndex ? 0 : this.spatialIndex.size();
+        }
+        if (this.storageEngine == StorageEngine.MAPPED) {
+            return null == this.lineOffsetIndex ? 0 : this.lineOffsetIndex.size();
+        }
+        if (this.storageEngine == StorageEngine.MERGE_JOIN) {
+            return null == this.mergeNextItem ? 0 : 1;
+        }
+        if (this.storageEngine == StorageEngine.BINARY) {
+            return this.binaryFile.size();
+        }
+        return null == this.cache ? 0 : this.cache.size();
+    }
+
+    /**
+     * How many distinct data values are stored at the cache (see
+     * {@link ValueDictionary})?
+     *
+     * @return The number of distinct values, {@code 0} if there is no cache.
+     */
+    public int getValueDictionarySize() {
+        if (null != this.spatialIndex) {
+            return this.spatialIndex.getValueDictionary().size();
+        }
+        if (null != this.binaryFile) {
+            return this.binaryFile.getValueCount();
+        }
+        return null == this.cache ? 0 : this.cache.getValueDictionary().size();
+    }
+
+    /**
+     * Estimate how much heap the value dictionary of the cache saves compared
+     * to a {@link String} per line.
+     *
+     * @return The saved bytes, {@code 0} if there is no cache.
+     */
+    public long getValueDictionaryBytesSaved() {
+        if (null != this.spatialIndex) {
+            return this.spatialIndex.getValueDictionary().getBytesSaved();
+        }
+        return null == this.cache ? 0 : this.cache.getValueDictionary().getBytesSaved();
+    }
+
+    /**
+     * @return How many lookups have been answered from the cache? May be
+     * called by any thread, like the other counters.
+     */
+    public long getCacheHits() {
+        return this.cacheHits.sum();
+    }
+
+    /**
+     * @return How many lookups have not been in the cache (the file was read
+     * or the id is not there)? Lookups rejected by the id filter and the
+     * storage engines without cache do not count.
+     */
+    public long getCacheMisses() {
+        return this.cacheMisses.sum();
+    }
+
+    /**
+     * @return How often has the bounded cache started reading the file from
+     * the top again?
+     */
+    public long getFileRescans() {
+        return this.fileRescans.sum();
+    }
+
+    /**
+     * @return How many bytes of the file (with the line breaks) have been read
+     * by the pass that loads it into the cache or index? Later passes of the
+     * bounded cache, the pass that collects the ids for the id filter and the
+     * lookups of the {@link StorageEngine#MAPPED} engine are not counted. With
+     * {@link CSVImportOptions#setPresortCSV(boolean)}, this is the position at
+     * the sorted copy.
+     */
+    public long getLoadedBytes() {
+        return this.loadedBytes.get();
+    }
+
+    /**
+     * @return How many CSV lines have been parsed so far (lines read several
+     * times count several times)?
+     */
+    public long getLinesParsed() {
+        return this.parser.getLinesParsed();
+    }
+
+    /**
+     * @return How many bytes of CSV lines (without the line breaks) have been
+     * parsed so far?
+     */
+    public long getBytesParsed() {
+        return this.parser.getBytesParsed();
+    }
+
+    /**
+     * @return How many lookups have been rejected by the id filter (see
+     * {@link CSVImportOptions#setNegativeLookupFilter(boolean)})?
+     */
+    public long getFilterRejections() {
+        return this.filterRejections.sum();
+    }
+
+    /**
+     * @return How many ids have been let through by the id filter, but were
+     * not found?
+     */
+    public long getFilterFalsePositives() {
+        return this.filterFalsePositives.sum();
+    }
+
+    /**
+     * The measured false positive rate of the id filter: Of all looked up ids
+     * that are not in the file, how many did the filter let through?
+     *
+     * @return The rate or {@code NaN} if there is no filter or no id was
+     * missing so far.
+     */
+    public double getFilterFalsePositiveRate() {
+        long falsePositives = this.filterFalsePositives.sum();
+        long missingIds = this.filterRejections.sum() + falsePositives;
+        if (null == this.idFilter || 0 == missingIds) {
+            return Double.NaN;
+        }
+        return (double) falsePositives / missingIds;
     }
 }
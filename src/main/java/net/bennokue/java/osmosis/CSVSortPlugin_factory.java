@@ -0,0 +1,44 @@
+package net.bennokue.java.osmosis;
+
+import org.openstreetmap.osmosis.core.pipeline.common.RunnableTaskManager;
+import org.openstreetmap.osmosis.core.pipeline.common.TaskConfiguration;
+import org.openstreetmap.osmosis.core.pipeline.common.TaskManager;
+import org.openstreetmap.osmosis.core.pipeline.common.TaskManagerFactory;
+import org.openstreetmap.osmosis.core.task.common.RunnableTask;
+
+/**
+ * Factory class for the CSV sort task, see {@link CSVSortPlugin_task}.
+ *
+ * @author bennokue
+ */
+public class CSVSortPlugin_factory extends TaskManagerFactory {
+
+    /*
+     * ARG_ variables store the argument name, DEFAULT_ variables the default
+     * value.
+     */
+    private static final String ARG_INPUT_CSV = "inputCSV";
+    private static final String DEFAULT_INPUT_CSV = "";
+    private static final String ARG_OUTPUT_CSV = "outputCSV";
+    private static final String DEFAULT_OUTPUT_CSV = "";
+    private static final String ARG_ID_POSITION = "idPos";
+    private static final int DEFAULT_ID_POSITION = -1;
+    private static final String ARG_SORT_MEMORY = "sortMemoryMB";
+    private static final int DEFAULT_SORT_MEMORY = CSVImportOptions.DEFAULT_SORT_MEMORY_MB;
+    private static final String ARG_DELIMITER = "delimiter";
+    private static final String DEFAULT_DELIMITER = "comma";
+
+    @Override
+    protected TaskManager createTaskManagerImpl(TaskConfiguration taskConfig) {
+        // Get command line arguments
+        String inputCSV = getStringArgument(taskConfig, ARG_INPUT_CSV, DEFAULT_INPUT_CSV);
+        String outputCSV = getStringArgument(taskConfig, ARG_OUTPUT_CSV, DEFAULT_OUTPUT_CSV);
+        int idPosition = getIntegerArgument(taskConfig, ARG_ID_POSITION, DEFAULT_ID_POSITION);
+        int sortMemory = getIntegerArgument(taskConfig, ARG_SORT_MEMORY, DEFAULT_SORT_MEMORY);
+        char delimiter = CSVImportOptions.parseDelimiter(getStringArgument(taskConfig, ARG_DELIMITER, DEFAULT_DELIMITER));
+
+        // Create the task
+        RunnableTask task = new CSVSortPlugin_task(inputCSV, outputCSV, idPosition, delimiter, sortMemory);
+        return new RunnableTaskManager(taskConfig.getId(), task, taskConfig.getPipeArgs());
+    }
+}
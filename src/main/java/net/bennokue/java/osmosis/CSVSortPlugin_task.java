@@ -0,0 +1,82 @@
+package net.bennokue.java.osmosis;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.task.common.RunnableTask;
+
+/**
+ * Sorts a CSV file by OSM id, so it can be imported with
+ * {@code csvSorted=true} (see {@link CSVImportPlugin_task}). Uses
+ * {@link CSVExternalSorter}, so the file may be much bigger than the memory.
+ * Parameters:<ul><li>{@code inputCSV}: The path to the CSV file to
+ * sort.</li><li>{@code outputCSV}: Where to write the sorted
+ * file.</li><li>{@code idPos}: The position of the OSM id in each line (first
+ * field = {@code 1}).</li><li>{@code delimiter}: The field delimiter, see
+ * {@link CSVImportOptions#parseDelimiter(java.lang.String)}. <em>Defaults to
+ * {@code comma}</em>.</li><li>{@code sortMemoryMB}: How many megabytes may be
+ * used to buffer lines. <em>Defaults to
+ * {@value CSVImportOptions#DEFAULT_SORT_MEMORY_MB}</em>.</li></ul>Note: Empty
+ * lines, lines starting with a semicolon and lines without an id will be
+ * dropped.
+ *
+ * @author bennokue
+ */
+public class CSVSortPlugin_task implements RunnableTask {
+
+    private static final Logger logger = Logger.getLogger(CSVSortPlugin_task.class.getName());
+    /**
+     * The file to sort.
+     */
+    private final File inputCSV;
+    /**
+     * The sorted file.
+     */
+    private final File outputCSV;
+    /**
+     * Does the sorting.
+     */
+    private final CSVExternalSorter sorter;
+
+    /**
+     * Standard constructor with some sanity checks.
+     *
+     * @param inputCSV The input CSV file.
+     * @param outputCSV The output CSV file.
+     * @param osmIdPos The CSV line position of the OSM id (first field =
+     * {@code 1}).
+     * @param delimiter The field delimiter.
+     * @param sortMemoryMB How many megabytes may be used to buffer lines?
+     */
+    public CSVSortPlugin_task(String inputCSV, String outputCSV, int osmIdPos, char delimiter, int sortMemoryMB) {
+        if (inputCSV.equals("")) {
+            throw new IllegalArgumentException("You have to provide an input file!");
+        }
+        if (outputCSV.equals("")) {
+            throw new IllegalArgumentException("You have to provide an output file!");
+        }
+        this.inputCSV = new File(inputCSV);
+        this.outputCSV = new File(outputCSV);
+        if (!this.inputCSV.isFile() || !this.inputCSV.canRead()) {
+            throw new IllegalArgumentException(this.inputCSV.getPath() + " is not a file or not readable!");
+        }
+        if (this.inputCSV.getAbsoluteFile().equals(this.outputCSV.getAbsoluteFile())) {
+            throw new IllegalArgumentException("The output file must not be the input file");
+        }
+        File temporaryDirectory = this.outputCSV.getAbsoluteFile().getParentFile();
+        this.sorter = new CSVExternalSorter(this.inputCSV, osmIdPos, delimiter, sortMemoryMB * 1024L * 1024L, temporaryDirectory);
+    }
+
+    @Override
+    public void run() {
+        logger.log(Level.INFO, "Sorting {0} into {1}", new Object[]{this.inputCSV.getPath(), this.outputCSV.getPath()});
+        try {
+            this.sorter.sort(this.outputCSV);
+        } catch (IOException e) {
+            throw new OsmosisRuntimeException("Could not sort " + this.inputCSV.getPath(), e);
+        }
+        logger.log(Level.INFO, "Sorted {0} lines", this.sorter.getLinesSorted());
+    }
+}
@@ -0,0 +1,136 @@
+package net.bennokue.java.osmosis;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+/**
+ * Opens CSV files that may be compressed with gzip or bzip2, so they can be
+ * read without unpacking them to disk first. The compression is recognized by
+ * the first bytes of the file, not by its name. Files made of several gzip
+ * members or bzip2 streams are read completely.
+ * <p>
+ * Compressed files can only be read from start to end, so
+ * {@link CSVLoader.StorageEngine#MAPPED} does not work with them.</p>
+ *
+ * @author bennokue
+ */
+final class CompressedInput {
+
+    /**
+     * How a file is compressed.
+     */
+    enum Compression {
+
+        NONE, GZIP, BZIP2
+    }
+
+    /**
+     * The buffer size of the decompressing streams.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private CompressedInput() {
+    }
+
+    /**
+     * Find out how a file is compressed by looking at its magic bytes.
+     *
+     * @param file The file.
+     * @return The compression, {@link Compression#NONE} for plain files.
+     * @throws IOException If the file cannot be read.
+     */
+    static Compression detect(File file) throws IOException {
+        byte[] magic = new byte[3];
+        int length = 0;
+        try (InputStream input = new FileInputStream(file)) {
+            int read = input.read(magic);
+            while (read > 0) {
+                length += read;
+                read = length < magic.length ? input.read(magic, length, magic.length - length) : -1;
+            }
+        }
+        if (length >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+            return Compression.GZIP;
+        }
+        if (length >= 3 && magic[0] == 'B' && magic[1] == 'Z' && magic[2] == 'h') {
+            return Compression.BZIP2;
+        }
+        return Compression.NONE;
+    }
+
+    /**
+     * @param file The file.
+     * @return Is the file compressed?
+     * @throws IOException If the file cannot be read.
+     */
+    static boolean isCompressed(File file) throws IOException {
+        return detect(file) != Compression.NONE;
+    }
+
+    /**
+     * Open a file for reading, decompressing it if necessary, on the calling
+     * thread.
+     *
+     * @param file The file.
+     * @return The (decompressed) content of the file.
+     * @throws IOException If the file cannot be opened.
+     */
+    static InputStream open(File file) throws IOException {
+        return open(file, 1);
+    }
+
+    /**
+     * Open a file for reading, decompressing it if necessary. With more than
+     * one thread, gzip and bzip2 files made of independent blocks are
+     * decompressed in parallel (see {@link ParallelDecompressingInputStream}).
+     *
+     * @param file The file.
+     * @param threads How many threads may decompress?
+     * @return The (decompressed) content of the file.
+     * @throws IOException If the file cannot be opened.
+     */
+    static InputStream open(File file, int threads) throws IOException {
+        Compression compression = detect(file);
+        if (compression == Compression.NONE) {
+            return new FileInputStream(file);
+        }
+        if (threads > 1) {
+            return new ParallelDecompressingInputStream(file, compression, threads);
+        }
+        return decompress(new FileInputStream(file), compression);
+    }
+
+    /**
+     * Decompress a stream on the calling thread.
+     *
+     * @param compressed The compressed data (closed by the returned stream,
+     * or here if the data cannot be decompressed).
+     * @param compression How the data is compressed.
+     * @return The decompressed data.
+     * @throws IOException If the data does not start like the compression
+     * says.
+     */
+    static InputStream decompress(InputStream compressed, Compression compression) throws IOException {
+        try {
+            switch (compression) {
+                case NONE:
+                    return compressed;
+                case GZIP:
+                    return new GZIPInputStream(compressed, BUFFER_SIZE);
+                case BZIP2:
+                    // Reads byte by byte, so it needs a buffer
+                    return new BZip2CompressorInputStream(new BufferedInputStream(compressed), true);
+                default:
+                    throw new IllegalArgumentException("Unknown compression: " + compression);
+            }
+        } catch (IOException | RuntimeException e) {
+            compressed.close();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package net.bennokue.java.osmosis;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads named {@code <prefix>-1}, {@code <prefix>-2}, ...,
+ * so the pools of the plugin never keep the JVM alive and can be told apart
+ * in a thread dump.
+ *
+ * @author bennokue
+ */
+class DaemonThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+    private final AtomicInteger threadNumber = new AtomicInteger();
+
+    /**
+     * @param prefix The start of the thread names, e.g. {@code csv-parser}.
+     */
+    DaemonThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, this.prefix + "-" + this.threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,323 @@
+package net.bennokue.java.osmosis;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the nodes exceeding {@code maxDist} in mode
+ * {@link CSVImportPlugin_task.MaxDistAction#LOG}. The records are formatted
+ * into {@link RecordBuffer}s by the tagging threads and written by a
+ * background thread, so the pipeline does not wait for the disk. The buffers
+ * are handed over through a bounded queue (the tagging threads wait if the
+ * disk cannot keep up) and reused afterwards.
+ * <p>
+ * Buffers are written in the order they are submitted. A buffer is not
+ * thread-safe, but every thread may fill its own.</p>
+ *
+ * @author bennokue
+ */
+final class DirtyNodeLog implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(DirtyNodeLog.class.getName());
+    /**
+     * A buffer with at least this many bytes should be submitted.
+     */
+    static final int SUBMIT_SIZE = 32 * 1024;
+    /**
+     * How many buffers may wait for the writer?
+     */
+    private static final int QUEUE_CAPACITY = 16;
+    /**
+     * Marks the end of the queue.
+     */
+    private static final RecordBuffer END = new RecordBuffer();
+    private final File file;
+    private final BlockingQueue<RecordBuffer> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    /**
+     * Written buffers, ready to be reused.
+     */
+    private final BlockingQueue<RecordBuffer> freeBuffers = new ArrayBlockingQueue<>(2 * QUEUE_CAPACITY);
+    private final Thread writerThread;
+    /**
+     * Set by the writer if writing fails; the remaining buffers are dropped
+     * then.
+     */
+    private volatile IOException failure;
+    private boolean closed = false;
+
+    /**
+     * Create the file and start the writer.
+     *
+     * @param file The log file.
+     * @param gzip Should the file be compressed with gzip?
+     * @throws IOException If the file cannot be created.
+     */
+    DirtyNodeLog(File file, boolean gzip) throws IOException {
+        this.file = file;
+        OutputStream fileStream = new FileOutputStream(file);
+        final OutputStream output;
+        try {
+            output = gzip ? new GZIPOutputStream(fileStream, SUBMIT_SIZE) : new BufferedOutputStream(fileStream, SUBMIT_SIZE);
+        } catch (IOException e) {
+            fileStream.close();
+            throw e;
+        }
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                DirtyNodeLog.this.write(output);
+            }
+        }, "csv-dirty-node-log");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * @return The log file.
+     */
+    File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Get an empty buffer to fill.
+     *
+     * @return A reused or new buffer.
+     */
+    RecordBuffer acquire() {
+        RecordBuffer buffer = this.freeBuffers.poll();
+        return null == buffer ? new RecordBuffer() : buffer;
+    }
+
+    /**
+     * Hand a buffer over to the writer. It must not be used any more by the
+     * caller. Waits if too many buffers are waiting already.
+     *
+     * @param buffer The buffer (may be empty).
+     * @throws IOException If writing has failed before or the thread is
+     * interrupted while waiting.
+     */
+    void submit(RecordBuffer buffer) throws IOException {
+        if (null != this.failure) {
+            throw new IOException("Could not write " + this.file.getPath(), this.failure);
+        }
+        if (this.closed) {
+            throw new IllegalStateException("The log is closed");
+        }
+        if (buffer.isEmpty()) {
+            this.freeBuffers.offer(buffer);
+            return;
+        }
+        this.put(buffer);
+    }
+
+    /**
+     * Write the remaining buffers, close the file and stop the writer. Does
+     * nothing if the log is closed already.
+     *
+     * @throws IOException If the log could not be written completely.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.put(END);
+        try {
+            this.writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing " + this.file.getPath());
+        }
+        if (null != this.failure) {
+            throw new IOException("Could not write " + this.file.getPath(), this.failure);
+        }
+    }
+
+    /**
+     * Put a buffer into the queue, waiting for free space.
+     *
+     * @param buffer The buffer.
+     * @throws InterruptedIOException If the thread is interrupted.
+     */
+    private void put(RecordBuffer buffer) throws InterruptedIOException {
+        try {
+            this.queue.put(buffer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + this.file.getPath());
+        }
+    }
+
+    /**
+     * The loop of the writer thread: Write the buffers until {@link #END}
+     * comes, then close the file.
+     *
+     * @param output The file.
+     */
+    private void write(OutputStream output) {
+        try {
+            RecordBuffer buffer = this.queue.take();
+            while (buffer != END) {
+                if (null == this.failure) {
+                    try {
+                        output.write(buffer.bytes, 0, buffer.length);
+                    } catch (IOException e) {
+                        this.failure = e;
+                    }
+                }
+                buffer.clear();
+                this.freeBuffers.offer(buffer);
+                buffer = this.queue.take();
+            }
+        } catch (InterruptedException e) {
+            this.failure = new InterruptedIOException("Interrupted while writing " + this.file.getPath());
+        } finally {
+            try {
+                output.close();
+            } catch (IOException e) {
+                if (null == this.failure) {
+                    this.failure = e;
+                } else {
+                    logger.log(Level.FINE, "Could not close " + this.file.getPath(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Formats log records into bytes, growing as needed. The numbers look
+     * like {@link String#valueOf(double)} and {@link String#valueOf(long)},
+     * the text is written in the default charset.
+     */
+    static final class RecordBuffer {
+
+        private static final Charset CHARSET = Charset.defaultCharset();
+        private byte[] bytes = new byte[SUBMIT_SIZE + 1024];
+        private int length = 0;
+        /**
+         * Room for the digits of a long.
+         */
+        private final byte[] digits = new byte[20];
+
+        /**
+         * Add a node exceeding {@code maxDist}: The id, the OSM position, the
+         * CSV position, the CSV data and the distance.
+         *
+         * @param osmId The id of the node.
+         * @param latitude The OSM latitude.
+         * @param longitude The OSM longitude.
+         * @param csvLatitude The CSV latitude.
+         * @param csvLongitude The CSV longitude.
+         * @param data The CSV data (may be {@code null}).
+         * @param distance The distance (meters).
+         */
+        void addRecord(long osmId, double latitude, double longitude, double csvLatitude, double csvLongitude, String data, double distance) {
+            this.append(osmId);
+            this.append(',');
+            this.append(latitude);
+            this.append(',');
+            this.append(longitude);
+            this.append(',');
+            this.append(csvLatitude);
+            this.append(',');
+            this.append(csvLongitude);
+            this.append(',');
+            this.append(String.valueOf(data));
+            this.append(',');
+            this.append(distance);
+            this.append('\n');
+        }
+
+        /**
+         * Add a line of text, e.g. a comment.
+         *
+         * @param line The line (without line break).
+         */
+        void addLine(String line) {
+            this.append(line);
+            this.append('\n');
+        }
+
+        /**
+         * @return The number of bytes in the buffer.
+         */
+        int size() {
+            return this.length;
+        }
+
+        boolean isEmpty() {
+            return this.length == 0;
+        }
+
+        void clear() {
+            this.length = 0;
+        }
+
+        private void append(char c) {
+            this.ensureCapacity(1);
+            this.bytes[this.length++] = (byte) c;
+        }
+
+        private void append(long value) {
+            if (value == Long.MIN_VALUE) {
+                this.append(String.valueOf(value));
+                return;
+            }
+            this.ensureCapacity(this.digits.length);
+            if (value < 0) {
+                this.bytes[this.length++] = '-';
+                value = -value;
+            }
+            int position = this.digits.length;
+            do {
+                this.digits[--position] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            int count = this.digits.length - position;
+            System.arraycopy(this.digits, position, this.bytes, this.length, count);
+            this.length += count;
+        }
+
+        private void append(double value) {
+            this.append(Double.toString(value));
+        }
+
+        private void append(String text) {
+            int count = text.length();
+            this.ensureCapacity(count);
+            for (int i = 0; i < count; i++) {
+                char c = text.charAt(i);
+                if (c >= 0x80) {
+                    // Not ASCII, let the charset do it
+                    byte[] encoded = text.getBytes(CHARSET);
+                    this.ensureCapacity(encoded.length);
+                    System.arraycopy(encoded, 0, this.bytes, this.length, encoded.length);
+                    this.length += encoded.length;
+                    return;
+                }
+                this.bytes[this.length + i] = (byte) c;
+            }
+            this.length += count;
+        }
+
+        private void ensureCapacity(int count) {
+            if (this.length + count > this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes, Math.max(2 * this.bytes.length, this.length + count));
+            }
+        }
+    }
+}
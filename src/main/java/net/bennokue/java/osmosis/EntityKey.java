@@ -0,0 +1,111 @@
+package net.bennokue.java.osmosis;
+
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+
+/**
+ * Combines the type and the id of an OSM entity into one {@code long} key, so
+ * nodes, ways and relations can share the caches and indexes without their
+ * ids colliding. Node keys are the plain node ids, so CSV files without ways
+ * and relations work as before. Way and relation ids are moved into their own
+ * key ranges above all node ids (so node ids have to stay below
+ * {@link #MAX_ID}, too), in the order of sorted OSM streams (nodes,
+ * then ways, then relations): Every sorted index (see
+ * {@link CSVLoader.StorageEngine#FROZEN}, {@link CSVLoader.StorageEngine#MAPPED})
+ * holds the types in separate, contiguous segments, and the merge join still
+ * sees ascending keys.
+ * <p>
+ * At the CSV file, ways and relations are marked by a prefix of the id:
+ * {@code w456}, {@code r789} ({@code n123} is the same as {@code 123}).</p>
+ *
+ * @author bennokue
+ */
+final class EntityKey {
+
+    /**
+     * All ids have to be between {@code -MAX_ID} (exclusive) and
+     * {@code MAX_ID} (exclusive). A larger node id would be the key of a
+     * way.
+     */
+    static final long MAX_ID = 1L << 59;
+    /**
+     * Where the way keys start (key of way {@code 0}).
+     */
+    private static final long WAY_OFFSET = 1L << 60;
+    /**
+     * Where the relation keys start (key of relation {@code 0}).
+     */
+    private static final long RELATION_OFFSET = 1L << 61;
+
+    private EntityKey() {
+    }
+
+    /**
+     * Calculate the key of an entity.
+     *
+     * @param type The type of the entity.
+     * @param osmId The id of the entity.
+     * @return The key.
+     * @throws IllegalArgumentException If the entity cannot be tagged or the
+     * id is out of range.
+     */
+    static long of(EntityType type, long osmId) {
+        switch (type) {
+            case Node:
+                checkId(osmId);
+                return osmId;
+            case Way:
+                checkId(osmId);
+                return WAY_OFFSET + osmId;
+            case Relation:
+                checkId(osmId);
+                return RELATION_OFFSET + osmId;
+            default:
+                throw new IllegalArgumentException("Cannot tag entities of type " + type);
+        }
+    }
+
+    /**
+     * Find the type of an id prefix.
+     *
+     * @param prefix The prefix, {@code n}, {@code w} or {@code r} (case
+     * insensitive).
+     * @return The type or {@code null} if the character is no prefix.
+     */
+    static EntityType typeOfPrefix(int prefix) {
+        switch (prefix) {
+            case 'n':
+            case 'N':
+                return EntityType.Node;
+            case 'w':
+            case 'W':
+                return EntityType.Way;
+            case 'r':
+            case 'R':
+                return EntityType.Relation;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Can an id be turned into a key?
+     *
+     * @param osmId The id.
+     * @return {@code true} if it is in range.
+     */
+    static boolean isValidId(long osmId) {
+        return osmId > -MAX_ID && osmId < MAX_ID;
+    }
+
+    /**
+     * Make sure an id can be turned into a key.
+     *
+     * @param osmId The id.
+     * @throws IllegalArgumentException If it cannot.
+     */
+    private static void checkId(long osmId) {
+        if (!isValidId(osmId)) {
+            throw new IllegalArgumentException("Id out of range: " + osmId);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package net.bennokue.java.osmosis;
+
+import org.openstreetmap.osmosis.core.util.FixedPrecisionCoordinateConvertor;
+
+/**
+ * The CSV coordinates are stored like OSMOSIS stores them: as {@code int}s
+ * with 7 decimals (about 1 cm), see {@link FixedPrecisionCoordinateConvertor}.
+ * That needs half the memory of {@code double}s. Lines without (valid)
+ * coordinates get {@link #NONE}, which converts to {@code NaN}.
+ *
+ * @author bennokue
+ */
+final class FixedPointCoordinates {
+
+    /**
+     * "No coordinate", the fixed-point counterpart of {@code NaN}. Not a valid
+     * coordinate, since it is below -180 degrees.
+     */
+    static final int NONE = Integer.MIN_VALUE;
+    /**
+     * The number of decimals.
+     */
+    static final int PRECISION = 7;
+
+    private FixedPointCoordinates() {
+    }
+
+    /**
+     * Convert a coordinate to fixed-point.
+     *
+     * @param coordinate The coordinate in degrees, may be {@code NaN}.
+     * @return The fixed-point coordinate or {@link #NONE} if it is
+     * {@code NaN} or does not fit.
+     */
+    static int toFixed(double coordinate) {
+        if (Double.isNaN(coordinate) || Math.abs(coordinate) >= 214.7483647) {
+            return NONE;
+        }
+        return FixedPrecisionCoordinateConvertor.convertToFixed(coordinate);
+    }
+
+    /**
+     * Convert a fixed-point coordinate back.
+     *
+     * @param coordinate The fixed-point coordinate, may be {@link #NONE}.
+     * @return The coordinate in degrees or {@code NaN}.
+     */
+    static double toDouble(int coordinate) {
+        if (coordinate == NONE) {
+            return Double.NaN;
+        }
+        return FixedPrecisionCoordinateConvertor.convertToDouble(coordinate);
+    }
+}
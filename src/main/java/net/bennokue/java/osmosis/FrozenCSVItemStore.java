@@ -0,0 +1,171 @@
+package net.bennokue.java.osmosis;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A read-only, columnar {@link CSVItemStore}. Lines are collected in flat
+ * arrays first. At the first lookup, the ids are sorted (in parallel) and all
+ * columns are rearranged into id order, so lookups are done by a
+ * {@link SortedIdIndex} and the store needs nothing but one {@code long} and
+ * two {@code int}s per line, plus one {@code int} per data column (and the
+ * distinct data values, see {@link ValueDictionary}).
+ * <p>
+ * Once frozen, lines cannot be added anymore until {@link #clear()} is
+ * called, so this store only makes sense if the whole CSV file is read at
+ * once.</p>
+ *
+ * @author bennokue
+ */
+class FrozenCSVItemStore implements CSVItemStore {
+
+    private static final Logger logger = Logger.getLogger(FrozenCSVItemStore.class.getName());
+    /**
+     * The OSM ids, in file order until frozen, sorted afterwards.
+     */
+    private long[] ids;
+    /**
+     * The OSM latitudes (fixed-point).
+     */
+    private int[] latitudes;
+    /**
+     * The OSM longitudes (fixed-point).
+     */
+    private int[] longitudes;
+    /**
+     * The references of the data elements at {@link #values}, one array per
+     * column. {@code null} until the first line tells the number of columns.
+     */
+    private int[][] data;
+    /**
+     * The distinct data elements.
+     */
+    private final ValueDictionary values = new ValueDictionary();
+    /**
+     * How many lines are stored?
+     */
+    private int size;
+    /**
+     * The lookup structure, {@code null} until the store is frozen.
+     */
+    private SortedIdIndex index;
+    /**
+     * The initial capacity of the arrays.
+     */
+    private final int initialCapacity;
+
+    /**
+     * Standard constructor. The arrays will be grown if {@code expectedSize}
+     * was too small.
+     *
+     * @param expectedSize How many lines we expect to store.
+     */
+    FrozenCSVItemStore(int expectedSize) {
+        this.initialCapacity = Math.max(16, expectedSize);
+        this.allocate();
+    }
+
+    /**
+     * Replace the columns with empty ones of the initial capacity.
+     */
+    private void allocate() {
+        this.ids = new long[this.initialCapacity];
+        this.latitudes = new int[this.initialCapacity];
+        this.longitudes = new int[this.initialCapacity];
+        this.data = null;
+        this.values.clear();
+        this.size = 0;
+    }
+
+    @Override
+    public void put(long osmId, int osmLat, int osmLon, int[] data) {
+        if (null != this.index) {
+            throw new IllegalStateException("The store is frozen already");
+        }
+        if (null == this.data) {
+            this.data = new int[data.length][this.ids.length];
+        }
+        if (this.size == this.ids.length) {
+            int newCapacity = this.size + (this.size >> 1);
+            this.ids = Arrays.copyOf(this.ids, newCapacity);
+            this.latitudes = Arrays.copyOf(this.latitudes, newCapacity);
+            this.longitudes = Arrays.copyOf(this.longitudes, newCapacity);
+            for (int column = 0; column < this.data.length; column++) {
+                this.data[column] = Arrays.copyOf(this.data[column], newCapacity);
+            }
+        }
+        this.ids[this.size] = osmId;
+        this.latitudes[this.size] = osmLat;
+        this.longitudes[this.size] = osmLon;
+        for (int column = 0; column < this.data.length; column++) {
+            this.data[column][this.size] = data[column];
+        }
+        this.size++;
+    }
+
+    /**
+     * Sort all columns by id, drop duplicate ids (the last line wins, like it
+     * does at a map) and trim the arrays.
+     */
+    private void freeze() {
+        logger.log(Level.FINER, "Freezing {0} lines", this.size);
+        int[] permutation = LongIdSort.sortDistinct(this.ids, this.size);
+        int distinct = permutation.length;
+        int[] sortedLatitudes = new int[distinct];
+        int[] sortedLongitudes = new int[distinct];
+        int[][] sortedData = new int[this.data.length][distinct];
+        for (int i = 0; i < distinct; i++) {
+            sortedLatitudes[i] = this.latitudes[permutation[i]];
+            sortedLongitudes[i] = this.longitudes[permutation[i]];
+            for (int column = 0; column < sortedData.length; column++) {
+                sortedData[column][i] = this.data[column][permutation[i]];
+            }
+        }
+        this.ids = Arrays.copyOf(this.ids, distinct);
+        this.latitudes = sortedLatitudes;
+        this.longitudes = sortedLongitudes;
+        this.data = sortedData;
+        this.size = distinct;
+        this.index = new SortedIdIndex(this.ids, distinct);
+        logger.log(Level.FINER, "Frozen, {0} distinct ids", distinct);
+    }
+
+    @Override
+    public CSVItem get(long osmId) {
+        if (null == this.index) {
+            if (this.size == 0) {
+                return null;
+            }
+            this.freeze();
+        }
+        int position = this.index.find(osmId);
+        if (position < 0) {
+            return null;
+        }
+        String[] itemData = new String[this.data.length];
+        for (int column = 0; column < itemData.length; column++) {
+            itemData[column] = this.values.get(this.data[column][position]);
+        }
+        return new CSVItem(osmId, FixedPointCoordinates.toDouble(this.latitudes[position]), FixedPointCoordinates.toDouble(this.longitudes[position]), itemData);
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public void clear() {
+        if (null == this.index && this.size == 0) {
+            return;
+        }
+        this.index = null;
+        this.allocate();
+    }
+
+    @Override
+    public ValueDictionary getValueDictionary() {
+        return this.values;
+    }
+}
@@ -0,0 +1,85 @@
+package net.bennokue.java.osmosis;
+
+import java.util.HashMap;
+
+/**
+ * The classic {@link CSVItemStore}: A {@link HashMap} from boxed OSM ids to
+ * small entry objects with the fixed-point coordinates and a reference to the
+ * data (see {@link ValueDictionary}). Simple, but every line costs a
+ * {@link Long}, a map entry and an entry object.
+ *
+ * @author bennokue
+ */
+class HashMapCSVItemStore implements CSVItemStore {
+
+    /**
+     * Here we store the read and parsed lines.
+     */
+    private final HashMap<Long, Entry> items;
+    /**
+     * The distinct data elements.
+     */
+    private final ValueDictionary values = new ValueDictionary();
+
+    /**
+     * Standard constructor.
+     *
+     * @param expectedSize How many lines we expect to store.
+     */
+    HashMapCSVItemStore(int expectedSize) {
+        this.items = new HashMap<>(Math.max(16, (int) (expectedSize / 0.75f) + 1));
+    }
+
+    @Override
+    public void put(long osmId, int osmLat, int osmLon, int[] data) {
+        this.items.put(osmId, new Entry(osmLat, osmLon, data.clone()));
+    }
+
+    @Override
+    public CSVItem get(long osmId) {
+        Entry entry = this.items.get(osmId);
+        if (null == entry) {
+            return null;
+        }
+        String[] itemData = new String[entry.data.length];
+        for (int column = 0; column < itemData.length; column++) {
+            itemData[column] = this.values.get(entry.data[column]);
+        }
+        return new CSVItem(osmId, FixedPointCoordinates.toDouble(entry.latitude), FixedPointCoordinates.toDouble(entry.longitude), itemData);
+    }
+
+    @Override
+    public int size() {
+        return this.items.size();
+    }
+
+    @Override
+    public void clear() {
+        this.items.clear();
+        this.values.clear();
+    }
+
+    @Override
+    public ValueDictionary getValueDictionary() {
+        return this.values;
+    }
+
+    /**
+     * A stored line (the id is the key).
+     */
+    private static class Entry {
+
+        private final int latitude;
+        private final int longitude;
+        /**
+         * The references of the data at {@link #values}, one per column.
+         */
+        private final int[] data;
+
+        Entry(int latitude, int longitude, int[] data) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.data = data;
+        }
+    }
+}
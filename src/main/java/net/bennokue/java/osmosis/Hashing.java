@@ -0,0 +1,30 @@
+package net.bennokue.java.osmosis;
+
+/**
+ * Hash functions shared by the hash tables and filters of the plugin.
+ *
+ * @author bennokue
+ */
+final class Hashing {
+
+    private Hashing() {
+    }
+
+    /**
+     * Spread the bits of a value (finalizer of MurmurHash3), so dense or
+     * regular keys like OSM ids and grid cells do not build long clusters
+     * at linear probing and give independent bits for the Bloom filter.
+     *
+     * @param value The value.
+     * @return The hash.
+     */
+    static long mix(long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,120 @@
+package net.bennokue.java.osmosis;
+
+/**
+ * A Bloom filter over OSM ids: Tells for sure that an id is <em>not</em> in
+ * the CSV file, so lookups of absent ids can be rejected before the cache or
+ * the file is touched. Ids that are in the file are never rejected; absent ids
+ * get through with the (small) false positive rate the filter is sized for.
+ * <p>
+ * Unlike a bitset over the id range (like OSMOSIS' {@code IdTracker}), the
+ * size only depends on the number of ids, not on how large they are: about 10
+ * bits per id for a false positive rate of 1 %.</p>
+ *
+ * @author bennokue
+ */
+class IdBloomFilter {
+
+    /**
+     * The largest filter has 2^34 bits (2 GB).
+     */
+    private static final int MAX_BIT_COUNT_LOG2 = 34;
+    private static final int MAX_HASH_FUNCTIONS = 16;
+    /**
+     * The bits, their number is a power of two.
+     */
+    private final long[] bits;
+    /**
+     * {@code number of bits - 1}.
+     */
+    private final long bitMask;
+    /**
+     * How many bits are set per id?
+     */
+    private final int hashFunctions;
+    /**
+     * How many ids have been added?
+     */
+    private long insertions = 0;
+
+    /**
+     * Standard constructor.
+     *
+     * @param expectedIds How many ids will be added?
+     * @param falsePositiveRate The wanted false positive rate at
+     * {@code expectedIds} ids, e.g. {@code 0.01}.
+     */
+    IdBloomFilter(long expectedIds, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("The false positive rate has to be between 0 and 1");
+        }
+        long ids = Math.max(1, expectedIds);
+        double optimalBits = -ids * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        // Round up to a power of two, so positions can be masked instead of divided
+        int bitCountLog2 = 6;
+        while (bitCountLog2 < MAX_BIT_COUNT_LOG2 && (1L << bitCountLog2) < optimalBits) {
+            bitCountLog2++;
+        }
+        long bitCount = 1L << bitCountLog2;
+        this.bits = new long[(int) (bitCount >>> 6)];
+        this.bitMask = bitCount - 1;
+        this.hashFunctions = (int) Math.max(1, Math.min(MAX_HASH_FUNCTIONS, Math.round((double) bitCount / ids * Math.log(2))));
+    }
+
+    /**
+     * Add an id.
+     *
+     * @param osmId The id.
+     */
+    void add(long osmId) {
+        long hash1 = Hashing.mix(osmId);
+        long hash2 = Hashing.mix(hash1) | 1;
+        for (int i = 0; i < this.hashFunctions; i++) {
+            long position = (hash1 + i * hash2) & this.bitMask;
+            this.bits[(int) (position >>> 6)] |= 1L << position;
+        }
+        this.insertions++;
+    }
+
+    /**
+     * Might an id have been added?
+     *
+     * @param osmId The id.
+     * @return {@code false} if the id has not been added for sure.
+     */
+    boolean mightContain(long osmId) {
+        long hash1 = Hashing.mix(osmId);
+        long hash2 = Hashing.mix(hash1) | 1;
+        for (int i = 0; i < this.hashFunctions; i++) {
+            long position = (hash1 + i * hash2) & this.bitMask;
+            if ((this.bits[(int) (position >>> 6)] & (1L << position)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return How many ids have been added?
+     */
+    long getInsertions() {
+        return this.insertions;
+    }
+
+    /**
+     * @return The size of the filter in bytes.
+     */
+    long getSizeInBytes() {
+        return 8L * this.bits.length;
+    }
+
+    /**
+     * Estimate the false positive rate from the number of ids added so far.
+     *
+     * @return The probability that {@link #mightContain(long)} says
+     * {@code true} for an id that has not been added.
+     */
+    double getExpectedFalsePositiveRate() {
+        double bitCount = this.bitMask + 1.0;
+        return Math.pow(1 - Math.exp(-this.hashFunctions * this.insertions / bitCount), this.hashFunctions);
+    }
+}
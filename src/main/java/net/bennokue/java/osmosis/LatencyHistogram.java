@@ -0,0 +1,128 @@
+package net.bennokue.java.osmosis;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds, laid out like an HDR histogram:
+ * Durations below {@value #SUB_BUCKETS} ns have buckets of their own, above
+ * each power of two is split into {@value #HALF_SUB_BUCKETS} buckets, so a
+ * percentile is off by less than 1/{@value #HALF_SUB_BUCKETS} (about 1.6 %).
+ * Durations above about 18 minutes count as 18 minutes. Recording is
+ * thread-safe and does not allocate, the buckets are {@link LongAdder}s.
+ *
+ * @author bennokue
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    /**
+     * The largest duration that has a bucket of its own (2^40 ns).
+     */
+    private static final long MAX_VALUE = (1L << 40) - 1;
+    private final LongAdder[] buckets = new LongAdder[bucketIndex(MAX_VALUE) + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+        for (int i = 0; i < this.buckets.length; i++) {
+            this.buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Count a duration.
+     *
+     * @param nanos The duration (ns), negative values count as {@code 0}.
+     */
+    void record(long nanos) {
+        long value = Math.min(Math.max(0, nanos), MAX_VALUE);
+        this.buckets[bucketIndex(value)].increment();
+        this.count.increment();
+        this.sum.add(value);
+        this.max.accumulate(value);
+    }
+
+    /**
+     * @return The number of recorded durations.
+     */
+    long getCount() {
+        return this.count.sum();
+    }
+
+    /**
+     * @return The mean duration (ns), {@code 0} if nothing has been recorded.
+     */
+    double getMean() {
+        long recorded = this.count.sum();
+        return recorded == 0 ? 0 : (double) this.sum.sum() / recorded;
+    }
+
+    /**
+     * @return The longest duration (ns).
+     */
+    long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * Get a percentile. Recording may go on meanwhile, so it is approximate
+     * then.
+     *
+     * @param percentile The percentile ({@code 0} to {@code 100}).
+     * @return The largest duration (ns) of the bucket holding the percentile,
+     * {@code 0} if nothing has been recorded.
+     */
+    long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("The percentile has to be between 0 and 100");
+        }
+        long[] counts = new long[this.buckets.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = this.buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), this.getMax());
+            }
+        }
+        return this.getMax();
+    }
+
+    /**
+     * @param value The duration ({@code 0} to {@link #MAX_VALUE}).
+     * @return The index of its bucket.
+     */
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Shift the value into [HALF_SUB_BUCKETS, SUB_BUCKETS)
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + (int) (value >>> shift) - HALF_SUB_BUCKETS;
+    }
+
+    /**
+     * @param index The index of a bucket.
+     * @return The largest duration in the bucket.
+     */
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+        long subBucket = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,130 @@
+package net.bennokue.java.osmosis;
+
+import java.util.Arrays;
+
+/**
+ * Maps OSM ids to the byte offsets of their lines in the CSV file. Needs 16
+ * bytes per line: the sorted ids and the offsets in the same order. Both may
+ * live at the heap or in a memory-mapped index file (see
+ * {@link LineOffsetIndexFile}).
+ *
+ * @author bennokue
+ */
+class LineOffsetIndex {
+
+    /**
+     * The sorted ids.
+     */
+    private final SortedIdIndex ids;
+    /**
+     * {@code offsets[i]} is the offset of the line with the id at position
+     * {@code i} of {@link #ids}.
+     */
+    private final LongSegments offsets;
+
+    /**
+     * Build an index from existing ids and offsets, usually read from a file.
+     * To build a new index, use {@link Builder}.
+     *
+     * @param ids The sorted ids.
+     * @param offsets The offsets, same order as {@code ids}.
+     */
+    LineOffsetIndex(LongSegments ids, LongSegments offsets) {
+        if (ids.size() != offsets.size()) {
+            throw new IllegalArgumentException("Got " + ids.size() + " ids, but " + offsets.size() + " offsets");
+        }
+        this.ids = new SortedIdIndex(ids);
+        this.offsets = offsets;
+    }
+
+    /**
+     * @return The number of indexed lines.
+     */
+    int size() {
+        return this.ids.size();
+    }
+
+    /**
+     * Find the line of an id.
+     *
+     * @param osmId The id.
+     * @return The offset of the line or {@code -1} if there is no line with
+     * this id.
+     */
+    long find(long osmId) {
+        int position = this.ids.find(osmId);
+        return position < 0 ? -1 : this.offsets.get(position);
+    }
+
+    /**
+     * @return The sorted ids, do not change them.
+     */
+    LongSegments ids() {
+        return this.ids.ids();
+    }
+
+    /**
+     * @return The offsets in the same order as {@link #ids()}, do not change
+     * them.
+     */
+    LongSegments offsets() {
+        return this.offsets;
+    }
+
+    /**
+     * Collects the (unsorted) ids and offsets and builds the index.
+     */
+    static class Builder {
+
+        private long[] ids;
+        private long[] offsets;
+        private int size;
+
+        /**
+         * Standard constructor.
+         *
+         * @param expectedSize How many lines we expect.
+         */
+        Builder(int expectedSize) {
+            int capacity = Math.max(16, expectedSize);
+            this.ids = new long[capacity];
+            this.offsets = new long[capacity];
+        }
+
+        /**
+         * Add a line.
+         *
+         * @param osmId The id of the line.
+         * @param offset The byte offset of the line.
+         */
+        void add(long osmId, long offset) {
+            if (this.size == this.ids.length) {
+                int newCapacity = this.size + (this.size >> 1);
+                this.ids = Arrays.copyOf(this.ids, newCapacity);
+                this.offsets = Arrays.copyOf(this.offsets, newCapacity);
+            }
+            this.ids[this.size] = osmId;
+            this.offsets[this.size] = offset;
+            this.size++;
+        }
+
+        /**
+         * Sort the ids and build the index. Of duplicate ids, the last line
+         * wins. The builder must not be used afterwards.
+         *
+         * @return The index.
+         */
+        LineOffsetIndex build() {
+            int[] permutation = LongIdSort.sortDistinct(this.ids, this.size);
+            int distinct = permutation.length;
+            long[] sortedOffsets = new long[distinct];
+            for (int i = 0; i < distinct; i++) {
+                sortedOffsets[i] = this.offsets[permutation[i]];
+            }
+            long[] sortedIds = Arrays.copyOf(this.ids, distinct);
+            this.ids = null;
+            this.offsets = null;
+            return new LineOffsetIndex(LongSegments.wrap(sortedIds, distinct), LongSegments.wrap(sortedOffsets, distinct));
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package net.bennokue.java.osmosis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Stores a {@link LineOffsetIndex} in a binary sidecar file next to the CSV
+ * file ({@code foo.csv.idx}), so it does not have to be rebuilt at every run.
+ * The file remembers the size, modification time and a checksum of the CSV
+ * file (and of the column layout the index was built for), so stale indexes
+ * are detected and ignored.
+ * <p>
+ * File layout (all numbers little endian): A header of {@link #HEADER_SIZE}
+ * bytes ({@link #MAGIC}, {@link #VERSION}, number of lines, CSV size, CSV
+ * modification time, CSV checksum, layout checksum), followed by the sorted
+ * ids and the offsets, 8 bytes each. Both arrays are memory-mapped when
+ * reading (in segments of 1 GB, see {@link LongSegments}), so loading an
+ * index takes next to no time and heap, whatever the number of lines.</p>
+ *
+ * @author bennokue
+ */
+final class LineOffsetIndexFile {
+
+    private static final Logger logger = Logger.getLogger(LineOffsetIndexFile.class.getName());
+    /**
+     * The first bytes of every index file ({@code CSVIDX01}).
+     */
+    private static final long MAGIC = 0x3130584449565343L;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+    /**
+     * The checksum covers this many bytes at the beginning and at the end of
+     * the CSV file. Reading the whole file would make validating the index
+     * as slow as rebuilding it.
+     */
+    private static final int CHECKSUM_SAMPLE_BYTES = 1024 * 1024;
+
+    private LineOffsetIndexFile() {
+    }
+
+    /**
+     * Where is the index file of a CSV file?
+     *
+     * @param csvFile The CSV file.
+     * @return The index file (may not exist).
+     */
+    static File indexFileFor(File csvFile) {
+        return new File(csvFile.getPath() + ".idx");
+    }
+
+    /**
+     * Read an index file if it exists and is up to date.
+     *
+     * @param indexFile The index file.
+     * @param csvFile The CSV file the index belongs to.
+     * @param layout Describes how the lines are parsed (column positions
+     * etc.). An index built for another layout is stale.
+     * @return The index or {@code null} if there is no up to date index.
+     * @throws IOException If the index file cannot be read.
+     */
+    static LineOffsetIndex read(File indexFile, File csvFile, String layout) throws IOException {
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(indexFile, "r");
+                FileChannel channel = randomAccessFile.getChannel()) {
+            if (channel.size() < HEADER_SIZE) {
+                logger.log(Level.INFO, "Index file {0} is broken, it will be rebuilt", indexFile);
+                return null;
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            long magic = header.getLong();
+            int version = header.getInt();
+            int lines = header.getInt();
+            if (magic != MAGIC || version != VERSION || lines < 0
+                    || channel.size() != HEADER_SIZE + 16L * lines) {
+                logger.log(Level.INFO, "Index file {0} is broken or has an unknown version, it will be rebuilt", indexFile);
+                return null;
+            }
+            if (header.getLong() != csvFile.length() || header.getLong() != csvFile.lastModified()
+                    || header.getLong() != checksum(csvFile) || header.getLong() != layoutChecksum(layout)) {
+                logger.log(Level.INFO, "Index file {0} is stale, it will be rebuilt", indexFile);
+                return null;
+            }
+            LongSegments ids = LongSegments.map(channel, HEADER_SIZE, lines);
+            LongSegments offsets = LongSegments.map(channel, HEADER_SIZE + 8L * lines, lines);
+            return new LineOffsetIndex(ids, offsets);
+        }
+    }
+
+    /**
+     * Write an index file. The file is written to a temporary file first and
+     * then moved into place, so no other process will see a half-written
+     * index.
+     *
+     * @param index The index to store.
+     * @param indexFile The index file.
+     * @param csvFile The CSV file the index belongs to.
+     * @param layout Describes how the lines are parsed, see
+     * {@link #read(java.io.File, java.io.File, java.lang.String)}.
+     * @throws IOException If the file cannot be written.
+     */
+    static void write(LineOffsetIndex index, File indexFile, File csvFile, String layout) throws IOException {
+        File directory = indexFile.getAbsoluteFile().getParentFile();
+        File temporaryFile = File.createTempFile(indexFile.getName(), ".tmp", directory);
+        try {
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(temporaryFile, "rw");
+                    FileChannel channel = randomAccessFile.getChannel()) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putLong(MAGIC);
+                buffer.putInt(VERSION);
+                buffer.putInt(index.size());
+                buffer.putLong(csvFile.length());
+                buffer.putLong(csvFile.lastModified());
+                buffer.putLong(checksum(csvFile));
+                buffer.putLong(layoutChecksum(layout));
+                writeLongs(index.ids(), buffer, channel);
+                writeLongs(index.offsets(), buffer, channel);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(temporaryFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile.toPath());
+        }
+    }
+
+    /**
+     * Append longs to a file, using {@code buffer} as write buffer.
+     *
+     * @param values The longs to write.
+     * @param buffer The write buffer (may already contain data).
+     * @param channel The file to write to.
+     * @throws IOException If writing fails.
+     */
+    private static void writeLongs(LongSegments values, ByteBuffer buffer, FileChannel channel) throws IOException {
+        for (int i = 0; i < values.size(); i++) {
+            if (buffer.remaining() < 8) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+            }
+            buffer.putLong(values.get(i));
+        }
+    }
+
+    /**
+     * Calculate the CRC32 of the beginning and the end of a file.
+     *
+     * @param file The file.
+     * @return The checksum.
+     * @throws IOException If the file cannot be read.
+     */
+    private static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            long length = randomAccessFile.length();
+            byte[] sample = new byte[(int) Math.min(CHECKSUM_SAMPLE_BYTES, length)];
+            randomAccessFile.readFully(sample);
+            crc.update(sample);
+            randomAccessFile.seek(length - sample.length);
+            randomAccessFile.readFully(sample);
+            crc.update(sample);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Calculate the CRC32 of a layout description.
+     *
+     * @param layout The layout description.
+     * @return The checksum.
+     */
+    private static long layoutChecksum(String layout) {
+        CRC32 crc = new CRC32();
+        crc.update(layout.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+}
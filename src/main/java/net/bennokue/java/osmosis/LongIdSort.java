@@ -0,0 +1,181 @@
+package net.bennokue.java.osmosis;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Sorts primitive OSM ids together with an {@code int} payload (usually the
+ * original position of the id, so the result is a permutation). The sort is a
+ * stable merge sort that works on several cores for large arrays, and it does
+ * not box anything.
+ *
+ * @author bennokue
+ */
+final class LongIdSort {
+
+    /**
+     * Ranges smaller than this are sorted by insertion sort.
+     */
+    private static final int INSERTION_SORT_THRESHOLD = 32;
+    /**
+     * Ranges smaller than this are not split into parallel tasks.
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 13;
+
+    private LongIdSort() {
+    }
+
+    /**
+     * Create the identity permutation {@code 0, 1, ..., length - 1}.
+     *
+     * @param length The length.
+     * @return The permutation.
+     */
+    static int[] identity(int length) {
+        int[] permutation = new int[length];
+        for (int i = 0; i < length; i++) {
+            permutation[i] = i;
+        }
+        return permutation;
+    }
+
+    /**
+     * Sort the first {@code length} ids ascending and move the payload along.
+     * Equal ids keep their relative order.
+     *
+     * @param ids The ids.
+     * @param payload The payload, {@code payload[i]} belongs to
+     * {@code ids[i]}.
+     * @param length The number of elements to sort.
+     */
+    static void parallelSort(long[] ids, int[] payload, int length) {
+        if (length < 2) {
+            return;
+        }
+        long[] idBuffer = new long[length];
+        int[] payloadBuffer = new int[length];
+        if (length < PARALLEL_THRESHOLD) {
+            new MergeSortTask(ids, payload, idBuffer, payloadBuffer, 0, length).compute();
+        } else {
+            ForkJoinPool pool = new ForkJoinPool();
+            try {
+                pool.invoke(new MergeSortTask(ids, payload, idBuffer, payloadBuffer, 0, length));
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Sort the first {@code length} ids ascending and remove duplicate ids.
+     * Afterwards, {@code permutation[i]} tells where {@code ids[i]} has been
+     * before. Of equal ids, the one with the highest original position is
+     * kept (like a map that gets the ids put in one after another).
+     *
+     * @param ids The ids.
+     * @param length The number of ids.
+     * @return The permutation, its length is the number of distinct ids.
+     */
+    static int[] sortDistinct(long[] ids, int length) {
+        int[] permutation = identity(length);
+        parallelSort(ids, permutation, length);
+        // The sort is stable, so of equal ids the last one is the latest
+        int distinct = 0;
+        for (int i = 0; i < length; i++) {
+            if (i + 1 < length && ids[i] == ids[i + 1]) {
+                continue;
+            }
+            ids[distinct] = ids[i];
+            permutation[distinct] = permutation[i];
+            distinct++;
+        }
+        return distinct == length ? permutation : Arrays.copyOf(permutation, distinct);
+    }
+
+    /**
+     * Sorts {@code [from, to)} by sorting both halves (in parallel, if they
+     * are large enough) and merging them afterwards.
+     */
+    private static class MergeSortTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final long[] ids;
+        private final int[] payload;
+        private final long[] idBuffer;
+        private final int[] payloadBuffer;
+        private final int from;
+        private final int to;
+
+        MergeSortTask(long[] ids, int[] payload, long[] idBuffer, int[] payloadBuffer, int from, int to) {
+            this.ids = ids;
+            this.payload = payload;
+            this.idBuffer = idBuffer;
+            this.payloadBuffer = payloadBuffer;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from < INSERTION_SORT_THRESHOLD) {
+                this.insertionSort();
+                return;
+            }
+            int middle = (this.from + this.to) >>> 1;
+            MergeSortTask left = new MergeSortTask(this.ids, this.payload, this.idBuffer, this.payloadBuffer, this.from, middle);
+            MergeSortTask right = new MergeSortTask(this.ids, this.payload, this.idBuffer, this.payloadBuffer, middle, this.to);
+            if (this.to - this.from < PARALLEL_THRESHOLD) {
+                left.compute();
+                right.compute();
+            } else {
+                invokeAll(left, right);
+            }
+            this.merge(middle);
+        }
+
+        /**
+         * Sort a small range in place.
+         */
+        private void insertionSort() {
+            for (int i = this.from + 1; i < this.to; i++) {
+                long id = this.ids[i];
+                int value = this.payload[i];
+                int j = i - 1;
+                while (j >= this.from && this.ids[j] > id) {
+                    this.ids[j + 1] = this.ids[j];
+                    this.payload[j + 1] = this.payload[j];
+                    j--;
+                }
+                this.ids[j + 1] = id;
+                this.payload[j + 1] = value;
+            }
+        }
+
+        /**
+         * Merge the sorted ranges {@code [from, middle)} and
+         * {@code [middle, to)}.
+         *
+         * @param middle The start of the second range.
+         */
+        private void merge(int middle) {
+            // Already in order? Happens a lot for (partially) sorted input.
+            if (this.ids[middle - 1] <= this.ids[middle]) {
+                return;
+            }
+            System.arraycopy(this.ids, this.from, this.idBuffer, this.from, this.to - this.from);
+            System.arraycopy(this.payload, this.from, this.payloadBuffer, this.from, this.to - this.from);
+            int left = this.from;
+            int right = middle;
+            for (int i = this.from; i < this.to; i++) {
+                if (right >= this.to || (left < middle && this.idBuffer[left] <= this.idBuffer[right])) {
+                    this.ids[i] = this.idBuffer[left];
+                    this.payload[i] = this.payloadBuffer[left++];
+                } else {
+                    this.ids[i] = this.idBuffer[right];
+                    this.payload[i] = this.payloadBuffer[right++];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package net.bennokue.java.osmosis;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only sequence of {@code long}s, kept in several {@link LongBuffer}s
+ * of {@code 2^segmentBits} elements each. A mapped buffer cannot be larger
+ * than 2 GB, so sequences that are memory-mapped from a file are split into
+ * segments (of 1 GB by default, like {@link MappedCSVFile} does), while
+ * sequences at the heap just wrap their array.
+ *
+ * @author bennokue
+ */
+class LongSegments {
+
+    /**
+     * log2 of the default segment size ({@code 2^27} longs, 1 GB).
+     */
+    private static final int DEFAULT_SEGMENT_BITS = 27;
+    /**
+     * The segments, all but the last one have {@code 2^segmentBits}
+     * elements.
+     */
+    private final LongBuffer[] segments;
+    private final int segmentBits;
+    private final int segmentMask;
+    /**
+     * The number of elements.
+     */
+    private final int size;
+
+    private LongSegments(LongBuffer[] segments, int segmentBits, int size) {
+        this.segments = segments;
+        this.segmentBits = segmentBits;
+        this.segmentMask = (1 << segmentBits) - 1;
+        this.size = size;
+    }
+
+    /**
+     * Wrap an array.
+     *
+     * @param values The values. The array is used directly, so do not change
+     * it afterwards.
+     * @param size The number of valid elements at {@code values}.
+     * @return The sequence.
+     */
+    static LongSegments wrap(long[] values, int size) {
+        return new LongSegments(new LongBuffer[]{LongBuffer.wrap(values, 0, size).slice()}, 31, size);
+    }
+
+    /**
+     * Map longs (little endian) from a file into memory. The mappings stay
+     * valid after closing the channel.
+     *
+     * @param channel The file.
+     * @param position Where the first long is.
+     * @param count How many longs to map.
+     * @return The sequence.
+     * @throws IOException If the file cannot be mapped.
+     */
+    static LongSegments map(FileChannel channel, long position, int count) throws IOException {
+        return map(channel, position, count, DEFAULT_SEGMENT_BITS);
+    }
+
+    /**
+     * Map longs with another segment size, for the tests.
+     *
+     * @param channel The file.
+     * @param position Where the first long is.
+     * @param count How many longs to map.
+     * @param segmentBits Each segment holds {@code 2^segmentBits} longs.
+     * @return The sequence.
+     * @throws IOException If the file cannot be mapped.
+     */
+    static LongSegments map(FileChannel channel, long position, int count, int segmentBits) throws IOException {
+        if (segmentBits < 1 || segmentBits > 27) {
+            throw new IllegalArgumentException("segmentBits has to be between 1 and 27");
+        }
+        int segmentCount = (int) (((long) count + (1L << segmentBits) - 1) >>> segmentBits);
+        LongBuffer[] segments = new LongBuffer[Math.max(1, segmentCount)];
+        if (segmentCount == 0) {
+            segments[0] = LongBuffer.allocate(0);
+        }
+        for (int i = 0; i < segmentCount; i++) {
+            long first = (long) i << segmentBits;
+            long length = Math.min(1L << segmentBits, count - first);
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + 8 * first, 8 * length).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        }
+        return new LongSegments(segments, segmentBits, count);
+    }
+
+    /**
+     * @return The number of elements.
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Get an element.
+     *
+     * @param index The index of the element.
+     * @return The element.
+     */
+    long get(int index) {
+        return this.segments[index >>> this.segmentBits].get(index & this.segmentMask);
+    }
+}
@@ -0,0 +1,145 @@
+package net.bennokue.java.osmosis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A CSV file mapped into memory (read only). Files larger than 2 GB are mapped
+ * in several segments, so lines may be read at any byte offset without
+ * thinking about the segment borders.
+ *
+ * @author bennokue
+ */
+class MappedCSVFile {
+
+    /**
+     * log2 of the segment size (1 GB).
+     */
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+    /**
+     * The mapped segments of the file.
+     */
+    private final MappedByteBuffer[] segments;
+    /**
+     * The file size in bytes.
+     */
+    private final long size;
+    /**
+     * {@link #readLine(long, int)} copies the lines here.
+     */
+    private byte[] lineBuffer = new byte[256];
+
+    /**
+     * Map a file into memory.
+     *
+     * @param file The file.
+     * @throws IOException If the file cannot be mapped.
+     */
+    MappedCSVFile(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+                FileChannel channel = randomAccessFile.getChannel()) {
+            this.size = channel.size();
+            int segmentCount = (int) ((this.size + SEGMENT_MASK) >>> SEGMENT_BITS);
+            this.segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                long start = (long) i << SEGMENT_BITS;
+                this.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_MASK + 1, this.size - start));
+            }
+        }
+        // The mappings stay valid after closing the channel
+    }
+
+    /**
+     * @return The file size in bytes.
+     */
+    long size() {
+        return this.size;
+    }
+
+    /**
+     * Read a byte.
+     *
+     * @param offset The position of the byte.
+     * @return The byte.
+     */
+    byte get(long offset) {
+        return this.segments[(int) (offset >>> SEGMENT_BITS)].get((int) (offset & SEGMENT_MASK));
+    }
+
+    /**
+     * Find the length of the line starting at {@code offset}.
+     *
+     * @param offset Where the line starts.
+     * @return The number of bytes until the next {@code \n} (exclusive) or the
+     * end of the file.
+     */
+    int lineLength(long offset) {
+        long end = offset;
+        // Scan segment by segment, without looking up the segment per byte
+        while (end < this.size) {
+            MappedByteBuffer segment = this.segments[(int) (end >>> SEGMENT_BITS)];
+            int position = (int) (end & SEGMENT_MASK);
+            int limit = segment.limit();
+            while (position < limit && segment.get(position) != '\n') {
+                position++;
+            }
+            end += position - (int) (end & SEGMENT_MASK);
+            if (position < limit) {
+                break;
+            }
+        }
+        return (int) (end - offset);
+    }
+
+    /**
+     * Copy a line to the start of {@link #lineBuffer()}. A trailing
+     * {@code \r} is removed.
+     *
+     * @param offset Where the line starts.
+     * @param length The length of the line in bytes, see
+     * {@link #lineLength(long)}.
+     * @return The length of the copied line.
+     */
+    int readLine(long offset, int length) {
+        if (length > 0 && this.get(offset + length - 1) == '\r') {
+            length--;
+        }
+        if (length > this.lineBuffer.length) {
+            this.lineBuffer = new byte[Math.max(length, this.lineBuffer.length * 2)];
+        }
+        // Bulk copy, a line may span two segments
+        for (int copied = 0; copied < length;) {
+            long position = offset + copied;
+            ByteBuffer segment = this.segments[(int) (position >>> SEGMENT_BITS)].duplicate();
+            segment.position((int) (position & SEGMENT_MASK));
+            int chunk = Math.min(length - copied, segment.remaining());
+            segment.get(this.lineBuffer, copied, chunk);
+            copied += chunk;
+        }
+        return length;
+    }
+
+    /**
+     * Copy the line starting at {@code offset} to the start of
+     * {@link #lineBuffer()}.
+     *
+     * @param offset Where the line starts.
+     * @return The length of the copied line.
+     */
+    int readLine(long offset) {
+        return this.readLine(offset, this.lineLength(offset));
+    }
+
+    /**
+     * @return The buffer {@link #readLine(long, int)} copies the lines to.
+     * Only valid until the next line is read.
+     */
+    byte[] lineBuffer() {
+        return this.lineBuffer;
+    }
+}
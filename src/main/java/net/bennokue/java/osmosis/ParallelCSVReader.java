@@ -0,0 +1,574 @@
+package net.bennokue.java.osmosis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads a whole CSV file into a {@link CSVItemStore} using several threads:
+ * The file is split into chunks of roughly the same size whose boundaries are
+ * moved to the next line start. Every chunk is parsed into its own columns by
+ * a thread of a pool, and the chunks are put into the store in file order, so
+ * the result is the same as when reading the file line by line (of duplicate
+ * ids, the last line wins). The data values are kept as UTF-8 bytes until
+ * they are added to the {@link ValueDictionary} of the store, so no
+ * {@link String} is created for them.
+ * <p>
+ * Problems with lines are collected per chunk and logged when the chunk is put
+ * into the store, because only then the number of lines before the chunk is
+ * known. At most one chunk per thread is parsed ahead of the one that is put
+ * into the store, and the chunks read but not yet stored never take more than
+ * {@link #MAX_PENDING_BYTES} (whatever the number of threads), so the parsed
+ * but not yet stored lines do not eat up the memory.</p>
+ * <p>
+ * Compressed files (see {@link CompressedInput}) are decompressed by a pool
+ * of the same size, and the chunks are cut from the decompressed stream.</p>
+ *
+ * @author bennokue
+ */
+class ParallelCSVReader {
+
+    private static final Logger logger = Logger.getLogger(ParallelCSVReader.class.getName());
+    /**
+     * Chunks are at least this big (unless the file is smaller).
+     */
+    private static final long MIN_CHUNK_BYTES = 1 << 20;
+    /**
+     * Chunks are at most this big, since each is read into a byte array.
+     */
+    private static final long MAX_CHUNK_BYTES = 1 << 23;
+    /**
+     * The chunks that are read but not yet put into the store take at most
+     * this many bytes (unless a single chunk is bigger). Their parsed lines
+     * need a multiple of that.
+     */
+    static final long MAX_PENDING_BYTES = 1 << 27;
+    /**
+     * Chunk boundaries are moved to the next line start by reading blocks of
+     * this size.
+     */
+    private static final int BOUNDARY_PROBE_BYTES = 4096;
+    /**
+     * The file to read.
+     */
+    private final File csvFile;
+    /**
+     * The parser, copied for every chunk.
+     */
+    private final CSVLineParser parser;
+    /**
+     * How many threads parse?
+     */
+    private final int threads;
+    /**
+     * The nominal size of a chunk.
+     */
+    private final long chunkBytes;
+    /**
+     * The most bytes of chunks that were read but not yet stored at the same
+     * time, for the tests.
+     */
+    private long peakPendingBytes = 0;
+
+    /**
+     * Standard constructor, the chunk size depends on the file size.
+     *
+     * @param csvFile The file to read.
+     * @param parser The parser (only used as template, see
+     * {@link CSVLineParser#copy()}).
+     * @param threads How many threads should parse?
+     */
+    ParallelCSVReader(File csvFile, CSVLineParser parser, int threads) {
+        this(csvFile, parser, threads, chunkBytesFor(csvFile.length(), threads));
+    }
+
+    /**
+     * Choose the chunk size: About four chunks per thread, but small enough
+     * that a chunk per thread (plus the one that is stored) fits into
+     * {@link #MAX_PENDING_BYTES}.
+     *
+     * @param fileSize The size of the file.
+     * @param threads How many threads parse?
+     * @return The nominal size of a chunk.
+     */
+    static long chunkBytesFor(long fileSize, int threads) {
+        long maxChunkBytes = Math.min(MAX_CHUNK_BYTES, MAX_PENDING_BYTES / (threads + 1L));
+        return Math.max(MIN_CHUNK_BYTES, Math.min(maxChunkBytes, fileSize / (4L * threads)));
+    }
+
+    /**
+     * Constructor with an explicit chunk size.
+     *
+     * @param csvFile The file to read.
+     * @param parser The parser (only used as template, see
+     * {@link CSVLineParser#copy()}).
+     * @param threads How many threads should parse?
+     * @param chunkBytes The nominal size of a chunk.
+     */
+    ParallelCSVReader(File csvFile, CSVLineParser parser, int threads, long chunkBytes) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Please provide at least one thread");
+        }
+        if (chunkBytes < 1 || chunkBytes > MAX_CHUNK_BYTES) {
+            throw new IllegalArgumentException("Chunks must have 1 to " + MAX_CHUNK_BYTES + " bytes");
+        }
+        this.csvFile = csvFile;
+        this.parser = parser;
+        this.threads = threads;
+        this.chunkBytes = chunkBytes;
+    }
+
+    /**
+     * Read the file into the store.
+     *
+     * @param store Where to put the lines.
+     * @return The number of lines of the file.
+     * @throws IOException If the file cannot be read.
+     */
+    long read(CSVItemStore store) throws IOException {
+        return this.read(store, null);
+    }
+
+    /**
+     * Read the file into the store and collect the ids.
+     *
+     * @param store Where to put the lines.
+     * @param idFilter Where to add the ids, may be {@code null}.
+     * @return The number of lines of the file.
+     * @throws IOException If the file cannot be read.
+     */
+    long read(CSVItemStore store, IdBloomFilter idFilter) throws IOException {
+        return this.read(store, idFilter, null);
+    }
+
+    /**
+     * Read the file into the store, collect the ids and count the bytes of
+     * the stored chunks.
+     *
+     * @param store Where to put the lines.
+     * @param idFilter Where to add the ids, may be {@code null}.
+     * @param storedBytes Where to count the bytes (of the decompressed
+     * stream for compressed files), may be {@code null}.
+     * @return The number of lines of the file.
+     * @throws IOException If the file cannot be read.
+     */
+    long read(CSVItemStore store, IdBloomFilter idFilter, AtomicLong storedBytes) throws IOException {
+        if (CompressedInput.isCompressed(this.csvFile)) {
+            try (InputStream input = CompressedInput.open(this.csvFile, this.threads)) {
+                logger.log(Level.FINER, "Reading compressed chunks with {0} threads", this.threads);
+                return this.read(new StreamChunkSource(input), this.threads, store, idFilter, storedBytes);
+            }
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(this.csvFile, "r");
+                FileChannel channel = randomAccessFile.getChannel()) {
+            long[] boundaries = this.findChunkBoundaries(channel);
+            int chunks = boundaries.length - 1;
+            logger.log(Level.FINER, "Reading {0} chunks with {1} threads", new Object[]{chunks, this.threads});
+            return this.read(new FileChunkSource(channel, boundaries), Math.min(this.threads, chunks), store, idFilter, storedBytes);
+        }
+    }
+
+    /**
+     * Parse the chunks and put them into the store in order.
+     *
+     * @param source The chunks.
+     * @param poolSize How many threads should parse?
+     * @param store Where to put the lines.
+     * @param idFilter Where to add the ids, may be {@code null}.
+     * @param storedBytes Where to count the bytes, may be {@code null}.
+     * @return The number of lines of the file.
+     * @throws IOException If the file cannot be read.
+     */
+    private long read(ChunkSource source, int poolSize, CSVItemStore store, IdBloomFilter idFilter, AtomicLong storedBytes) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, poolSize), new DaemonThreadFactory("csv-parser"));
+        try {
+            Deque<Future<Chunk>> pending = new ArrayDeque<>();
+            long pendingBytes = 0;
+            long lines = 0;
+            int[] references = new int[this.parser.getDataColumnCount()];
+            ChunkParser next = source.next();
+            while (null != next || !pending.isEmpty()) {
+                // A chunk per thread and the one that is stored next, limited by bytes
+                while (null != next && pending.size() <= this.threads
+                        && (pending.isEmpty() || pendingBytes + next.size() <= MAX_PENDING_BYTES)) {
+                    pending.add(pool.submit(next));
+                    pendingBytes += next.size();
+                    this.peakPendingBytes = Math.max(this.peakPendingBytes, pendingBytes);
+                    next = source.next();
+                }
+                Chunk chunk = waitFor(pending.poll());
+                pendingBytes -= chunk.bytes;
+                chunk.parser.logDeferredProblems(lines);
+                ValueDictionary dictionary = store.getValueDictionary();
+                for (int i = 0; i < chunk.size; i++) {
+                    for (int column = 0; column < references.length; column++) {
+                        int value = i * references.length + column;
+                        references[column] = dictionary.add(chunk.values, value == 0 ? 0 : chunk.valueEnds[value - 1], chunk.valueEnds[value]);
+                    }
+                    store.put(chunk.ids[i], chunk.latitudes[i], chunk.longitudes[i], references);
+                    if (null != idFilter) {
+                        idFilter.add(chunk.ids[i]);
+                    }
+                }
+                lines += chunk.lines;
+                if (null != storedBytes) {
+                    storedBytes.addAndGet(chunk.bytes);
+                }
+            }
+            return lines;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The most bytes of chunks that were read but not yet put into
+     * the store at the same time (at the last read).
+     */
+    long getPeakPendingBytes() {
+        return this.peakPendingBytes;
+    }
+
+    /**
+     * Split the file into chunks that start at the beginning of a line.
+     *
+     * @param channel The file.
+     * @return The chunk boundaries, the first is {@code 0}, the last the file
+     * size. Chunk {@code i} reaches from {@code boundaries[i]} (inclusive) to
+     * {@code boundaries[i + 1]} (exclusive).
+     * @throws IOException If the file cannot be read.
+     */
+    private long[] findChunkBoundaries(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Long> boundaries = new ArrayList<>();
+        boundaries.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(BOUNDARY_PROBE_BYTES);
+        long position = this.chunkBytes;
+        while (position < size) {
+            // The chunk starts behind the first line break at position - 1 or later
+            long boundary = size;
+            long probePosition = position - 1;
+            while (probePosition < size && boundary == size) {
+                probe.clear();
+                int read = channel.read(probe, probePosition);
+                for (int i = 0; i < read; i++) {
+                    if (probe.get(i) == '\n') {
+                        boundary = probePosition + i + 1;
+                        break;
+                    }
+                }
+                probePosition += Math.max(read, 1);
+            }
+            if (boundary < size) {
+                boundaries.add(boundary);
+            }
+            position = Math.max(boundary, position) + this.chunkBytes;
+        }
+        boundaries.add(size);
+        long[] result = new long[boundaries.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = boundaries.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Wait for a chunk to be parsed.
+     *
+     * @param future The chunk.
+     * @return The parsed chunk.
+     * @throws IOException If the chunk could not be read or we were
+     * interrupted.
+     */
+    private static Chunk waitFor(Future<Chunk> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the CSV file");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * The parsed lines of a chunk, as columns.
+     */
+    private static class Chunk {
+
+        private final CSVLineParser parser;
+        private long[] ids = new long[1024];
+        private int[] latitudes = new int[1024];
+        private int[] longitudes = new int[1024];
+        private int size = 0;
+        /**
+         * The UTF-8 bytes of the data values, one after the other, line by
+         * line and column by column.
+         */
+        private byte[] values = new byte[8192];
+        /**
+         * {@code valueEnds[i]} is where value {@code i} ends at
+         * {@link #values} (and value {@code i + 1} starts).
+         */
+        private int[] valueEnds = new int[1024];
+        private int valueCount = 0;
+        /**
+         * The number of lines of the chunk (also the invalid ones).
+         */
+        private long lines = 0;
+        /**
+         * The number of bytes of the chunk (with the line breaks).
+         */
+        private long bytes = 0;
+
+        Chunk(CSVLineParser parser) {
+            this.parser = parser;
+        }
+
+        /**
+         * Add the line just parsed by {@link #parser}.
+         */
+        void addParsedLine() {
+            if (this.size == this.ids.length) {
+                int newCapacity = this.size + (this.size >> 1);
+                this.ids = Arrays.copyOf(this.ids, newCapacity);
+                this.latitudes = Arrays.copyOf(this.latitudes, newCapacity);
+                this.longitudes = Arrays.copyOf(this.longitudes, newCapacity);
+            }
+            this.ids[this.size] = this.parser.getOsmId();
+            this.latitudes[this.size] = this.parser.getFixedLatitude();
+            this.longitudes[this.size] = this.parser.getFixedLongitude();
+            this.size++;
+            for (int column = 0; column < this.parser.getDataColumnCount(); column++) {
+                byte[] buffer = this.parser.locateData(column);
+                this.addValue(buffer, this.parser.getValueStart(), this.parser.getValueEnd());
+            }
+        }
+
+        /**
+         * Append a value to {@link #values}.
+         *
+         * @param buffer The bytes of the value.
+         * @param start Where the value starts at {@code buffer}.
+         * @param end Where the value ends at {@code buffer} (exclusive).
+         */
+        private void addValue(byte[] buffer, int start, int end) {
+            if (this.valueCount == this.valueEnds.length) {
+                this.valueEnds = Arrays.copyOf(this.valueEnds, this.valueCount + (this.valueCount >> 1));
+            }
+            int valueStart = this.valueCount == 0 ? 0 : this.valueEnds[this.valueCount - 1];
+            int valueEnd = valueStart + end - start;
+            if (valueEnd > this.values.length) {
+                this.values = Arrays.copyOf(this.values, Math.max(valueEnd, this.values.length + (this.values.length >> 1)));
+            }
+            System.arraycopy(buffer, start, this.values, valueStart, end - start);
+            this.valueEnds[this.valueCount++] = valueEnd;
+        }
+    }
+
+    /**
+     * Reads and parses a chunk.
+     */
+    private class ChunkParser implements Callable<Chunk> {
+
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        /**
+         * The bytes of the chunk if they have been read already.
+         */
+        private final byte[] bytes;
+
+        ChunkParser(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.bytes = null;
+        }
+
+        ChunkParser(byte[] bytes) {
+            this.channel = null;
+            this.start = 0;
+            this.end = bytes.length;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return The number of bytes of the chunk.
+         */
+        long size() {
+            return this.end - this.start;
+        }
+
+        @Override
+        public Chunk call() throws IOException {
+            byte[] bytes = null != this.bytes ? this.bytes : this.readBytes();
+            CSVLineParser chunkParser = ParallelCSVReader.this.parser.copy();
+            chunkParser.setDeferProblems(true);
+            Chunk chunk = new Chunk(chunkParser);
+            chunk.bytes = bytes.length;
+            int lineStart = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] == '\n') {
+                    this.parseLine(chunk, bytes, lineStart, i);
+                    lineStart = i + 1;
+                }
+            }
+            if (lineStart < bytes.length) {
+                this.parseLine(chunk, bytes, lineStart, bytes.length);
+            }
+            return chunk;
+        }
+
+        /**
+         * Read the chunk from {@link #channel}.
+         *
+         * @return The bytes of the chunk.
+         * @throws IOException If the file cannot be read.
+         */
+        private byte[] readBytes() throws IOException {
+            byte[] bytes = new byte[(int) (this.end - this.start)];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                int read = this.channel.read(buffer, this.start + buffer.position());
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file " + ParallelCSVReader.this.csvFile.getPath());
+                }
+            }
+            return bytes;
+        }
+
+        /**
+         * Parse a line and add it to the chunk.
+         *
+         * @param chunk The chunk.
+         * @param bytes The bytes of the chunk.
+         * @param lineStart Where the line starts.
+         * @param lineEnd Where the line ends (exclusive, without the line
+         * break).
+         */
+        private void parseLine(Chunk chunk, byte[] bytes, int lineStart, int lineEnd) {
+            chunk.lines++;
+            if (lineEnd > lineStart && bytes[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            if (chunk.parser.parse(bytes, lineStart, lineEnd, chunk.lines)) {
+                chunk.addParsedLine();
+            }
+        }
+    }
+
+    /**
+     * Hands out the chunks of the file in order.
+     */
+    private interface ChunkSource {
+
+        /**
+         * @return The next chunk or {@code null} if there are no more.
+         * @throws IOException If the file cannot be read.
+         */
+        ChunkParser next() throws IOException;
+    }
+
+    /**
+     * The chunks of a plain file, read by the parser threads themselves.
+     */
+    private class FileChunkSource implements ChunkSource {
+
+        private final FileChannel channel;
+        private final long[] boundaries;
+        private int nextChunk = 0;
+
+        FileChunkSource(FileChannel channel, long[] boundaries) {
+            this.channel = channel;
+            this.boundaries = boundaries;
+        }
+
+        @Override
+        public ChunkParser next() {
+            if (this.nextChunk + 1 >= this.boundaries.length) {
+                return null;
+            }
+            this.nextChunk++;
+            return new ChunkParser(this.channel, this.boundaries[this.nextChunk - 1], this.boundaries[this.nextChunk]);
+        }
+    }
+
+    /**
+     * The chunks of a stream (a compressed file), read by the calling thread:
+     * Every chunk is cut behind the last line break, the rest is carried over
+     * to the next chunk.
+     */
+    private class StreamChunkSource implements ChunkSource {
+
+        private final InputStream input;
+        /**
+         * The bytes behind the last line break of the previous chunk.
+         */
+        private byte[] carry = new byte[0];
+        private boolean endOfInput = false;
+
+        StreamChunkSource(InputStream input) {
+            this.input = input;
+        }
+
+        @Override
+        public ChunkParser next() throws IOException {
+            while (!this.endOfInput || this.carry.length > 0) {
+                byte[] buffer = Arrays.copyOf(this.carry, this.carry.length + (int) ParallelCSVReader.this.chunkBytes);
+                int filled = this.carry.length;
+                while (filled < buffer.length && !this.endOfInput) {
+                    int read = this.input.read(buffer, filled, buffer.length - filled);
+                    if (read < 0) {
+                        this.endOfInput = true;
+                    } else {
+                        filled += read;
+                    }
+                }
+                int chunkEnd = filled;
+                if (!this.endOfInput) {
+                    while (chunkEnd > 0 && buffer[chunkEnd - 1] != '\n') {
+                        chunkEnd--;
+                    }
+                }
+                if (chunkEnd == 0 && !this.endOfInput) {
+                    // A line longer than the chunk, read on
+                    this.carry = Arrays.copyOf(buffer, filled);
+                    continue;
+                }
+                this.carry = Arrays.copyOfRange(buffer, chunkEnd, filled);
+                if (chunkEnd > 0) {
+                    return new ChunkParser(chunkEnd == buffer.length ? buffer : Arrays.copyOf(buffer, chunkEnd));
+                }
+            }
+            return null;
+        }
+    }
+}
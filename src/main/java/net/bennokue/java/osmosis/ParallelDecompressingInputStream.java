@@ -0,0 +1,414 @@
+package net.bennokue.java.osmosis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decompresses a gzip or bzip2 file with several threads, like pigz and
+ * pbzip2. Both formats allow a file to consist of independent members (gzip)
+ * or streams (bzip2) that can be decompressed on their own. Where the members
+ * can be found without decompressing, the file is split into segments of a few
+ * members ({@link #SEGMENT_BYTES} compressed bytes), which are decompressed by
+ * a thread pool a few segments ahead of the reader and returned in file order:
+ * <ul><li>gzip files with block sizes in their headers (BGZF, as written by
+ * {@code bgzip}),</li><li>bzip2 files where every block is a stream of its
+ * own (as written by {@code pbzip2}): each stream starts with {@code BZh} and
+ * the block magic, which are found by scanning.</li></ul>
+ * <p>
+ * Once a member cannot be delimited (a plain gzip member, a bzip2 stream
+ * larger than {@link #MAX_MEMBER_BYTES}), the rest of the file is decompressed
+ * by the reading thread, like {@link CompressedInput#open(File)} does. So
+ * files from {@code gzip} or {@code bzip2} can be read as well, just not in
+ * parallel.</p>
+ *
+ * @author bennokue
+ */
+final class ParallelDecompressingInputStream extends InputStream {
+
+    private static final Logger logger = Logger.getLogger(ParallelDecompressingInputStream.class.getName());
+    /**
+     * Members are put together until a segment has at least this many
+     * compressed bytes.
+     */
+    private static final int SEGMENT_BYTES = 1 << 20;
+    /**
+     * Larger bzip2 streams are not looked for, the rest of the file is
+     * decompressed sequentially then. {@code pbzip2} streams are smaller than
+     * {@code 1 MB}.
+     */
+    private static final int MAX_MEMBER_BYTES = 1 << 22;
+    /**
+     * The fixed part of a gzip header up to the length of the extra field.
+     */
+    private static final int GZIP_HEADER_BYTES = 12;
+    /**
+     * {@code BZh}, the block size and the block magic.
+     */
+    private static final int BZIP2_HEADER_BYTES = 10;
+    /**
+     * The magic of a bzip2 block (the digits of pi).
+     */
+    private static final byte[] BZIP2_BLOCK_MAGIC = {0x31, 0x41, 0x59, 0x26, 0x53, 0x59};
+    /**
+     * bzip2 stream headers are looked for in blocks of this size.
+     */
+    private static final int SCAN_BYTES = 1 << 16;
+    private final File file;
+    private final CompressedInput.Compression compression;
+    private final int threads;
+    /**
+     * Members are put together until a segment has at least this many
+     * compressed bytes.
+     */
+    private final int segmentBytes;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final long size;
+    /**
+     * Where the first member starts that has not been handed to the pool.
+     */
+    private long scanPosition = 0;
+    /**
+     * {@code false} as soon as a member cannot be delimited: the rest of the
+     * file is decompressed by {@link #rest}.
+     */
+    private boolean splittable = true;
+    /**
+     * The decompressed segments that have been handed to the pool, in file
+     * order.
+     */
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    /**
+     * Created at the first segment.
+     */
+    private ExecutorService pool;
+    /**
+     * The segment that is being read.
+     */
+    private byte[] segment = new byte[0];
+    private int segmentPosition = 0;
+    /**
+     * Decompresses the rest of the file sequentially, see
+     * {@link #splittable}.
+     */
+    private InputStream rest;
+    private final byte[] singleByte = new byte[1];
+
+    /**
+     * Standard constructor, segments have {@link #SEGMENT_BYTES} compressed
+     * bytes.
+     *
+     * @param file The compressed file.
+     * @param compression How it is compressed.
+     * @param threads How many threads may decompress?
+     * @throws IOException If the file cannot be opened.
+     */
+    ParallelDecompressingInputStream(File file, CompressedInput.Compression compression, int threads) throws IOException {
+        this(file, compression, threads, SEGMENT_BYTES);
+    }
+
+    /**
+     * Constructor with an explicit segment size.
+     *
+     * @param file The compressed file.
+     * @param compression How it is compressed.
+     * @param threads How many threads may decompress?
+     * @param segmentBytes The minimum number of compressed bytes of a
+     * segment.
+     * @throws IOException If the file cannot be opened.
+     */
+    ParallelDecompressingInputStream(File file, CompressedInput.Compression compression, int threads, int segmentBytes) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Please provide at least one thread");
+        }
+        if (segmentBytes < 1) {
+            throw new IllegalArgumentException("Segments must have at least one byte");
+        }
+        if (compression == CompressedInput.Compression.NONE) {
+            throw new IllegalArgumentException("Nothing to decompress in " + file.getPath());
+        }
+        this.file = file;
+        this.compression = compression;
+        this.threads = threads;
+        this.segmentBytes = segmentBytes;
+        this.randomAccessFile = new RandomAccessFile(file, "r");
+        this.channel = this.randomAccessFile.getChannel();
+        this.size = this.channel.size();
+    }
+
+    @Override
+    public int read() throws IOException {
+        int read = this.read(this.singleByte, 0, 1);
+        return read < 0 ? -1 : this.singleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (this.segmentPosition == this.segment.length) {
+            if (!this.nextSegment()) {
+                return null == this.rest ? -1 : this.rest.read(buffer, offset, length);
+            }
+        }
+        int read = Math.min(length, this.segment.length - this.segmentPosition);
+        System.arraycopy(this.segment, this.segmentPosition, buffer, offset, read);
+        this.segmentPosition += read;
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (null != this.pool) {
+            this.pool.shutdownNow();
+        }
+        try {
+            if (null != this.rest) {
+                this.rest.close();
+            }
+        } finally {
+            this.randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Move on to the next decompressed segment.
+     *
+     * @return {@code false} if there is none: The end of the file or
+     * {@link #rest} has been reached.
+     * @throws IOException If the file cannot be read or decompressed.
+     */
+    private boolean nextSegment() throws IOException {
+        this.submitSegments();
+        Future<byte[]> next = this.pending.poll();
+        if (null == next) {
+            if (null == this.rest && this.scanPosition < this.size) {
+                logger.log(Level.FINER, "Decompressing {0} sequentially from byte {1}", new Object[]{this.file.getPath(), this.scanPosition});
+                this.channel.position(this.scanPosition);
+                this.rest = CompressedInput.decompress(Channels.newInputStream(this.channel), this.compression);
+            }
+            return false;
+        }
+        this.segment = waitFor(next);
+        this.segmentPosition = 0;
+        return true;
+    }
+
+    /**
+     * Hand segments to the pool until enough are pending.
+     *
+     * @throws IOException If the file cannot be read.
+     */
+    private void submitSegments() throws IOException {
+        while (this.splittable && this.scanPosition < this.size && this.pending.size() < 2 * this.threads) {
+            long end = this.scanPosition;
+            while (end < this.size && end - this.scanPosition < this.segmentBytes) {
+                long memberLength = this.memberLength(end);
+                if (memberLength <= 0) {
+                    this.splittable = false;
+                    break;
+                }
+                end += memberLength;
+            }
+            if (end > this.scanPosition) {
+                if (null == this.pool) {
+                    this.pool = Executors.newFixedThreadPool(this.threads, new DaemonThreadFactory("csv-decompressor"));
+                }
+                this.pending.add(this.pool.submit(new SegmentDecompressor(this.scanPosition, end)));
+                this.scanPosition = end;
+            }
+        }
+    }
+
+    /**
+     * Find the end of the member that starts at a position.
+     *
+     * @param position Where the member starts.
+     * @return The length of the member or {@code -1} if it cannot be
+     * delimited without decompressing it.
+     * @throws IOException If the file cannot be read.
+     */
+    private long memberLength(long position) throws IOException {
+        long length = this.compression == CompressedInput.Compression.GZIP ? this.gzipMemberLength(position) : this.bzip2StreamLength(position);
+        return length <= this.size - position ? length : -1;
+    }
+
+    /**
+     * Read the block size of a BGZF member from the {@code BC} subfield of
+     * its extra field.
+     *
+     * @param position Where the member starts.
+     * @return The length of the member or {@code -1} if it has no block size.
+     * @throws IOException If the file cannot be read.
+     */
+    private long gzipMemberLength(long position) throws IOException {
+        ByteBuffer header = this.readAt(position, GZIP_HEADER_BYTES);
+        if (header.limit() < GZIP_HEADER_BYTES || (header.get(0) & 0xff) != 0x1f || (header.get(1) & 0xff) != 0x8b
+                || header.get(2) != 8 || (header.get(3) & 0x04) == 0) {
+            return -1;
+        }
+        int extraLength = unsignedShort(header, 10);
+        ByteBuffer extra = this.readAt(position + GZIP_HEADER_BYTES, extraLength);
+        int subfield = 0;
+        while (subfield + 4 <= extra.limit()) {
+            int subfieldLength = unsignedShort(extra, subfield + 2);
+            if (extra.get(subfield) == 'B' && extra.get(subfield + 1) == 'C' && subfieldLength == 2 && subfield + 6 <= extra.limit()) {
+                return unsignedShort(extra, subfield + 4) + 1L;
+            }
+            subfield += 4 + subfieldLength;
+        }
+        return -1;
+    }
+
+    /**
+     * Find the next bzip2 stream header behind a position.
+     *
+     * @param position Where the stream starts.
+     * @return The length of the stream or {@code -1} if the next stream
+     * header is more than {@link #MAX_MEMBER_BYTES} away.
+     * @throws IOException If the file cannot be read.
+     */
+    private long bzip2StreamLength(long position) throws IOException {
+        long limit = Math.min(this.size, position + MAX_MEMBER_BYTES);
+        long scan = position + BZIP2_HEADER_BYTES;
+        while (scan < limit) {
+            ByteBuffer block = this.readAt(scan, (int) Math.min(SCAN_BYTES + BZIP2_HEADER_BYTES, this.size - scan));
+            for (int i = 0; i + BZIP2_HEADER_BYTES <= block.limit() && scan + i < limit; i++) {
+                if (isBzip2StreamHeader(block, i)) {
+                    return scan + i - position;
+                }
+            }
+            scan += SCAN_BYTES;
+        }
+        return limit == this.size ? this.size - position : -1;
+    }
+
+    /**
+     * Is there the header of a bzip2 stream with a block?
+     *
+     * @param buffer The bytes.
+     * @param index Where to look.
+     * @return {@code true} if there is.
+     */
+    private static boolean isBzip2StreamHeader(ByteBuffer buffer, int index) {
+        if (buffer.get(index) != 'B' || buffer.get(index + 1) != 'Z' || buffer.get(index + 2) != 'h'
+                || buffer.get(index + 3) < '1' || buffer.get(index + 3) > '9') {
+            return false;
+        }
+        for (int i = 0; i < BZIP2_BLOCK_MAGIC.length; i++) {
+            if (buffer.get(index + 4 + i) != BZIP2_BLOCK_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read bytes of the file (without moving the position of
+     * {@link #channel}).
+     *
+     * @param position Where to start.
+     * @param length How many bytes to read.
+     * @return The bytes, fewer than {@code length} at the end of the file.
+     * @throws IOException If the file cannot be read.
+     */
+    private ByteBuffer readAt(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int read = this.channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @param buffer The bytes.
+     * @param index Where the number starts.
+     * @return The little endian unsigned short at {@code index}.
+     */
+    private static int unsignedShort(ByteBuffer buffer, int index) {
+        return (buffer.get(index) & 0xff) | (buffer.get(index + 1) & 0xff) << 8;
+    }
+
+    /**
+     * Wait for a segment to be decompressed.
+     *
+     * @param future The segment.
+     * @return The decompressed bytes.
+     * @throws IOException If the segment could not be decompressed or we were
+     * interrupted.
+     */
+    private static byte[] waitFor(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decompressing the CSV file");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Reads and decompresses a segment of complete members.
+     */
+    private class SegmentDecompressor implements Callable<byte[]> {
+
+        private final long start;
+        private final long end;
+
+        SegmentDecompressor(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            ByteBuffer compressed = ParallelDecompressingInputStream.this.readAt(this.start, (int) (this.end - this.start));
+            if (compressed.limit() < this.end - this.start) {
+                throw new IOException("Unexpected end of file " + ParallelDecompressingInputStream.this.file.getPath());
+            }
+            ByteArrayOutputStream decompressed = new ByteArrayOutputStream(4 * compressed.limit());
+            byte[] buffer = new byte[1 << 16];
+            try (InputStream input = CompressedInput.decompress(new ByteArrayInputStream(compressed.array(), 0, compressed.limit()), ParallelDecompressingInputStream.this.compression)) {
+                int read = input.read(buffer);
+                while (read >= 0) {
+                    decompressed.write(buffer, 0, read);
+                    read = input.read(buffer);
+                }
+            }
+            return decompressed.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package net.bennokue.java.osmosis;
+
+import java.util.Arrays;
+
+/**
+ * A {@link CSVItemStore} without any per-line objects: An open-addressing hash
+ * index (linear probing) maps the primitive OSM ids to slots, and the line
+ * contents are kept in flat parallel arrays (the data as references to a
+ * {@link ValueDictionary}, one array per column). Looking up an id does not box anything, and a
+ * {@link CSVItem} is only created on a hit.
+ *
+ * @author bennokue
+ */
+class PrimitiveCSVItemStore implements CSVItemStore {
+
+    /**
+     * The index will be grown if it gets fuller than this.
+     */
+    private static final float MAX_LOAD_FACTOR = 0.6f;
+    /**
+     * The OSM ids at the hash index. Only valid where {@link #indexSlots} is
+     * not {@code 0}.
+     */
+    private long[] indexKeys;
+    /**
+     * The slot (plus one) of the line in the data arrays. {@code 0} marks a
+     * free position.
+     */
+    private int[] indexSlots;
+    /**
+     * {@code indexKeys.length - 1}, the length is always a power of two.
+     */
+    private int indexMask;
+    /**
+     * The OSM latitudes (fixed-point), one per slot.
+     */
+    private int[] latitudes;
+    /**
+     * The OSM longitudes (fixed-point), one per slot.
+     */
+    private int[] longitudes;
+    /**
+     * The references of the data elements at {@link #values}, one array per
+     * column with one element per slot. {@code null} until the first line
+     * tells the number of columns.
+     */
+    private int[][] data;
+    /**
+     * The distinct data elements.
+     */
+    private final ValueDictionary values = new ValueDictionary();
+    /**
+     * How many slots are in use?
+     */
+    private int size;
+
+    /**
+     * Standard constructor. The arrays will be grown if {@code expectedSize}
+     * was too small, but this is expensive, so try to guess well.
+     *
+     * @param expectedSize How many lines we expect to store.
+     */
+    PrimitiveCSVItemStore(int expectedSize) {
+        int capacity = Math.max(16, expectedSize);
+        this.latitudes = new int[capacity];
+        this.longitudes = new int[capacity];
+        this.allocateIndex(indexCapacityFor(capacity));
+    }
+
+    /**
+     * Find the smallest power of two that holds {@code entries} entries
+     * without exceeding {@link #MAX_LOAD_FACTOR}.
+     *
+     * @param entries The number of entries.
+     * @return The index capacity.
+     * @throws IllegalStateException If the index would need more than
+     * {@code 2^30} positions.
+     */
+    static int indexCapacityFor(int entries) {
+        long needed = (long) Math.ceil(entries / (double) MAX_LOAD_FACTOR);
+        if (needed > (1 << 30)) {
+            throw new IllegalStateException("Too many CSV lines for the primitive storage engine: " + entries);
+        }
+        int capacity = Integer.highestOneBit((int) Math.max(16, needed));
+        return capacity < needed ? capacity << 1 : capacity;
+    }
+
+    /**
+     * Replace the index with an empty one.
+     *
+     * @param capacity The new capacity (a power of two).
+     */
+    private void allocateIndex(int capacity) {
+        this.indexKeys = new long[capacity];
+        this.indexSlots = new int[capacity];
+        this.indexMask = capacity - 1;
+    }
+
+    /**
+     * Find the index position of an id.
+     *
+     * @param osmId The id.
+     * @return The position holding the id, or the free position where it
+     * would have to be inserted.
+     */
+    private int indexPosition(long osmId) {
+        // OSM ids are dense, so without mixing, linear probing would build long clusters
+        int position = (int) Hashing.mix(osmId) & this.indexMask;
+        while (this.indexSlots[position] != 0 && this.indexKeys[position] != osmId) {
+            position = (position + 1) & this.indexMask;
+        }
+        return position;
+    }
+
+    @Override
+    public void put(long osmId, int osmLat, int osmLon, int[] data) {
+        if (null == this.data) {
+            this.data = new int[data.length][this.latitudes.length];
+        }
+        int position = this.indexPosition(osmId);
+        int slot = this.indexSlots[position] - 1;
+        if (slot < 0) {
+            // New id
+            if (this.size == this.latitudes.length) {
+                this.growData();
+            }
+            slot = this.size++;
+            this.indexKeys[position] = osmId;
+            this.indexSlots[position] = slot + 1;
+            if (this.size > this.indexKeys.length * MAX_LOAD_FACTOR) {
+                this.growIndex();
+            }
+        }
+        this.latitudes[slot] = osmLat;
+        this.longitudes[slot] = osmLon;
+        for (int column = 0; column < this.data.length; column++) {
+            this.data[column][slot] = data[column];
+        }
+    }
+
+    @Override
+    public CSVItem get(long osmId) {
+        int slot = this.indexSlots[this.indexPosition(osmId)] - 1;
+        if (slot < 0) {
+            return null;
+        }
+        String[] itemData = new String[this.data.length];
+        for (int column = 0; column < itemData.length; column++) {
+            itemData[column] = this.values.get(this.data[column][slot]);
+        }
+        return new CSVItem(osmId, FixedPointCoordinates.toDouble(this.latitudes[slot]), FixedPointCoordinates.toDouble(this.longitudes[slot]), itemData);
+    }
+
+    /**
+     * Make room for more lines at the data arrays.
+     */
+    private void growData() {
+        int newCapacity = dataCapacityAfter(this.latitudes.length);
+        this.latitudes = Arrays.copyOf(this.latitudes, newCapacity);
+        this.longitudes = Arrays.copyOf(this.longitudes, newCapacity);
+        for (int column = 0; column < this.data.length; column++) {
+            this.data[column] = Arrays.copyOf(this.data[column], newCapacity);
+        }
+    }
+
+    /**
+     * Calculate the next capacity of the data arrays (half as large again,
+     * but not larger than an array may be).
+     *
+     * @param capacity The current capacity.
+     * @return The new capacity.
+     * @throws IllegalStateException If the arrays cannot grow any more.
+     */
+    static int dataCapacityAfter(int capacity) {
+        if (capacity >= Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Too many CSV lines for the primitive storage engine: " + capacity);
+        }
+        return (int) Math.min(Integer.MAX_VALUE - 8, capacity + ((long) capacity >> 1));
+    }
+
+    /**
+     * Grow the index (at least doubling it) and re-insert all ids.
+     */
+    private void growIndex() {
+        long[] oldKeys = this.indexKeys;
+        int[] oldSlots = this.indexSlots;
+        this.allocateIndex(indexCapacityFor(this.size + 1));
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldSlots[i] != 0) {
+                int position = this.indexPosition(oldKeys[i]);
+                this.indexKeys[position] = oldKeys[i];
+                this.indexSlots[position] = oldSlots[i];
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(this.indexSlots, 0);
+        this.values.clear();
+        this.size = 0;
+    }
+
+    @Override
+    public ValueDictionary getValueDictionary() {
+        return this.values;
+    }
+}
@@ -0,0 +1,309 @@
+package net.bennokue.java.osmosis;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reports the progress of a {@link CSVImportPlugin_task} at a fixed interval
+ * as JSON lines, one object per line, so a log shipper can parse them. Each
+ * record has the {@code event} {@code progress}; {@link #close()} writes a
+ * last one with {@code finished}. Fields:<ul><li>{@code timestamp},
+ * {@code elapsedSeconds}: When the record was written (ISO 8601, UTC) and
+ * how long after {@link #start()}.</li><li>{@code nodesProcessed},
+ * {@code nodesImported}, {@code nodesNotFound},
+ * {@code nodesSkippedDueToMaxDist}, {@code waysProcessed},
+ * {@code waysImported}, {@code waysNotFound}, {@code relationsProcessed},
+ * {@code relationsImported}, {@code relationsNotFound},
+ * {@code entitiesProcessed}: See {@link CSVImportMetricsMBean}, the nodes
+ * only count nodes.</li><li>{@code entitiesPerSecond}: Since the last record.
+ * {@code entitiesPerSecondAverage}: Since the start.</li><li>{@code csvLinesParsed},
+ * {@code csvBytesParsed}, {@code csvLinesPerSecond}, {@code csvBytesPerSecond}:
+ * The parsed CSV lines and bytes (line breaks are counted as one byte), the
+ * rates since the last record. Lines parsed several times (rescans of the
+ * bounded cache, the id filter, lookups) count several times.</li><li>{@code csvBytesLoaded},
+ * {@code csvBytesTotal}, {@code csvLoadPercent}, {@code csvLoadEtaSeconds}:
+ * How far the pass that loads the file has got (see
+ * {@link CSVLoader#getLoadedBytes()}), the size of the file, the ratio of
+ * both and when the pass will be through at the load rate since the last
+ * record; the last three are {@code null} for compressed and binary
+ * files.</li><li>{@code cacheEntries}:
+ * The lines in the cache.</li><li>{@code heapUsedBytes},
+ * {@code heapCommittedBytes}, {@code heapMaxBytes}: The memory of the
+ * JVM.</li><li>{@code expectedNodes}, {@code percent}, {@code etaSeconds}: If
+ * the number of entities is known (see
+ * {@link CSVImportOptions#setExpectedNodes(long)}), how many have been
+ * processed and when all will be, at a smoothed rate; {@code null}
+ * otherwise.</li></ul>
+ * The records are written by a single daemon thread of a
+ * {@link ScheduledExecutorService}.
+ *
+ * @author bennokue
+ */
+final class ProgressReporter implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(ProgressReporter.class.getName());
+    /**
+     * How much does a new rate count for the smoothed rate of the ETA?
+     */
+    private static final double SMOOTHING = 0.3;
+    private final CSVImportMetrics metrics;
+    private final CSVLoader csvLoader;
+    /**
+     * The size of the CSV file or {@code -1} if the parsed bytes cannot be
+     * compared to it.
+     */
+    private final long csvBytesTotal;
+    /**
+     * The number of entities or {@code -1} if it is unknown.
+     */
+    private final long expectedNodes;
+    private final int intervalSeconds;
+    private final PrintStream output;
+    /**
+     * Is {@link #output} to be closed at the end?
+     */
+    private final boolean closeOutput;
+    private final ScheduledExecutorService executor;
+    private volatile boolean closed = false;
+    /**
+     * The state at the last record, only used by the reporting thread (and
+     * by {@link #close()} after it has terminated).
+     */
+    private long startNanos;
+    private long lastNanos;
+    private long lastEntities;
+    private long lastLines;
+    private long lastBytes;
+    private long lastLoadedBytes;
+    private double smoothedEntitiesPerSecond = Double.NaN;
+
+    /**
+     * Create the reporter. Does not start it.
+     *
+     * @param metrics The metrics of the task.
+     * @param csvLoader The loader of the task.
+     * @param csvBytesTotal The size of the CSV file or {@code -1}.
+     * @param expectedNodes The number of entities or {@code -1}.
+     * @param intervalSeconds The time between the records.
+     * @param output Where to write the records.
+     * @param closeOutput Close {@code output} at the end?
+     */
+    ProgressReporter(CSVImportMetrics metrics, CSVLoader csvLoader, long csvBytesTotal, long expectedNodes, int intervalSeconds, PrintStream output, boolean closeOutput) {
+        if (intervalSeconds <= 0) {
+            throw new IllegalArgumentException("The interval has to be greater than 0");
+        }
+        this.metrics = metrics;
+        this.csvLoader = csvLoader;
+        this.csvBytesTotal = csvBytesTotal;
+        this.expectedNodes = expectedNodes;
+        this.intervalSeconds = intervalSeconds;
+        this.output = output;
+        this.closeOutput = closeOutput;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("csv-progress"));
+    }
+
+    /**
+     * Write a record every {@code intervalSeconds}, the first one after the
+     * first interval.
+     */
+    void start() {
+        this.startNanos = System.nanoTime();
+        this.lastNanos = this.startNanos;
+        this.executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                ProgressReporter.this.report();
+            }
+        }, this.intervalSeconds, this.intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop reporting, wait for a record being written and write the last
+     * record. Does nothing if the reporter is closed already.
+     */
+    @Override
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.executor.shutdown();
+        try {
+            if (!this.executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.log(Level.WARNING, "The progress reporter did not stop in time");
+                this.executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            this.executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        this.output.println(this.createRecord("finished"));
+        if (this.closeOutput) {
+            this.output.close();
+        } else {
+            this.output.flush();
+        }
+    }
+
+    /**
+     * Write a record, unless the reporter is closed.
+     */
+    private void report() {
+        if (this.closed) {
+            return;
+        }
+        try {
+            this.output.println(this.createRecord("progress"));
+        } catch (RuntimeException e) {
+            // An exception would cancel all further records
+            logger.log(Level.WARNING, "Could not report the progress", e);
+        }
+    }
+
+    /**
+     * Create a record and remember the current state for the next one.
+     *
+     * @param event The {@code event} of the record.
+     * @return The record (one line of JSON).
+     */
+    String createRecord(String event) {
+        long now = System.nanoTime();
+        long entities = this.metrics.getEntitiesProcessed();
+        long lines = this.csvLoader.getLinesParsed();
+        long bytes = this.csvLoader.getBytesParsed() + lines;
+        long loadedBytes = this.csvLoader.getLoadedBytes();
+        double elapsedSeconds = (now - this.startNanos) / 1e9;
+        double intervalSeconds = (now - this.lastNanos) / 1e9;
+        double entitiesPerSecond = rate(entities - this.lastEntities, intervalSeconds);
+        if (entities > this.lastEntities) {
+            this.smoothedEntitiesPerSecond = Double.isNaN(this.smoothedEntitiesPerSecond) ? entitiesPerSecond : SMOOTHING * entitiesPerSecond + (1 - SMOOTHING) * this.smoothedEntitiesPerSecond;
+        }
+        double bytesPerSecond = rate(bytes - this.lastBytes, intervalSeconds);
+        Runtime runtime = Runtime.getRuntime();
+
+        Json json = new Json();
+        json.add("event", event);
+        json.add("timestamp", Instant.now().toString());
+        json.add("elapsedSeconds", elapsedSeconds);
+        json.add("nodesProcessed", this.metrics.getNodesProcessed());
+        json.add("nodesImported", this.metrics.getNodesImported());
+        json.add("nodesNotFound", this.metrics.getNodesNotFound());
+        json.add("nodesSkippedDueToMaxDist", this.metrics.getNodesSkippedDueToMaxDist());
+        json.add("waysProcessed", this.metrics.getWaysProcessed());
+        json.add("waysImported", this.metrics.getWaysImported());
+        json.add("waysNotFound", this.metrics.getWaysNotFound());
+        json.add("relationsProcessed", this.metrics.getRelationsProcessed());
+        json.add("relationsImported", this.metrics.getRelationsImported());
+        json.add("relationsNotFound", this.metrics.getRelationsNotFound());
+        json.add("entitiesProcessed", entities);
+        json.add("entitiesPerSecond", entitiesPerSecond);
+        json.add("entitiesPerSecondAverage", rate(entities, elapsedSeconds));
+        json.add("csvLinesParsed", lines);
+        json.add("csvBytesParsed", bytes);
+        json.add("csvLinesPerSecond", rate(lines - this.lastLines, intervalSeconds));
+        json.add("csvBytesPerSecond", bytesPerSecond);
+        json.add("csvBytesLoaded", loadedBytes);
+        if (this.csvBytesTotal > 0) {
+            long remainingBytes = Math.max(0, this.csvBytesTotal - loadedBytes);
+            json.add("csvBytesTotal", this.csvBytesTotal);
+            json.add("csvLoadPercent", Math.min(100, 100.0 * loadedBytes / this.csvBytesTotal));
+            json.add("csvLoadEtaSeconds", remainingBytes == 0 ? 0 : remainingBytes / rate(loadedBytes - this.lastLoadedBytes, intervalSeconds));
+        } else {
+            json.add("csvBytesTotal", Double.NaN);
+            json.add("csvLoadPercent", Double.NaN);
+            json.add("csvLoadEtaSeconds", Double.NaN);
+        }
+        json.add("cacheEntries", this.csvLoader.getCacheEntries());
+        json.add("heapUsedBytes", runtime.totalMemory() - runtime.freeMemory());
+        json.add("heapCommittedBytes", runtime.totalMemory());
+        json.add("heapMaxBytes", runtime.maxMemory());
+        if (this.expectedNodes > 0) {
+            long remainingEntities = Math.max(0, this.expectedNodes - entities);
+            json.add("expectedNodes", this.expectedNodes);
+            json.add("percent", Math.min(100, 100.0 * entities / this.expectedNodes));
+            json.add("etaSeconds", remainingEntities == 0 ? 0 : remainingEntities / this.smoothedEntitiesPerSecond);
+        } else {
+            json.add("expectedNodes", Double.NaN);
+            json.add("percent", Double.NaN);
+            json.add("etaSeconds", Double.NaN);
+        }
+
+        this.lastNanos = now;
+        this.lastEntities = entities;
+        this.lastLines = lines;
+        this.lastBytes = bytes;
+        this.lastLoadedBytes = loadedBytes;
+        return json.toString();
+    }
+
+    /**
+     * @param count A number of things.
+     * @param seconds The time it took.
+     * @return Things per second, {@code 0} if no time has passed.
+     */
+    private static double rate(long count, double seconds) {
+        return seconds <= 0 ? 0 : count / seconds;
+    }
+
+    /**
+     * Builds a flat JSON object.
+     */
+    private static final class Json {
+
+        private final StringBuilder builder = new StringBuilder(768).append('{');
+
+        private void key(String key) {
+            if (this.builder.length() > 1) {
+                this.builder.append(',');
+            }
+            this.builder.append('"').append(key).append("\":");
+        }
+
+        void add(String key, long value) {
+            this.key(key);
+            this.builder.append(value);
+        }
+
+        /**
+         * @param key The key.
+         * @param value The value, rounded to three decimals. {@code NaN} and
+         * infinite values are written as {@code null}.
+         */
+        void add(String key, double value) {
+            this.key(key);
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                this.builder.append("null");
+            } else {
+                this.builder.append(String.format(Locale.ROOT, "%.3f", value));
+            }
+        }
+
+        void add(String key, String value) {
+            this.key(key);
+            this.builder.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    this.builder.append('\\').append(c);
+                } else if (c < 0x20) {
+                    this.builder.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                } else {
+                    this.builder.append(c);
+                }
+            }
+            this.builder.append('"');
+        }
+
+        @Override
+        public String toString() {
+            return this.builder.toString() + '}';
+        }
+    }
+}
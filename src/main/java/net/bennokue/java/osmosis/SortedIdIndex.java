@@ -0,0 +1,159 @@
+package net.bennokue.java.osmosis;
+
+/**
+ * Finds OSM ids in a sorted array of distinct ids. Since OSM ids are dense and
+ * roughly uniformly distributed, the search interpolates instead of bisecting.
+ * Additionally, the position of the last hit is remembered: The nodes of most
+ * OSM files come in ascending id order, so the next id usually is right behind
+ * the last one and can be found with a few steps forward.
+ * <p>
+ * The ids are read from {@link LongSegments}, so they can either live at the
+ * heap or in a memory-mapped file.</p>
+ *
+ * @author bennokue
+ */
+class SortedIdIndex {
+
+    /**
+     * After this many interpolation steps without success, we fall back to a
+     * binary search (protects against badly distributed ids).
+     */
+    private static final int MAX_INTERPOLATION_STEPS = 8;
+    /**
+     * The ids, sorted ascending and without duplicates.
+     */
+    private final LongSegments ids;
+    /**
+     * The number of ids.
+     */
+    private final int size;
+    /**
+     * The position of the last lookup. Only a hint, so it does not matter if
+     * it gets overwritten by another thread.
+     */
+    private int cursor;
+
+    /**
+     * Standard constructor.
+     *
+     * @param ids The ids, sorted ascending and without duplicates. The array
+     * is used directly, so do not change it afterwards.
+     * @param size The number of valid elements at {@code ids}.
+     */
+    SortedIdIndex(long[] ids, int size) {
+        this(LongSegments.wrap(ids, size));
+    }
+
+    /**
+     * Constructor for ids that are not at a {@code long[]}.
+     *
+     * @param ids The ids, sorted ascending and without duplicates. Do not
+     * change them afterwards.
+     */
+    SortedIdIndex(LongSegments ids) {
+        this.ids = ids;
+        this.size = ids.size();
+    }
+
+    /**
+     * @return The number of ids.
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * @return The ids, do not change them.
+     */
+    LongSegments ids() {
+        return this.ids;
+    }
+
+    /**
+     * Get an id.
+     *
+     * @param position The position of the id.
+     * @return The id.
+     */
+    long get(int position) {
+        return this.ids.get(position);
+    }
+
+    /**
+     * Find the position of an id.
+     *
+     * @param id The id to look for.
+     * @return The position of the id or {@code -1} if it is not there.
+     */
+    int find(long id) {
+        if (this.size == 0) {
+            return -1;
+        }
+        int start = this.cursor;
+        long startId = this.ids.get(start);
+        if (startId == id) {
+            return start;
+        }
+        int low;
+        int high;
+        if (startId < id) {
+            // Gallop forward from the last position
+            int step = 1;
+            while (start + step < this.size && this.ids.get(start + step) < id) {
+                step <<= 1;
+            }
+            low = start + (step >> 1) + 1;
+            high = Math.min(start + step, this.size - 1);
+        } else {
+            low = 0;
+            high = start - 1;
+        }
+        int position = this.search(id, low, high);
+        if (position >= 0) {
+            this.cursor = position;
+            return position;
+        }
+        // Remember where we are, the next id is probably near
+        this.cursor = Math.min(-position - 1, this.size - 1);
+        return -1;
+    }
+
+    /**
+     * Interpolation search between {@code low} and {@code high} (both
+     * inclusive).
+     *
+     * @param id The id to look for.
+     * @param low The first position to look at.
+     * @param high The last position to look at.
+     * @return The position of the id or {@code -(insertion point) - 1}.
+     */
+    private int search(long id, int low, int high) {
+        int steps = 0;
+        while (low <= high) {
+            long lowId = this.ids.get(low);
+            long highId = this.ids.get(high);
+            if (id < lowId) {
+                return -low - 1;
+            }
+            if (id > highId) {
+                return -high - 2;
+            }
+            int middle;
+            if (steps++ < MAX_INTERPOLATION_STEPS && highId != lowId) {
+                // Computed with doubles, the difference of two longs may overflow
+                middle = low + (int) (((double) id - lowId) / ((double) highId - lowId) * (high - low));
+            } else {
+                middle = (low + high) >>> 1;
+            }
+            long middleId = this.ids.get(middle);
+            if (middleId < id) {
+                low = middle + 1;
+            } else if (middleId > id) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -low - 1;
+    }
+}
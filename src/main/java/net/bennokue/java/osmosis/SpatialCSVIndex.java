@@ -0,0 +1,481 @@
+package net.bennokue.java.osmosis;
+
+import java.util.Arrays;
+
+/**
+ * A spatial index over the CSV lines for matching by coordinates instead of
+ * ids: A uniform grid of square cells (in fixed-point degrees, see
+ * {@link FixedPointCoordinates}) that are at least as high as the search
+ * radius, built in bulk. After all lines have been added, {@link #build()}
+ * sorts them into their cells (a counting sort that keeps the file order
+ * within each cell) and an open-addressing hash index maps the cells to their
+ * lines, so the lines of one cell are contiguous in flat arrays. A query only
+ * looks at the few cells around the point, and only lines inside a
+ * conservative bounding box get the exact
+ * {@link CSVItem#distFrom(double, double, double, double)} check.
+ * <p>
+ * Near the antimeridian, the cells on the other side are searched, too.
+ * Read-only after {@link #build()}, so several threads may query at once
+ * then.</p>
+ *
+ * @author bennokue
+ */
+class SpatialCSVIndex {
+
+    /**
+     * The sphere of {@link CSVItem#distFrom(double, double, double, double)}
+     * (meters), and meters per degree of latitude on it.
+     */
+    private static final double EARTH_RADIUS = 6371000;
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+    /**
+     * One degree in fixed-point.
+     */
+    private static final double FIXED_PER_DEGREE = 1e7;
+    /**
+     * 360 degrees in fixed-point.
+     */
+    private static final long FULL_CIRCLE = 3600000000L;
+    /**
+     * The bounding boxes are widened by this factor, so the {@code float}
+     * rounding of the distance can never let a line slip through.
+     */
+    private static final double RADIUS_TOLERANCE = 1 + 1e-6;
+    /**
+     * The cell index will be grown if it gets fuller than this.
+     */
+    private static final float MAX_LOAD_FACTOR = 0.5f;
+    /**
+     * The search radius in meters.
+     */
+    private final double radius;
+    /**
+     * How far (fixed-point degrees) a line may be away in latitude, rounded
+     * up.
+     */
+    private final int latitudeReach;
+    /**
+     * The height and width of the cells (fixed-point degrees).
+     */
+    private final int cellSize;
+    /**
+     * The coordinates (fixed-point) of the lines, sorted by cell after
+     * {@link #build()}.
+     */
+    private int[] latitudes;
+    private int[] longitudes;
+    /**
+     * The references of the data elements at {@link #values}, one array per
+     * column, in the same order as the coordinates. {@code null} until the
+     * first line tells the number of columns.
+     */
+    private int[][] data;
+    /**
+     * The distinct data elements.
+     */
+    private final ValueDictionary values = new ValueDictionary();
+    /**
+     * How many lines have been added?
+     */
+    private int size = 0;
+    /**
+     * The key of each cell (see {@link #cellKey(int, int)}), by cell number.
+     */
+    private long[] cellKeys;
+    /**
+     * The lines of cell {@code c} are at {@code cellStarts[c]} to
+     * {@code cellStarts[c + 1]} (exclusive).
+     */
+    private int[] cellStarts;
+    /**
+     * How many cells are there?
+     */
+    private int cells = 0;
+    /**
+     * The cell index: The number plus one of the cell with the key
+     * {@code cellKeys[indexCells[i] - 1]}, {@code 0} marks a free position.
+     * Its length is a power of two.
+     */
+    private int[] indexCells;
+    /**
+     * Has {@link #build()} been called?
+     */
+    private boolean built = false;
+
+    /**
+     * Standard constructor.
+     *
+     * @param radius Lines further away than this (meters) are never found.
+     * @param expectedSize How many lines we expect to add.
+     */
+    SpatialCSVIndex(double radius, int expectedSize) {
+        if (!(radius >= 0) || Double.isInfinite(radius)) {
+            throw new IllegalArgumentException("Please provide a finite maxDist to match by coordinates");
+        }
+        this.radius = radius;
+        double reach = Math.ceil(radius * RADIUS_TOLERANCE / METERS_PER_DEGREE * FIXED_PER_DEGREE) + 1;
+        this.latitudeReach = (int) Math.min(reach, 180 * FIXED_PER_DEGREE);
+        this.cellSize = (int) Math.min(2L * this.latitudeReach, 180 * (long) FIXED_PER_DEGREE);
+        int capacity = Math.max(16, expectedSize);
+        this.latitudes = new int[capacity];
+        this.longitudes = new int[capacity];
+    }
+
+    /**
+     * Add a line. Lines without coordinates are ignored.
+     *
+     * @param latitude The fixed-point latitude.
+     * @param longitude The fixed-point longitude.
+     * @param dataColumns The data elements.
+     * @return {@code false} if the line has no coordinates.
+     */
+    boolean add(int latitude, int longitude, String[] dataColumns) {
+        if (latitude == FixedPointCoordinates.NONE || longitude == FixedPointCoordinates.NONE) {
+            return false;
+        }
+        int[] references = new int[dataColumns.length];
+        for (int column = 0; column < dataColumns.length; column++) {
+            references[column] = this.values.add(dataColumns[column]);
+        }
+        return this.add(latitude, longitude, references);
+    }
+
+    /**
+     * Add a line whose data elements are at {@link #getValueDictionary()}
+     * already. Lines without coordinates are ignored.
+     *
+     * @param latitude The fixed-point latitude.
+     * @param longitude The fixed-point longitude.
+     * @param dataReferences The references of the data elements, copied.
+     * @return {@code false} if the line has no coordinates.
+     */
+    boolean add(int latitude, int longitude, int[] dataReferences) {
+        if (this.built) {
+            throw new IllegalStateException("The spatial index has been built already");
+        }
+        if (latitude == FixedPointCoordinates.NONE || longitude == FixedPointCoordinates.NONE) {
+            return false;
+        }
+        if (null == this.data) {
+            this.data = new int[dataReferences.length][this.latitudes.length];
+        }
+        if (this.size == this.latitudes.length) {
+            int capacity = this.latitudes.length + (this.latitudes.length >> 1);
+            this.latitudes = Arrays.copyOf(this.latitudes, capacity);
+            this.longitudes = Arrays.copyOf(this.longitudes, capacity);
+            for (int column = 0; column < this.data.length; column++) {
+                this.data[column] = Arrays.copyOf(this.data[column], capacity);
+            }
+        }
+        this.latitudes[this.size] = latitude;
+        this.longitudes[this.size] = longitude;
+        for (int column = 0; column < this.data.length; column++) {
+            this.data[column][this.size] = dataReferences[column];
+        }
+        this.size++;
+        return true;
+    }
+
+    /**
+     * Sort the lines into their cells. Call this after the last
+     * {@link #add(int, int, int[])} and before the first query.
+     */
+    void build() {
+        if (this.built) {
+            return;
+        }
+        // Number the cells and count their lines
+        this.cellKeys = new long[64];
+        int[] counts = new int[64];
+        this.indexCells = new int[128];
+        int[] lineCells = new int[this.size];
+        for (int line = 0; line < this.size; line++) {
+            long key = cellKey(this.cellOf(this.latitudes[line]), this.cellOf(this.longitudes[line]));
+            int cell = this.findCell(key);
+            if (cell < 0) {
+                cell = this.addCell(key);
+                if (this.cells > counts.length) {
+                    counts = Arrays.copyOf(counts, this.cellKeys.length);
+                }
+            }
+            counts[cell]++;
+            lineCells[line] = cell;
+        }
+        this.cellKeys = Arrays.copyOf(this.cellKeys, this.cells);
+        this.cellStarts = new int[this.cells + 1];
+        for (int cell = 0; cell < this.cells; cell++) {
+            this.cellStarts[cell + 1] = this.cellStarts[cell] + counts[cell];
+        }
+        // Move the lines to their cells, keeping the file order
+        int[] next = Arrays.copyOf(this.cellStarts, this.cells);
+        int[] order = new int[this.size];
+        for (int line = 0; line < this.size; line++) {
+            order[next[lineCells[line]]++] = line;
+        }
+        this.latitudes = permute(this.latitudes, order);
+        this.longitudes = permute(this.longitudes, order);
+        if (null == this.data) {
+            this.data = new int[0][];
+        }
+        for (int column = 0; column < this.data.length; column++) {
+            this.data[column] = permute(this.data[column], order);
+        }
+        this.built = true;
+    }
+
+    /**
+     * Find the nearest line within the radius.
+     *
+     * @param latitude The latitude of the point (degrees).
+     * @param longitude The longitude of the point (degrees).
+     * @return The nearest line or {@code null} if there is none within the
+     * radius. Its {@link CSVItem#OSM_ID} is {@code 0}.
+     */
+    CSVItem findNearest(double latitude, double longitude) {
+        if (!this.built) {
+            throw new IllegalStateException("The spatial index has not been built yet");
+        }
+        int fixedLatitude = FixedPointCoordinates.toFixed(latitude);
+        int fixedLongitude = FixedPointCoordinates.toFixed(longitude);
+        if (fixedLatitude == FixedPointCoordinates.NONE || fixedLongitude == FixedPointCoordinates.NONE || this.size == 0) {
+            return null;
+        }
+        long longitudeReach = this.longitudeReach(latitude);
+        int best = -1;
+        if (longitudeReach >= FULL_CIRCLE / 2) {
+            // Near the poles: Every longitude is in reach
+            best = this.findNearestInBox(latitude, longitude, fixedLatitude, fixedLongitude, FULL_CIRCLE, best);
+        } else {
+            // Look on the other side of the antimeridian, too
+            for (long center = (long) fixedLongitude - FULL_CIRCLE; center <= (long) fixedLongitude + FULL_CIRCLE; center += FULL_CIRCLE) {
+                if (center + longitudeReach >= -FULL_CIRCLE / 2 && center - longitudeReach <= FULL_CIRCLE / 2) {
+                    best = this.findNearestInBox(latitude, longitude, fixedLatitude, center, longitudeReach, best);
+                }
+            }
+        }
+        if (best < 0) {
+            return null;
+        }
+        String[] itemData = new String[this.data.length];
+        for (int column = 0; column < this.data.length; column++) {
+            itemData[column] = this.values.get(this.data[column][best]);
+        }
+        return new CSVItem(0, FixedPointCoordinates.toDouble(this.latitudes[best]), FixedPointCoordinates.toDouble(this.longitudes[best]), itemData);
+    }
+
+    /**
+     * Find a line in the cells of a bounding box that is nearer than the best
+     * one so far.
+     *
+     * @param latitude The latitude of the point (degrees).
+     * @param longitude The longitude of the point (degrees).
+     * @param fixedLatitude The latitude in fixed-point.
+     * @param centerLongitude The longitude of the box center in fixed-point
+     * (the longitude of the point, maybe shifted by 360 degrees).
+     * @param longitudeReach The half width of the box (fixed-point), see
+     * {@link #longitudeReach(double)}.
+     * @param best The best line so far or {@code -1}.
+     * @return The new best line, {@code best} if there is no better one.
+     */
+    private int findNearestInBox(double latitude, double longitude, int fixedLatitude, long centerLongitude, long longitudeReach, int best) {
+        long minRow = this.cellOf((long) fixedLatitude - this.latitudeReach);
+        long maxRow = this.cellOf((long) fixedLatitude + this.latitudeReach);
+        long minColumn = this.cellOf(centerLongitude - longitudeReach);
+        long maxColumn = this.cellOf(centerLongitude + longitudeReach);
+        if ((maxRow - minRow + 1) * (maxColumn - minColumn + 1) > this.cells) {
+            // Less work to look at every cell
+            for (int cell = 0; cell < this.cells; cell++) {
+                long row = this.cellKeys[cell] >> 32;
+                long column = (int) this.cellKeys[cell];
+                if (row >= minRow && row <= maxRow && column >= minColumn && column <= maxColumn) {
+                    best = this.findNearestInCell(cell, latitude, longitude, fixedLatitude, centerLongitude, longitudeReach, best);
+                }
+            }
+        } else {
+            for (long row = minRow; row <= maxRow; row++) {
+                for (long column = minColumn; column <= maxColumn; column++) {
+                    int cell = this.findCell(cellKey((int) row, (int) column));
+                    if (cell >= 0) {
+                        best = this.findNearestInCell(cell, latitude, longitude, fixedLatitude, centerLongitude, longitudeReach, best);
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Find a line of a cell that is nearer than the best one so far.
+     *
+     * @param cell The cell.
+     * @param latitude The latitude of the point (degrees).
+     * @param longitude The longitude of the point (degrees).
+     * @param fixedLatitude The latitude in fixed-point.
+     * @param centerLongitude See
+     * {@link #findNearestInBox(double, double, int, long, long, int)}.
+     * @param longitudeReach See {@link #longitudeReach(double)}.
+     * @param best The best line so far or {@code -1}.
+     * @return The new best line, {@code best} if there is no better one.
+     */
+    private int findNearestInCell(int cell, double latitude, double longitude, int fixedLatitude, long centerLongitude, long longitudeReach, int best) {
+        double bestDistance = best < 0 ? Double.POSITIVE_INFINITY : this.distance(best, latitude, longitude);
+        for (int line = this.cellStarts[cell]; line < this.cellStarts[cell + 1]; line++) {
+            // The bounding box is cheap, only lines inside get the exact distance
+            if (Math.abs((long) this.latitudes[line] - fixedLatitude) > this.latitudeReach
+                    || Math.abs(this.longitudes[line] - centerLongitude) > longitudeReach) {
+                continue;
+            }
+            double distance = this.distance(line, latitude, longitude);
+            if (distance <= this.radius && (distance < bestDistance || (distance == bestDistance && line < best))) {
+                best = line;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Calculate the distance of a line exactly like
+     * {@link CSVItem#getDistance(double, double)} would.
+     *
+     * @param line The line.
+     * @param latitude The latitude of the point (degrees).
+     * @param longitude The longitude of the point (degrees).
+     * @return The distance in meters.
+     */
+    private double distance(int line, double latitude, double longitude) {
+        return CSVItem.distFrom(FixedPointCoordinates.toDouble(this.latitudes[line]), FixedPointCoordinates.toDouble(this.longitudes[line]), latitude, longitude);
+    }
+
+    /**
+     * How far (fixed-point degrees) may a line be away in longitude? Two
+     * points within the radius {@code d} satisfy
+     * {@code sin(dLon / 2) <= sin(d / 2R) / cos(lat)} for the largest
+     * latitude {@code lat} either of them can have.
+     *
+     * @param latitude The latitude of the point (degrees).
+     * @return The reach, rounded up, or more than the whole range near the
+     * poles.
+     */
+    private long longitudeReach(double latitude) {
+        double maxLatitude = Math.abs(latitude) + this.latitudeReach / FIXED_PER_DEGREE;
+        if (maxLatitude >= 90) {
+            return FULL_CIRCLE;
+        }
+        double sinHalfAngle = Math.sin(this.radius * RADIUS_TOLERANCE / (2 * EARTH_RADIUS)) / Math.cos(Math.toRadians(maxLatitude));
+        if (sinHalfAngle >= 1) {
+            return FULL_CIRCLE;
+        }
+        double reach = Math.ceil(Math.toDegrees(2 * Math.asin(sinHalfAngle)) * FIXED_PER_DEGREE) + 1;
+        return (long) Math.min(reach, FULL_CIRCLE);
+    }
+
+    /**
+     * @return How many lines are there?
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * @return The distinct data elements.
+     */
+    ValueDictionary getValueDictionary() {
+        return this.values;
+    }
+
+    /**
+     * Find the row or column of a fixed-point coordinate.
+     *
+     * @param coordinate The coordinate.
+     * @return The row or column (rounded down).
+     */
+    private int cellOf(long coordinate) {
+        long cell = coordinate / this.cellSize;
+        if (coordinate % this.cellSize < 0) {
+            cell--;
+        }
+        return (int) cell;
+    }
+
+    /**
+     * @param row The row.
+     * @param column The column.
+     * @return The key of the cell.
+     */
+    private static long cellKey(int row, int column) {
+        return ((long) row << 32) | (column & 0xffffffffL);
+    }
+
+    /**
+     * Look up a cell at the cell index.
+     *
+     * @param key The key of the cell.
+     * @return The number of the cell or {@code -1} if it has no lines.
+     */
+    private int findCell(long key) {
+        int mask = this.indexCells.length - 1;
+        int position = (int) Hashing.mix(key) & mask;
+        while (this.indexCells[position] != 0) {
+            int cell = this.indexCells[position] - 1;
+            if (this.cellKeys[cell] == key) {
+                return cell;
+            }
+            position = (position + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Add a new cell to the cell index.
+     *
+     * @param key The key of the cell.
+     * @return The number of the cell.
+     */
+    private int addCell(long key) {
+        if (this.cells == this.cellKeys.length) {
+            this.cellKeys = Arrays.copyOf(this.cellKeys, this.cellKeys.length << 1);
+        }
+        int cell = this.cells++;
+        this.cellKeys[cell] = key;
+        if (this.cells > this.indexCells.length * MAX_LOAD_FACTOR) {
+            this.indexCells = new int[this.indexCells.length << 1];
+            for (int other = 0; other < this.cells; other++) {
+                this.insertCell(other);
+            }
+        } else {
+            this.insertCell(cell);
+        }
+        return cell;
+    }
+
+    /**
+     * Put a cell into the cell index.
+     *
+     * @param cell The number of the cell.
+     */
+    private void insertCell(int cell) {
+        int mask = this.indexCells.length - 1;
+        int position = (int) Hashing.mix(this.cellKeys[cell]) & mask;
+        while (this.indexCells[position] != 0) {
+            position = (position + 1) & mask;
+        }
+        this.indexCells[position] = cell + 1;
+    }
+
+    /**
+     * Reorder an array.
+     *
+     * @param values The array.
+     * @param order {@code order[i]} is the old position of the new element
+     * {@code i}.
+     * @return The reordered array, exactly as long as {@code order}.
+     */
+    private static int[] permute(int[] values, int[] order) {
+        int[] permuted = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            permuted[i] = values[order[i]];
+        }
+        return permuted;
+    }
+}
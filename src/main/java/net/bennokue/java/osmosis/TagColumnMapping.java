@@ -0,0 +1,172 @@
+package net.bennokue.java.osmosis;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Which CSV columns are imported into which tags. All columns are read by the
+ * same {@link CSVLoader}, so there is one index and one lookup per node, no
+ * matter how many tags are imported.
+ * <p>
+ * The mappings are given as a comma separated list of
+ * {@code column=tagKey} entries, e.g. {@code 3=ele,5=landuse}. A column is
+ * either its position (first = {@code 1}) or, if the file has a header row,
+ * its name; with a header row, {@code =tagKey} may be left out to use the
+ * column name as tag key. With a header row and no mappings at all, every
+ * column except the id and the coordinates is imported.</p>
+ *
+ * @author bennokue
+ */
+final class TagColumnMapping {
+
+    /**
+     * The positions of the imported columns (first = {@code 1}).
+     */
+    private final int[] positions;
+    /**
+     * The tag keys, same order as {@link #positions}.
+     */
+    private final String[] tagKeys;
+
+    private TagColumnMapping(List<Integer> positions, List<String> tagKeys) {
+        this.positions = new int[positions.size()];
+        for (int i = 0; i < this.positions.length; i++) {
+            this.positions[i] = positions.get(i);
+        }
+        this.tagKeys = tagKeys.toArray(new String[tagKeys.size()]);
+    }
+
+    /**
+     * Work out the mapping.
+     *
+     * @param tagDataPos The position of the single data column given by
+     * {@code tagDataPos}, or {@code -1}.
+     * @param outputTag The tag key of that column, may be empty.
+     * @param mappings The mappings (see {@link TagColumnMapping}), may be
+     * empty.
+     * @param header The column names from the header row, {@code null} if
+     * there is none.
+     * @param idPos The position of the id column.
+     * @param latPos The position of the latitude column or {@code -1}.
+     * @param lonPos The position of the longitude column or {@code -1}.
+     * @return The mapping, with {@code tagDataPos} first (if given).
+     * @throws IllegalArgumentException If a column cannot be found or the
+     * mappings are mal-formed.
+     */
+    static TagColumnMapping resolve(int tagDataPos, String outputTag, String mappings, List<String> header, int idPos, int latPos, int lonPos) {
+        List<Integer> positions = new ArrayList<>();
+        List<String> tagKeys = new ArrayList<>();
+        if (tagDataPos > 0 && !outputTag.equals("")) {
+            positions.add(tagDataPos);
+            tagKeys.add(outputTag);
+        }
+        if (!mappings.trim().equals("")) {
+            for (String mapping : mappings.split(",")) {
+                String[] parts = mapping.split("=", 2);
+                String column = parts[0].trim();
+                int position = findColumn(column, header);
+                String tagKey;
+                if (parts.length == 2) {
+                    tagKey = parts[1].trim();
+                } else if (null != header) {
+                    tagKey = header.get(position - 1);
+                } else {
+                    throw new IllegalArgumentException("Please provide a tag key for column " + column + " (or use headerRow)");
+                }
+                if (tagKey.equals("")) {
+                    throw new IllegalArgumentException("Please provide a tag key for column " + column);
+                }
+                positions.add(position);
+                tagKeys.add(tagKey);
+            }
+        } else if (null != header && positions.isEmpty()) {
+            for (int position = 1; position <= header.size(); position++) {
+                if (position != idPos && position != latPos && position != lonPos && !positions.contains(position) && !header.get(position - 1).equals("")) {
+                    positions.add(position);
+                    tagKeys.add(header.get(position - 1));
+                }
+            }
+        }
+        return new TagColumnMapping(positions, tagKeys);
+    }
+
+    /**
+     * Find a column by position or name.
+     *
+     * @param column The position (first = {@code 1}) or the name.
+     * @param header The column names or {@code null}.
+     * @return The position.
+     */
+    private static int findColumn(String column, List<String> header) {
+        if (null != header) {
+            int index = header.indexOf(column);
+            if (index >= 0) {
+                return index + 1;
+            }
+        }
+        int position;
+        try {
+            position = Integer.parseInt(column);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unknown CSV column: " + column);
+        }
+        if (position <= 0) {
+            throw new IllegalArgumentException("Please provide column positions greater than 0");
+        }
+        return position;
+    }
+
+    /**
+     * Read the column names from the first line of a CSV file. The line may
+     * start with {@code ;}, so it is a comment for everything else.
+     *
+     * @param csvFile The file.
+     * @param delimiter The field delimiter.
+     * @return The column names.
+     * @throws IOException If the file cannot be read or is empty.
+     */
+    static List<String> readHeader(File csvFile, char delimiter) throws IOException {
+        String line;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(CompressedInput.open(csvFile), Charset.defaultCharset()))) {
+            line = reader.readLine();
+        }
+        if (null == line) {
+            throw new IOException(csvFile.getPath() + " has no header row");
+        }
+        if (line.startsWith(";")) {
+            line = line.substring(1);
+        }
+        List<String> header = new ArrayList<>();
+        for (String name : CSVLineParser.splitLine(line, delimiter)) {
+            header.add(name.trim());
+        }
+        return header;
+    }
+
+    /**
+     * @return The number of imported columns.
+     */
+    int size() {
+        return this.positions.length;
+    }
+
+    /**
+     * @return The positions of the imported columns (first = {@code 1}).
+     */
+    int[] getPositions() {
+        return this.positions.clone();
+    }
+
+    /**
+     * @param column The number of the imported column (first = {@code 0}).
+     * @return The tag key of the column.
+     */
+    String getTagKey(int column) {
+        return this.tagKeys[column];
+    }
+}
@@ -0,0 +1,386 @@
+package net.bennokue.java.osmosis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Stores each distinct data value only once: The values are kept as UTF-8
+ * bytes one after the other in an arena of pages, and the stores only keep an
+ * {@code int} reference per line. Values are decoded to {@link String}s again
+ * when a line is looked up. CSV value columns often have only a few distinct values
+ * (categories, rounded elevations, ...), so this needs much less heap than a
+ * {@link String} per line. The arena is addressed by {@code long}s and a
+ * value may span pages, so columns with many distinct values (names, free
+ * text) may need more than 2 GB.
+ *
+ * @author bennokue
+ */
+class ValueDictionary {
+
+    /**
+     * The reference of {@code null}.
+     */
+    static final int NULL_REFERENCE = -1;
+    /**
+     * The index will be grown if it gets fuller than this.
+     */
+    private static final float MAX_LOAD_FACTOR = 0.5f;
+    /**
+     * Rough heap size of a {@link String} without its characters (object
+     * header, fields and the header of its array), used by
+     * {@link #getBytesSaved()}.
+     */
+    private static final int STRING_OVERHEAD_BYTES = 40;
+    /**
+     * The default size of a page is {@code 2^DEFAULT_PAGE_BITS} bytes (1 MB).
+     */
+    private static final int DEFAULT_PAGE_BITS = 20;
+    /**
+     * The size of the first page, which grows up to the page size.
+     */
+    private static final int INITIAL_PAGE_SIZE = 1024;
+    /**
+     * The size of a page is {@code 2^pageBits} bytes.
+     */
+    private final int pageBits;
+    /**
+     * The UTF-8 bytes of all values, one after the other. Byte {@code address}
+     * is at {@code pages[address >>> pageBits][address & pageMask]}. Only the
+     * last page may be smaller than the page size, the entries after it are
+     * {@code null}.
+     */
+    private byte[][] pages;
+    /**
+     * How many bytes of the arena are used?
+     */
+    private long arenaSize;
+    /**
+     * {@code valueStarts[reference]} is where the value starts at the arena,
+     * {@code valueStarts[reference + 1]} where it ends.
+     */
+    private long[] valueStarts;
+    /**
+     * How many distinct values are stored?
+     */
+    private int size;
+    /**
+     * Open-addressing hash index (linear probing): The reference plus one of
+     * the value, {@code 0} marks a free position.
+     */
+    private int[] index;
+    /**
+     * How many values have been added, counting duplicates?
+     */
+    private long additions;
+    /**
+     * How many bytes would the added values have needed as {@link String}s?
+     */
+    private long stringBytes;
+
+    /**
+     * Standard constructor.
+     */
+    ValueDictionary() {
+        this(DEFAULT_PAGE_BITS);
+    }
+
+    /**
+     * Constructor with another page size, for the tests.
+     *
+     * @param pageBits The size of a page is {@code 2^pageBits} bytes.
+     */
+    ValueDictionary(int pageBits) {
+        if (pageBits < 1 || pageBits > 30) {
+            throw new IllegalArgumentException("pageBits has to be between 1 and 30");
+        }
+        this.pageBits = pageBits;
+        this.allocate();
+    }
+
+    /**
+     * Replace everything with empty arrays.
+     */
+    private void allocate() {
+        this.pages = new byte[][]{new byte[Math.min(INITIAL_PAGE_SIZE, 1 << this.pageBits)]};
+        this.arenaSize = 0;
+        this.valueStarts = new long[65];
+        this.size = 0;
+        this.index = new int[128];
+        this.additions = 0;
+        this.stringBytes = 0;
+    }
+
+    /**
+     * Add a value (if it is not there yet). This has to encode the value
+     * first, {@link #add(byte[], int, int)} does not.
+     *
+     * @param value The value, may be {@code null}.
+     * @return The reference of the value.
+     */
+    int add(String value) {
+        if (null == value) {
+            return NULL_REFERENCE;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return this.add(bytes, 0, bytes.length, value.length());
+    }
+
+    /**
+     * Add a value given as UTF-8 bytes (if it is not there yet). Nothing is
+     * allocated unless the value is new.
+     *
+     * @param buffer The bytes, e.g. a CSV line.
+     * @param start Where the value starts at {@code buffer}.
+     * @param end Where the value ends at {@code buffer} (exclusive).
+     * @return The reference of the value.
+     */
+    int add(byte[] buffer, int start, int end) {
+        // Counts the bytes as characters, exact for ASCII
+        return this.add(buffer, start, end, end - start);
+    }
+
+    /**
+     * Add a value given as UTF-8 bytes (if it is not there yet).
+     *
+     * @param buffer The bytes.
+     * @param start Where the value starts at {@code buffer}.
+     * @param end Where the value ends at {@code buffer} (exclusive).
+     * @param characters The length of the value as {@link String}, for
+     * {@link #getBytesSaved()}.
+     * @return The reference of the value.
+     */
+    private int add(byte[] buffer, int start, int end, int characters) {
+        this.additions++;
+        this.stringBytes += STRING_OVERHEAD_BYTES + ((characters + 7) & ~7);
+        int mask = this.index.length - 1;
+        int position = hash(buffer, start, end) & mask;
+        while (this.index[position] != 0) {
+            int reference = this.index[position] - 1;
+            if (this.equalsValue(reference, buffer, start, end)) {
+                return reference;
+            }
+            position = (position + 1) & mask;
+        }
+        // New value
+        if (this.size + 1 == this.valueStarts.length) {
+            if (this.valueStarts.length == Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Too many distinct values for the value dictionary");
+            }
+            this.valueStarts = Arrays.copyOf(this.valueStarts, (int) Math.min(Integer.MAX_VALUE - 8, this.valueStarts.length + ((long) this.valueStarts.length >> 1)));
+        }
+        this.append(buffer, start, end);
+        // valueStarts[reference] is the end of the value before
+        int reference = this.size++;
+        this.valueStarts[this.size] = this.arenaSize;
+        this.index[position] = reference + 1;
+        if (this.size > this.index.length * MAX_LOAD_FACTOR) {
+            this.growIndex();
+        }
+        return reference;
+    }
+
+    /**
+     * Decode a value.
+     *
+     * @param reference The reference returned by {@link #add(String)}.
+     * @return The value.
+     */
+    String get(int reference) {
+        if (reference == NULL_REFERENCE) {
+            return null;
+        }
+        long start = this.valueStarts[reference];
+        int length = (int) (this.valueStarts[reference + 1] - start);
+        if (length == 0) {
+            // Its page may not be allocated yet
+            return "";
+        }
+        int page = (int) (start >>> this.pageBits);
+        int offset = (int) (start & this.pageMask());
+        if (offset + length <= this.pages[page].length) {
+            return new String(this.pages[page], offset, length, StandardCharsets.UTF_8);
+        }
+        // The value spans pages
+        byte[] bytes = new byte[length];
+        for (int copied = 0; copied < length; page++, offset = 0) {
+            int chunk = Math.min(length - copied, this.pages[page].length - offset);
+            System.arraycopy(this.pages[page], offset, bytes, copied, chunk);
+            copied += chunk;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The number of distinct values.
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * @return The heap size of the dictionary in bytes (roughly).
+     */
+    long getSizeInBytes() {
+        long bytes = 8L * this.valueStarts.length + 4L * this.index.length;
+        for (byte[] page : this.pages) {
+            // The pages after the last one are not allocated yet
+            bytes += null == page ? 8 : 8 + page.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Estimate how much heap the dictionary saves compared to a
+     * {@link String} per added value.
+     *
+     * @return The saved bytes, may be negative if (nearly) all values are
+     * distinct.
+     */
+    long getBytesSaved() {
+        return this.stringBytes - this.getSizeInBytes();
+    }
+
+    /**
+     * @return How many values have been added, counting duplicates?
+     */
+    long getAdditions() {
+        return this.additions;
+    }
+
+    /**
+     * Remove all values. All references become invalid.
+     */
+    void clear() {
+        if (this.additions == 0) {
+            return;
+        }
+        this.allocate();
+    }
+
+    /**
+     * Is a stored value equal to some bytes?
+     *
+     * @param reference The reference of the stored value.
+     * @param buffer The bytes.
+     * @param start Where they start at {@code buffer}.
+     * @param end Where they end at {@code buffer} (exclusive).
+     * @return {@code true} if they are equal.
+     */
+    private boolean equalsValue(int reference, byte[] buffer, int start, int end) {
+        long address = this.valueStarts[reference];
+        if (this.valueStarts[reference + 1] - address != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++, address++) {
+            if (this.byteAt(address) != buffer[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param address The address of a byte at the arena.
+     * @return The byte.
+     */
+    private byte byteAt(long address) {
+        return this.pages[(int) (address >>> this.pageBits)][(int) (address & this.pageMask())];
+    }
+
+    /**
+     * @return The mask of the offset within a page.
+     */
+    private long pageMask() {
+        return (1L << this.pageBits) - 1;
+    }
+
+    /**
+     * Append bytes to the arena, growing the last page or adding pages.
+     *
+     * @param buffer The bytes.
+     * @param start Where they start at {@code buffer}.
+     * @param end Where they end at {@code buffer} (exclusive).
+     */
+    private void append(byte[] buffer, int start, int end) {
+        int pageSize = 1 << this.pageBits;
+        int length = end - start;
+        for (int copied = 0; copied < length;) {
+            int page = (int) (this.arenaSize >>> this.pageBits);
+            int offset = (int) (this.arenaSize & this.pageMask());
+            if (page == this.pages.length) {
+                this.pages = Arrays.copyOf(this.pages, this.pages.length + (this.pages.length >> 1) + 1);
+            }
+            if (null == this.pages[page]) {
+                this.pages[page] = new byte[Math.min(pageSize, Math.max(INITIAL_PAGE_SIZE, length - copied))];
+            }
+            if (offset + length - copied > this.pages[page].length && this.pages[page].length < pageSize) {
+                long newLength = Math.max(offset + (long) length - copied, this.pages[page].length + ((long) this.pages[page].length >> 1));
+                this.pages[page] = Arrays.copyOf(this.pages[page], (int) Math.min(pageSize, newLength));
+            }
+            int chunk = Math.min(length - copied, this.pages[page].length - offset);
+            System.arraycopy(buffer, start + copied, this.pages[page], offset, chunk);
+            copied += chunk;
+            this.arenaSize += chunk;
+        }
+    }
+
+    /**
+     * Double the index size and re-insert all values.
+     */
+    private void growIndex() {
+        this.index = new int[this.index.length << 1];
+        int mask = this.index.length - 1;
+        for (int reference = 0; reference < this.size; reference++) {
+            int position = this.hashValue(reference) & mask;
+            while (this.index[position] != 0) {
+                position = (position + 1) & mask;
+            }
+            this.index[position] = reference + 1;
+        }
+    }
+
+    /**
+     * Hash some bytes (FNV-1a, with the bits spread at the end for the linear
+     * probing).
+     *
+     * @param buffer The bytes.
+     * @param start Where they start at {@code buffer}.
+     * @param end Where they end at {@code buffer} (exclusive).
+     * @return The hash.
+     */
+    private static int hash(byte[] buffer, int start, int end) {
+        int h = 0x811c9dc5;
+        for (int i = start; i < end; i++) {
+            h ^= buffer[i];
+            h *= 0x01000193;
+        }
+        return spread(h);
+    }
+
+    /**
+     * Hash a stored value like {@link #hash(byte[], int, int)} hashes its
+     * bytes.
+     *
+     * @param reference The reference of the value.
+     * @return The hash.
+     */
+    private int hashValue(int reference) {
+        int h = 0x811c9dc5;
+        for (long address = this.valueStarts[reference]; address < this.valueStarts[reference + 1]; address++) {
+            h ^= this.byteAt(address);
+            h *= 0x01000193;
+        }
+        return spread(h);
+    }
+
+    /**
+     * @param h A hash.
+     * @return The hash with its high bits spread to the low ones.
+     */
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+}
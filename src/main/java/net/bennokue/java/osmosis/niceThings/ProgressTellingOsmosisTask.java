@@ -1,8 +1,8 @@
 package net.bennokue.java.osmosis.niceThings;
 
 /**
- * Implementing this interface, an OSMOSIS task will be able to get monitored by
- * {@link ProgressMonitoringThread}, which makes it more usable.
+ * Implementing this interface, an OSMOSIS task tells a human what it is doing,
+ * which makes it more usable.
  *
  * @author bennokue
  */
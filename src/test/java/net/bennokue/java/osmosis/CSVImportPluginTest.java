@@ -1,16 +1,46 @@
 package net.bennokue.java.osmosis;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.logging.Handler;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPathExpressionException;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
 import org.junit.*;
 import static org.junit.Assert.*;
 import org.junit.rules.ExpectedException;
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.openstreetmap.osmosis.core.task.v0_6.Sink;
+import org.openstreetmap.osmosis.core.util.FixedPrecisionCoordinateConvertor;
 import org.openstreetmap.osmosis.xml.common.CompressionMethod;
 import org.openstreetmap.osmosis.xml.v0_6.XmlReader;
 import org.openstreetmap.osmosis.xml.v0_6.XmlWriter;
@@ -86,6 +116,38 @@ public class CSVImportPluginTest {
         assertEquals(distance, distance_obj, 0);
     }
 
+    @Test
+    /**
+     * {@link CSVItem#isSurelyWithin(double, double, double)} must never accept
+     * a point the haversine distance rejects, but should accept most points
+     * that are clearly close enough.
+     */
+    public void testSurelyWithin() {
+        Random random = new Random(18);
+        int clearlyClose = 0;
+        int accepted = 0;
+        for (int i = 0; i < 100000; i++) {
+            double[] csvPoint = randomSpatialTestPoint(random, i);
+            double[] nodePoint = randomSpatialTestPoint(random, i);
+            CSVItem item = new CSVItem(i, csvPoint[0], csvPoint[1], "x");
+            double distance = item.getDistance(nodePoint[0], nodePoint[1]);
+            // Right at the distance, a little more and far more
+            double[] maxDistances = {distance, Math.nextAfter(distance, 0), distance * (1 + random.nextDouble()), distance * 10};
+            for (double maxDistance : maxDistances) {
+                boolean surelyWithin = item.isSurelyWithin(nodePoint[0], nodePoint[1], maxDistance);
+                if (surelyWithin) {
+                    assertTrue(distance <= maxDistance);
+                }
+                if (maxDistance == distance * 10 && i % 10 != 0) {
+                    clearlyClose++;
+                    accepted += surelyWithin ? 1 : 0;
+                }
+            }
+        }
+        assertFalse(new CSVItem(1, Double.NaN, Double.NaN, "x").isSurelyWithin(48.1, 11.5, 1000));
+        assertTrue(accepted > clearlyClose * 0.99);
+    }
+
     @Test
     /**
      * Fail-test without input filename.
@@ -209,6 +271,1275 @@ public class CSVImportPluginTest {
         assertArrayEquals(expectedValues, resultValues);
     }
 
+    @Test
+    /**
+     * Test the {@link CSVLoader.StorageEngine#PRIMITIVE} storage engine with
+     * endless and limited cache.
+     */
+    public void testWithPrimitiveStorageEngine() throws URISyntaxException, IOException, ParserConfigurationException, SAXException, XPathExpressionException {
+        CSVImportOptions options = new CSVImportOptions().setStorageEngine(CSVLoader.StorageEngine.PRIMITIVE);
+        // Endless cache
+        File testFile = conductTest("/munich_lmu_original.osm", "/unsorted_linenumbers_missingIds.csv", 1, -1, -1, 2, "lmuTag", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1, options);
+        XMLFlattener flattener = new XMLFlattener(testFile);
+        String[] resultValues = flattener.getXPathAsArray("/osm/node/tag[@k=\"lmuTag\"]/@v");
+        String[] expectedValues = fillWithStringRange(1, 5507, new int[]{4925, 2320, 4745, 3565});
+        assertArrayEquals("Endless cache", expectedValues, resultValues);
+
+        // Limited cache
+        testFile = conductTest("/munich_lmu_original.osm", "/unsorted_linenumbers.csv", 1, -1, -1, 2, "lmuTag", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, cacheSize, options);
+        flattener = new XMLFlattener(testFile);
+        resultValues = flattener.getXPathAsArray("/osm/node/tag[@k=\"lmuTag\"]/@v");
+        expectedValues = fillWithStringRange(1, 5507);
+        assertArrayEquals("Limited cache", expectedValues, resultValues);
+
+        // Growing from the smallest size
+        PrimitiveCSVItemStore store = new PrimitiveCSVItemStore(1);
+        for (int id = 1; id <= 1000; id++) {
+            store.put(id, 0, 0, new int[]{store.getValueDictionary().add("v" + id)});
+        }
+        assertEquals(1000, store.size());
+        assertEquals("v1", store.get(1).DATA);
+        assertEquals("v1000", store.get(1000).DATA);
+        assertNull(store.get(1001));
+
+        // The limits fail with a clear message instead of overflowing
+        assertEquals(1 << 30, PrimitiveCSVItemStore.indexCapacityFor(644000000));
+        try {
+            PrimitiveCSVItemStore.indexCapacityFor(645000000);
+            fail("The index should be too large");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().startsWith("Too many CSV lines"));
+        }
+        assertEquals(1500000000, PrimitiveCSVItemStore.dataCapacityAfter(1000000000));
+        assertEquals(Integer.MAX_VALUE - 8, PrimitiveCSVItemStore.dataCapacityAfter(1500000000));
+        try {
+            PrimitiveCSVItemStore.dataCapacityAfter(Integer.MAX_VALUE - 8);
+            fail("The data arrays should be too large");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().startsWith("Too many CSV lines"));
+        }
+    }
+
+    @Test
+    /**
+     * Test the {@link CSVLoader.StorageEngine#FROZEN} storage engine.
+     */
+    public void testWithFrozenStorageEngine() throws URISyntaxException, IOException, ParserConfigurationException, SAXException, XPathExpressionException {
+        CSVImportOptions options = new CSVImportOptions().setStorageEngine(CSVLoader.StorageEngine.FROZEN);
+        File testFile = conductTest("/munich_lmu_original.osm", "/unsorted_linenumbers_emptyLines.csv", 1, -1, -1, 2, "lmuTag", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1, options);
+        XMLFlattener flattener = new XMLFlattener(testFile);
+        String[] resultValues = flattener.getXPathAsArray("/osm/node/tag[@k=\"lmuTag\"]/@v");
+        String[] expectedValues = fillWithStringRange(1, 5507);
+        assertArrayEquals("Shuffled input", expectedValues, resultValues);
+
+        testFile = conductTest("/munich_lmu_original.osm", "/unsorted_linenumbers_differingLonLat.csv", 1, 2, 3, 4, "lmuTag", 1.0, CSVImportPlugin_task.MaxDistAction.DELETE, -1, options);
+        flattener = new XMLFlattener(testFile);
+        resultValues = flattener.getXPathAsArray("/osm/node/tag[@k=\"lmuTag\"]/@v");
+        expectedValues = fillWithStringRange(1, 5507, new int[]{2597, 1683});
+        assertArrayEquals("maxDist", expectedValues, resultValues);
+    }
+
+    @Test
+    /**
+     * Test the {@link CSVLoader.StorageEngine#MAPPED} storage engine.
+     */
+    public void testWithMappedStorageEngine() throws URISyntaxException, IOException, ParserConfigurationException, SAXException, XPathExpressionException {
+        CSVImportOptions options = new CSVImportOptions().setStorageEngine(CSVLoader.StorageEngine.MAPPED);
+        File testFile = conductTest("/munich_lmu_original.osm", "/unsorted_linenumbers_missingIds.csv", 1, -1, -1, 2, "lmuTag", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, cacheSize, options);
+        XMLFlattener flattener = new XMLFlattener(testFile);
+        String[] resultValues = flattener.getXPathAsArray("/osm/node/tag[@k=\"lmuTag\"]/@v");
+        String[] expectedValues = fillWithStringRange(1, 5507, new int[]{4925, 2320, 4745, 3565});
+        assertArrayEquals("Missing ids", expectedValues, resultValues);
+
+        testFile = conductTest("/munich_lmu_original.osm", "/unsorted_linenumbers_differingLonLat.csv", 1, 2, 3, 4, "lmuTag", 1.0, CSVImportPlugin_task.MaxDistAction.DELETE, -1, options);
+        flattener = new XMLFlattener(testFile);
+        resultValues = flattener.getXPathAsArray("/osm/node/tag[@k=\"lmuTag\"]/@v");
+        expectedValues = fillWithStringRange(1, 5507, new int[]{2597, 1683});
+        assertArrayEquals("maxDist", expectedValues, resultValues);
+    }
+
+    @Test
+    /**
+     * Test the persistent index of {@link CSVLoader.StorageEngine#MAPPED}:
+     * It has to be written, reused and rebuilt if the CSV file changes.
+     */
+    public void testPersistentIndex() throws URISyntaxException, IOException {
+        File inputFile = new File(new URI(CSVImportPluginTest.class.getResource("/unsorted_linenumbers.csv").toString()));
+        File csvFile = java.io.File.createTempFile("osmosiscsvimporttest", ".csv", null);
+        File indexFile = new File(csvFile.getPath() + ".idx");
+        if (deleteTemporaryFiles) {
+            csvFile.deleteOnExit();
+            indexFile.deleteOnExit();
+        }
+        java.nio.file.Files.copy(inputFile.toPath(), csvFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        CSVImportOptions options = new CSVImportOptions().setStorageEngine(CSVLoader.StorageEngine.MAPPED).setPersistentIndex(true);
+
+        // First run: build and write the index
+        CSVLoader loader = new CSVLoader(csvFile, -1, 1, -1, -1, 2, options);
+        assertEquals("3649", loader.findItem(2598108204L).DATA);
+        assertTrue("Index file written", indexFile.isFile());
+        assertEquals(16L * 5507 + 48, indexFile.length());
+
+        // Second run: reuse the index
+        loader = new CSVLoader(csvFile, -1, 1, -1, -1, 2, options);
+        assertEquals("988", loader.findItem(418429362L).DATA);
+        assertNull(loader.findItem(42L));
+
+        // Change the CSV file: The index has to be rebuilt
+        try (PrintWriter writer = new PrintWriter(new FileWriter(csvFile, true))) {
+            // The file does not end with a line break
+            writer.println();
+            writer.println("42,The answer");
+        }
+        loader = new CSVLoader(csvFile, -1, 1, -1, -1, 2, options);
+        assertEquals("The answer", loader.findItem(42L).DATA);
+        assertEquals(16L * 5508 + 48, indexFile.length());
+
+        // Map the index in tiny segments, like the 1 GB segments of huge files
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(indexFile, "r");
+                java.nio.channels.FileChannel channel = randomAccessFile.getChannel()) {
+            LongSegments ids = LongSegments.map(channel, 48, 5508, 4);
+            LongSegments offsets = LongSegments.map(channel, 48 + 8L * 5508, 5508, 4);
+            assertNull("Index of another layout is stale", LineOffsetIndexFile.read(indexFile, csvFile, ""));
+            SortedIdIndex segmentedIds = new SortedIdIndex(ids);
+            assertEquals(5508, segmentedIds.size());
+            for (int i = 0; i < ids.size(); i++) {
+                if (i > 0) {
+                    assertTrue(ids.get(i - 1) < ids.get(i));
+                }
+                assertEquals(i, segmentedIds.find(ids.get(i)));
+            }
+            assertEquals(-1, segmentedIds.find(43L));
+            long answerOffset = offsets.get(segmentedIds.find(42L));
+            assertEquals(csvFile.length() - "42,The answer".length() - System.lineSeparator().length(), answerOffset);
+        }
+    }
+
+    @Test
+    /**
+     * Test the {@link CSVLoader.StorageEngine#MERGE_JOIN} storage engine, set
+     * explicitly and chosen automatically.
+     */
+    public void testWithMergeJoin() throws URISyntaxException, IOException, ParserConfigurationException, SAXException, XPathExpressionException {
+        CSVImportOptions options = new CSVImportOptions().setStorageEngine(CSVLoader.StorageEngine.MERGE_JOIN);
+        File testFile = conductTest("/munich_lmu_original.osm", "/sorted_linenumbers.csv", 1, -1, -1, 2, "lmuTag", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1, options);
+        XMLFlattener flattener = new XMLFlattener(testFile);
+        String[] resultValues = flattener.getXPathAsArray("/osm/node/tag[@k=\"lmuTag\"]/@v");
+        String[] expectedValues = fillWithStringRange(1, 5507);
+        assertArrayEquals("Explicit merge join", expectedValues, resultValues);
+
+        // Sorted CSV file and sorted stream
+        File inputOSMFile = new File(new URI(CSVImportPluginTest.class.getResource("/munich_lmu_original.osm").toString()));
+        File inputCSVFile = new File(new URI(CSVImportPluginTest.class.getResource("/sorted_linenumbers.csv").toString()));
+        File outputFile = java.io.File.createTempFile("osmosiscsvimporttest", null, null);
+        if (deleteTemporaryFiles) {
+            outputFile.deleteOnExit();
+        }
+        CSVImportPlugin_task importTask = new CSVImportPlugin_task(inputCSVFile.getPath(), 1, -1, -1, 2, "lmuTag", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1, -1, new CSVImportOptions().setCsvSorted(true));
+        try (BufferedWriter outputWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile), "UTF-8"));) {
+            XmlReader xmlReader = new XmlReader(inputOSMFile, false, CompressionMethod.None);
+            XmlWriter xmlWriter = new XmlWriter(outputWriter);
+            xmlReader.setSink(importTask);
+            importTask.setSink(xmlWriter);
+            // The XML reader does not announce sorting, so we do it
+            importTask.initialize(Collections.<String, Object>singletonMap(CSVImportPlugin_task.METADATA_SORTED, Boolean.TRUE));
+            xmlReader.run();
+        }
+        flattener = new XMLFlattener(outputFile);
+        resultValues = flattener.getXPathAsArray("/osm/node/tag[@k=\"lmuTag\"]/@v");
+        assertArrayEquals("Automatic merge join", expectedValues, resultValues);
+
+        // csvSorted alone chooses the merge join, the XML reader announces nothing
+        testFile = conductTest("/munich_lmu_original.osm", "/sorted_linenumbers.csv", 1, -1, -1, 2, "lmuTag", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1, new CSVImportOptions().setCsvSorted(true));
+        flattener = new XMLFlattener(testFile);
+        resultValues = flattener.getXPathAsArray("/osm/node/tag[@k=\"lmuTag\"]/@v");
+        assertArrayEquals("Merge join without metadata", expectedValues, resultValues);
+        CSVImportPlugin_task mergeTask = new CSVImportPlugin_task(inputCSVFile.getPath(), 1, -1, -1, 2, "lmuTag", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1, -1, new CSVImportOptions().setCsvSorted(true));
+        try {
+            runTask(mergeTask, Collections.<String, Object>emptyMap(), createNode(2598108204L), createNode(418429362L));
+            fail("The merge join has to reject unsorted nodes");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().startsWith("The OSM nodes are not sorted by id"));
+        }
+        // A stream announced as unsorted keeps the cache
+        CSVImportPlugin_task cacheTask = new CSVImportPlugin_task(inputCSVFile.getPath(), 1, -1, -1, 2, "lmuTag", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1, -1, new CSVImportOptions().setCsvSorted(true));
+        List<Entity> output = runTask(cacheTask, Collections.<String, Object>singletonMap(CSVImportPlugin_task.METADATA_SORTED, Boolean.FALSE), createNode(2598108204L), createNode(418429362L));
+        assertEquals("3649", getTagValue(output.get(0), "lmuTag"));
+        assertEquals("988", getTagValue(output.get(1), "lmuTag"));
+    }
+
+    @Test
+    /**
+     * The {@link CSVLoader.StorageEngine#MERGE_JOIN} storage engine has to
+     * detect an unsorted CSV file.
+     */
+    public void testMergeJoinWithUnsortedInputFile() throws URISyntaxException, IOException {
+        expectedEx.expect(IllegalStateException.class);
+        expectedEx.expectMessage("The CSV file is not sorted by id");
+        File inputFile = new File(new URI(CSVImportPluginTest.class.getResource("/unsorted_linenumbers.csv").toString()));
+        CSVLoader loader = new CSVLoader(inputFile, -1, 1, -1, -1, 2, new CSVImportOptions().setStorageEngine(CSVLoader.StorageEngine.MERGE_JOIN));
+        for (long id = 1; id < 3000000000L; id += 1000000) {
+            loader.findItem(id);
+        }
+    }
+
+    @Test
+    /**
+     * Sort an unsorted file with {@link CSVExternalSorter} (using a memory
+     * budget small enough to force several runs) and import it with
+     * {@link CSVImportOptions#setPresortCSV(boolean)}.
+     */
+    public void testExternalSort() throws URISyntaxException, IOException, ParserConfigurationException, SAXException, XPathExpressionException {
+        File inputFile = new File(new URI(CSVImportPluginTest.class.getResource("/unsorted_linenumbers.csv").toString()));
+        File sortedFile = java.io.File.createTempFile("osmosiscsvimporttest", ".csv", null);
+        if (deleteTemporaryFiles) {
+            sortedFile.deleteOnExit();
+        }
+        CSVExternalSorter sorter = new CSVExternalSorter(inputFile, 1, 16 * 1024, null);
+        sorter.sort(sortedFile);
+        assertTrue("Several runs", sorter.getRunsWritten() > 1);
+        // A budget this small merges two runs at once
+        assertTrue("Intermediate merges", sorter.getMergePasses() > 1);
+        assertEquals(5507, sorter.getLinesSorted());
+        List<String> expectedLines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(inputFile))) {
+            for (String line = reader.readLine(); null != line; line = reader.readLine()) {
+                expectedLines.add(line);
+            }
+        }
+        Collections.sort(expectedLines, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Long.compare(Long.parseLong(a.split(",")[0]), Long.parseLong(b.split(",")[0]));
+            }
+        });
+        assertArrayEquals(expectedLines.toArray(new String[expectedLines.size()]), readAllLines(sortedFile, null));
+        try (BufferedReader reader = new BufferedReader(new FileReader(sortedFile))) {
+            long lastId = Long.MIN_VALUE;
+            int lines = 0;
+            String line = reader.readLine();
+            while (null != line) {
+                long id = Long.parseLong(line.split(",")[0]);
+                assertTrue("Sorted", id >= lastId);
+                lastId = id;
+                lines++;
+                line = reader.readLine();
+            }
+            assertEquals(5507, lines);
+        }
+
+        CSVImportOptions options = new CSVImportOptions().setStorageEngine(CSVLoader.StorageEngine.MERGE_JOIN).setPresortCSV(true);
+        File testFile = conductTest("/munich_lmu_original.osm", "/unsorted_linenumbers.csv", 1, -1, -1, 2, "lmuTag", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1, options);
+        XMLFlattener flattener = new XMLFlattener(testFile);
+        String[] resultValues = flattener.getXPathAsArray("/osm/node/tag[@k=\"lmuTag\"]/@v");
+        assertArrayEquals("Presorted merge join", fillWithStringRange(1, 5507), resultValues);
+
+        // The sorted copy is written next to the file and deleted at EOF or by close()
+        File directory = Files.createTempDirectory("csvimport-presort").toFile();
+        directory.deleteOnExit();
+        File copy = new File(directory, "unsorted.csv");
+        copy.deleteOnExit();
+        Files.copy(inputFile.toPath(), copy.toPath());
+        options = new CSVImportOptions().setStorageEngine(CSVLoader.StorageEngine.MERGE_JOIN).setPresortCSV(true);
+        CSVLoader loader = new CSVLoader(copy, -1, 1, -1, -1, 2, options);
+        assertEquals("1", loader.findItem(1954332L).DATA);
+        assertEquals(2, directory.list().length);
+        assertEquals("5507", loader.findItem(3389460688L).DATA);
+        assertNull(loader.findItem(3389460689L));
+        assertArrayEquals(new String[]{"unsorted.csv"}, directory.list());
+        loader.close();
+        loader = new CSVLoader(copy, -1, 1, -1, -1, 2, options);
+        assertEquals("1", loader.findItem(1954332L).DATA);
+        assertEquals(2, directory.list().length);
+        loader.close();
+        assertArrayEquals(new String[]{"unsorted.csv"}, directory.list());
+    }
+
+    @Test
+    /**
+     * Read a file with {@link ParallelCSVReader} using many small chunks. The
+     * result and the line numbers of the empty lines have to be the same as
+     * when reading it line by line.
+     */
+    public void testParallelReader() throws URISyntaxException, IOException {
+        File inputFile = new File(new URI(CSVImportPluginTest.class.getResource("/unsorted_linenumbers_emptyLines.csv").toString()));
+        // Read it line by line
+        CSVLineParser parser = new CSVLineParser(1, -1, -1, 2);
+        Map<Long, String> expectedItems = new HashMap<>();
+        List<Long> expectedEmptyLines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(inputFile))) {
+            long lineNumber = 1;
+            String line = reader.readLine();
+            while (null != line) {
+                if (parser.parse(line, lineNumber)) {
+                    expectedItems.put(parser.getOsmId(), parser.getData());
+                } else {
+                    expectedEmptyLines.add(lineNumber);
+                }
+                lineNumber++;
+                line = reader.readLine();
+            }
+        }
+        assertFalse(expectedEmptyLines.isEmpty());
+
+        // Read it in parallel and collect the reported empty lines
+        final List<Long> emptyLines = Collections.synchronizedList(new ArrayList<Long>());
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (record.getMessage().startsWith("Empty line")) {
+                    emptyLines.add((Long) record.getParameters()[0]);
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger parserLogger = Logger.getLogger(CSVLineParser.class.getName());
+        Level oldLevel = parserLogger.getLevel();
+        parserLogger.setLevel(Level.FINE);
+        parserLogger.addHandler(handler);
+        CSVItemStore store = new PrimitiveCSVItemStore(16);
+        ParallelCSVReader reader = new ParallelCSVReader(inputFile, parser, 4, 997);
+        try {
+            reader.read(store);
+        } finally {
+            parserLogger.removeHandler(handler);
+            parserLogger.setLevel(oldLevel);
+        }
+        assertEquals(expectedItems.size(), store.size());
+        for (Map.Entry<Long, String> entry : expectedItems.entrySet()) {
+            assertEquals(entry.getValue(), store.get(entry.getKey()).DATA);
+        }
+        assertEquals(expectedEmptyLines, emptyLines);
+
+        // At most a chunk per thread is read ahead (chunks end behind the next line break)
+        assertTrue(reader.getPeakPendingBytes() > 997);
+        assertTrue(reader.getPeakPendingBytes() <= 5 * (997 + 100));
+        // Huge files on many cores must not buffer gigabytes of chunks
+        for (int threads : new int[]{1, 4, 32, 256}) {
+            long chunkBytes = ParallelCSVReader.chunkBytesFor(20L << 30, threads);
+            assertTrue(chunkBytes <= 8 << 20);
+            assertTrue(threads + " threads", threads > 128 || (threads + 1) * chunkBytes <= ParallelCSVReader.MAX_PENDING_BYTES);
+        }
+    }
+
+    @Test
+    /**
+     * Read gzip and bzip2 files, with and without independent blocks, on one
+     * and on several threads: The content and the lookups have to be the same
+     * as with the plain file.
+     */
+    public void testCompressedInput() throws URISyntaxException, IOException {
+        File inputFile = new File(new URI(CSVImportPluginTest.class.getResource("/unsorted_linenumbers.csv").toString()));
+        byte[] content = readStream(new FileInputStream(inputFile));
+        Map<String, File> compressedFiles = new LinkedHashMap<>();
+        // gzip
+        File gzipFile = File.createTempFile("osmosiscsvimporttest", ".csv.gz");
+        gzipFile.deleteOnExit();
+        try (OutputStream output = new GZIPOutputStream(new FileOutputStream(gzipFile))) {
+            output.write(content);
+        }
+        compressedFiles.put("gzip", gzipFile);
+        // BGZF, and BGZF followed by a plain gzip member
+        File bgzfFile = File.createTempFile("osmosiscsvimporttest", ".csv.gz");
+        bgzfFile.deleteOnExit();
+        File mixedGzipFile = File.createTempFile("osmosiscsvimporttest", ".csv.gz");
+        mixedGzipFile.deleteOnExit();
+        try (OutputStream output = new FileOutputStream(bgzfFile);
+                OutputStream mixedOutput = new FileOutputStream(mixedGzipFile)) {
+            writeBgzf(content, 0, content.length, 4000, output);
+            writeBgzf(content, 0, content.length / 2, 4000, mixedOutput);
+            GZIPOutputStream member = new GZIPOutputStream(mixedOutput);
+            member.write(content, content.length / 2, content.length - content.length / 2);
+            member.finish();
+        }
+        compressedFiles.put("BGZF", bgzfFile);
+        compressedFiles.put("BGZF and gzip", mixedGzipFile);
+        // bzip2 with one stream and with one stream per block (like pbzip2)
+        File bzip2File = File.createTempFile("osmosiscsvimporttest", ".csv.bz2");
+        bzip2File.deleteOnExit();
+        try (OutputStream output = new BZip2CompressorOutputStream(new FileOutputStream(bzip2File))) {
+            output.write(content);
+        }
+        compressedFiles.put("bzip2", bzip2File);
+        File multiStreamBzip2File = File.createTempFile("osmosiscsvimporttest", ".csv.bz2");
+        multiStreamBzip2File.deleteOnExit();
+        try (OutputStream output = new FileOutputStream(multiStreamBzip2File)) {
+            for (int start = 0; start < content.length; start += 10000) {
+                BZip2CompressorOutputStream stream = new BZip2CompressorOutputStream(output, 1);
+                stream.write(content, start, Math.min(10000, content.length - start));
+                stream.finish();
+            }
+        }
+        compressedFiles.put("bzip2 streams", multiStreamBzip2File);
+
+        CSVLoader plainLoader = new CSVLoader(inputFile, -1, 1, -1, -1, 2);
+        for (Map.Entry<String, File> entry : compressedFiles.entrySet()) {
+            String name = entry.getKey();
+            File file = entry.getValue();
+            assertTrue(name, CompressedInput.isCompressed(file));
+            try (InputStream input = CompressedInput.open(file)) {
+                assertArrayEquals(name, content, readStream(input));
+            }
+            try (InputStream input = new ParallelDecompressingInputStream(file, CompressedInput.detect(file), 3, 997)) {
+                assertArrayEquals(name + ", parallel", content, readStream(input));
+            }
+            // Endless cache read in parallel, limited cache read line by line
+            CSVLoader parallelLoader = new CSVLoader(file, -1, 1, -1, -1, 2, new CSVImportOptions().setParseThreads(4).setStorageEngine(CSVLoader.StorageEngine.PRIMITIVE));
+            CSVLoader limitedLoader = new CSVLoader(file, 1000, 1, -1, -1, 2, new CSVImportOptions().setParseThreads(2));
+            for (long id : new long[]{2598108204L, 2598107909L, 1711775298L, 42}) {
+                CSVItem expected = plainLoader.findItem(id);
+                String expectedData = null == expected ? null : expected.DATA;
+                CSVItem parallelItem = parallelLoader.findItem(id);
+                CSVItem limitedItem = limitedLoader.findItem(id);
+                assertEquals(name, expectedData, null == parallelItem ? null : parallelItem.DATA);
+                assertEquals(name, expectedData, null == limitedItem ? null : limitedItem.DATA);
+            }
+            assertEquals(name, plainLoader.getCacheEntries(), parallelLoader.getCacheEntries());
+        }
+        assertFalse(CompressedInput.isCompressed(inputFile));
+        expectedEx.expect(IllegalArgumentException.class);
+        expectedEx.expectMessage("The MAPPED storage engine cannot read compressed files");
+        new CSVLoader(gzipFile, -1, 1, -1, -1, 2, new CSVImportOptions().setStorageEngine(CSVLoader.StorageEngine.MAPPED));
+    }
+
+    @Test
+    /**
+     * Convert CSV files into the binary format of {@link BinaryCSVFile} and
+     * import them with {@link CSVLoader.StorageEngine#BINARY}: Every id has
+     * to return what the CSV file returns (the last line wins), the column
+     * names and coordinates have to survive, and unsorted files must not be
+     * taken as sorted.
+     */
+    public void testBinaryFormat() throws URISyntaxException, IOException, ParserConfigurationException, SAXException, XPathExpressionException {
+        File inputCSVFile = new File(new URI(CSVImportPluginTest.class.getResource("/unsorted_linenumbers.csv").toString()));
+        File binaryFile = java.io.File.createTempFile("osmosiscsvimporttest", ".bin", null);
+        if (deleteTemporaryFiles) {
+            binaryFile.deleteOnExit();
+        }
+        new CSVConvertPlugin_task(inputCSVFile.getPath(), binaryFile.getPath(), 1, -1, -1, 2, "lmuTag", new CSVImportOptions().setSortMemoryMB(1)).run();
+        CSVLoader csvLoader = new CSVLoader(inputCSVFile, -1, 1, -1, -1, 2);
+        CSVLoader binaryLoader = new CSVLoader(binaryFile, -1, -1, -1, -1, 1);
+        assertEquals(CSVLoader.StorageEngine.BINARY, binaryLoader.getStorageEngine());
+        assertTrue(binaryLoader.prepareConcurrentLookups());
+        assertEquals(5507, binaryLoader.getCacheEntries());
+        assertEquals(Arrays.asList("lmuTag"), binaryLoader.getBinaryColumnNames());
+        for (String line : readAllLines(inputCSVFile, null)) {
+            long id = Long.parseLong(line.split(",")[0]);
+            assertEquals(csvLoader.findItem(id).DATA, binaryLoader.findItem(id).DATA);
+        }
+        assertNull(binaryLoader.findItem(42L));
+        assertNull(binaryLoader.findItem(Long.MAX_VALUE));
+        assertNull(binaryLoader.findItem(Long.MIN_VALUE));
+
+        // The whole import, all columns of the binary file by default
+        File inputOSMFile = new File(new URI(CSVImportPluginTest.class.getResource("/munich_lmu_original.osm").toString()));
+        File outputFile = java.io.File.createTempFile("osmosiscsvimporttest", null, null);
+        if (deleteTemporaryFiles) {
+            outputFile.deleteOnExit();
+        }
+        CSVImportPlugin_task importTask = new CSVImportPlugin_task(binaryFile.getPath(), -1, -1, -1, -1, "", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1, -1, new CSVImportOptions().setWorkers(2));
+        try (BufferedWriter outputWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile), "UTF-8"));) {
+            XmlReader xmlReader = new XmlReader(inputOSMFile, false, CompressionMethod.None);
+            XmlWriter xmlWriter = new XmlWriter(outputWriter);
+            xmlReader.setSink(importTask);
+            importTask.setSink(xmlWriter);
+            xmlReader.run();
+        }
+        XMLFlattener flattener = new XMLFlattener(outputFile);
+        assertArrayEquals(fillWithStringRange(1, 5507), flattener.getXPathAsArray("/osm/node/tag[@k=\"lmuTag\"]/@v"));
+
+        // Several named columns, coordinates, ways and repeated ids
+        File csvFile = File.createTempFile("csvimport-binary", ".csv");
+        csvFile.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(csvFile, "UTF-8")) {
+            writer.println("id,lat,lon,ele,landuse,name");
+            writer.println("3,48.3,11.7,530,,Dorf");
+            writer.println("1,48.1,11.5,520,forest,\"Am Wald, Nord\"");
+            writer.println("w1,48.2,11.6,,meadow,");
+            writer.println("-5,-48.2,-11.6,1,,");
+            writer.println("1,48.15,11.55,521,forest,Wald");
+        }
+        new CSVConvertPlugin_task(csvFile.getPath(), binaryFile.getPath(), 1, 2, 3, -1, "", new CSVImportOptions().setHeaderRow(true)).run();
+        binaryLoader = new CSVLoader(binaryFile, -1, -1, -1, -1, new int[]{3, 1}, new CSVImportOptions());
+        assertEquals(4, binaryLoader.getCacheEntries());
+        assertEquals(Arrays.asList("ele", "landuse", "name"), binaryLoader.getBinaryColumnNames());
+        CSVItem item = binaryLoader.findItem(1);
+        assertEquals("Wald", item.getData(0));
+        assertEquals("521", item.getData(1));
+        assertEquals(48.15, item.OSM_LAT, 1e-7);
+        assertEquals(11.55, item.OSM_LON, 1e-7);
+        item = binaryLoader.findItem(EntityType.Way, 1);
+        assertEquals("", item.getData(0));
+        assertEquals("", item.getData(1));
+        assertEquals(-11.6, binaryLoader.findItem(-5).OSM_LON, 1e-7);
+        assertNull(binaryLoader.findItem(2));
+
+        List<Node> nodes = tagNodes(new CSVImportPlugin_task(binaryFile.getPath(), -1, -1, -1, -1, "", 10000, CSVImportPlugin_task.MaxDistAction.WARN, -1, -1, new CSVImportOptions()));
+        assertEquals("Wald", getTagValue(nodes.get(0), "name"));
+        assertEquals("forest", getTagValue(nodes.get(0), "landuse"));
+        assertEquals("521", getTagValue(nodes.get(0), "ele"));
+        assertEquals("Dorf", getTagValue(nodes.get(2), "name"));
+        assertNull(getTagValue(nodes.get(2), "landuse"));
+        nodes = tagNodes(new CSVImportPlugin_task(binaryFile.getPath(), -1, -1, -1, 1, "height", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1, -1, new CSVImportOptions().setTagMappings("name=n")));
+        assertEquals("521", getTagValue(nodes.get(0), "height"));
+        assertEquals("Wald", getTagValue(nodes.get(0), "n"));
+        assertEquals(3, nodes.get(0).getTags().size());
+
+        // The file is not sorted
+        try {
+            new CSVConvertPlugin_task(csvFile.getPath(), binaryFile.getPath(), 1, -1, -1, 4, "ele", new CSVImportOptions().setHeaderRow(true).setCsvSorted(true)).run();
+            fail("Unsorted files have to be rejected");
+        } catch (OsmosisRuntimeException e) {
+            assertTrue(e.getCause().getMessage().startsWith("The CSV file is not sorted by id"));
+        }
+        // The CSV file is no binary file
+        try {
+            new CSVLoader(csvFile, -1, 1, -1, -1, 4, new CSVImportOptions().setStorageEngine(CSVLoader.StorageEngine.BINARY));
+            fail("CSV files cannot be read as binary files");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().endsWith("is no binary file, convert it with convert-csv-for-import first"));
+        }
+    }
+
+    @Test
+    /**
+     * Test the byte-level {@link CSVLineParser}: quoting, delimiters, ids and
+     * coordinates.
+     */
+    public void testLineParser() {
+        CSVLineParser parser = new CSVLineParser(1, 2, 3, 4);
+        assertTrue(parser.parse("42,48.1500,11.58,\"Munich, \"\"Bavaria\"\"\",ignored", 1));
+        assertEquals(42, parser.getOsmId());
+        assertEquals(48.15, parser.getLatitude(), 0);
+        assertEquals(11.58, parser.getLongitude(), 0);
+        assertEquals("Munich, \"Bavaria\"", parser.getData());
+        assertTrue(parser.parse("\"-576460752303423487\",1e1, 2 ,", 2));
+        assertEquals(-EntityKey.MAX_ID + 1, parser.getOsmId());
+        assertEquals(10, parser.getLatitude(), 0);
+        assertEquals(2, parser.getLongitude(), 0);
+        assertEquals("", parser.getData());
+        assertFalse("Overflow", parser.parse("9223372036854775808,1,2,x", 3));
+        assertFalse("Out of range", parser.parse("-9223372036854775808,1,2,x", 3));
+        assertFalse("Not a number", parser.parse("4x2,1,2,x", 4));
+        assertFalse("Too short", parser.parse("42,1,2", 5));
+        assertFalse("Unterminated quote", parser.parse("42,1,2,\"x", 6));
+        assertFalse("Comment", parser.parse(";42,1,2,x", 7));
+        assertTrue(parser.parse("42,north,2,x", 8));
+        assertTrue(Double.isNaN(parser.getLatitude()));
+
+        // Coordinates are rounded to 7 decimals, like OSMOSIS does
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            int decimals = random.nextInt(12);
+            String coordinate = String.format(Locale.ROOT, "%." + decimals + "f", (random.nextDouble() - 0.5) * 360);
+            assertTrue(parser.parse("1," + coordinate + ",0,x", i));
+            int expected = FixedPrecisionCoordinateConvertor.convertToFixed(Double.parseDouble(coordinate));
+            if (decimals <= 7) {
+                assertEquals(coordinate, expected, parser.getFixedLatitude());
+            } else {
+                // Rounding ties may differ by one unit
+                assertEquals(coordinate, expected, parser.getFixedLatitude(), 1);
+            }
+        }
+        assertTrue(parser.parse("1,300,0,x", 1));
+        assertTrue("Out of range", Double.isNaN(parser.getLatitude()));
+
+        CSVLineParser tabParser = new CSVLineParser(2, -1, -1, 1, '\t', java.nio.charset.Charset.forName("UTF-8"));
+        assertTrue(tabParser.parse("Stra\u00dfe, M\u00fcnchen\t17", 1));
+        assertEquals(17, tabParser.getOsmId());
+        assertEquals("Stra\u00dfe, M\u00fcnchen", tabParser.getData());
+        CSVLineParser semicolonParser = new CSVLineParser(1, -1, -1, 2, ';', java.nio.charset.Charset.forName("UTF-8"));
+        assertTrue(semicolonParser.parse("17;\"a;b\";c", 1));
+        assertEquals("a;b", semicolonParser.getData());
+    }
+
+    @Test
+    /**
+     * Storing the coordinates as 7 decimal fixed-point numbers must not change
+     * the distances measured by {@link CSVItem#distFrom(double, double, double, double)}
+     * noticeably.
+     */
+    public void testFixedPointCoordinateAccuracy() {
+        Random random = new Random(4711);
+        for (int i = 0; i < 100000; i++) {
+            double lat1 = (random.nextDouble() - 0.5) * 170;
+            double lon1 = (random.nextDouble() - 0.5) * 360;
+            // The OSM node is somewhere within about 100 meters
+            double lat2 = lat1 + (random.nextDouble() - 0.5) * 0.002;
+            double lon2 = lon1 + (random.nextDouble() - 0.5) * 0.002;
+            double exact = CSVItem.distFrom(lat1, lon1, lat2, lon2);
+            double fixed = CSVItem.distFrom(FixedPointCoordinates.toDouble(FixedPointCoordinates.toFixed(lat1)), FixedPointCoordinates.toDouble(FixedPointCoordinates.toFixed(lon1)), lat2, lon2);
+            // Half a unit of the 7th decimal is at most 5.6 mm per axis
+            assertEquals(exact, fixed, 0.01);
+        }
+        assertEquals(FixedPointCoordinates.NONE, FixedPointCoordinates.toFixed(Double.NaN));
+        assertTrue(Double.isNaN(FixedPointCoordinates.toDouble(FixedPointCoordinates.NONE)));
+    }
+
+    @Test
+    /**
+     * The id filter must never reject an id that is in the file and should
+     * reject (nearly) all others, with every engine that uses it.
+     */
+    public void testNegativeLookupFilter() throws URISyntaxException, IOException {
+        IdBloomFilter filter = new IdBloomFilter(100000, 0.01);
+        Random random = new Random(4711);
+        Set<Long> ids = new HashSet<>();
+        while (ids.size() < 100000) {
+            long id = random.nextLong() & 0xffffffffffL;
+            ids.add(id);
+            filter.add(id);
+        }
+        for (long id : ids) {
+            assertTrue(filter.mightContain(id));
+        }
+        int falsePositives = 0;
+        int missingIds = 0;
+        while (missingIds < 100000) {
+            long id = random.nextLong() & 0xffffffffffL;
+            if (!ids.contains(id)) {
+                missingIds++;
+                falsePositives += filter.mightContain(id) ? 1 : 0;
+            }
+        }
+        assertTrue("Measured false positive rate " + falsePositives / 100000.0, falsePositives < 2000);
+        assertTrue(filter.getExpectedFalsePositiveRate() < 0.02);
+
+        File inputFile = new File(new URI(CSVImportPluginTest.class.getResource("/unsorted_linenumbers_missingIds.csv").toString()));
+        long[] missing = new long[]{2601113499L, 1711775420L, 2601113313L, 2598108119L, 42L};
+        for (CSVLoader.StorageEngine engine : new CSVLoader.StorageEngine[]{CSVLoader.StorageEngine.HASHMAP, CSVLoader.StorageEngine.MAPPED}) {
+            for (int loaderCacheSize : new int[]{100, -1}) {
+                CSVLoader loader = new CSVLoader(inputFile, loaderCacheSize, 1, -1, -1, 2, new CSVImportOptions().setStorageEngine(engine));
+                assertEquals("3649", loader.findItem(2598108204L).DATA);
+                for (long id : missing) {
+                    assertNull(loader.findItem(id));
+                }
+                assertEquals("3356", loader.findItem(2598107909L).DATA);
+                assertEquals(missing.length, loader.getFilterRejections() + loader.getFilterFalsePositives());
+                assertTrue(loader.getFilterRejections() >= missing.length - 1);
+            }
+        }
+        CSVLoader unfiltered = new CSVLoader(inputFile, 100, 1, -1, -1, 2, new CSVImportOptions().setNegativeLookupFilter(false));
+        assertNull(unfiltered.findItem(42L));
+        assertEquals(0, unfiltered.getFilterRejections());
+        assertTrue(Double.isNaN(unfiltered.getFilterFalsePositiveRate()));
+    }
+
+    @Test
+    /**
+     * Loading the file in the background ({@link CSVLoader#startPreload()})
+     * must give the same results as loading it at the first lookup, and
+     * problems have to show up at the first lookup.
+     */
+    public void testPreload() throws URISyntaxException, IOException {
+        File inputFile = new File(new URI(CSVImportPluginTest.class.getResource("/unsorted_linenumbers_missingIds.csv").toString()));
+        CSVImportOptions[] optionSets = new CSVImportOptions[]{
+            new CSVImportOptions(),
+            new CSVImportOptions().setNegativeLookupFilter(false),
+            new CSVImportOptions().setStorageEngine(CSVLoader.StorageEngine.FROZEN),
+            new CSVImportOptions().setStorageEngine(CSVLoader.StorageEngine.MAPPED),
+            new CSVImportOptions().setStorageEngine(CSVLoader.StorageEngine.MERGE_JOIN).setPresortCSV(true)};
+        for (CSVImportOptions options : optionSets) {
+            int loaderCacheSize = options.getStorageEngine() == CSVLoader.StorageEngine.HASHMAP ? 100 : -1;
+            for (int run = 0; run < 2; run++) {
+                CSVLoader loader = new CSVLoader(inputFile, run == 0 ? -1 : loaderCacheSize, 1, -1, -1, 2, options);
+                loader.startPreload();
+                assertEquals(options.getStorageEngine().toString(), "3356", loader.findItem(2598107909L).DATA);
+                assertNull(loader.findItem(2598108119L));
+                assertEquals("3649", loader.findItem(2598108204L).DATA);
+            }
+        }
+
+        File unsortedFile = new File(new URI(CSVImportPluginTest.class.getResource("/unsorted_linenumbers.csv").toString()));
+        CSVLoader loader = new CSVLoader(unsortedFile, -1, 1, -1, -1, 2, new CSVImportOptions().setStorageEngine(CSVLoader.StorageEngine.MAPPED));
+        loader.startPreload();
+        loader.startPreload();
+        assertNull(loader.findItem(42));
+        expectedEx.expect(IllegalStateException.class);
+        expectedEx.expectMessage("The CSV file is not sorted by id");
+        loader = new CSVLoader(unsortedFile, -1, 1, -1, -1, 2, new CSVImportOptions().setStorageEngine(CSVLoader.StorageEngine.MERGE_JOIN));
+        loader.startPreload();
+        for (long id = 1; id < 3000000000L; id += 1000000) {
+            loader.findItem(id);
+        }
+    }
+
+    @Test
+    /**
+     * Tagging the nodes with several workers has to give exactly the same
+     * output (and dirty node log) as tagging them with one thread.
+     */
+    public void testParallelTagging() throws URISyntaxException, IOException, ParserConfigurationException, SAXException, XPathExpressionException {
+        // Workers look up the nodes themselves
+        File sequentialFile = conductTest("/munich_lmu_original.osm", "/unsorted_linenumbers_missingIds.csv", 1, -1, -1, 2, "lmuTag", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1);
+        File parallelFile = conductTest("/munich_lmu_original.osm", "/unsorted_linenumbers_missingIds.csv", 1, -1, -1, 2, "lmuTag", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1, new CSVImportOptions().setWorkers(4).setStorageEngine(CSVLoader.StorageEngine.PRIMITIVE));
+        // (Without date parsing, the XML reader sets the timestamps to the current time)
+        assertArrayEquals("Same output", readAllLines(sequentialFile, " timestamp=\"[^\"]*\""), readAllLines(parallelFile, " timestamp=\"[^\"]*\""));
+        XMLFlattener flattener = new XMLFlattener(parallelFile);
+        String[] resultValues = flattener.getXPathAsArray("/osm/node/tag[@k=\"lmuTag\"]/@v");
+        assertArrayEquals("Endless cache", fillWithStringRange(1, 5507, new int[]{4925, 2320, 4745, 3565}), resultValues);
+
+        // Lookups by the pipeline thread (limited cache), dirty nodes logged
+        File inputCSVFile = new File(new URI(CSVImportPluginTest.class.getResource("/unsorted_linenumbers_differingLonLat.csv").toString()));
+        File logFile = new File(inputCSVFile.getParent(), "unsorted_linenumbers_differingLonLat-dirtyNodes.csv");
+        conductTest("/munich_lmu_original.osm", "/unsorted_linenumbers_differingLonLat.csv", 1, 2, 3, 4, "lmuTag", 0.5, CSVImportPlugin_task.MaxDistAction.LOG, cacheSize);
+        String[] sequentialLog = readAllLines(logFile, null);
+        parallelFile = conductTest("/munich_lmu_original.osm", "/unsorted_linenumbers_differingLonLat.csv", 1, 2, 3, 4, "lmuTag", 0.5, CSVImportPlugin_task.MaxDistAction.LOG, cacheSize, new CSVImportOptions().setWorkers(3));
+        String[] parallelLog = readAllLines(logFile, null);
+        // The first line contains the path of the input file
+        assertArrayEquals("Same log", Arrays.copyOfRange(sequentialLog, 1, sequentialLog.length), Arrays.copyOfRange(parallelLog, 1, parallelLog.length));
+        File gzipLogFile = new File(logFile.getPath() + ".gz");
+        gzipLogFile.deleteOnExit();
+        conductTest("/munich_lmu_original.osm", "/unsorted_linenumbers_differingLonLat.csv", 1, 2, 3, 4, "lmuTag", 0.5, CSVImportPlugin_task.MaxDistAction.LOG, cacheSize, new CSVImportOptions().setWorkers(3).setGzipDirtyNodeLog(true));
+        try (InputStream input = CompressedInput.open(gzipLogFile)) {
+            assertArrayEquals("Same compressed log", readAllLines(logFile, null), new String(readStream(input)).split("\n"));
+        }
+        flattener = new XMLFlattener(parallelFile);
+        resultValues = flattener.getXPathAsArray("/osm/node/tag[@k=\"lmuTag\"]/@v");
+        assertArrayEquals("Limited cache", fillWithStringRange(1, 5507, new int[]{2597, 1683}), resultValues);
+    }
+
+    @Test
+    /**
+     * The metrics have to count the nodes, the lookups and the parsed lines
+     * of the loader. With {@code jmxMetrics}, they are registered as MBean
+     * until the task is released, and the lookups are timed.
+     */
+    public void testMetrics() throws Exception {
+        // The histogram: Exact below 128 ns, above within 1/64
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long nanos = 1; nanos <= 1000000; nanos++) {
+            histogram.record(nanos);
+        }
+        assertEquals(1000000, histogram.getCount());
+        assertEquals(500000.5, histogram.getMean(), 1e-6);
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(100, histogram.getValueAtPercentile(0.01));
+        assertEquals(500000, histogram.getValueAtPercentile(50), 500000 / 64.0);
+        assertEquals(999000, histogram.getValueAtPercentile(99.9), 999000 / 64.0);
+        assertEquals(1000000, histogram.getValueAtPercentile(100));
+        for (int index = 0; index < 2000; index++) {
+            long highest = LatencyHistogram.highestValueOf(index);
+            assertEquals(index, LatencyHistogram.bucketIndex(highest));
+            assertEquals(index + 1, LatencyHistogram.bucketIndex(highest + 1));
+        }
+
+        // A small cache, so the file is read again; id 2 is missing
+        File csvFile = File.createTempFile("csvimport-metrics", ".csv");
+        csvFile.deleteOnExit();
+        long bytes = 0;
+        try (PrintWriter writer = new PrintWriter(csvFile, "UTF-8")) {
+            for (int id : new int[]{3, 4, 1, 5, 6, 7, 8, 9, 10}) {
+                writer.println(id + ",v" + id);
+                bytes += (id + ",v" + id).length();
+            }
+        }
+        CSVImportPlugin_task task = new CSVImportPlugin_task(csvFile.getPath(), 1, -1, -1, 2, "value", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, 2, -1, new CSVImportOptions().setJmxMetrics(true));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Set<ObjectName> names = server.queryNames(new ObjectName("net.bennokue.java.osmosis:type=CSVImport,file=" + ObjectName.quote(csvFile.getName()) + ",*"), null);
+        assertEquals(1, names.size());
+        assertEquals(0L, server.getAttribute(names.iterator().next(), "NodesProcessed"));
+        List<Node> nodes = tagNodes(task);
+        assertEquals("v1", getTagValue(nodes.get(0), "value"));
+        assertNull(getTagValue(nodes.get(1), "value"));
+        assertEquals("v4", getTagValue(nodes.get(3), "value"));
+        assertTrue(server.queryNames(names.iterator().next(), null).isEmpty());
+        CSVImportMetrics metrics = task.getMetrics();
+        assertEquals(4, metrics.getNodesProcessed());
+        assertEquals(3, metrics.getNodesImported());
+        assertEquals(1, metrics.getNodesNotFound());
+        assertEquals(0, metrics.getNodesSkippedDueToMaxDist());
+        assertEquals(4, metrics.getCacheHits() + metrics.getCacheMisses() + metrics.getFilterRejections());
+        assertTrue(metrics.getCacheMisses() >= 2);
+        assertTrue(metrics.getFileRescans() >= 1);
+        // The id filter pass and at least one pass to fill the cache
+        assertTrue(metrics.getLinesParsed() >= 18);
+        assertTrue(metrics.getBytesParsed() >= 2 * bytes);
+        assertEquals(4, metrics.getLookups());
+        assertTrue(metrics.getLookupLatencyMax() > 0);
+
+        // Without jmxMetrics, the lookups are not timed
+        task = new CSVImportPlugin_task(csvFile.getPath(), 1, -1, -1, 2, "value", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1);
+        tagNodes(task);
+        assertEquals(4, task.getMetrics().getNodesProcessed());
+        assertEquals(0, task.getMetrics().getLookups());
+    }
+
+    @Test
+    /**
+     * The {@link ProgressReporter} has to write a line of JSON every interval
+     * and a last one when the task completes, with the percentages of the
+     * CSV file and of the expected nodes. The CSV file counts as loaded as
+     * far as the loading pass has read it, not by the bytes parsed by all
+     * passes.
+     */
+    public void testProgressReporter() throws Exception {
+        File csvFile = File.createTempFile("csvimport-progress", ".csv");
+        csvFile.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(csvFile, "UTF-8")) {
+            for (int id = 1; id <= 4; id++) {
+                writer.println(id + ",v" + id);
+            }
+        }
+        File progressFile = File.createTempFile("csvimport-progress", ".jsonl");
+        progressFile.deleteOnExit();
+        CSVImportOptions options = new CSVImportOptions().setExpectedNodes(4).setProgressFile(progressFile.getPath()).setPreloadCSV(false);
+        CSVImportPlugin_task task = new CSVImportPlugin_task(csvFile.getPath(), 1, -1, -1, 2, "value", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1, 1, options);
+        Thread.sleep(1500);
+        List<Node> nodes = tagNodes(task);
+        assertEquals("v4", getTagValue(nodes.get(3), "value"));
+
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(progressFile), "UTF-8"))) {
+            for (String line = reader.readLine(); null != line; line = reader.readLine()) {
+                lines.add(line);
+            }
+        }
+        // At least one record while waiting, the last one written once only
+        assertTrue(lines.size() >= 2);
+        String first = lines.get(0);
+        assertTrue(first, first.startsWith("{\"event\":\"progress\",\"timestamp\":\""));
+        assertTrue(first, first.contains("\"nodesProcessed\":0,"));
+        assertTrue(first, first.contains("\"csvLoadPercent\":0.000,"));
+        assertTrue(first, first.contains("\"etaSeconds\":null}"));
+        String last = lines.get(lines.size() - 1);
+        assertTrue(last, last.startsWith("{\"event\":\"finished\","));
+        assertTrue(last, last.contains("\"nodesProcessed\":4,\"nodesImported\":4,"));
+        assertTrue(last, last.contains("\"waysProcessed\":0,"));
+        assertTrue(last, last.contains("\"entitiesProcessed\":4,"));
+        assertTrue(last, last.contains("\"csvLinesParsed\":4,\"csvBytesParsed\":" + csvFile.length() + ","));
+        assertTrue(last, last.contains("\"csvBytesLoaded\":" + csvFile.length() + ",\"csvBytesTotal\":" + csvFile.length() + ",\"csvLoadPercent\":100.000,\"csvLoadEtaSeconds\":0.000,"));
+        assertTrue(last, last.contains("\"expectedNodes\":4,\"percent\":100.000,\"etaSeconds\":0.000}"));
+        for (String line : lines.subList(0, lines.size() - 1)) {
+            assertTrue(line, line.startsWith("{\"event\":\"progress\","));
+        }
+
+        // The id filter pass parses the whole file, but does not load it
+        CSVLoader loader = new CSVLoader(csvFile, 1, 1, -1, -1, 2, new CSVImportOptions());
+        assertEquals("v1", loader.findItem(1L).DATA);
+        assertTrue(loader.getBytesParsed() + loader.getLinesParsed() > csvFile.length());
+        assertTrue(loader.getLoadedBytes() > 0);
+        assertTrue(loader.getLoadedBytes() < csvFile.length());
+        assertEquals("v4", loader.findItem(4L).DATA);
+        assertEquals(csvFile.length(), loader.getLoadedBytes());
+        assertEquals("v1", loader.findItem(1L).DATA);
+        assertEquals(csvFile.length(), loader.getLoadedBytes());
+    }
+
+    @Test
+    /**
+     * {@link DirtyNodeLog} has to write the records like
+     * {@link String#valueOf(double)} would, in the order the buffers are
+     * submitted, plain and compressed, even if the queue is full.
+     */
+    public void testDirtyNodeLog() throws IOException {
+        Random random = new Random(42);
+        for (boolean gzip : new boolean[]{false, true}) {
+            File logFile = File.createTempFile("csvimport-dirtyNodes", gzip ? ".csv.gz" : ".csv");
+            logFile.deleteOnExit();
+            StringBuilder expected = new StringBuilder("; Header\n");
+            DirtyNodeLog log = new DirtyNodeLog(logFile, gzip);
+            DirtyNodeLog.RecordBuffer buffer = log.acquire();
+            buffer.addLine("; Header");
+            for (int i = 0; i < 100000; i++) {
+                long osmId = i == 0 ? Long.MIN_VALUE : i == 1 ? Long.MAX_VALUE : random.nextLong();
+                double latitude = random.nextDouble() * 180 - 90;
+                double longitude = i == 2 ? -0.0 : random.nextDouble() * 360 - 180;
+                String data = i == 3 ? null : i % 10 == 0 ? "Gr\u00fc\u00dfe " + i : String.valueOf(i);
+                double distance = i == 4 ? 1e-5 : random.nextDouble() * 1e7;
+                buffer.addRecord(osmId, latitude, longitude, latitude + 1, longitude - 1, data, distance);
+                expected.append(osmId).append(',').append(latitude).append(',').append(longitude).append(',').append(latitude + 1).append(',').append(longitude - 1).append(',').append(data).append(',').append(distance).append('\n');
+                if (buffer.size() >= DirtyNodeLog.SUBMIT_SIZE) {
+                    log.submit(buffer);
+                    buffer = log.acquire();
+                }
+            }
+            log.submit(buffer);
+            log.close();
+            log.close();
+            try (InputStream input = CompressedInput.open(logFile)) {
+                assertEquals(gzip ? CompressedInput.Compression.GZIP : CompressedInput.Compression.NONE, CompressedInput.detect(logFile));
+                assertArrayEquals(expected.toString().getBytes(java.nio.charset.Charset.defaultCharset()), readStream(input));
+            }
+        }
+    }
+
+    @Test
+    /**
+     * Nodes that do not change have to be passed on as they are, changed nodes
+     * have to keep everything but the output tag (including the meta tags),
+     * even if they are read-only.
+     */
+    public void testNodePassThrough() throws URISyntaxException {
+        File inputFile = new File(new URI(CSVImportPluginTest.class.getResource("/unsorted_linenumbers_missingIds.csv").toString()));
+        CSVImportPlugin_task task = new CSVImportPlugin_task(inputFile.getPath(), 1, -1, -1, 2, "lmuTag", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1);
+        final List<EntityContainer> output = new ArrayList<>();
+        task.setSink(new Sink() {
+            @Override
+            public void initialize(Map<String, Object> metaData) {
+            }
+
+            @Override
+            public void process(EntityContainer entityContainer) {
+                output.add(entityContainer);
+            }
+
+            @Override
+            public void complete() {
+            }
+
+            @Override
+            public void release() {
+            }
+        });
+        NodeContainer missing = createNode(2598108119L, new Tag("name", "missing"));
+        NodeContainer missingButTagged = createNode(2601113499L, new Tag("LMUTAG", "old"));
+        NodeContainer found = createNode(2598108204L, new Tag("name", "found"), new Tag("lmuTag", "old"));
+        NodeContainer unchanged = createNode(2598107909L, new Tag("lmuTag", "3356"));
+        task.process(missing);
+        task.process(missingButTagged);
+        task.process(found);
+        task.process(unchanged);
+
+        assertSame(missing, output.get(0));
+        assertSame(unchanged, output.get(3));
+        Node node = (Node) output.get(1).getEntity();
+        assertTrue(node.getTags().isEmpty());
+        assertEquals("value", node.getMetaTags().get("meta"));
+        node = (Node) output.get(2).getEntity();
+        assertNotSame(found.getEntity(), node);
+        assertEquals(2, node.getTags().size());
+        assertEquals("found", getTagValue(node, "name"));
+        assertEquals("3649", getTagValue(node, "lmuTag"));
+        assertEquals("value", node.getMetaTags().get("meta"));
+        assertEquals(found.getEntity().getTimestamp(), node.getTimestamp());
+        assertEquals(found.getEntity().getUser(), node.getUser());
+        assertEquals(found.getEntity().getLatitude(), node.getLatitude(), 0);
+        // The original has not been touched
+        assertEquals(2, found.getEntity().getTags().size());
+        assertEquals("old", getTagValue(found.getEntity(), "lmuTag"));
+    }
+
+    @Test
+    /**
+     * Several CSV columns have to be imported with one lookup, given by
+     * position or, with a header row, by name; the header row itself must not
+     * become an item.
+     */
+    public void testMultipleColumns() throws IOException {
+        File csvFile = File.createTempFile("csvimport-columns", ".csv");
+        csvFile.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(csvFile, "UTF-8")) {
+            writer.println("id,lat,lon,ele,landuse,name");
+            writer.println("1,48.1,11.5,520,forest,\"Am Wald, Nord\"");
+            writer.println("2,48.2,11.6,,meadow,");
+            writer.println("3,48.3,11.7,530,,Dorf");
+        }
+        for (CSVLoader.StorageEngine storageEngine : new CSVLoader.StorageEngine[]{CSVLoader.StorageEngine.HASHMAP, CSVLoader.StorageEngine.PRIMITIVE, CSVLoader.StorageEngine.FROZEN, CSVLoader.StorageEngine.MAPPED}) {
+            // By position, together with tagDataPos
+            CSVImportOptions options = new CSVImportOptions().setStorageEngine(storageEngine).setTagMappings("5=landuse, 6=name");
+            List<Node> nodes = tagNodes(new CSVImportPlugin_task(csvFile.getPath(), 1, 2, 3, 4, "ele", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1, -1, options));
+            assertEquals(storageEngine.toString(), "520", getTagValue(nodes.get(0), "ele"));
+            assertEquals("forest", getTagValue(nodes.get(0), "landuse"));
+            assertEquals("Am Wald, Nord", getTagValue(nodes.get(0), "name"));
+            assertEquals("old", getTagValue(nodes.get(0), "other"));
+            assertNull(getTagValue(nodes.get(1), "ele"));
+            assertEquals("meadow", getTagValue(nodes.get(1), "landuse"));
+            assertNull(getTagValue(nodes.get(1), "name"));
+            assertEquals("Dorf", getTagValue(nodes.get(2), "name"));
+            assertNull(getTagValue(nodes.get(2), "landuse"));
+            assertEquals(1, nodes.get(3).getTags().size());
+
+            // By name, with and without tag keys
+            options = new CSVImportOptions().setStorageEngine(storageEngine).setHeaderRow(true).setTagMappings("landuse=lu,name");
+            nodes = tagNodes(new CSVImportPlugin_task(csvFile.getPath(), 1, 2, 3, -1, "", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1, -1, options));
+            assertEquals("forest", getTagValue(nodes.get(0), "lu"));
+            assertEquals("Am Wald, Nord", getTagValue(nodes.get(0), "name"));
+            assertNull(getTagValue(nodes.get(0), "ele"));
+
+            // All columns
+            options = new CSVImportOptions().setStorageEngine(storageEngine).setHeaderRow(true);
+            nodes = tagNodes(new CSVImportPlugin_task(csvFile.getPath(), 1, 2, 3, -1, "", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1, -1, options));
+            assertEquals(4, nodes.get(0).getTags().size());
+            assertEquals("530", getTagValue(nodes.get(2), "ele"));
+            assertNull(getTagValue(nodes.get(0), "id"));
+
+            // Only tagDataPos, although there is a header row
+            options = new CSVImportOptions().setStorageEngine(storageEngine).setHeaderRow(true);
+            nodes = tagNodes(new CSVImportPlugin_task(csvFile.getPath(), 1, 2, 3, 4, "ele", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1, -1, options));
+            assertEquals(2, nodes.get(0).getTags().size());
+            assertEquals("520", getTagValue(nodes.get(0), "ele"));
+            assertEquals("old", getTagValue(nodes.get(0), "other"));
+            assertNull(getTagValue(nodes.get(0), "landuse"));
+            assertNull(getTagValue(nodes.get(0), "name"));
+        }
+
+        // The header row is dropped silently when the file is sorted for the merge join
+        final List<LogRecord> warnings = Collections.synchronizedList(new ArrayList<LogRecord>());
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+                    warnings.add(record);
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger parserLogger = Logger.getLogger(CSVLineParser.class.getName());
+        parserLogger.addHandler(handler);
+        try {
+            CSVImportOptions options = new CSVImportOptions().setHeaderRow(true).setPresortCSV(true).setTagMappings("landuse");
+            List<Entity> output = runTask(new CSVImportPlugin_task(csvFile.getPath(), 1, 2, 3, -1, "", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1, -1, options),
+                    Collections.<String, Object>singletonMap(CSVImportPlugin_task.METADATA_SORTED, Boolean.TRUE), createNode(1), createNode(2));
+            assertEquals("forest", getTagValue(output.get(0), "landuse"));
+            assertEquals("meadow", getTagValue(output.get(1), "landuse"));
+        } finally {
+            parserLogger.removeHandler(handler);
+        }
+        assertTrue(warnings.isEmpty());
+
+        try {
+            new CSVImportPlugin_task(csvFile.getPath(), 1, 2, 3, -1, "", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1, -1, new CSVImportOptions().setHeaderRow(true).setTagMappings("unknown"));
+            fail("Unknown column names have to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Unknown CSV column: unknown", e.getMessage());
+        }
+    }
+
+    @Test
+    /**
+     * Ways and relations have to be tagged in the same pass as the nodes,
+     * using the id prefixes of the CSV file, with every storage engine and
+     * the merge join; the same id of another type must not match.
+     */
+    public void testWaysAndRelations() throws IOException {
+        File csvFile = File.createTempFile("csvimport-entities", ".csv");
+        csvFile.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(csvFile, "UTF-8")) {
+            writer.println("n1,node");
+            writer.println("2,plain node");
+            // Would be the key of way 1
+            writer.println(((1L << 60) + 1) + ",too large");
+            writer.println("w1,way");
+            writer.println("W3,other way");
+            writer.println("r2,relation");
+        }
+        Map<String, Object> sorted = new HashMap<>();
+        sorted.put(CSVImportPlugin_task.METADATA_SORTED, true);
+        for (CSVLoader.StorageEngine storageEngine : new CSVLoader.StorageEngine[]{CSVLoader.StorageEngine.HASHMAP, CSVLoader.StorageEngine.PRIMITIVE, CSVLoader.StorageEngine.FROZEN, CSVLoader.StorageEngine.MAPPED, CSVLoader.StorageEngine.MERGE_JOIN}) {
+            CSVImportOptions options = new CSVImportOptions().setEntityTypes(CSVImportOptions.parseEntityTypes("node, way,relation"));
+            if (storageEngine == CSVLoader.StorageEngine.MERGE_JOIN) {
+                options.setCsvSorted(true);
+            } else {
+                // The workers have to tag ways and relations, too
+                options.setStorageEngine(storageEngine).setWorkers(storageEngine == CSVLoader.StorageEngine.PRIMITIVE ? 2 : 1);
+            }
+            CSVImportPlugin_task task = new CSVImportPlugin_task(csvFile.getPath(), 1, -1, -1, 2, "lmuTag", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1, -1, options);
+            List<Entity> output = runTask(task, sorted, createNode(1), createNode(2), createNode(3), createNode((1L << 60) + 1), createWay(1), createWay(2, new Tag("lmuTag", "old")),
+                    new RelationContainer(new Relation(new CommonEntityData(2, 1, new Date(0), OsmUser.NONE, 1), new ArrayList<RelationMember>())));
+            assertEquals(storageEngine.toString(), "node", getTagValue(output.get(0), "lmuTag"));
+            assertEquals("plain node", getTagValue(output.get(1), "lmuTag"));
+            assertNull(getTagValue(output.get(2), "lmuTag"));
+            assertNull(getTagValue(output.get(3), "lmuTag"));
+            assertEquals(EntityType.Way, output.get(4).getType());
+            assertEquals("way", getTagValue(output.get(4), "lmuTag"));
+            assertTrue(output.get(5).getTags().isEmpty());
+            assertEquals(EntityType.Relation, output.get(6).getType());
+            assertEquals("relation", getTagValue(output.get(6), "lmuTag"));
+            // Each type is counted apart
+            CSVImportMetrics metrics = task.getMetrics();
+            assertEquals(4, metrics.getNodesProcessed());
+            assertEquals(2, metrics.getNodesImported());
+            assertEquals(2, metrics.getNodesNotFound());
+            assertEquals(2, metrics.getWaysProcessed());
+            assertEquals(1, metrics.getWaysImported());
+            assertEquals(1, metrics.getWaysNotFound());
+            assertEquals(1, metrics.getRelationsProcessed());
+            assertEquals(1, metrics.getRelationsImported());
+            assertEquals(0, metrics.getRelationsNotFound());
+            assertEquals(7, metrics.getEntitiesProcessed());
+        }
+
+        // Nodes only (the default): Ways keep their tags
+        CSVImportPlugin_task task = new CSVImportPlugin_task(csvFile.getPath(), 1, -1, -1, 2, "lmuTag", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, -1);
+        List<Entity> output = runTask(task, null, createNode(1), createWay(2, new Tag("lmuTag", "old")));
+        assertEquals("node", getTagValue(output.get(0), "lmuTag"));
+        assertEquals("old", getTagValue(output.get(1), "lmuTag"));
+    }
+
+    @Test
+    /**
+     * The {@link SpatialCSVIndex} has to find exactly what a search through
+     * all lines finds, also near the poles; the task has to tag nodes with the
+     * nearest line of a file without ids.
+     */
+    public void testSpatialMatching() throws IOException {
+        Random random = new Random(42);
+        double radius = 250;
+        SpatialCSVIndex index = new SpatialCSVIndex(radius, 16);
+        int[] latitudes = new int[20000];
+        int[] longitudes = new int[latitudes.length];
+        for (int i = 0; i < latitudes.length; i++) {
+            // Most around Munich, some close to the north pole or the antimeridian
+            double[] point = randomSpatialTestPoint(random, i);
+            double lat = point[0];
+            double lon = point[1];
+            latitudes[i] = FixedPointCoordinates.toFixed(lat);
+            longitudes[i] = FixedPointCoordinates.toFixed(lon);
+            assertTrue(index.add(latitudes[i], longitudes[i], new String[]{Integer.toString(i)}));
+        }
+        assertFalse(index.add(FixedPointCoordinates.NONE, 0, new String[]{"none"}));
+        index.build();
+        assertEquals(latitudes.length, index.size());
+        for (int query = 0; query < 2000; query++) {
+            double[] point = randomSpatialTestPoint(random, query);
+            double lat = point[0];
+            double lon = point[1];
+            double nearest = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < latitudes.length; i++) {
+                double distance = CSVItem.distFrom(FixedPointCoordinates.toDouble(latitudes[i]), FixedPointCoordinates.toDouble(longitudes[i]), lat, lon);
+                if (distance <= radius) {
+                    nearest = Math.min(nearest, distance);
+                }
+            }
+            CSVItem item = index.findNearest(lat, lon);
+            if (Double.isInfinite(nearest)) {
+                assertNull(item);
+            } else {
+                assertEquals(nearest, item.getDistance(lat, lon), 0);
+                int line = Integer.parseInt(item.DATA);
+                assertEquals(latitudes[line], FixedPointCoordinates.toFixed(item.OSM_LAT));
+            }
+        }
+
+        File csvFile = File.createTempFile("csvimport-spatial", ".csv");
+        csvFile.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(csvFile, "UTF-8")) {
+            writer.println("lat,lon,sensor");
+            writer.println("48.16,11.59,far");
+            writer.println("48.1502,11.5901,near");
+            writer.println("48.1501,11.5901,nearest");
+        }
+        CSVImportOptions options = new CSVImportOptions().setMatchByCoordinates(true).setHeaderRow(true).setWorkers(2);
+        CSVImportPlugin_task task = new CSVImportPlugin_task(csvFile.getPath(), -1, 1, 2, -1, "", 100, CSVImportPlugin_task.MaxDistAction.DELETE, -1, -1, options);
+        List<Node> nodes = tagNodes(task);
+        assertEquals("nearest", getTagValue(nodes.get(0), "sensor"));
+        assertEquals("nearest", getTagValue(nodes.get(3), "sensor"));
+        task = new CSVImportPlugin_task(csvFile.getPath(), -1, 1, 2, 3, "sensor", 10, CSVImportPlugin_task.MaxDistAction.DELETE, -1, -1, new CSVImportOptions().setMatchByCoordinates(true));
+        assertNull(getTagValue(tagNodes(task).get(0), "sensor"));
+    }
+
+    @Test
+    /**
+     * The {@link ValueDictionary} has to store each distinct value once and
+     * give back exactly the values that were added.
+     */
+    public void testValueDictionary() {
+        ValueDictionary dictionary = new ValueDictionary();
+        String[] categories = new String[]{"", "forest", "meadow", "Stra\u00dfe", "\u6771\u4eac", "a,b \"c\""};
+        int[] references = new int[categories.length];
+        for (int i = 0; i < categories.length; i++) {
+            references[i] = dictionary.add(categories[i]);
+        }
+        for (int row = 0; row < 100000; row++) {
+            int category = row % categories.length;
+            assertEquals(references[category], dictionary.add(new String(categories[category])));
+        }
+        assertEquals(ValueDictionary.NULL_REFERENCE, dictionary.add(null));
+        assertNull(dictionary.get(ValueDictionary.NULL_REFERENCE));
+        assertEquals(categories.length, dictionary.size());
+        for (int i = 0; i < categories.length; i++) {
+            assertEquals(categories[i], dictionary.get(references[i]));
+        }
+        assertTrue(dictionary.getBytesSaved() > 3000000);
+
+        // Bytes of a line, quoted and escaped fields stored without the quoting
+        byte[] line = "1,forest,\"a,b \"\"c\"\"\",\"Stra\u00dfe\",new".getBytes(StandardCharsets.UTF_8);
+        CSVLineParser parser = new CSVLineParser(1, -1, -1, new int[]{2, 3, 4, 5}, ',', StandardCharsets.UTF_8);
+        assertTrue(parser.parse(line, 0, line.length, 1));
+        assertEquals(references[1], parser.addData(0, dictionary));
+        assertEquals(references[5], parser.addData(1, dictionary));
+        assertEquals(references[3], parser.addData(2, dictionary));
+        int added = parser.addData(3, dictionary);
+        assertEquals(categories.length, added);
+        assertEquals("new", dictionary.get(added));
+        assertEquals(references[2], dictionary.add("xmeadowx".getBytes(StandardCharsets.UTF_8), 1, 7));
+        assertEquals(Arrays.asList("forest", "a,b \"c\"", "Stra\u00dfe", "new"), Arrays.asList(parser.getDataColumns()));
+        // Other charsets are re-encoded
+        byte[] latin1Line = "1,Stra\u00dfe".getBytes(StandardCharsets.ISO_8859_1);
+        CSVLineParser latin1Parser = new CSVLineParser(1, -1, -1, 2, ',', StandardCharsets.ISO_8859_1);
+        assertTrue(latin1Parser.parse(latin1Line, 0, latin1Line.length, 1));
+        assertEquals(references[3], latin1Parser.addData(0, dictionary));
+        assertEquals(categories.length + 1, dictionary.size());
+
+        // Many distinct values make the arena and the index grow
+        for (int i = 0; i < 20000; i++) {
+            assertEquals(categories.length + 1 + i, dictionary.add(Integer.toString(i)));
+        }
+        for (int i = 0; i < 20000; i++) {
+            assertEquals(Integer.toString(i), dictionary.get(categories.length + 1 + i));
+            assertEquals(categories.length + 1 + i, dictionary.add(Integer.toString(i)));
+        }
+        dictionary.clear();
+        assertEquals(0, dictionary.size());
+        assertEquals(0, dictionary.add("forest"));
+
+        // More bytes than a page holds: Pages of 16 bytes stand in for the 2 GB of an array
+        dictionary = new ValueDictionary(4);
+        Random random = new Random(42);
+        List<String> values = new ArrayList<>();
+        long bytes = 0;
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder value = new StringBuilder(Integer.toString(i)).append(':');
+            for (int length = random.nextInt(40); length > 0; length--) {
+                value.append(random.nextBoolean() ? (char) ('a' + random.nextInt(26)) : '\u00e4');
+            }
+            values.add(value.toString());
+            bytes += value.toString().getBytes(StandardCharsets.UTF_8).length;
+            assertEquals(i, dictionary.add(value.toString()));
+        }
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals(values.get(i), dictionary.get(i));
+            assertEquals(i, dictionary.add(new String(values.get(i))));
+        }
+        assertEquals(values.size(), dictionary.size());
+        assertTrue(dictionary.getSizeInBytes() >= bytes);
+        // The values, a pointer per page of 16 bytes, the starts and the index
+        assertTrue(dictionary.getSizeInBytes() < 2 * bytes + 8 * 7500 + 4 * 16384);
+        // An empty value at the start of a page that is not there yet
+        int empty = dictionary.add("");
+        assertEquals("", dictionary.get(empty));
+        dictionary.clear();
+        assertEquals(0, dictionary.add(values.get(42)));
+        assertEquals(values.get(42), dictionary.get(0));
+    }
+
+    @Test
+    /**
+     * The {@link CSVLoader.StorageEngine#FROZEN} storage engine needs the
+     * endless cache.
+     */
+    public void testFrozenStorageEngineWithLimitedCache() throws URISyntaxException {
+        expectedEx.expect(IllegalArgumentException.class);
+        expectedEx.expectMessage("The FROZEN storage engine only works with csvCacheSize=-1");
+        File inputFile = new File(new URI(CSVImportPluginTest.class.getResource("/sorted_linenumbers.csv").toString()).getSchemeSpecificPart());
+        CSVImportPlugin_task task = new CSVImportPlugin_task(inputFile.getPath(), 1, -1, -1, 2, "testTag", Double.POSITIVE_INFINITY, CSVImportPlugin_task.MaxDistAction.WARN, cacheSize, -1, new CSVImportOptions().setStorageEngine(CSVLoader.StorageEngine.FROZEN));
+    }
+
     @Test
     /**
      * Test with a shuffled input file with two faked positions (see
@@ -332,6 +1663,31 @@ public class CSVImportPluginTest {
             int latPos, int lonPos, int tagDataPos, String outputTag,
             Double maxDist, CSVImportPlugin_task.MaxDistAction maxDistAction,
             int csvCacheSize) throws URISyntaxException, IOException {
+        return conductTest(OSMinputFileString, CSVinputFileString, idPos, latPos, lonPos, tagDataPos, outputTag, maxDist, maxDistAction, csvCacheSize, new CSVImportOptions());
+    }
+
+    /**
+     * Let the plugin run with specified parameters and additional options.
+     *
+     * @param OSMinputFileString
+     * @param CSVinputFileString
+     * @param idPos
+     * @param latPos
+     * @param lonPos
+     * @param tagDataPos
+     * @param outputTag
+     * @param maxDist
+     * @param maxDistAction
+     * @param csvCacheSize
+     * @param options
+     * @return The OSM output file.
+     * @throws URISyntaxException
+     * @throws IOException
+     */
+    private static File conductTest(String OSMinputFileString, String CSVinputFileString, int idPos,
+            int latPos, int lonPos, int tagDataPos, String outputTag,
+            Double maxDist, CSVImportPlugin_task.MaxDistAction maxDistAction,
+            int csvCacheSize, CSVImportOptions options) throws URISyntaxException, IOException {
         File inputOSMFile = new File(new URI(CSVImportPluginTest.class.getResource(OSMinputFileString).toString()));
         File inputCSVFile = new File(new URI(CSVImportPluginTest.class.getResource(CSVinputFileString).toString()));
         File outputFile = java.io.File.createTempFile("osmosiscsvimporttest", null, null);
@@ -339,7 +1695,7 @@ public class CSVImportPluginTest {
             outputFile.deleteOnExit();
         }
 
-        CSVImportPlugin_task importTask = new CSVImportPlugin_task(inputCSVFile.getPath(), idPos, latPos, lonPos, tagDataPos, outputTag, maxDist, maxDistAction, csvCacheSize);
+        CSVImportPlugin_task importTask = new CSVImportPlugin_task(inputCSVFile.getPath(), idPos, latPos, lonPos, tagDataPos, outputTag, maxDist, maxDistAction, csvCacheSize, -1, options);
         try (BufferedWriter outputWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile), "UTF-8"));) {
             XmlReader xmlReader = new XmlReader(inputOSMFile, false, CompressionMethod.None);
             XmlWriter xmlWriter = new XmlWriter(outputWriter);
@@ -356,6 +1712,201 @@ public class CSVImportPluginTest {
         return outputFile;
     }
 
+    /**
+     * Create a read-only node with a meta tag.
+     *
+     * @param osmId The id.
+     * @param tags The tags.
+     * @return The node.
+     */
+    private static NodeContainer createNode(long osmId, Tag... tags) {
+        Node node = new Node(new CommonEntityData(osmId, 3, new Date(1234567890000L), new OsmUser(42, "mapper"), 4711, Arrays.asList(tags)), 48.15, 11.59);
+        node.getMetaTags().put("meta", "value");
+        node.makeReadOnly();
+        return new NodeContainer(node);
+    }
+
+    /**
+     * Create a random point for {@link #testSpatialMatching()}.
+     *
+     * @param random The random numbers.
+     * @param i Decides where the point is: Mostly around Munich, sometimes
+     * close to the north pole or the antimeridian.
+     * @return Latitude and longitude.
+     */
+    private static double[] randomSpatialTestPoint(Random random, int i) {
+        if (i % 10 == 0) {
+            return new double[]{89.99 + random.nextDouble() * 0.01, random.nextDouble() * 360 - 180};
+        }
+        if (i % 10 == 5) {
+            return new double[]{random.nextDouble() * 0.01, (random.nextBoolean() ? 1 : -1) * (179.99 + random.nextDouble() * 0.01)};
+        }
+        return new double[]{48.1 + random.nextDouble() * 0.1, 11.5 + random.nextDouble() * 0.1};
+    }
+
+    /**
+     * Create a read-only way without nodes.
+     *
+     * @param osmId The id.
+     * @param tags The tags.
+     * @return The way.
+     */
+    private static WayContainer createWay(long osmId, Tag... tags) {
+        Way way = new Way(new CommonEntityData(osmId, 1, new Date(0), OsmUser.NONE, 1, Arrays.asList(tags)), new ArrayList<WayNode>());
+        way.makeReadOnly();
+        return new WayContainer(way);
+    }
+
+    /**
+     * Pass the nodes {@code 1} to {@code 4} (each with the tag
+     * {@code other=old}) through a task.
+     *
+     * @param task The task.
+     * @return The nodes leaving the task.
+     */
+    private static List<Node> tagNodes(CSVImportPlugin_task task) {
+        EntityContainer[] nodes = new EntityContainer[4];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = createNode(i + 1, new Tag("other", "old"));
+        }
+        List<Node> output = new ArrayList<>();
+        for (Entity entity : runTask(task, null, nodes)) {
+            output.add((Node) entity);
+        }
+        return output;
+    }
+
+    /**
+     * Pass entities through a task.
+     *
+     * @param task The task.
+     * @param metaData The metadata of the stream, may be {@code null}.
+     * @param containers The entities.
+     * @return The entities leaving the task.
+     */
+    private static List<Entity> runTask(CSVImportPlugin_task task, Map<String, Object> metaData, EntityContainer... containers) {
+        final List<Entity> output = new ArrayList<>();
+        task.setSink(new Sink() {
+            @Override
+            public void initialize(Map<String, Object> metaData) {
+            }
+
+            @Override
+            public void process(EntityContainer entityContainer) {
+                output.add(entityContainer.getEntity());
+            }
+
+            @Override
+            public void complete() {
+            }
+
+            @Override
+            public void release() {
+            }
+        });
+        if (null != metaData) {
+            task.initialize(metaData);
+        }
+        for (EntityContainer container : containers) {
+            task.process(container);
+        }
+        task.complete();
+        task.release();
+        return output;
+    }
+
+    /**
+     * Get the value of a tag.
+     *
+     * @param entity The node, way or relation.
+     * @param key The key of the tag.
+     * @return The value or {@code null} if the entity does not have the tag.
+     */
+    private static String getTagValue(Entity entity, String key) {
+        for (Tag tag : entity.getTags()) {
+            if (tag.getKey().equals(key)) {
+                return tag.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read a stream to its end and close it.
+     *
+     * @param input The stream.
+     * @return The bytes.
+     * @throws IOException
+     */
+    private static byte[] readStream(InputStream input) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int read = input.read(buffer);
+            while (read >= 0) {
+                content.write(buffer, 0, read);
+                read = input.read(buffer);
+            }
+        } finally {
+            input.close();
+        }
+        return content.toByteArray();
+    }
+
+    /**
+     * Write bytes in BGZF format (as {@code bgzip} does): one gzip member
+     * per block, with the size of the member in the extra field.
+     *
+     * @param content The bytes.
+     * @param start Where to start at {@code content}.
+     * @param end Where to stop at {@code content} (exclusive).
+     * @param blockSize How many bytes go into a member.
+     * @param output Where to write the members.
+     * @throws IOException If writing fails.
+     */
+    private static void writeBgzf(byte[] content, int start, int end, int blockSize, OutputStream output) throws IOException {
+        for (int blockStart = start; blockStart < end; blockStart += blockSize) {
+            int length = Math.min(blockSize, end - blockStart);
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            deflater.setInput(content, blockStart, length);
+            deflater.finish();
+            byte[] compressed = new byte[length + 1024];
+            int compressedLength = 0;
+            while (!deflater.finished()) {
+                compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+            }
+            deflater.end();
+            CRC32 crc = new CRC32();
+            crc.update(content, blockStart, length);
+            ByteBuffer member = ByteBuffer.allocate(18 + compressedLength + 8).order(ByteOrder.LITTLE_ENDIAN);
+            member.put((byte) 0x1f).put((byte) 0x8b).put((byte) 8).put((byte) 4).putInt(0).put((byte) 0).put((byte) 0xff);
+            member.putShort((short) 6).put((byte) 'B').put((byte) 'C').putShort((short) 2).putShort((short) (member.capacity() - 1));
+            member.put(compressed, 0, compressedLength).putInt((int) crc.getValue()).putInt(length);
+            output.write(member.array());
+        }
+    }
+
+    /**
+     * Read all lines of a file.
+     *
+     * @param file The file.
+     * @param ignoredPattern A regular expression for parts of the lines that
+     * should be removed, may be {@code null}.
+     * @return The lines.
+     * @throws IOException
+     */
+    private static String[] readAllLines(File file, String ignoredPattern) throws IOException {
+        ArrayList<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            while (null != line) {
+                lines.add(null == ignoredPattern ? line : line.replaceAll(ignoredPattern, ""));
+                line = reader.readLine();
+            }
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
     /**
      * Makes an array with an integer range as strings.
      *